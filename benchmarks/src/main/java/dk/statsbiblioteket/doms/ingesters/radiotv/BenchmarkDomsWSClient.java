@@ -0,0 +1,25 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.exceptions.NoObjectFound;
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+
+import java.net.URL;
+import java.util.List;
+
+/**
+ * In-memory DOMS client stub, which finds every file, no existing programs, and accepts anything without doing
+ * any work, so benchmarks measure the ingester alone.
+ */
+class BenchmarkDomsWSClient extends TestDomsWSClient {
+
+    @Override
+    public String createObjectFromTemplate(String templatePID, List<String> oldIdentifiers, String comment)
+            throws ServerOperationFailed {
+        return "uuid:program";
+    }
+
+    @Override
+    public String getFileObjectPID(URL fileURL) throws NoObjectFound, ServerOperationFailed {
+        return "uuid:file-" + fileURL.getPath().hashCode();
+    }
+}
@@ -0,0 +1,113 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares setting up a new validating parser for every file with reusing a parser per thread.
+ * <p/>
+ * The schema is read from the radio-tv module. It imports the PBCore schema from pbcore.org, so setup needs network
+ * access, just like the ingester itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileParserBenchmark {
+    private static final String SAMPLE = "/2012-11-14_23-20-00_dr1.xml";
+
+    private Schema preIngestFileSchema;
+    private byte[] sample;
+    private DocumentBuilderCache fileParsers;
+    private DocumentBuilderCache datastreamBuilders;
+
+    @Setup
+    public void setUp() throws Exception {
+        preIngestFileSchema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI)
+                .newSchema(getClass().getResource("/exportedRadioTVProgram.xsd"));
+        InputStream in = getClass().getResourceAsStream(SAMPLE);
+        try {
+            sample = IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+        fileParsers = RadioTVMetadataProcessor.createFileParsers(preIngestFileSchema);
+        datastreamBuilders = new DocumentBuilderCache(DocumentBuilderFactory.newInstance(), null);
+    }
+
+    /**
+     * Parse the sample the way files were parsed before builders were cached.
+     */
+    @Benchmark
+    public Document parseWithNewParser() throws Exception {
+        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setSchema(preIngestFileSchema);
+        documentBuilderFactory.setNamespaceAware(true);
+        DocumentBuilder preingestFilesBuilder = documentBuilderFactory.newDocumentBuilder();
+        preingestFilesBuilder.setErrorHandler(new ErrorHandler() {
+            @Override
+            public void warning(SAXParseException exception) throws SAXException {
+                throw exception;
+            }
+
+            @Override
+            public void fatalError(SAXParseException exception) throws SAXException {
+                throw exception;
+            }
+
+            @Override
+            public void error(SAXParseException exception) throws SAXException {
+                throw exception;
+            }
+        });
+        return preingestFilesBuilder.parse(new ByteArrayInputStream(sample));
+    }
+
+    /**
+     * Parse the sample with the cached parser of the current thread.
+     */
+    @Benchmark
+    public Document parseWithCachedParser() throws Exception {
+        return fileParsers.getDocumentBuilder().parse(new ByteArrayInputStream(sample));
+    }
+
+    /**
+     * Set up a datastream document builder the way every record creator did before builders were cached.
+     */
+    @Benchmark
+    public DocumentBuilder newDatastreamBuilder() throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    }
+
+    /**
+     * Get the cached datastream document builder of the current thread, as datastream documents are built now.
+     */
+    @Benchmark
+    public DocumentBuilder cachedDatastreamBuilder() throws Exception {
+        return datastreamBuilders.getDocumentBuilder();
+    }
+}
@@ -0,0 +1,161 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import javax.xml.XMLConstants;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-program work of the ingester: validating parse, extraction of the parts to ingest, and building
+ * the program in DOMS against an in-memory client, for the bundled samples and for samples scaled up synthetically.
+ * <p/>
+ * A sample scaled by n has its last contributor, extension and file URL repeated n times, which keeps it valid against
+ * the schema. Run with <code>-prof gc</code> to see the allocation per program as well.
+ * <p/>
+ * The schema imports the PBCore schema from pbcore.org, so setup needs network access, just like the ingester itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProgramBenchmark {
+    private static final String CONTRIBUTOR_END = "</ns2:pbcoreContributor>";
+    private static final String EXTENSION_END = "</ns2:pbcoreExtension>";
+    private static final String FILE_URL_END = "</fileUrl>";
+
+    @Param({"2012-11-14_23-20-00_dr1.xml", "2012-11-15_09-40-00_dr1.xml"})
+    public String sampleName;
+
+    @Param({"1", "10", "100"})
+    public int scale;
+
+    private byte[] sample;
+    private File sampleFile;
+    private DocumentBuilderCache fileParsers;
+    private ProgramExtractor streamingExtractor;
+    private Document document;
+    private ProgramMetadata programMetadata;
+    private RecordCreator recordCreator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Schema preIngestFileSchema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI)
+                .newSchema(getClass().getResource("/exportedRadioTVProgram.xsd"));
+        InputStream in = getClass().getResourceAsStream("/" + sampleName);
+        try {
+            sample = scale(IOUtils.toString(in, "UTF-8"), scale).getBytes("UTF-8");
+        } finally {
+            in.close();
+        }
+        sampleFile = File.createTempFile("program", ".xml");
+        FileUtils.writeByteArrayToFile(sampleFile, sample);
+
+        fileParsers = RadioTVMetadataProcessor.createFileParsers(preIngestFileSchema);
+        streamingExtractor = new StreamingProgramExtractor(preIngestFileSchema);
+        document = parseValidated();
+        programMetadata = DomProgramExtractor.extract(document);
+        recordCreator = new RecordCreator(new BenchmarkDomsWSClient(), true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sampleFile.delete();
+    }
+
+    /**
+     * Scale a sample up, by repeating the last of the elements there may be any number of.
+     *
+     * @param sample The sample.
+     * @param scale How many times to repeat each element.
+     * @return The scaled sample.
+     */
+    static String scale(String sample, int scale) {
+        String scaled = repeatLast(sample, "<ns2:pbcoreContributor>", CONTRIBUTOR_END, scale, false);
+        scaled = repeatLast(scaled, "<ns2:pbcoreExtension>", EXTENSION_END, scale, false);
+        return repeatLast(scaled, "<fileUrl>", FILE_URL_END, scale, true);
+    }
+
+    private static String repeatLast(String sample, String start, String end, int scale, boolean vary) {
+        int endIndex = sample.lastIndexOf(end) + end.length();
+        int startIndex = sample.lastIndexOf(start, endIndex);
+        String element = sample.substring(startIndex, endIndex);
+        StringBuilder result = new StringBuilder(sample.length() + element.length() * scale);
+        result.append(sample, 0, endIndex);
+        for (int i = 1; i < scale; i++) {
+            // Vary text content by appending a number, so file URLs differ.
+            result.append(vary ? element.replace(end, i + end) : element);
+        }
+        return result.append(sample, endIndex, sample.length()).toString();
+    }
+
+    /**
+     * Parse and validate the sample against the schema, with the cached parser of the current thread.
+     */
+    @Benchmark
+    public Document parseValidated() throws Exception {
+        return fileParsers.getDocumentBuilder().parse(new ByteArrayInputStream(sample));
+    }
+
+    /**
+     * Copy the PBCore description to a datastream document of its own.
+     */
+    @Benchmark
+    public Document createDocumentFromNode() throws Exception {
+        return DomProgramExtractor.createDocumentFromNode(document, Common.PBCORE_DESCRIPTION_XPATH);
+    }
+
+    /**
+     * Build the old identifiers of the program from the Ritzau and Gallup identifiers.
+     */
+    @Benchmark
+    public List<String> getOldIdentifiers() {
+        return DomProgramExtractor.getOldIdentifiers(document);
+    }
+
+    /**
+     * Extract all parts to ingest from the parsed sample.
+     */
+    @Benchmark
+    public ProgramMetadata extract() throws Exception {
+        return DomProgramExtractor.extract(document);
+    }
+
+    /**
+     * Parse, validate and extract all parts to ingest in a single pass over the sample file.
+     */
+    @Benchmark
+    public ProgramMetadata extractStreaming() throws Exception {
+        return streamingExtractor.extract(sampleFile);
+    }
+
+    /**
+     * Build the program in DOMS, against an in-memory client doing no work.
+     */
+    @Benchmark
+    public String ingestProgram() throws Exception {
+        return recordCreator.ingestProgram(programMetadata);
+    }
+}
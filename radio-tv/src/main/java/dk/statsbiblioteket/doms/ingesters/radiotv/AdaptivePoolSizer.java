@@ -0,0 +1,93 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+/**
+ * Decides how many files to process concurrently, from the observed time and outcome of processing each file.
+ * <p/>
+ * Sizing is additive increase, multiplicative decrease: Outcomes are collected in rounds of as many files as the
+ * current pool size. If a round saw too many errors, or an average latency much worse than the best seen lately, the
+ * pool size is halved. Otherwise it is increased by one. The pool size never leaves the range from one to the
+ * configured maximum, which protects DOMS from being flooded however fast it seems.
+ */
+public class AdaptivePoolSizer {
+    /** Fraction of failed files in a round above which the pool is shrunk. */
+    static final double MAX_ERROR_RATE = 0.1;
+
+    /** How many times slower than the baseline a round may be before the pool is shrunk. */
+    static final double LATENCY_TOLERANCE = 2.0;
+
+    /**
+     * How much the baseline latency may rise per round, so the baseline follows DOMS if it becomes permanently
+     * slower.
+     */
+    static final double BASELINE_DRIFT = 1.1;
+
+    private final int maxPoolSize;
+    private int poolSize;
+
+    /** The lowest average latency seen recently, in milliseconds. Negative before the first round is done. */
+    private double baselineLatency = -1;
+
+    private int roundCount = 0;
+    private int roundFailures = 0;
+    private long roundLatency = 0;
+
+    /**
+     * Initialise the sizer.
+     *
+     * @param initialPoolSize The pool size to start with.
+     * @param maxPoolSize The largest pool size to ever allow.
+     */
+    public AdaptivePoolSizer(int initialPoolSize, int maxPoolSize) {
+        if (maxPoolSize < 1) {
+            throw new IllegalArgumentException("Maximum pool size must be positive, was " + maxPoolSize);
+        }
+        this.maxPoolSize = maxPoolSize;
+        this.poolSize = Math.max(1, Math.min(initialPoolSize, maxPoolSize));
+    }
+
+    /**
+     * @return The number of files to process concurrently.
+     */
+    public synchronized int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Record the outcome of processing a file.
+     *
+     * @param latencyMillis The time spent processing the file, in milliseconds.
+     * @param success Whether the file was processed successfully.
+     * @return True if the pool size changed as a result.
+     */
+    public synchronized boolean record(long latencyMillis, boolean success) {
+        roundCount++;
+        roundLatency += latencyMillis;
+        if (!success) {
+            roundFailures++;
+        }
+        if (roundCount < poolSize) {
+            return false;
+        }
+
+        double averageLatency = (double) roundLatency / roundCount;
+        double errorRate = (double) roundFailures / roundCount;
+        roundCount = 0;
+        roundFailures = 0;
+        roundLatency = 0;
+
+        boolean congested = baselineLatency >= 0 && averageLatency > baselineLatency * LATENCY_TOLERANCE;
+        if (baselineLatency < 0) {
+            baselineLatency = averageLatency;
+        } else {
+            baselineLatency = Math.min(averageLatency, baselineLatency * BASELINE_DRIFT);
+        }
+
+        int previousPoolSize = poolSize;
+        if (errorRate > MAX_ERROR_RATE || congested) {
+            poolSize = Math.max(1, poolSize / 2);
+        } else {
+            poolSize = Math.min(maxPoolSize, poolSize + 1);
+        }
+        return poolSize != previousPoolSize;
+    }
+}
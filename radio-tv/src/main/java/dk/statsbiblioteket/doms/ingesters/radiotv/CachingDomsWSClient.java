@@ -0,0 +1,119 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.DomsWSClient;
+import dk.statsbiblioteket.doms.client.exceptions.NoObjectFound;
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * DOMS client caching the lookups of file objects by URL and of programs by old identifier, which are repeated a lot
+ * by reruns and overlapping program listings.
+ * <p/>
+ * Lookups that found nothing are cached too, for a shorter time. When a program is created, the cached lookups of its
+ * old identifiers are removed. When objects are deleted, all cached lookups of old identifiers are removed, since the
+ * program may have been among them. A lookup running concurrently with the creation of a program may still cache a
+ * negative result, which then lasts for the negative time to live.
+ */
+public class CachingDomsWSClient extends DelegatingDomsWSClient {
+    /** Cached PIDs of file objects by URL. Null for a URL not found. */
+    private final LookupCache<String, String> filePids;
+    /** Cached PIDs of programs by old identifier. Null for an identifier not found. */
+    private final LookupCache<String, List<String>> programPids;
+
+    /**
+     * Initialise the client.
+     *
+     * @param delegate The client to pass calls on to.
+     * @param maxEntries The largest number of lookups of each kind to cache.
+     * @param timeToLiveMillis How long to cache lookups that found an object, in milliseconds.
+     * @param negativeTimeToLiveMillis How long to cache lookups that found nothing, in milliseconds.
+     */
+    public CachingDomsWSClient(DomsWSClient delegate, int maxEntries, long timeToLiveMillis,
+                               long negativeTimeToLiveMillis) {
+        super(delegate);
+        filePids = new LookupCache<String, String>(maxEntries, timeToLiveMillis, negativeTimeToLiveMillis);
+        programPids = new LookupCache<String, List<String>>(maxEntries, timeToLiveMillis, negativeTimeToLiveMillis);
+    }
+
+    @Override
+    public String getFileObjectPID(URL fileURL) throws NoObjectFound, ServerOperationFailed {
+        // Not the URL itself, since URL.equals resolves host names.
+        String key = fileURL.toString();
+        LookupCache.Entry<String> entry = filePids.get(key);
+        if (entry != null) {
+            if (entry.getValue() == null) {
+                throw new NoObjectFound();
+            }
+            return entry.getValue();
+        }
+        try {
+            String pid = delegate.getFileObjectPID(fileURL);
+            filePids.put(key, pid, true);
+            return pid;
+        } catch (NoObjectFound e) {
+            filePids.put(key, null);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<String> getPidFromOldIdentifier(String oldIdentifier) throws NoObjectFound, ServerOperationFailed {
+        LookupCache.Entry<List<String>> entry = programPids.get(oldIdentifier);
+        if (entry != null) {
+            if (entry.getValue() == null) {
+                throw new NoObjectFound();
+            }
+            return new ArrayList<String>(entry.getValue());
+        }
+        try {
+            List<String> pids = delegate.getPidFromOldIdentifier(oldIdentifier);
+            boolean found = !pids.isEmpty() && !pids.get(0).isEmpty();
+            programPids.put(oldIdentifier, new ArrayList<String>(pids), found);
+            return pids;
+        } catch (NoObjectFound e) {
+            programPids.put(oldIdentifier, null);
+            throw e;
+        }
+    }
+
+    @Override
+    public String createObjectFromTemplate(String templatePID, List<String> oldIdentifiers, String comment)
+            throws ServerOperationFailed {
+        String pid = delegate.createObjectFromTemplate(templatePID, oldIdentifiers, comment);
+        for (String oldIdentifier : oldIdentifiers) {
+            programPids.invalidate(oldIdentifier);
+            // Identifiers are looked up with quotes escaped, see ProgramLookup.
+            programPids.invalidate(oldIdentifier.replaceAll("'", Matcher.quoteReplacement("\\'")));
+        }
+        return pid;
+    }
+
+    @Override
+    public void deleteObjects(String comment, String... pidsToDelete) throws ServerOperationFailed {
+        delegate.deleteObjects(comment, pidsToDelete);
+        programPids.invalidateAll();
+    }
+
+    /**
+     * @return The cache of file object lookups, for its statistics.
+     */
+    public LookupCache<String, String> getFilePidCache() {
+        return filePids;
+    }
+
+    /**
+     * @return The cache of program lookups, for its statistics.
+     */
+    public LookupCache<String, List<String>> getProgramPidCache() {
+        return programPids;
+    }
+
+    @Override
+    public String toString() {
+        return "File lookups: " + filePids + ". Program lookups: " + programPids + ".";
+    }
+}
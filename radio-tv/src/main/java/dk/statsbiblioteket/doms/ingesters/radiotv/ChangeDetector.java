@@ -0,0 +1,254 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.DomsWSClient;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.xml.XMLConstants;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tells whether the datastreams and label of an existing object would be changed by writing them, so unchanged
+ * content need not be written again.
+ * <p/>
+ * A digest of the canonical form of the content last written or seen is kept per object and datastream. When there
+ * is none, the current content is fetched from DOMS, once, without retrying. The content is only worth fetching to
+ * save a write, so if fetching fails the content is reported changed at once and written, rather than retrying or
+ * waiting for DOMS to recover twice.
+ * <p/>
+ * The canonical form ignores namespace prefixes of elements and attributes, the order of attributes, comments and
+ * whitespace around elements, so content serialised differently by DOMS still matches. Attribute values are kept as
+ * they are, however, so a QName in a value, like in {@code xsi:type="pb:titleType"}, only matches with the same
+ * prefix. Content using another prefix there is reported changed, and just written again.
+ * <p/>
+ * The detector is thread safe, and meant to be shared by all files processed.
+ */
+public class ChangeDetector {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new Error("All JVMs must support MD5", e);
+            }
+        }
+    };
+
+    private static final Comparator<Attr> ATTRIBUTE_ORDER = new Comparator<Attr>() {
+        @Override
+        public int compare(Attr attr1, Attr attr2) {
+            int result = String.valueOf(attr1.getNamespaceURI()).compareTo(String.valueOf(attr2.getNamespaceURI()));
+            return result != 0 ? result : localName(attr1).compareTo(localName(attr2));
+        }
+    };
+
+    private final DomsWSClient domsClient;
+    /** Digests of content known to be in DOMS, by object PID and datastream ID. */
+    private final LookupCache<String, byte[]> digests;
+
+    private final AtomicLong unchanged = new AtomicLong();
+    private final AtomicLong changed = new AtomicLong();
+
+    /**
+     * Initialise the detector.
+     *
+     * @param domsClient Client for fetching current content from DOMS. Should not retry failed calls, nor wait for
+     * DOMS to recover.
+     * @param maxEntries The largest number of datastreams and labels to remember the digest of.
+     * @param timeToLiveMillis How long to trust a digest remembered, in milliseconds, before fetching the content
+     * from DOMS again. Bounds how long a change made to DOMS by others can go unnoticed.
+     */
+    public ChangeDetector(DomsWSClient domsClient, int maxEntries, long timeToLiveMillis) {
+        this.domsClient = domsClient;
+        this.digests = new LookupCache<String, byte[]>(maxEntries, timeToLiveMillis, 0);
+    }
+
+    /**
+     * Whether writing the content to a datastream would change it.
+     *
+     * @param pid The PID of the object.
+     * @param datastreamId The ID of the datastream.
+     * @param content The content to write.
+     * @return False if the datastream already has this content.
+     */
+    public boolean isChanged(String pid, String datastreamId, Document content) {
+        byte[] digest = digest(content);
+        String key = pid + "/" + datastreamId;
+        LookupCache.Entry<byte[]> known = digests.get(key);
+        if (known != null) {
+            return count(!Arrays.equals(known.getValue(), digest));
+        }
+        Document current;
+        try {
+            current = domsClient.getDataStream(pid, datastreamId);
+        } catch (Exception e) {
+            // Missing, or not available. Write it to be sure.
+            return count(true);
+        }
+        if (current == null) {
+            return count(true);
+        }
+        byte[] currentDigest = digest(current);
+        digests.put(key, currentDigest);
+        return count(!Arrays.equals(currentDigest, digest));
+    }
+
+    /**
+     * Remember content written to a datastream.
+     *
+     * @param pid The PID of the object.
+     * @param datastreamId The ID of the datastream.
+     * @param content The content written.
+     */
+    public void written(String pid, String datastreamId, Document content) {
+        digests.put(pid + "/" + datastreamId, digest(content));
+    }
+
+    /**
+     * Whether setting the label of an object would change it.
+     *
+     * @param pid The PID of the object.
+     * @param label The label to set.
+     * @return False if the object already has this label.
+     */
+    public boolean isLabelChanged(String pid, String label) {
+        // Datastream IDs cannot contain spaces, so this key is never taken by a datastream.
+        String key = pid + " label";
+        LookupCache.Entry<byte[]> known = digests.get(key);
+        byte[] value = String.valueOf(label).getBytes(UTF8);
+        if (known != null) {
+            return count(!Arrays.equals(known.getValue(), value));
+        }
+        String current;
+        try {
+            current = domsClient.getLabel(pid);
+        } catch (RuntimeException e) {
+            // Not available. Set it to be sure.
+            return count(true);
+        }
+        if (current == null) {
+            return count(true);
+        }
+        byte[] currentValue = current.getBytes(UTF8);
+        digests.put(key, currentValue);
+        return count(!Arrays.equals(currentValue, value));
+    }
+
+    /**
+     * Remember the label set on an object.
+     *
+     * @param pid The PID of the object.
+     * @param label The label set.
+     */
+    public void labelWritten(String pid, String label) {
+        digests.put(pid + " label", String.valueOf(label).getBytes(UTF8));
+    }
+
+    private boolean count(boolean isChanged) {
+        (isChanged ? changed : unchanged).incrementAndGet();
+        return isChanged;
+    }
+
+    /**
+     * @return The number of writes found to be unnecessary.
+     */
+    public long getUnchangedCount() {
+        return unchanged.get();
+    }
+
+    /**
+     * @return The number of writes found to change content.
+     */
+    public long getChangedCount() {
+        return changed.get();
+    }
+
+    /**
+     * @return The digests remembered, for their statistics.
+     */
+    public LookupCache<String, byte[]> getDigests() {
+        return digests;
+    }
+
+    @Override
+    public String toString() {
+        return "Change detection: unchanged=" + getUnchangedCount() + ", changed=" + getChangedCount()
+               + ", remembered " + digests;
+    }
+
+    /**
+     * Compute the digest of the canonical form of a document.
+     *
+     * @param document The document.
+     * @return The MD5 digest of the canonical form.
+     */
+    static byte[] digest(Document document) {
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        update(digest, document.getDocumentElement());
+        return digest.digest();
+    }
+
+    private static void update(MessageDigest digest, Node node) {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                update(digest, "<{" + node.getNamespaceURI() + "}" + localName(node));
+                for (Attr attr : sortedAttributes(node)) {
+                    update(digest, " {" + attr.getNamespaceURI() + "}" + localName(attr) + "=" + attr.getValue());
+                }
+                update(digest, ">");
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    update(digest, child);
+                }
+                update(digest, "</>");
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                String text = node.getNodeValue().trim();
+                if (!text.isEmpty()) {
+                    // Escape the delimiters, so text cannot pass for markup.
+                    update(digest, text.replace("&", "&amp;").replace("<", "&lt;"));
+                }
+                break;
+            default:
+                // Comments and processing instructions are not content.
+                break;
+        }
+    }
+
+    private static List<Attr> sortedAttributes(Node element) {
+        NamedNodeMap attributes = element.getAttributes();
+        List<Attr> result = new ArrayList<Attr>(attributes.getLength());
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attr = (Attr) attributes.item(i);
+            if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI())
+                && !XMLConstants.XMLNS_ATTRIBUTE.equals(attr.getName())
+                && !attr.getName().startsWith(XMLConstants.XMLNS_ATTRIBUTE + ":")) {
+                result.add(attr);
+            }
+        }
+        Collections.sort(result, ATTRIBUTE_ORDER);
+        return result;
+    }
+
+    private static String localName(Node node) {
+        return node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+    }
+
+    private static void update(MessageDigest digest, String string) {
+        digest.update(string.getBytes(UTF8));
+    }
+}
@@ -0,0 +1,212 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps track of whether DOMS is healthy, and holds back calls while it is not.
+ * <p/>
+ * The breaker starts closed, letting all calls through. After a number of consecutive calls failing with transient
+ * errors it opens, and calls wait for a cooldown period instead of adding to the trouble. When the cooldown is over,
+ * the breaker is half open: a single call is let through as a probe, while the rest keep waiting. If the probe
+ * succeeds, the breaker closes and all calls carry on. If it fails, the breaker opens again with twice the cooldown,
+ * up to {@link #MAX_COOLDOWN_FACTOR} times the configured cooldown.
+ * <p/>
+ * Every call let through by {@link #acquire()} must report its outcome with {@link #succeeded()} or
+ * {@link #failed()}.
+ * <p/>
+ * Calls wait on a lock rather than a monitor, so workers on virtual threads held back by the breaker leave their
+ * carrier threads to others, see {@link VirtualThreads}.
+ */
+public class CircuitBreaker {
+    /** How many times the configured cooldown the breaker may stay open after failed probes. */
+    static final int MAX_COOLDOWN_FACTOR = 8;
+
+    /** The states of the breaker. */
+    public enum State {
+        /** Calls go through. */
+        CLOSED,
+        /** Calls wait for the cooldown to be over. */
+        OPEN,
+        /** A single call is let through to probe whether DOMS has recovered. */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long cooldownMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled whenever the state changes. */
+    private final Condition stateChanged = lock.newCondition();
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    /** The cooldown of the next time the breaker opens, in milliseconds. */
+    private long currentCooldownMillis;
+    /** When the breaker may be half opened, in the time of {@link System#nanoTime()}. */
+    private long openUntilNanos;
+    /** Whether the probe of the half open breaker has been let through. */
+    private boolean probing = false;
+    private long openCount = 0;
+
+    /**
+     * Initialise the breaker.
+     *
+     * @param failureThreshold The number of consecutive failed calls opening the breaker.
+     * @param cooldownMillis How long the breaker stays open before probing, in milliseconds.
+     */
+    public CircuitBreaker(int failureThreshold, long cooldownMillis) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Failure threshold must be positive, was " + failureThreshold);
+        }
+        this.failureThreshold = failureThreshold;
+        this.cooldownMillis = cooldownMillis;
+        this.currentCooldownMillis = cooldownMillis;
+    }
+
+    /**
+     * Wait until a call may go through. While the breaker is open, this waits for the cooldown to be over. While it
+     * is half open, all but the probe wait for the outcome of the probe.
+     *
+     * @return True if the call had to wait.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            boolean waited = false;
+            while (true) {
+                if (state == State.CLOSED) {
+                    return waited;
+                }
+                if (state == State.OPEN && !waitForCooldown()) {
+                    waited = true;
+                    continue;
+                }
+                if (!probing) {
+                    probing = true;
+                    return waited;
+                }
+                waited = true;
+                stateChanged.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait while the breaker is open. Unlike {@link #acquire()}, this returns as soon as the cooldown is over, and
+     * lets any number of callers through to take part in the probing. Use this to hold back new work while DOMS is
+     * known to be unhealthy.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void awaitCooldown() throws InterruptedException {
+        lock.lock();
+        try {
+            while (state == State.OPEN && !waitForCooldown()) {
+                // Woken up early, look again.
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the rest of the cooldown, and half open the breaker if it is over. Must hold the lock.
+     *
+     * @return True if the breaker was half opened, false if woken up before the cooldown was over.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private boolean waitForCooldown() throws InterruptedException {
+        long remainingNanos = openUntilNanos - System.nanoTime();
+        if (remainingNanos > 0) {
+            stateChanged.await(remainingNanos, TimeUnit.NANOSECONDS);
+            return false;
+        }
+        state = State.HALF_OPEN;
+        probing = false;
+        return true;
+    }
+
+    /**
+     * Report a call that succeeded, or failed in a way that shows DOMS is answering.
+     */
+    public void succeeded() {
+        lock.lock();
+        try {
+            consecutiveFailures = 0;
+            if (state == State.HALF_OPEN) {
+                state = State.CLOSED;
+                currentCooldownMillis = cooldownMillis;
+                System.out.println("DOMS has recovered, resuming ingest");
+                stateChanged.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Report a call that failed with a transient error.
+     */
+    public void failed() {
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN) {
+                currentCooldownMillis = Math.min(currentCooldownMillis * 2, cooldownMillis * MAX_COOLDOWN_FACTOR);
+                open();
+            } else if (state == State.CLOSED && ++consecutiveFailures >= failureThreshold) {
+                open();
+            }
+            // Calls started before the breaker opened do not change anything while it is open.
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        probing = false;
+        consecutiveFailures = 0;
+        openUntilNanos = System.nanoTime() + currentCooldownMillis * 1000000;
+        openCount++;
+        System.err.println("DOMS is failing, pausing ingest for " + currentCooldownMillis + " ms");
+        stateChanged.signalAll();
+    }
+
+    /**
+     * @return The state of the breaker.
+     */
+    public State getState() {
+        lock.lock();
+        try {
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of times the breaker has opened.
+     */
+    public long getOpenCount() {
+        lock.lock();
+        try {
+            return openCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "Circuit breaker " + state + ", opened " + openCount + " times";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
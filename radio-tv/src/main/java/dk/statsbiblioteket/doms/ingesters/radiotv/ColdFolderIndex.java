@@ -0,0 +1,113 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the digests of the files in the folder of processed files, to tell whether a file has already been
+ * processed by one digest of the incoming file and one lookup.
+ * <p/>
+ * The index is built on first use, by digesting every file in the folder once, and is updated as files are moved
+ * in. A file changed or added in the folder by others is digested again when asked about, judged by its size and
+ * modification time. The index is thread safe.
+ */
+public class ColdFolderIndex {
+    private final File coldFolder;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private volatile boolean built = false;
+
+    /**
+     * Initialise the index. Nothing is read until the index is first used.
+     *
+     * @param coldFolder The folder of processed files.
+     */
+    public ColdFolderIndex(File coldFolder) {
+        this.coldFolder = coldFolder;
+    }
+
+    /**
+     * Whether the folder has a file of the given name and content.
+     *
+     * @param name The name of the file.
+     * @param digest The digest of the content, see {@link FileDigests#md5(File)}.
+     * @return True if the folder has a file of that name and content.
+     * @throws IOException If a file in the folder could not be read.
+     */
+    public boolean contains(String name, byte[] digest) throws IOException {
+        if (!built) {
+            build();
+        }
+        File file = new File(coldFolder, name);
+        Entry entry = entries.get(name);
+        if (entry == null || entry.size != file.length() || entry.lastModified != file.lastModified()) {
+            // Not indexed, or changed since. Only then is the file in the folder read.
+            if (!file.isFile()) {
+                entries.remove(name);
+                return false;
+            }
+            entry = index(file);
+        }
+        return Arrays.equals(entry.digest, digest);
+    }
+
+    /**
+     * Register a file moved into the folder. Nothing happens if the file is not in the folder.
+     *
+     * @param name The name of the file.
+     * @param digest The digest of the content, see {@link FileDigests#md5(File)}.
+     */
+    public void added(String name, byte[] digest) {
+        File file = new File(coldFolder, name);
+        if (file.isFile()) {
+            entries.put(name, new Entry(digest, file.length(), file.lastModified()));
+        }
+    }
+
+    /**
+     * @return The number of files indexed.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private synchronized void build() throws IOException {
+        if (built) {
+            return;
+        }
+        File[] files = coldFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    index(file);
+                }
+            }
+        }
+        built = true;
+    }
+
+    private Entry index(File file) throws IOException {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        Entry entry = new Entry(FileDigests.md5(file), size, lastModified);
+        entries.put(file.getName(), entry);
+        return entry;
+    }
+
+    /**
+     * The digest of a file, and the size and modification time it was computed for.
+     */
+    private static class Entry {
+        private final byte[] digest;
+        private final long size;
+        private final long lastModified;
+
+        Entry(byte[] digest, long size, long lastModified) {
+            this.digest = digest;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
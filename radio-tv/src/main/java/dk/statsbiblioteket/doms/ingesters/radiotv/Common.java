@@ -1,8 +1,5 @@
 package dk.statsbiblioteket.doms.ingesters.radiotv;
 
-import dk.statsbiblioteket.util.xml.DOM;
-import dk.statsbiblioteket.util.xml.XPathSelector;
-
 /** Constants used while building document. */
 public class Common {
     static final String COMMENT = "Ingest of Radio/TV data";
@@ -14,12 +11,6 @@ public class Common {
     static final String RITZAU_NAMESPACE = "http://doms.statsbiblioteket.dk/types/ritzau_original/0/1/#";
     static final String GALLUP_NAMESPACE = "http://doms.statsbiblioteket.dk/types/gallup_original/0/1/#";
     static final String PROGRAM_BROADCAST_NAMESPACE = "http://doms.statsbiblioteket.dk/types/program_broadcast/0/1/#";
-    static final XPathSelector XPATH_SELECTOR = DOM
-            .createXPathSelector("pbc", PBCORE_NAMESPACE,
-                                 "dc", DC_NAMESPACE,
-                                 "ritzau", RITZAU_NAMESPACE,
-                                 "gallup", GALLUP_NAMESPACE,
-                                 "pb", PROGRAM_BROADCAST_NAMESPACE);
     static final String PBCORE_DESCRIPTION_ELEMENT
                     = "//program/pbcore/pbc:PBCoreDescriptionDocument";
     static final String DC_IDENTIFIER_ELEMENT = "//dc:identifier";
@@ -33,6 +24,17 @@ public class Common {
     static final String PROGRAM_BROADCAST_ELEMENT = "//program/pb:programBroadcast";
     static final String RECORDING_FILES_URLS = "//program/fileUrls/fileUrl";
 
+    // The expressions above, compiled once per thread. Use these for evaluating the expressions.
+    static final CompiledXPath PBCORE_DESCRIPTION_XPATH = new CompiledXPath(PBCORE_DESCRIPTION_ELEMENT);
+    static final CompiledXPath DC_IDENTIFIER_XPATH = new CompiledXPath(DC_IDENTIFIER_ELEMENT);
+    static final CompiledXPath PBCORE_TITLE_XPATH = new CompiledXPath(PBCORE_TITLE_ELEMENT);
+    static final CompiledXPath PBCORE_RITZAU_IDENTIFIER_XPATH = new CompiledXPath(PBCORE_RITZAU_IDENTIFIER_ELEMENT);
+    static final CompiledXPath PBCORE_GALLUP_IDENTIFIER_XPATH = new CompiledXPath(PBCORE_GALLUP_IDENTIFIER_ELEMENT);
+    static final CompiledXPath RITZAU_ORIGINALS_XPATH = new CompiledXPath(RITZAU_ORIGINALS_ELEMENT);
+    static final CompiledXPath GALLUP_ORIGINALS_XPATH = new CompiledXPath(GALLUP_ORIGINALS_ELEMENT);
+    static final CompiledXPath PROGRAM_BROADCAST_XPATH = new CompiledXPath(PROGRAM_BROADCAST_ELEMENT);
+    static final CompiledXPath RECORDING_FILES_URLS_XPATH = new CompiledXPath(RECORDING_FILES_URLS);
+
     static final String PROGRAM_TEMPLATE_PID = "doms:Template_Program";
     static final String PROGRAM_PBCORE_DS_ID = "PBCORE";
     static final String RITZAU_ORIGINAL_DS_ID = "RITZAU_ORIGINAL";
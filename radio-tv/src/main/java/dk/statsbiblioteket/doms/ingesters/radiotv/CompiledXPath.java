@@ -0,0 +1,148 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An XPath expression over Radio/TV metadata, compiled once per thread.
+ * <p/>
+ * Compiled expressions and the factories creating them are not thread safe, so sharing one selector between worker
+ * threads is not safe, and compiling the expression for every evaluation is wasted work. Instead each thread compiles
+ * the expression the first time it uses it, and reuses it after that. The expression may use the prefixes pbc, dc,
+ * ritzau, gallup and pb for the namespaces in {@link Common}.
+ */
+public class CompiledXPath {
+    private static final NamespaceContext NAMESPACES = new PrefixNamespaceContext(
+            "pbc", Common.PBCORE_NAMESPACE,
+            "dc", Common.DC_NAMESPACE,
+            "ritzau", Common.RITZAU_NAMESPACE,
+            "gallup", Common.GALLUP_NAMESPACE,
+            "pb", Common.PROGRAM_BROADCAST_NAMESPACE);
+
+    private final String expression;
+    private final ThreadLocal<XPathExpression> compiledExpressions = new ThreadLocal<XPathExpression>();
+
+    /**
+     * Initialise the expression. It is compiled once here, so an invalid expression fails at once.
+     *
+     * @param expression The XPath expression.
+     * @throws IllegalArgumentException If the expression is not valid XPath.
+     */
+    public CompiledXPath(String expression) {
+        this.expression = expression;
+        compiledExpressions.set(compile());
+    }
+
+    /**
+     * @return The XPath expression.
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * Select the first node matching the expression.
+     *
+     * @param context The node to evaluate the expression from.
+     * @return The first matching node, or null if none match.
+     */
+    public Node selectNode(Node context) {
+        return (Node) evaluate(context, XPathConstants.NODE);
+    }
+
+    /**
+     * Select all nodes matching the expression.
+     *
+     * @param context The node to evaluate the expression from.
+     * @return The matching nodes in document order. Empty if none match.
+     */
+    public NodeList selectNodeList(Node context) {
+        return (NodeList) evaluate(context, XPathConstants.NODESET);
+    }
+
+    /**
+     * Select the text content of the first node matching the expression.
+     *
+     * @param context The node to evaluate the expression from.
+     * @return The text content of the first matching node, or null if none match.
+     */
+    public String selectText(Node context) {
+        Node node = selectNode(context);
+        return node == null ? null : node.getTextContent();
+    }
+
+    private Object evaluate(Node context, QName returnType) {
+        XPathExpression compiledExpression = compiledExpressions.get();
+        if (compiledExpression == null) {
+            compiledExpression = compile();
+            compiledExpressions.set(compiledExpression);
+        }
+        try {
+            return compiledExpression.evaluate(context, returnType);
+        } catch (XPathExpressionException e) {
+            throw new IllegalArgumentException("Unable to evaluate '" + expression + "'", e);
+        }
+    }
+
+    private XPathExpression compile() {
+        XPath xPath = XPathFactory.newInstance().newXPath();
+        xPath.setNamespaceContext(NAMESPACES);
+        try {
+            return xPath.compile(expression);
+        } catch (XPathExpressionException e) {
+            throw new IllegalArgumentException("Invalid XPath expression '" + expression + "'", e);
+        }
+    }
+
+    /**
+     * Namespace context for a fixed set of prefixes. Immutable, so it can be shared between threads.
+     */
+    private static class PrefixNamespaceContext implements NamespaceContext {
+        private final Map<String, String> namespaces = new HashMap<String, String>();
+
+        /**
+         * @param prefixesAndNamespaces Alternating prefixes and namespace URIs.
+         */
+        PrefixNamespaceContext(String... prefixesAndNamespaces) {
+            for (int i = 0; i < prefixesAndNamespaces.length; i += 2) {
+                namespaces.put(prefixesAndNamespaces[i], prefixesAndNamespaces[i + 1]);
+            }
+        }
+
+        @Override
+        public String getNamespaceURI(String prefix) {
+            String namespace = namespaces.get(prefix);
+            return namespace == null ? XMLConstants.NULL_NS_URI : namespace;
+        }
+
+        @Override
+        public String getPrefix(String namespaceURI) {
+            for (Map.Entry<String, String> entry : namespaces.entrySet()) {
+                if (entry.getValue().equals(namespaceURI)) {
+                    return entry.getKey();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Iterator<String> getPrefixes(String namespaceURI) {
+            String prefix = getPrefix(namespaceURI);
+            return prefix == null ? Collections.<String>emptyList().iterator()
+                                  : Collections.singletonList(prefix).iterator();
+        }
+    }
+}
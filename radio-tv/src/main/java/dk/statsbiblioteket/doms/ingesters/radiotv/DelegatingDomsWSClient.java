@@ -0,0 +1,178 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.central.InvalidCredentialsException;
+import dk.statsbiblioteket.doms.central.InvalidResourceException;
+import dk.statsbiblioteket.doms.central.MethodFailedException;
+import dk.statsbiblioteket.doms.central.RecordDescription;
+import dk.statsbiblioteket.doms.central.SearchResult;
+import dk.statsbiblioteket.doms.client.DomsWSClient;
+import dk.statsbiblioteket.doms.client.exceptions.NoObjectFound;
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import dk.statsbiblioteket.doms.client.exceptions.XMLParseException;
+import dk.statsbiblioteket.doms.client.objects.DigitalObjectFactory;
+import dk.statsbiblioteket.doms.client.relations.LiteralRelation;
+import dk.statsbiblioteket.doms.client.relations.Relation;
+import dk.statsbiblioteket.doms.client.utils.Constants;
+import dk.statsbiblioteket.doms.client.utils.FileInfo;
+import org.w3c.dom.Document;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+
+/**
+ * DOMS client passing all calls on to another client. Extend this to change the behaviour of some calls, and leave
+ * the rest as they are.
+ */
+public class DelegatingDomsWSClient implements DomsWSClient {
+    /** The client calls are passed on to. */
+    protected final DomsWSClient delegate;
+
+    /**
+     * Initialise the client.
+     *
+     * @param delegate The client to pass calls on to.
+     */
+    public DelegatingDomsWSClient(DomsWSClient delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void login(URL domsWSAPIEndpoint, String userName, String password) {
+        delegate.login(domsWSAPIEndpoint, userName, password);
+    }
+
+    @Override
+    public List<String> getLabel(List<String> uuids) {
+        return delegate.getLabel(uuids);
+    }
+
+    @Override
+    public DigitalObjectFactory getDigitalObjectFactory() {
+        return delegate.getDigitalObjectFactory();
+    }
+
+    @Override
+    public String getLabel(String uuid) {
+        return delegate.getLabel(uuid);
+    }
+
+    @Override
+    public List<SearchResult> search(String query, int offset, int pageLength) throws ServerOperationFailed {
+        return delegate.search(query, offset, pageLength);
+    }
+
+    @Override
+    public void setCredentials(URL domsWSAPIEndpoint, String userName, String password) {
+        delegate.setCredentials(domsWSAPIEndpoint, userName, password);
+    }
+
+    @Override
+    public String createObjectFromTemplate(String templatePID, String comment) throws ServerOperationFailed {
+        return delegate.createObjectFromTemplate(templatePID, comment);
+    }
+
+    @Override
+    public String createObjectFromTemplate(String templatePID, List<String> oldIdentifiers, String comment)
+            throws ServerOperationFailed {
+        return delegate.createObjectFromTemplate(templatePID, oldIdentifiers, comment);
+    }
+
+    @Override
+    public String createFileObject(String templatePID, FileInfo fileInfo, String comment) throws ServerOperationFailed {
+        return delegate.createFileObject(templatePID, fileInfo, comment);
+    }
+
+    @Override
+    public void addFileToFileObject(String fileObjectPID, FileInfo fileInfo, String comment)
+            throws ServerOperationFailed {
+        delegate.addFileToFileObject(fileObjectPID, fileInfo, comment);
+    }
+
+    @Override
+    public String getFileObjectPID(URL fileURL) throws NoObjectFound, ServerOperationFailed {
+        return delegate.getFileObjectPID(fileURL);
+    }
+
+    @Override
+    public List<String> getPidFromOldIdentifier(String oldIdentifier) throws NoObjectFound, ServerOperationFailed {
+        return delegate.getPidFromOldIdentifier(oldIdentifier);
+    }
+
+    @Override
+    public Document getDataStream(String objectPID, String datastreamID) throws ServerOperationFailed {
+        return delegate.getDataStream(objectPID, datastreamID);
+    }
+
+    @Override
+    public void updateDataStream(String objectPID, String dataStreamID, Document newDataStreamContents, String comment)
+            throws ServerOperationFailed {
+        delegate.updateDataStream(objectPID, dataStreamID, newDataStreamContents, comment);
+    }
+
+    @Override
+    public void addObjectRelation(String pid, String predicate, String objectPid, String comment)
+            throws ServerOperationFailed, XMLParseException {
+        delegate.addObjectRelation(pid, predicate, objectPid, comment);
+    }
+
+    @Override
+    public void removeObjectRelation(LiteralRelation relation, String comment) throws ServerOperationFailed {
+        delegate.removeObjectRelation(relation, comment);
+    }
+
+    @Override
+    public List<Relation> listObjectRelations(String objectPID, String relationType) throws ServerOperationFailed {
+        return delegate.listObjectRelations(objectPID, relationType);
+    }
+
+    @Override
+    public void publishObjects(String comment, String... pidsToPublish) throws ServerOperationFailed {
+        delegate.publishObjects(comment, pidsToPublish);
+    }
+
+    @Override
+    public void unpublishObjects(String comment, String... pidsToUnpublish) throws ServerOperationFailed {
+        delegate.unpublishObjects(comment, pidsToUnpublish);
+    }
+
+    @Override
+    public void deleteObjects(String comment, String... pidsToDelete) throws ServerOperationFailed {
+        delegate.deleteObjects(comment, pidsToDelete);
+    }
+
+    @Override
+    public long getModificationTime(String collectionPID, String viewID, String state) throws ServerOperationFailed {
+        return delegate.getModificationTime(collectionPID, viewID, state);
+    }
+
+    @Override
+    public List<RecordDescription> getModifiedEntryObjects(String collectionPID, String viewID, long timeStamp,
+                                                           String objectState, long offsetIndex,
+                                                           long maxRecordCount) throws ServerOperationFailed {
+        return delegate.getModifiedEntryObjects(collectionPID, viewID, timeStamp, objectState, offsetIndex,
+                                                maxRecordCount);
+    }
+
+    @Override
+    public String getViewBundle(String entryObjectPID, String viewID) throws ServerOperationFailed {
+        return delegate.getViewBundle(entryObjectPID, viewID);
+    }
+
+    @Override
+    public void setObjectLabel(String objectPID, String objectLabel, String comment) throws ServerOperationFailed {
+        delegate.setObjectLabel(objectPID, objectLabel, comment);
+    }
+
+    @Override
+    public Constants.FedoraState getState(String pid) throws ServerOperationFailed {
+        return delegate.getState(pid);
+    }
+
+    @Override
+    public InputStream getDatastreamContent(String pid, String ds)
+            throws ServerOperationFailed, InvalidCredentialsException, MethodFailedException,
+            InvalidResourceException {
+        return delegate.getDatastreamContent(pid, ds);
+    }
+}
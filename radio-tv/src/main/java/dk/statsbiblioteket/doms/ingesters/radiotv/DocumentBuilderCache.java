@@ -0,0 +1,55 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.xml.sax.ErrorHandler;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Hands out document builders from one factory, keeping one builder per thread and resetting it for every use.
+ * <p/>
+ * Setting up a builder, in particular a validating one, is expensive compared to parsing a small file, and builders
+ * are not thread safe. So instead of a new builder per file, each thread reuses its own.
+ */
+public class DocumentBuilderCache {
+    private final DocumentBuilderFactory documentBuilderFactory;
+    private final ErrorHandler errorHandler;
+    private final ThreadLocal<DocumentBuilder> documentBuilders = new ThreadLocal<DocumentBuilder>();
+
+    /**
+     * Initialise the cache.
+     *
+     * @param documentBuilderFactory The factory to create builders from. Must not be changed afterwards.
+     * @param errorHandler The error handler to use for builders, or null for the default behaviour.
+     */
+    public DocumentBuilderCache(DocumentBuilderFactory documentBuilderFactory, ErrorHandler errorHandler) {
+        this.documentBuilderFactory = documentBuilderFactory;
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * Get the document builder of the current thread, in the state it was created by the factory.
+     * The builder must not be handed to other threads.
+     *
+     * @return A document builder.
+     * @throws ParserConfigurationException if the factory cannot create the builder.
+     */
+    public DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilder documentBuilder = documentBuilders.get();
+        if (documentBuilder == null) {
+            // Factories are not thread safe either.
+            synchronized (documentBuilderFactory) {
+                documentBuilder = documentBuilderFactory.newDocumentBuilder();
+            }
+            documentBuilders.set(documentBuilder);
+        } else {
+            documentBuilder.reset();
+        }
+        // Reset also clears the error handler.
+        if (errorHandler != null) {
+            documentBuilder.setErrorHandler(errorHandler);
+        }
+        return documentBuilder;
+    }
+}
@@ -0,0 +1,114 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts program metadata by parsing the full file into a DOM, and selecting the parts to ingest with XPath.
+ */
+public class DomProgramExtractor implements ProgramExtractor {
+    /** Builders for the documents of datastreams. */
+    private static final DocumentBuilderCache DOCUMENT_BUILDERS
+            = new DocumentBuilderCache(DocumentBuilderFactory.newInstance(), null);
+
+    private final DocumentBuilderCache fileParsers;
+
+    /**
+     * Initialise the extractor.
+     *
+     * @param fileParsers Parsers for program metadata files, see {@link RadioTVMetadataProcessor#createFileParsers}.
+     */
+    public DomProgramExtractor(DocumentBuilderCache fileParsers) {
+        this.fileParsers = fileParsers;
+    }
+
+    @Override
+    public ProgramMetadata extract(File programFile) throws IOException, SAXException, ParserConfigurationException {
+        return extract(fileParsers.getDocumentBuilder().parse(programFile));
+    }
+
+    /**
+     * Extract the program metadata from a parsed program metadata file.
+     *
+     * @param radioTVMetadata Bibliographical metadata about the program.
+     * @return The program metadata.
+     * @throws ParserConfigurationException Should never happen. Means no XML parser is available.
+     */
+    public static ProgramMetadata extract(Document radioTVMetadata) throws ParserConfigurationException {
+        // Get the program title from the PBCore metadata and use that as the
+        // object label for this program object.
+        Node titleNode = Common.PBCORE_TITLE_XPATH.selectNode(radioTVMetadata);
+        return new ProgramMetadata(titleNode.getTextContent(),
+                                   getOldIdentifiers(radioTVMetadata),
+                                   getFileUrls(radioTVMetadata),
+                                   createDocumentFromNode(radioTVMetadata, Common.PBCORE_DESCRIPTION_XPATH),
+                                   createDocumentFromNode(radioTVMetadata, Common.RITZAU_ORIGINALS_XPATH),
+                                   createDocumentFromNode(radioTVMetadata, Common.GALLUP_ORIGINALS_XPATH),
+                                   createDocumentFromNode(radioTVMetadata, Common.PROGRAM_BROADCAST_XPATH));
+    }
+
+    /**
+     * Utility method to create a document to ingest from a node.
+     *
+     * @param radioTVMetadata Bibliographical metadata about the program.
+     * @param xpath           XPath expression to select and ingest in node.
+     * @return A document containing the metadata form the node selected by xpath.
+     * @throws ParserConfigurationException Should never happen. Means no XML parser is available.
+     */
+    static Document createDocumentFromNode(Document radioTVMetadata, CompiledXPath xpath)
+            throws ParserConfigurationException {
+        final Node nodeToIngest = xpath.selectNode(radioTVMetadata);
+
+        // Build a data document for the data stream in the program object.
+        final Document document = DOCUMENT_BUILDERS.getDocumentBuilder().newDocument();
+        document.appendChild(document.importNode(nodeToIngest, true));
+        return document;
+    }
+
+    /**
+     * Find old identifiers in program metadata, and use them for looking up programs in DOMS.
+     *
+     * @param radioTVMetadata The document containing the program metadata.
+     * @return Old indentifiers found.
+     */
+    static List<String> getOldIdentifiers(Document radioTVMetadata) {
+        List<String> result = new ArrayList<String>();
+        Node radioTVPBCoreElement = Common.PBCORE_DESCRIPTION_XPATH.selectNode(radioTVMetadata);
+
+        Node oldRitzauPIDNode = Common.PBCORE_RITZAU_IDENTIFIER_XPATH.selectNode(radioTVPBCoreElement);
+        if (oldRitzauPIDNode != null && !oldRitzauPIDNode.getTextContent().isEmpty()) {
+            result.add(oldRitzauPIDNode.getTextContent());
+        }
+
+        Node oldGallupPIDNode = Common.PBCORE_GALLUP_IDENTIFIER_XPATH.selectNode(radioTVPBCoreElement);
+        if (oldGallupPIDNode != null && !oldGallupPIDNode.getTextContent().isEmpty()) {
+            result.add(oldGallupPIDNode.getTextContent());
+        }
+        return result;
+    }
+
+    /**
+     * Get the URLs of the recording files containing the program.
+     *
+     * @param radioTVMetadata Metadata XML document containing the file information.
+     * @return The URLs, as strings.
+     */
+    static List<String> getFileUrls(Document radioTVMetadata) {
+        // Get the recording files XML element and process the file information.
+        NodeList recordingFileURLs = Common.RECORDING_FILES_URLS_XPATH.selectNodeList(radioTVMetadata);
+        List<String> fileUrls = new ArrayList<String>();
+        for (int nodeIndex = 0; nodeIndex < recordingFileURLs.getLength(); nodeIndex++) {
+            fileUrls.add(recordingFileURLs.item(nodeIndex).getTextContent());
+        }
+        return fileUrls;
+    }
+}
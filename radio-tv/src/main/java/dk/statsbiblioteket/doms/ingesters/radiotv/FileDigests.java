@@ -0,0 +1,67 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes digests of file content, streaming the file through a buffer kept per thread rather than reading it into
+ * an array.
+ */
+public class FileDigests {
+    /** Length of the digests computed, in bytes. */
+    public static final int DIGEST_LENGTH = 16;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new Error("All JVMs must support MD5", e);
+            }
+        }
+    };
+
+    private FileDigests() {
+    }
+
+    /**
+     * Compute the MD5 digest of the content of a file.
+     *
+     * @param file The file.
+     * @return The digest, {@link #DIGEST_LENGTH} bytes.
+     * @throws IOException If the file could not be read.
+     */
+    public static byte[] md5(File file) throws IOException {
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        ByteBuffer buffer = BUFFERS.get();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+        return digest.digest();
+    }
+}
@@ -0,0 +1,13 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+/**
+ * An inspector watching a hot folder on behalf of a {@link HotFolderScannerClient}, started by the
+ * {@link HotFolderScanner}.
+ */
+public interface HotFolderInspector {
+    /**
+     * Ask the inspector to stop reporting changes. Reporting will stop as soon as the inspector is done with the
+     * file currently being reported, and the inspector will not be restarted.
+     */
+    void setKillFlag();
+}
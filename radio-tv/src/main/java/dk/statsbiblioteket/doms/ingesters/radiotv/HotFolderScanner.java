@@ -29,8 +29,6 @@ package dk.statsbiblioteket.doms.ingesters.radiotv;
 import java.io.File;
 import java.text.DateFormat;
 import java.util.Calendar;
-import java.util.Timer;
-import java.util.TimerTask;
 
 /**
  * The <code>{@link HotFolderScanner}</code> provides continous scanning and
@@ -41,9 +39,23 @@ import java.util.TimerTask;
 public class HotFolderScanner {
 
     /**
-     * The <code>Timer</code> which invokes the scanning at regular intervals.
+     * The ways the hot folder can be inspected for changes.
      */
-    private final Timer scannerDaemon;
+    public enum InspectorType {
+        /**
+         * List the full hot folder at regular intervals, see {@link NonRecursiveHotFolderInspector}.
+         */
+        POLLING,
+        /**
+         * Watch the hot folder for file system events, see {@link WatchingHotFolderInspector}.
+         */
+        WATCH_SERVICE
+    }
+
+    /**
+     * The scheduler which invokes the scanning at regular intervals.
+     */
+    private final IngestScheduler scheduler;
 
     /**
      * The initial delay before the first scanning, in milliseconds.
@@ -55,9 +67,33 @@ public class HotFolderScanner {
      */
     private long scannerPeriod;
 
+    /**
+     * Ledger of files seen in the hot folder when polling, or null for a
+     * ledger kept in memory only.
+     */
+    private IngestLedger ledger;
+
+    /**
+     * Metrics to record the time of each scan in when polling, or null.
+     */
+    private IngestMetrics metrics;
+
+    /**
+     * Controller stopping the scanning, or null for one of this scanner's own,
+     * watching the stop folder given when scanning starts.
+     */
+    private ShutdownController shutdownController;
+
+    /**
+     * Tells when to skip a scan because the client is too far behind, or
+     * null to never skip, when polling.
+     */
+    private IngestScheduler.BackPressure backPressure;
+
     /**
      * Create a hot folder scanner instance which by default scans a specified
-     * folder every 5 seconds. This interval can be changed by calling
+     * folder 5 seconds after the previous scan ended. This interval can be
+     * changed by calling
      * {@link #setInitialScannerDelay(long)} and {@link #setScannerPeriod(long)}
      * .
      *
@@ -65,7 +101,7 @@ public class HotFolderScanner {
      * @see #setScannerPeriod(long)
      */
     public HotFolderScanner() {
-        scannerDaemon = new Timer(true);
+        scheduler = new IngestScheduler("HotFolderScanner", "HotFolderScannerControl");
         scannerDelay = 5000;
         scannerPeriod = 5000;
         System.out.println("HotFolderScanner has been created");
@@ -82,7 +118,8 @@ public class HotFolderScanner {
     }
 
     /**
-     * Set the delay before each subsequent execution of the hot folder scanner.
+     * Set the delay between the end of one execution of the hot folder
+     * scanner and the start of the next.
      *
      * @param periodMillis Delay in milliseconds.
      */
@@ -90,32 +127,103 @@ public class HotFolderScanner {
         scannerPeriod = periodMillis;
     }
 
+    /**
+     * Set the ledger of files seen in the hot folder, used when polling. By
+     * default the ledger is kept in memory only.
+     *
+     * @param ledger The ledger to use.
+     */
+    public void setLedger(IngestLedger ledger) {
+        this.ledger = ledger;
+    }
+
+    /**
+     * Set the metrics to record the time of each scan in, when polling.
+     *
+     * @param metrics The metrics to record in.
+     */
+    public void setMetrics(IngestMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Skip scans while the client is too far behind, when polling. Files
+     * found by a skipped scan are found by the next one.
+     *
+     * @param backPressure Tells when to skip a scan.
+     */
+    public void setBackPressure(IngestScheduler.BackPressure backPressure) {
+        this.backPressure = backPressure;
+    }
+
+    /**
+     * Set the controller stopping the scanning, shared with other scanners.
+     * The stop folder given when scanning starts is then not used, the
+     * controller is expected to watch a stop folder of its own.
+     *
+     * @param shutdownController The controller to register with.
+     */
+    public void setShutdownController(ShutdownController shutdownController) {
+        this.shutdownController = shutdownController;
+    }
+
     /**
      * Start a continuous scanning of the hot folder specified by
      * <code>hotFolderToScan</code> and report any file creations, modifications
-     * and deletions to the <code>client</code>.
+     * and deletions to the <code>client</code>. The hot folder is polled.
      *
      * @param hotFolderToScan Full file path to the directory to scan.
      * @param client          Reference to the client to report changes to.
-     * @param stopFolder      Full file path to the stop directory.
+     * @param stopFolder      Full file path to the stop directory, unless a
+     *                        shutdown controller has been set.
      */
     public void startScanning(File hotFolderToScan, File stopFolder,
                               HotFolderScannerClient client) {
+        startScanning(hotFolderToScan, stopFolder, client, InspectorType.POLLING);
+    }
+
+    /**
+     * Start a continuous scanning of the hot folder specified by
+     * <code>hotFolderToScan</code> and report any file creations, modifications
+     * and deletions to the <code>client</code>.
+     *
+     * @param hotFolderToScan Full file path to the directory to scan.
+     * @param client          Reference to the client to report changes to.
+     * @param stopFolder      Full file path to the stop directory, unless a
+     *                        shutdown controller has been set.
+     * @param inspectorType   How to detect changes in the hot folder.
+     */
+    public void startScanning(File hotFolderToScan, File stopFolder,
+                              HotFolderScannerClient client, InspectorType inspectorType) {
         final Calendar rightNow = Calendar.getInstance();
         final DateFormat dateFormat = DateFormat
                 .getDateTimeInstance(DateFormat.FULL, DateFormat.FULL);
         System.out.println("HotFolderScanner has started scanning at "
                            + dateFormat.format(rightNow.getTime()));
-        // TODO: We could add a smart feature to let users choose between
-        // different inspector types, however, that is not important right now.
-        NonRecursiveHotFolderInspector scannerTask = new NonRecursiveHotFolderInspector(
-                hotFolderToScan, client);
-        StopFolderWatcher stopFolderWatcher = new StopFolderWatcher(scannerTask, stopFolder);
-
-        scannerDaemon.scheduleAtFixedRate(scannerTask, scannerDelay,
-                                          scannerPeriod);
-        //TODO should this be configurable?
-        scannerDaemon.scheduleAtFixedRate(stopFolderWatcher,scannerDelay,1000);
-
+        final HotFolderInspector inspector;
+        switch (inspectorType) {
+            case WATCH_SERVICE:
+                WatchingHotFolderInspector watchingInspector = new WatchingHotFolderInspector(
+                        hotFolderToScan, client);
+                watchingInspector.setClientStoppedByController();
+                Thread watcherThread = new Thread(watchingInspector, "HotFolderWatcher");
+                watcherThread.setDaemon(true);
+                watcherThread.start();
+                inspector = watchingInspector;
+                break;
+            default:
+                NonRecursiveHotFolderInspector scannerTask = new NonRecursiveHotFolderInspector(
+                        hotFolderToScan, client, ledger == null ? new IngestLedger() : ledger, metrics);
+                scannerTask.setClientStoppedByController();
+                scheduler.scheduleScan(scannerTask, scannerDelay, scannerPeriod,
+                                       backPressure);
+                inspector = scannerTask;
+        }
+        if (shutdownController == null) {
+            // Stop this scanner alone, waiting for the client as long as it takes.
+            shutdownController = new ShutdownController(Long.MAX_VALUE);
+            shutdownController.watchStopFolder(stopFolder);
+        }
+        shutdownController.register(inspector, client);
     }
 }
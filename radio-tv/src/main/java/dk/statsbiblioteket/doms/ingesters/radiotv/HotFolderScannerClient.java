@@ -61,7 +61,22 @@ public interface HotFolderScannerClient {
      */
     void fileDeleted(File deletedFile);
 
+    /**
+     * The <code>{@link HotFolderScanner}</code> will invoke this method after
+     * each scan of the hot folder.
+     */
     void waitForThreads();
 
+    /**
+     * The <code>{@link HotFolderScanner}</code> will invoke this method before
+     * each scan of the hot folder.
+     */
     void startEngine();
+
+    /**
+     * The <code>{@link HotFolderScanner}</code> will invoke this method once,
+     * when it stops scanning the hot folder for good. The method should not
+     * return until the client has finished handling the files reported so far.
+     */
+    void stopEngine();
 }
@@ -0,0 +1,400 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-ahead journal of the steps done in DOMS for each file being ingested, so an ingest of the same file retried
+ * after a failure or a restart resumes where the last attempt stopped, rather than creating the program again and
+ * rewriting all of it.
+ * <p/>
+ * A file is known by its name and the digest of its content, so steps done for other content of the file are never
+ * skipped. Every step is appended to the journal file as it is done, and forced to disk before the step is reported
+ * done. Steps done at the same time by several workers are forced with a single sync, as a group commit. Once the
+ * objects of a file are published, the file is forgotten. The journal file is read in one pass on startup, keeping
+ * only the files not yet published, and is compacted on startup, and whenever most of it is forgotten files. A
+ * record cut short by a crash is discarded on startup.
+ * <p/>
+ * One journal is meant to be shared by all processors of the ingester. The journal is thread safe. It holds locks
+ * rather than monitors while writing and syncing, so workers on virtual threads waiting for a sync leave their carrier
+ * threads to others, see {@link VirtualThreads}.
+ */
+public class IngestJournal implements Closeable {
+    /**
+     * A step of ingesting a file.
+     */
+    public enum Step {
+        /** The program object was created, or an existing one unpublished and given the old identifiers. The detail
+         * is its PID. Forgets any other steps done before. */
+        OBJECT,
+        /** The label of the program object was set. */
+        LABEL,
+        /** A datastream of the program object was written. The detail is the ID of the datastream. */
+        DATASTREAM,
+        /** The relations of the program object to its files were updated. */
+        RELATIONS,
+        /** The objects were published. Forgets the file. */
+        PUBLISHED
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x494A4E31; // "IJN1"
+    private static final int DIGEST_LENGTH = FileDigests.DIGEST_LENGTH;
+    /** Never compact while fewer records than this have been appended. */
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 10000;
+
+    private final File journalFile;
+    private RandomAccessFile log;
+    private final Map<String, Progress> files = new HashMap<String, Progress>();
+    private int recordsSinceCompaction = 0;
+    /** The number of records appended, and the number known to be on disk. */
+    private long appended = 0;
+    private long synced = 0;
+    private long syncs = 0;
+    /** Guards the state of the journal and the journal file. */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Held while forcing the journal file to disk, and taken before the lock of the journal. */
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    /**
+     * Open a journal kept in the given file, creating the file if it does not exist.
+     *
+     * @param journalFile The file to keep the journal in.
+     * @throws IOException If the file could not be read or written, or is not a journal.
+     */
+    public IngestJournal(File journalFile) throws IOException {
+        this.journalFile = journalFile;
+        if (journalFile.exists()) {
+            load();
+        }
+        compact();
+    }
+
+    /**
+     * Get the checkpoints of ingesting a file with the given content.
+     *
+     * @param file The file.
+     * @param digest The digest of the content of the file.
+     * @return The checkpoints, with the steps done by earlier attempts, if any.
+     */
+    public Checkpoints checkpoints(File file, byte[] digest) {
+        return new Checkpoints(file.getName(), digest);
+    }
+
+    /**
+     * @return The number of files with steps done, but not yet published.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return files.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "Ingest journal " + journalFile.getAbsolutePath() + ": files not yet published=" + files.size()
+                   + ", steps recorded=" + appended + ", syncs=" + syncs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a step, and wait for it to be on disk.
+     */
+    private void record(String name, byte[] digest, Step step, String detail) throws IOException {
+        long sequence;
+        lock.lock();
+        try {
+            append(name, digest, step, detail);
+            apply(key(name, digest), step, detail);
+            sequence = ++appended;
+        } finally {
+            lock.unlock();
+        }
+        sync(sequence);
+        compactIfWasteful();
+    }
+
+    /**
+     * Wait for the records up to the given one to be on disk. Whoever syncs first syncs the records appended by the
+     * others meanwhile too, so they need not sync again.
+     */
+    private void sync(long sequence) throws IOException {
+        syncLock.lock();
+        try {
+            if (synced >= sequence) {
+                return;
+            }
+            long target;
+            RandomAccessFile file;
+            lock.lock();
+            try {
+                target = appended;
+                file = log;
+            } finally {
+                lock.unlock();
+            }
+            if (file == null) {
+                throw new IOException("Journal " + journalFile.getAbsolutePath() + " is closed");
+            }
+            // The file is not replaced meanwhile, since compacting takes the sync lock too.
+            file.getChannel().force(false);
+            synced = target;
+            syncs++;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void append(String name, byte[] digest, Step step, String detail) throws IOException {
+        if (log == null) {
+            throw new IOException("Journal " + journalFile.getAbsolutePath() + " is closed");
+        }
+        byte[] nameBytes = name.getBytes(UTF8);
+        byte[] detailBytes = (detail == null ? "" : detail).getBytes(UTF8);
+        ByteBuffer record = ByteBuffer.allocate(2 + nameBytes.length + DIGEST_LENGTH + 1 + 2 + detailBytes.length);
+        record.putShort((short) nameBytes.length).put(nameBytes).put(digest).put((byte) step.ordinal());
+        record.putShort((short) detailBytes.length).put(detailBytes);
+        log.seek(log.length());
+        log.write(record.array());
+        recordsSinceCompaction++;
+    }
+
+    /**
+     * Apply a step to what is known of a file.
+     */
+    private void apply(String key, Step step, String detail) {
+        if (step == Step.PUBLISHED) {
+            files.remove(key);
+            return;
+        }
+        Progress progress = files.get(key);
+        if (progress == null || step == Step.OBJECT) {
+            progress = new Progress();
+            files.put(key, progress);
+        }
+        if (step == Step.OBJECT) {
+            progress.pid = detail == null || detail.isEmpty() ? null : detail;
+        } else {
+            progress.done.add(stepKey(step, detail));
+        }
+    }
+
+    /**
+     * Read the journal file, keeping the steps of the files not yet published.
+     */
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(journalFile.getAbsolutePath() + " is not an ingest journal");
+            }
+            while (true) {
+                byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                byte[] digest = new byte[DIGEST_LENGTH];
+                in.readFully(digest);
+                int step = in.readUnsignedByte();
+                byte[] detail = new byte[in.readUnsignedShort()];
+                in.readFully(detail);
+                if (step >= Step.values().length) {
+                    throw new IOException(journalFile.getAbsolutePath() + " has an unknown step " + step);
+                }
+                apply(key(new String(name, UTF8), digest), Step.values()[step], new String(detail, UTF8));
+            }
+        } catch (EOFException e) {
+            // End of the journal. A record cut short by a crash is dropped when compacting.
+        } finally {
+            in.close();
+        }
+    }
+
+    private void compactIfWasteful() throws IOException {
+        syncLock.lock();
+        try {
+            lock.lock();
+            try {
+                if (recordsSinceCompaction >= MIN_RECORDS_BEFORE_COMPACTION
+                    && recordsSinceCompaction > 2 * files.size()) {
+                    compact();
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Rewrite the journal file with only the steps of the files not yet published. The rewritten file is on disk
+     * before it replaces the old one.
+     */
+    private void compact() throws IOException {
+        close();
+        File compacted = new File(journalFile.getPath() + ".tmp");
+        log = new RandomAccessFile(compacted, "rw");
+        try {
+            log.setLength(0);
+            log.writeInt(MAGIC);
+            for (Map.Entry<String, Progress> file : files.entrySet()) {
+                String name = nameOf(file.getKey());
+                byte[] digest = digestOf(file.getKey());
+                Progress progress = file.getValue();
+                if (progress.pid != null) {
+                    append(name, digest, Step.OBJECT, progress.pid);
+                }
+                for (String stepKey : progress.done) {
+                    int separator = stepKey.indexOf(':');
+                    append(name, digest, Step.valueOf(stepKey.substring(0, separator)),
+                           stepKey.substring(separator + 1));
+                }
+            }
+            log.getChannel().force(true);
+        } finally {
+            close();
+        }
+        if (!compacted.renameTo(journalFile)) {
+            // Renaming over an existing file fails on some platforms.
+            if (!journalFile.delete() || !compacted.renameTo(journalFile)) {
+                throw new IOException("Unable to replace " + journalFile.getAbsolutePath());
+            }
+        }
+        log = new RandomAccessFile(journalFile, "rw");
+        recordsSinceCompaction = 0;
+        synced = appended;
+    }
+
+    private static String key(String name, byte[] digest) {
+        StringBuilder key = new StringBuilder(name).append('/');
+        for (byte b : digest) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    private static String nameOf(String key) {
+        return key.substring(0, key.length() - 2 * DIGEST_LENGTH - 1);
+    }
+
+    private static byte[] digestOf(String key) {
+        byte[] digest = new byte[DIGEST_LENGTH];
+        int start = key.length() - 2 * DIGEST_LENGTH;
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            digest[i] = (byte) Integer.parseInt(key.substring(start + 2 * i, start + 2 * i + 2), 16);
+        }
+        return digest;
+    }
+
+    private static String stepKey(Step step, String detail) {
+        return step.name() + ":" + (detail == null ? "" : detail);
+    }
+
+    /**
+     * What is known of a file not yet published. Guarded by the lock of the journal.
+     */
+    private static class Progress {
+        private String pid;
+        private final Set<String> done = new HashSet<String>();
+    }
+
+    /**
+     * The steps done for one file with one content, used while ingesting it. Failing to record a step is logged,
+     * and only means the step is done again by the next attempt.
+     */
+    public class Checkpoints {
+        private final String name;
+        private final byte[] digest;
+        private final String key;
+
+        private Checkpoints(String name, byte[] digest) {
+            this.name = name;
+            this.digest = digest.clone();
+            this.key = key(name, digest);
+        }
+
+        /**
+         * @return The PID of the program object of the file, or null if no attempt got that far.
+         */
+        public String getPid() {
+            lock.lock();
+            try {
+                Progress progress = files.get(key);
+                return progress == null ? null : progress.pid;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Check whether a step has been done for the program object of the file.
+         *
+         * @param step The step.
+         * @param detail The detail of the step, or null if it has none.
+         * @return True if done.
+         */
+        public boolean isDone(Step step, String detail) {
+            lock.lock();
+            try {
+                Progress progress = files.get(key);
+                return progress != null && progress.done.contains(stepKey(step, detail));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Record that a step is done, once it is on disk.
+         *
+         * @param step The step.
+         * @param detail The detail of the step, or null if it has none.
+         */
+        public void done(Step step, String detail) {
+            try {
+                record(name, digest, step, detail);
+            } catch (IOException e) {
+                //If we fail here, just print the stack trace and carry on as if nothing happened.
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Record that the objects of the file are published, which forgets the file.
+         */
+        public void published() {
+            done(Step.PUBLISHED, null);
+        }
+    }
+}
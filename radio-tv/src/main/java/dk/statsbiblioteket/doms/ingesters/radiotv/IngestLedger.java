@@ -0,0 +1,465 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps track of the files seen in the hot folder, and what came of them.
+ * <p/>
+ * For every file the ledger knows a hash of its name, its size and modification time when last reported, and the
+ * outcome of processing it. In memory these are kept in primitive arrays, a few dozen bytes per file. Given a ledger
+ * file, every change is also appended to it, together with the file name and the digest of the content once
+ * processed. The ledger file is read in one sequential pass on startup, so files processed before a restart are not
+ * reported again. Files reported but not processed before a restart are reported again. The ledger file is compacted
+ * on startup, and whenever most of it is superseded records.
+ * <p/>
+ * Records are written unbuffered, one write per record, so nothing is lost if the process is killed. A record cut
+ * short by a crash is discarded on startup. The ledger is thread safe.
+ */
+public class IngestLedger implements Closeable {
+    /**
+     * The state of a file known by the ledger.
+     */
+    public enum Outcome {
+        /** Reported to the client, but not yet processed. */
+        PENDING,
+        /** Processed successfully. */
+        INGESTED,
+        /** Processing failed. */
+        FAILED,
+        /** Gone from the hot folder. Only used in the ledger file. */
+        DELETED,
+        /** Deleted without processing, since an identical copy was already processed. Added last, as outcomes are
+         * kept in the ledger file by their position. */
+        DUPLICATE
+    }
+
+    /**
+     * How a file in the hot folder compares to what the ledger knows.
+     */
+    public enum Change {
+        /** The file is not known, or was not processed before a restart. */
+        ADDED,
+        /** The file is known, but its size or modification time changed. */
+        MODIFIED,
+        /** The file is known, and unchanged. */
+        UNCHANGED
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x494C4731; // "ILG1"
+    private static final int DIGEST_LENGTH = FileDigests.DIGEST_LENGTH;
+    /** Size of a record without the file name. */
+    private static final int RECORD_HEADER_LENGTH = 8 + 8 + 8 + 1 + DIGEST_LENGTH + 2;
+    /** Never compact while fewer records than this have been appended. */
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 10000;
+    private static final byte[] NO_DIGEST = new byte[DIGEST_LENGTH];
+
+    /** The ledger file, or null if the ledger is kept in memory only. */
+    private final File ledgerFile;
+    private RandomAccessFile log;
+    private int recordsSinceCompaction = 0;
+
+    private final Entries entries;
+
+    /**
+     * Create a ledger kept in memory only, which is forgotten on restart.
+     */
+    public IngestLedger() {
+        ledgerFile = null;
+        entries = new Entries(true);
+    }
+
+    /**
+     * Open a ledger kept in the given file, creating the file if it does not exist.
+     *
+     * @param ledgerFile The file to keep the ledger in.
+     * @throws IOException If the file could not be read or written, or is not a ledger.
+     */
+    public IngestLedger(File ledgerFile) throws IOException {
+        this.ledgerFile = ledgerFile;
+        entries = new Entries(false);
+        if (ledgerFile.exists()) {
+            load();
+            log = new RandomAccessFile(ledgerFile, "r");
+        }
+        compact();
+    }
+
+    /**
+     * Compare a file in the hot folder to what the ledger knows. If it is added or modified, it is recorded as
+     * pending.
+     *
+     * @param file The file in the hot folder.
+     * @return How the file compares to what is known.
+     * @throws IOException If the ledger file could not be written.
+     */
+    public synchronized Change update(File file) throws IOException {
+        String name = file.getName();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        int slot = entries.find(hash(name));
+        Change change;
+        if (slot < 0) {
+            change = Change.ADDED;
+        } else if (entries.sizes[slot] != size || entries.lastModified[slot] != lastModified) {
+            change = Change.MODIFIED;
+        } else {
+            return Change.UNCHANGED;
+        }
+        put(name, size, lastModified, Outcome.PENDING, NO_DIGEST);
+        return change;
+    }
+
+    /**
+     * Record the outcome of processing a file. Nothing is recorded if the file is not known.
+     *
+     * @param file The file processed.
+     * @param outcome The outcome.
+     * @param digest The digest of the content of the file, or null if not known.
+     * @throws IOException If the ledger file could not be written.
+     */
+    public synchronized void recordOutcome(File file, Outcome outcome, byte[] digest) throws IOException {
+        String name = file.getName();
+        int slot = entries.find(hash(name));
+        if (slot >= 0) {
+            put(name, entries.sizes[slot], entries.lastModified[slot], outcome, digest == null ? NO_DIGEST : digest);
+        }
+    }
+
+    /**
+     * Get the outcome of processing a file.
+     *
+     * @param file The file.
+     * @return The outcome, or null if the file is not known.
+     */
+    public synchronized Outcome getOutcome(File file) {
+        int slot = entries.find(hash(file.getName()));
+        return slot < 0 ? null : Outcome.values()[entries.outcomes[slot]];
+    }
+
+    /**
+     * Forget all known files not among the given ones, since they are gone from the hot folder.
+     *
+     * @param folder The hot folder.
+     * @param currentFiles The files currently in the hot folder.
+     * @return The files forgotten.
+     * @throws IOException If the ledger file could not be read or written.
+     */
+    public synchronized List<File> removeMissing(File folder, List<File> currentFiles) throws IOException {
+        long[] currentHashes = new long[currentFiles.size()];
+        for (int i = 0; i < currentHashes.length; i++) {
+            currentHashes[i] = hash(currentFiles.get(i).getName());
+        }
+        Arrays.sort(currentHashes);
+
+        List<String> missingNames = new ArrayList<String>();
+        for (int slot = 0; slot < entries.keys.length; slot++) {
+            long key = entries.keys[slot];
+            if (key != 0 && Arrays.binarySearch(currentHashes, key) < 0) {
+                missingNames.add(getName(slot));
+            }
+        }
+        List<File> missingFiles = new ArrayList<File>();
+        for (String name : missingNames) {
+            long key = hash(name);
+            int slot = entries.find(key);
+            append(key, entries.sizes[slot], entries.lastModified[slot], Outcome.DELETED, NO_DIGEST, name);
+            entries.remove(slot);
+            missingFiles.add(new File(folder, name));
+        }
+        compactIfWasteful();
+        return missingFiles;
+    }
+
+    /**
+     * @return The number of files known.
+     */
+    public synchronized int size() {
+        return entries.count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    private void put(String name, long size, long lastModified, Outcome outcome, byte[] digest) throws IOException {
+        long key = hash(name);
+        long offset = append(key, size, lastModified, outcome, digest, name);
+        int slot = entries.insert(key);
+        entries.sizes[slot] = size;
+        entries.lastModified[slot] = lastModified;
+        entries.outcomes[slot] = (byte) outcome.ordinal();
+        if (entries.names != null) {
+            entries.names[slot] = name;
+        } else {
+            entries.offsets[slot] = offset;
+        }
+        compactIfWasteful();
+    }
+
+    /**
+     * Append a record to the ledger file.
+     *
+     * @return The offset of the record, or -1 if the ledger is in memory only.
+     */
+    private long append(long key, long size, long lastModified, Outcome outcome, byte[] digest, String name)
+            throws IOException {
+        if (ledgerFile == null) {
+            return -1;
+        }
+        byte[] nameBytes = name.getBytes(UTF8);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + nameBytes.length);
+        record.putLong(key).putLong(size).putLong(lastModified).put((byte) outcome.ordinal()).put(digest);
+        record.putShort((short) nameBytes.length).put(nameBytes);
+        long offset = log.length();
+        log.seek(offset);
+        log.write(record.array());
+        recordsSinceCompaction++;
+        return offset;
+    }
+
+    private String getName(int slot) throws IOException {
+        if (entries.names != null) {
+            return entries.names[slot];
+        }
+        log.seek(entries.offsets[slot] + RECORD_HEADER_LENGTH - 2);
+        byte[] nameBytes = new byte[log.readUnsignedShort()];
+        log.readFully(nameBytes);
+        return new String(nameBytes, UTF8);
+    }
+
+    /**
+     * Read the ledger file, keeping the last record of every file. Files last recorded as pending or deleted are
+     * left out.
+     */
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(ledgerFile)));
+        long offset = 4;
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(ledgerFile.getAbsolutePath() + " is not an ingest ledger");
+            }
+            byte[] digest = new byte[DIGEST_LENGTH];
+            byte[] name = new byte[Short.MAX_VALUE * 2 + 1];
+            while (true) {
+                long key = in.readLong();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                byte outcome = in.readByte();
+                in.readFully(digest);
+                int nameLength = in.readUnsignedShort();
+                in.readFully(name, 0, nameLength);
+                if (outcome == Outcome.PENDING.ordinal() || outcome == Outcome.DELETED.ordinal()) {
+                    int slot = entries.find(key);
+                    if (slot >= 0) {
+                        entries.remove(slot);
+                    }
+                } else {
+                    int slot = entries.insert(key);
+                    entries.sizes[slot] = size;
+                    entries.lastModified[slot] = lastModified;
+                    entries.outcomes[slot] = outcome;
+                    entries.offsets[slot] = offset;
+                }
+                offset += RECORD_HEADER_LENGTH + nameLength;
+            }
+        } catch (EOFException e) {
+            // End of the ledger. A record cut short by a crash is dropped when compacting.
+        } finally {
+            in.close();
+        }
+    }
+
+    private void compactIfWasteful() throws IOException {
+        if (ledgerFile != null && recordsSinceCompaction >= MIN_RECORDS_BEFORE_COMPACTION
+            && recordsSinceCompaction > 2 * entries.count) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite the ledger file with only the last record of every known file.
+     */
+    private void compact() throws IOException {
+        File compacted = new File(ledgerFile.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+        try {
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            for (int slot = 0; slot < entries.keys.length; slot++) {
+                if (entries.keys[slot] == 0) {
+                    continue;
+                }
+                byte[] record = new byte[RECORD_HEADER_LENGTH];
+                log.seek(entries.offsets[slot]);
+                log.readFully(record);
+                byte[] name = new byte[ByteBuffer.wrap(record).getShort(RECORD_HEADER_LENGTH - 2) & 0xffff];
+                log.readFully(name);
+                entries.offsets[slot] = out.getFilePointer();
+                out.write(record);
+                out.write(name);
+            }
+        } finally {
+            out.close();
+        }
+        close();
+        if (!compacted.renameTo(ledgerFile)) {
+            // Renaming over an existing file fails on some platforms.
+            if (!ledgerFile.delete() || !compacted.renameTo(ledgerFile)) {
+                throw new IOException("Unable to replace " + ledgerFile.getAbsolutePath());
+            }
+        }
+        log = new RandomAccessFile(ledgerFile, "rw");
+        recordsSinceCompaction = 0;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a file name. Never zero, since zero marks free slots.
+     */
+    static long hash(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : name.getBytes(UTF8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Open addressing hash table from name hashes to what is known about the file, in primitive arrays.
+     */
+    private static class Entries {
+        private long[] keys = new long[16];
+        private long[] sizes = new long[16];
+        private long[] lastModified = new long[16];
+        private byte[] outcomes = new byte[16];
+        /** Offset in the ledger file of the last record of each file. Only used with a ledger file. */
+        private long[] offsets;
+        /** Name of each file. Only used without a ledger file. */
+        private String[] names;
+        private int count = 0;
+
+        Entries(boolean inMemory) {
+            if (inMemory) {
+                names = new String[keys.length];
+            } else {
+                offsets = new long[keys.length];
+            }
+        }
+
+        int find(long key) {
+            int mask = keys.length - 1;
+            for (int slot = home(key, mask); keys[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        int insert(long key) {
+            int slot = find(key);
+            if (slot >= 0) {
+                return slot;
+            }
+            if ((count + 1) * 3 > keys.length * 2) {
+                resize(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            slot = home(key, mask);
+            while (keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            count++;
+            return slot;
+        }
+
+        /**
+         * Remove the entry in a slot, moving back later entries in the same run so lookups still find them.
+         */
+        void remove(int slot) {
+            int mask = keys.length - 1;
+            int free = slot;
+            for (int next = (slot + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+                int home = home(keys[next], mask);
+                boolean stays = free <= next ? free < home && home <= next : free < home || home <= next;
+                if (!stays) {
+                    move(next, free);
+                    free = next;
+                }
+            }
+            keys[free] = 0;
+            if (names != null) {
+                names[free] = null;
+            }
+            count--;
+        }
+
+        private void move(int from, int to) {
+            keys[to] = keys[from];
+            sizes[to] = sizes[from];
+            lastModified[to] = lastModified[from];
+            outcomes[to] = outcomes[from];
+            if (names != null) {
+                names[to] = names[from];
+            } else {
+                offsets[to] = offsets[from];
+            }
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            long[] oldSizes = sizes;
+            long[] oldLastModified = lastModified;
+            byte[] oldOutcomes = outcomes;
+            long[] oldOffsets = offsets;
+            String[] oldNames = names;
+            keys = new long[capacity];
+            sizes = new long[capacity];
+            lastModified = new long[capacity];
+            outcomes = new byte[capacity];
+            offsets = oldOffsets == null ? null : new long[capacity];
+            names = oldNames == null ? null : new String[capacity];
+            int mask = capacity - 1;
+            for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+                if (oldKeys[oldSlot] == 0) {
+                    continue;
+                }
+                int slot = home(oldKeys[oldSlot], mask);
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[oldSlot];
+                sizes[slot] = oldSizes[oldSlot];
+                lastModified[slot] = oldLastModified[oldSlot];
+                outcomes[slot] = oldOutcomes[oldSlot];
+                if (offsets != null) {
+                    offsets[slot] = oldOffsets[oldSlot];
+                } else {
+                    names[slot] = oldNames[oldSlot];
+                }
+            }
+        }
+
+        private static int home(long key, int mask) {
+            return (int) (key ^ (key >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies of each stage of the ingest, and counts of files and errors.
+ * <p/>
+ * Stages are timed with {@link #record(String, long)}, errors counted with {@link #error(String)}. The metrics can be
+ * printed periodically, see {@link #startReporting(long)}, and read through JMX, see {@link #register(String)}.
+ * Metrics are counted from the start, and are thread safe.
+ */
+public class IngestMetrics implements IngestMetricsMXBean {
+    /** One scan of the hot folder. */
+    public static final String SCAN = "scan";
+    /** Time from a file being reported, until a worker picks it up. */
+    public static final String QUEUE_WAIT = "queue wait";
+    /** Checking whether a file has been processed already. */
+    public static final String DUPLICATE_CHECK = "duplicate check";
+    /** Parsing and validating a file. */
+    public static final String PARSE = "parse";
+    /** Waiting for a worker of the second stage, once parsed, when staged. */
+    public static final String WRITE_QUEUE_WAIT = "write queue wait";
+    /** Waiting for other files of the same program to be done. */
+    public static final String PROGRAM_LOCK = "program lock";
+    /** Looking up the object of a file referred to by a program. */
+    public static final String FILE_LOOKUP = "file lookup";
+    /** Looking up a program by an old identifier. */
+    public static final String IDENTIFIER_LOOKUP = "identifier lookup";
+    /** Updating a datastream. The ID of the datastream is appended. */
+    public static final String UPDATE_DATASTREAM = "update ";
+    /** Listing, adding or removing a relation, to keep the file relations of a program in sync. */
+    public static final String RELATIONS = "relations";
+    /** Publishing the objects of one or more files. */
+    public static final String PUBLISH = "publish";
+    /** Moving a file to the folder of processed files. */
+    public static final String MOVE = "move";
+    /** Processing a file, from a worker picking it up until it is done. */
+    public static final String FILE = "file";
+
+    private static final List<String> STAGE_ORDER = Arrays.asList(
+            SCAN, QUEUE_WAIT, DUPLICATE_CHECK, PARSE, WRITE_QUEUE_WAIT, PROGRAM_LOCK, FILE_LOOKUP, IDENTIFIER_LOOKUP,
+            UPDATE_DATASTREAM, RELATIONS, PUBLISH, MOVE, FILE);
+
+    private static final Comparator<String> PIPELINE_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String stage1, String stage2) {
+            int result = position(stage1) - position(stage2);
+            return result != 0 ? result : stage1.compareTo(stage2);
+        }
+
+        private int position(String stage) {
+            int position = STAGE_ORDER.indexOf(stage);
+            if (position < 0 && stage.startsWith(UPDATE_DATASTREAM)) {
+                position = STAGE_ORDER.indexOf(UPDATE_DATASTREAM);
+            }
+            return position < 0 ? STAGE_ORDER.size() : position;
+        }
+    };
+
+    private final MultiThreadedProcessor processor;
+    private final ConcurrentMap<String, LatencyHistogram> stages = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong filesIngested = new AtomicLong();
+    private final AtomicLong filesFailed = new AtomicLong();
+
+    private IngestScheduler reporter;
+    private ObjectName objectName;
+
+    /**
+     * Initialise the metrics.
+     *
+     * @param processor The processor to report the queue depth and files in flight of, or null if none.
+     */
+    public IngestMetrics(MultiThreadedProcessor processor) {
+        this.processor = processor;
+    }
+
+    /**
+     * Record the latency of a stage.
+     *
+     * @param stage The stage.
+     * @param startNanos When the stage started, by {@link System#nanoTime()}.
+     */
+    public void record(String stage, long startNanos) {
+        getHistogram(stage).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Get the latencies of a stage.
+     *
+     * @param stage The stage.
+     * @return The latencies recorded for the stage.
+     */
+    public LatencyHistogram getHistogram(String stage) {
+        LatencyHistogram histogram = stages.get(stage);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = stages.putIfAbsent(stage, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Count an error.
+     *
+     * @param stage The stage that failed.
+     */
+    public void error(String stage) {
+        AtomicLong counter = errors.get(stage);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = errors.putIfAbsent(stage, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * Count a file processed.
+     *
+     * @param success Whether the file was ingested, or failed.
+     */
+    public void fileDone(boolean success) {
+        (success ? filesIngested : filesFailed).incrementAndGet();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return processor == null ? 0 : processor.getQueueDepth();
+    }
+
+    @Override
+    public int getInFlight() {
+        return processor == null ? 0 : processor.getInFlight();
+    }
+
+    @Override
+    public long getFilesIngested() {
+        return filesIngested.get();
+    }
+
+    @Override
+    public long getFilesFailed() {
+        return filesFailed.get();
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        List<String> names = new ArrayList<String>(errors.keySet());
+        Collections.sort(names, PIPELINE_ORDER);
+        for (String name : names) {
+            result.put(name, errors.get(name).get());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, StageStatistics> getStages() {
+        Map<String, StageStatistics> result = new LinkedHashMap<String, StageStatistics>();
+        List<String> names = new ArrayList<String>(stages.keySet());
+        Collections.sort(names, PIPELINE_ORDER);
+        for (String name : names) {
+            result.put(name, StageStatistics.of(stages.get(name)));
+        }
+        return result;
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append("Ingest metrics at ")
+              .append(DateFormat.getDateTimeInstance(DateFormat.FULL, DateFormat.FULL).format(new Date()))
+              .append(": ingested=").append(getFilesIngested())
+              .append(", failed=").append(getFilesFailed())
+              .append(", queued=").append(getQueueDepth())
+              .append(", in flight=").append(getInFlight())
+              .append(", errors=").append(getErrors());
+        List<String> names = new ArrayList<String>(stages.keySet());
+        Collections.sort(names, PIPELINE_ORDER);
+        for (String name : names) {
+            report.append("\n  ").append(name).append(": ").append(stages.get(name));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Print the report to standard out periodically, until {@link #stop()}.
+     *
+     * @param intervalMillis The time between reports, in milliseconds.
+     */
+    public synchronized void startReporting(long intervalMillis) {
+        if (reporter != null) {
+            return;
+        }
+        // Nothing is scanned, the report is a control task.
+        reporter = new IngestScheduler("IngestMetricsScanner", "IngestMetricsReporter");
+        reporter.scheduleControl(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println(getReport());
+            }
+        }, intervalMillis, intervalMillis);
+    }
+
+    /**
+     * Make the metrics available through JMX, on the platform MBean server.
+     *
+     * @param name The name to tell these metrics from others in the same JVM.
+     */
+    public synchronized void register(String name) {
+        try {
+            objectName = new ObjectName("dk.statsbiblioteket.doms.ingesters.radiotv:type=IngestMetrics,name="
+                                        + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            //If we fail here, just print the stack trace and carry on without JMX.
+            e.printStackTrace();
+            objectName = null;
+        }
+    }
+
+    /**
+     * Stop periodic reporting and unregister from JMX, if started.
+     */
+    public synchronized void stop() {
+        if (reporter != null) {
+            reporter.shutdown();
+            reporter = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+            objectName = null;
+        }
+    }
+}
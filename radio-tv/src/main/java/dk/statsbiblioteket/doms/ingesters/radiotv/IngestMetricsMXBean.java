@@ -0,0 +1,43 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import java.util.Map;
+
+/**
+ * The metrics of the ingester, as seen through JMX. See {@link IngestMetrics}.
+ */
+public interface IngestMetricsMXBean {
+    /**
+     * @return The number of files waiting for a worker.
+     */
+    int getQueueDepth();
+
+    /**
+     * @return The number of files being processed.
+     */
+    int getInFlight();
+
+    /**
+     * @return The number of files ingested.
+     */
+    long getFilesIngested();
+
+    /**
+     * @return The number of files that failed.
+     */
+    long getFilesFailed();
+
+    /**
+     * @return The number of errors, by what failed.
+     */
+    Map<String, Long> getErrors();
+
+    /**
+     * @return The latencies of each stage of the ingest, by stage.
+     */
+    Map<String, StageStatistics> getStages();
+
+    /**
+     * @return All of the above, as text.
+     */
+    String getReport();
+}
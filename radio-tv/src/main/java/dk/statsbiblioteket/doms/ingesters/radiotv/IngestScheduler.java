@@ -0,0 +1,160 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs periodic tasks with a fixed delay between the end of one run and the start of the next, so a run that takes
+ * longer than the delay is never followed by runs back to back to catch up, and runs never overlap. Unlike a
+ * {@link java.util.Timer}, a task throwing an exception is only logged, and it and the other tasks keep running.
+ * <p/>
+ * Scans run on one thread, and control tasks, like reporting, on another, so a scan blocked waiting for the pool
+ * never holds them up. Scans can be skipped while the pipeline they feed is too far behind, see
+ * {@link BackPressure}. The threads are daemons, and are started when the first task of their kind is scheduled.
+ */
+public class IngestScheduler {
+    private final String scanThreadName;
+    private final String controlThreadName;
+    private ScheduledExecutorService scans;
+    private ScheduledExecutorService control;
+
+    /**
+     * Initialise the scheduler.
+     *
+     * @param scanThreadName The name of the thread running scans.
+     * @param controlThreadName The name of the thread running control tasks.
+     */
+    public IngestScheduler(String scanThreadName, String controlThreadName) {
+        this.scanThreadName = scanThreadName;
+        this.controlThreadName = controlThreadName;
+    }
+
+    /**
+     * Run a scan periodically on the scan thread.
+     *
+     * @param scan The scan.
+     * @param initialDelayMillis The delay before the first scan, in milliseconds.
+     * @param delayMillis The delay between the end of one scan and the start of the next, in milliseconds.
+     * @param backPressure Tells when to skip a scan, or null to never skip.
+     * @return The scheduled scan, which may be cancelled.
+     */
+    public synchronized ScheduledFuture<?> scheduleScan(Runnable scan, long initialDelayMillis, long delayMillis,
+                                                        BackPressure backPressure) {
+        if (scans == null) {
+            scans = createExecutor(scanThreadName);
+        }
+        return scans.scheduleWithFixedDelay(new Guarded(scan, backPressure), initialDelayMillis, delayMillis,
+                                            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a control task periodically on the control thread.
+     *
+     * @param task The task.
+     * @param initialDelayMillis The delay before the first run, in milliseconds.
+     * @param delayMillis The delay between the end of one run and the start of the next, in milliseconds.
+     * @return The scheduled task, which may be cancelled.
+     */
+    public synchronized ScheduledFuture<?> scheduleControl(Runnable task, long initialDelayMillis, long delayMillis) {
+        if (control == null) {
+            control = createExecutor(controlThreadName);
+        }
+        return control.scheduleWithFixedDelay(new Guarded(task, null), initialDelayMillis, delayMillis,
+                                              TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run no more tasks. A task already running is allowed to finish.
+     */
+    public synchronized void shutdown() {
+        if (scans != null) {
+            scans.shutdown();
+        }
+        if (control != null) {
+            control.shutdown();
+        }
+    }
+
+    private static ScheduledExecutorService createExecutor(final String threadName) {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Runs a task, unless held back, and logs rather than throws its exceptions, since a scheduled task throwing an
+     * exception is never run again.
+     */
+    private static class Guarded implements Runnable {
+        private final Runnable task;
+        private final BackPressure backPressure;
+
+        Guarded(Runnable task, BackPressure backPressure) {
+            this.task = task;
+            this.backPressure = backPressure;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (backPressure != null && backPressure.shouldSkip()) {
+                    return;
+                }
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Skips scans while more files are waiting for a worker in a pipeline than its high-water mark. The files found by
+     * a skipped scan are found again by the next one, so nothing is lost, but the scan does not block half way while
+     * the pipeline catches up.
+     */
+    public static class BackPressure {
+        private final MultiThreadedProcessor pipeline;
+        private final int highWaterMark;
+        private long skippedScans = 0;
+
+        /**
+         * Initialise the back-pressure.
+         *
+         * @param pipeline The processor the scans report files to.
+         * @param highWaterMark The number of files waiting for a worker above which scans are skipped.
+         */
+        public BackPressure(MultiThreadedProcessor pipeline, int highWaterMark) {
+            this.pipeline = pipeline;
+            this.highWaterMark = highWaterMark;
+        }
+
+        /**
+         * @return True if the next scan should be skipped.
+         */
+        synchronized boolean shouldSkip() {
+            int queueDepth = pipeline.getQueueDepth();
+            if (queueDepth <= highWaterMark) {
+                return false;
+            }
+            skippedScans++;
+            System.out.println("Skipping scan, " + queueDepth + " files are waiting for a worker, above the "
+                               + "high-water mark of " + highWaterMark + " (skipped " + skippedScans + " scans)");
+            return true;
+        }
+
+        /**
+         * @return The number of scans skipped so far.
+         */
+        public synchronized long getSkippedScans() {
+            return skippedScans;
+        }
+    }
+}
@@ -28,16 +28,26 @@ package dk.statsbiblioteket.doms.ingesters.radiotv;
 
 import dk.statsbiblioteket.doms.central.InvalidCredentialsException;
 import dk.statsbiblioteket.doms.central.MethodFailedException;
+import dk.statsbiblioteket.doms.client.DomsWSClient;
+import dk.statsbiblioteket.doms.client.DomsWSClientImpl;
 import org.xml.sax.SAXException;
 
 import javax.xml.XMLConstants;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 
 /**
@@ -53,11 +63,13 @@ public class Ingester {
      */
     public static void main(String[] args) throws Exception {
         new Ingester().mainInstance(args);
+        // Workers still busy after the stop deadline must not keep the JVM alive.
+        System.exit(0);
     }
 
     private void mainInstance(String[] args) throws MalformedURLException,
             InvalidCredentialsException, MethodFailedException,
-            InterruptedException, SAXException {
+            InterruptedException, SAXException, IOException {
 
         final Calendar rightNow = Calendar.getInstance();
         final DateFormat dateFormat = DateFormat.getDateTimeInstance(
@@ -82,6 +94,46 @@ public class Ingester {
 
         boolean OVERWRITE = false;
 
+        int QUEUE_CAPACITY = 0;
+        int HIGH_WATER_MARK = 0;
+
+        int THREADS = RadioTVMetadataProcessor.DEFAULT_POOL_SIZE;
+        boolean VIRTUAL_THREADS = false;
+        int PARSE_THREADS = 0;
+        int PARSE_QUEUE_CAPACITY = 100;
+        int DOMS_CALLS = 0;
+        boolean ADAPTIVE = false;
+        int MAX_THREADS = 20;
+
+        boolean STREAMING = false;
+
+        File LEDGER_FILE = null;
+        File JOURNAL_FILE = null;
+        int RECOVERY_THREADS = 8;
+
+        int LOOKUP_THREADS = RadioTVMetadataProcessor.DEFAULT_LOOKUP_THREADS;
+        int CACHE_SIZE = 10000;
+        long CACHE_TTL = 3600;
+        long NEGATIVE_CACHE_TTL = 60;
+        int CHANGE_DETECTION_SIZE = 10000;
+
+        long METRICS_INTERVAL = 60;
+
+        int PUBLISH_BATCH = 0;
+        long PUBLISH_DELAY = 2000;
+
+        int RETRIES = 5;
+        long RETRY_DELAY = 500;
+        long RETRY_MAX_DELAY = 30000;
+        int BREAKER_THRESHOLD = 5;
+        long BREAKER_COOLDOWN = 30;
+
+        long STOP_DEADLINE = 60;
+
+        List<FolderConfig> LANES = new ArrayList<FolderConfig>();
+
+        HotFolderScanner.InspectorType INSPECTOR_TYPE = HotFolderScanner.InspectorType.POLLING;
+
         for (String arg : args) {
             if (arg.startsWith("-hotfolder=")) {
                 HOT_FOLDER = new File(arg.substring("-hotfolder=".length()));
@@ -102,6 +154,65 @@ public class Ingester {
                 PRE_INGEST_FILE_SCHEMA_FILE = new File(arg.substring("-preingestschema=".length()));
             } else if (arg.startsWith("-overwrite=")) {
                 OVERWRITE = Boolean.parseBoolean(arg.substring("-overwrite=".length()));
+            } else if (arg.startsWith("-queuecapacity=")) {
+                QUEUE_CAPACITY = Integer.parseInt(arg.substring("-queuecapacity=".length()));
+            } else if (arg.startsWith("-highwatermark=")) {
+                HIGH_WATER_MARK = Integer.parseInt(arg.substring("-highwatermark=".length()));
+            } else if (arg.startsWith("-threads=")) {
+                THREADS = Integer.parseInt(arg.substring("-threads=".length()));
+            } else if (arg.startsWith("-parsethreads=")) {
+                PARSE_THREADS = Integer.parseInt(arg.substring("-parsethreads=".length()));
+            } else if (arg.startsWith("-parsequeuecapacity=")) {
+                PARSE_QUEUE_CAPACITY = Integer.parseInt(arg.substring("-parsequeuecapacity=".length()));
+            } else if (arg.startsWith("-virtualthreads=")) {
+                VIRTUAL_THREADS = Boolean.parseBoolean(arg.substring("-virtualthreads=".length()));
+            } else if (arg.startsWith("-domscalls=")) {
+                DOMS_CALLS = Integer.parseInt(arg.substring("-domscalls=".length()));
+            } else if (arg.startsWith("-adaptive=")) {
+                ADAPTIVE = Boolean.parseBoolean(arg.substring("-adaptive=".length()));
+            } else if (arg.startsWith("-maxthreads=")) {
+                MAX_THREADS = Integer.parseInt(arg.substring("-maxthreads=".length()));
+            } else if (arg.startsWith("-streaming=")) {
+                STREAMING = Boolean.parseBoolean(arg.substring("-streaming=".length()));
+            } else if (arg.startsWith("-lookupthreads=")) {
+                LOOKUP_THREADS = Integer.parseInt(arg.substring("-lookupthreads=".length()));
+            } else if (arg.startsWith("-cachesize=")) {
+                CACHE_SIZE = Integer.parseInt(arg.substring("-cachesize=".length()));
+            } else if (arg.startsWith("-cachettl=")) {
+                CACHE_TTL = Long.parseLong(arg.substring("-cachettl=".length()));
+            } else if (arg.startsWith("-negativecachettl=")) {
+                NEGATIVE_CACHE_TTL = Long.parseLong(arg.substring("-negativecachettl=".length()));
+            } else if (arg.startsWith("-changedetectionsize=")) {
+                CHANGE_DETECTION_SIZE = Integer.parseInt(arg.substring("-changedetectionsize=".length()));
+            } else if (arg.startsWith("-metricsinterval=")) {
+                METRICS_INTERVAL = Long.parseLong(arg.substring("-metricsinterval=".length()));
+            } else if (arg.startsWith("-publishbatch=")) {
+                PUBLISH_BATCH = Integer.parseInt(arg.substring("-publishbatch=".length()));
+            } else if (arg.startsWith("-publishdelay=")) {
+                PUBLISH_DELAY = Long.parseLong(arg.substring("-publishdelay=".length()));
+            } else if (arg.startsWith("-retries=")) {
+                RETRIES = Integer.parseInt(arg.substring("-retries=".length()));
+            } else if (arg.startsWith("-retrydelay=")) {
+                RETRY_DELAY = Long.parseLong(arg.substring("-retrydelay=".length()));
+            } else if (arg.startsWith("-retrymaxdelay=")) {
+                RETRY_MAX_DELAY = Long.parseLong(arg.substring("-retrymaxdelay=".length()));
+            } else if (arg.startsWith("-breakerthreshold=")) {
+                BREAKER_THRESHOLD = Integer.parseInt(arg.substring("-breakerthreshold=".length()));
+            } else if (arg.startsWith("-breakercooldown=")) {
+                BREAKER_COOLDOWN = Long.parseLong(arg.substring("-breakercooldown=".length()));
+            } else if (arg.startsWith("-stopdeadline=")) {
+                STOP_DEADLINE = Long.parseLong(arg.substring("-stopdeadline=".length()));
+            } else if (arg.startsWith("-lane=")) {
+                LANES.add(FolderConfig.parse(arg.substring("-lane=".length())));
+            } else if (arg.startsWith("-ledger=")) {
+                LEDGER_FILE = new File(arg.substring("-ledger=".length()));
+            } else if (arg.startsWith("-journal=")) {
+                JOURNAL_FILE = new File(arg.substring("-journal=".length()));
+            } else if (arg.startsWith("-recoverythreads=")) {
+                RECOVERY_THREADS = Integer.parseInt(arg.substring("-recoverythreads=".length()));
+            } else if (arg.startsWith("-inspector=")) {
+                INSPECTOR_TYPE = HotFolderScanner.InspectorType.valueOf(
+                        arg.substring("-inspector=".length()).toUpperCase());
             }
 
         }
@@ -119,50 +230,261 @@ public class Ingester {
         System.out.println("username = " + username);
         System.out.println("password = " + password);
         System.out.println("overwrite = " + OVERWRITE);
-
-        // Make sure that all the necessary folders exist.
-        if (!HOT_FOLDER.exists()) {
-            HOT_FOLDER.mkdirs();
-            System.out.println("HOT_FOLDER: " + HOT_FOLDER.getName() + " did "
-                    + "not exist. Has been created.");
+        System.out.println("inspector = " + INSPECTOR_TYPE);
+        System.out.println("ledger = "
+                + (LEDGER_FILE == null ? "(in memory)" : LEDGER_FILE.getAbsolutePath()));
+        System.out.println("journal = "
+                + (JOURNAL_FILE == null ? "(none, failed files start over)" : JOURNAL_FILE.getAbsolutePath()));
+        System.out.println("recoverythreads = " + RECOVERY_THREADS
+                + (RECOVERY_THREADS > 0 ? "" : " (PID files left by a crash are not recovered)"));
+        System.out.println("streaming = " + STREAMING);
+        System.out.println("threads = " + THREADS);
+        ThreadFactory workerThreadFactory = null;
+        if (VIRTUAL_THREADS) {
+            workerThreadFactory = VirtualThreads.factory("IngestWorker-");
+            if (workerThreadFactory == null) {
+                System.out.println("virtualthreads = true, but this JVM has no virtual threads, "
+                        + "using platform threads");
+            }
         }
-
-        if (!LUKEWARM_FOLDER.exists()) {
-            LUKEWARM_FOLDER.mkdirs();
-            System.out.println("LUKEWARM_FOLDER: " + LUKEWARM_FOLDER.getName()
-                    + " did not exist. Has been created.");
+        System.out.println("virtualthreads = " + (workerThreadFactory != null));
+        System.out.println("parsethreads = " + PARSE_THREADS + (PARSE_THREADS > 0 ? "" : " (parse on the workers)"));
+        if (PARSE_THREADS > 0) {
+            System.out.println("parsequeuecapacity = " + PARSE_QUEUE_CAPACITY);
         }
-
-        if (!COLD_FOLDER.exists()) {
-            COLD_FOLDER.mkdirs();
-            System.out.println("COLD_FOLDER: " + COLD_FOLDER.getName()
-                    + " did not exist. Has been created.");
+        System.out.println("domscalls = " + DOMS_CALLS + (DOMS_CALLS > 0 ? "" : " (no limit)"));
+        System.out.println("adaptive = " + ADAPTIVE);
+        if (ADAPTIVE) {
+            System.out.println("maxthreads = " + MAX_THREADS);
         }
-        if (!STOP_FOLDER.exists()) {
-            STOP_FOLDER.mkdirs();
-            System.out.println("STOP_FOLDER: " + STOP_FOLDER.getName()
-                    + " did not exist. Has been created.");
+        System.out.println("lookupthreads = " + LOOKUP_THREADS);
+        System.out.println("cachesize = " + CACHE_SIZE + (CACHE_SIZE > 0 ? "" : " (no caching)"));
+        if (CACHE_SIZE > 0) {
+            System.out.println("cachettl = " + CACHE_TTL + " s");
+            System.out.println("negativecachettl = " + NEGATIVE_CACHE_TTL + " s");
+        }
+        if (OVERWRITE) {
+            System.out.println("changedetectionsize = " + CHANGE_DETECTION_SIZE
+                    + (CHANGE_DETECTION_SIZE > 0 ? "" : " (write all datastreams)"));
+        }
+        System.out.println("publishbatch = " + PUBLISH_BATCH + (PUBLISH_BATCH > 0 ? "" : " (no batching)"));
+        if (PUBLISH_BATCH > 0) {
+            System.out.println("publishdelay = " + PUBLISH_DELAY + " ms");
         }
+        System.out.println("retries = " + RETRIES + (RETRIES > 0 ? "" : " (no retries)"));
+        if (RETRIES > 0) {
+            System.out.println("retrydelay = " + RETRY_DELAY + " ms");
+            System.out.println("retrymaxdelay = " + RETRY_MAX_DELAY + " ms");
+        }
+        System.out.println("breakerthreshold = " + BREAKER_THRESHOLD + (BREAKER_THRESHOLD > 0 ? "" : " (no breaker)"));
+        if (BREAKER_THRESHOLD > 0) {
+            System.out.println("breakercooldown = " + BREAKER_COOLDOWN + " s");
+        }
+        System.out.println("stopdeadline = " + STOP_DEADLINE + " s");
+        System.out.println("metricsinterval = " + METRICS_INTERVAL
+                + (METRICS_INTERVAL > 0 ? " s" : " (no periodic report)"));
+        System.out.println("queuecapacity = " + QUEUE_CAPACITY
+                + (QUEUE_CAPACITY > 0 ? " (continuous)" : " (per scan)"));
+        System.out.println("highwatermark = " + HIGH_WATER_MARK
+                + (HIGH_WATER_MARK > 0 ? "" : " (never skip scans)"));
 
-        final HotFolderScanner hotFolderScanner = new HotFolderScanner();
+        List<FolderConfig> folderConfigs = LANES;
+        if (LANES.isEmpty()) {
+            folderConfigs = Collections.singletonList(
+                    new FolderConfig(HOT_FOLDER, LUKEWARM_FOLDER, COLD_FOLDER, OVERWRITE, 1, LEDGER_FILE));
+        } else {
+            System.out.println("lanes (hotfolder, lukefolder, coldfolder, overwrite and ledger above are not used):");
+            for (FolderConfig lane : LANES) {
+                System.out.println("  " + lane);
+            }
+            if (ADAPTIVE) {
+                System.out.println("adaptive is not used with lanes, the " + THREADS + " threads are shared");
+            }
+        }
 
-        final DOMSLoginInfo domsLoginInfo = new DOMSLoginInfo(
-                domsAPIWSLocation, username, password);
+        // Make sure that all the necessary folders exist.
+        for (FolderConfig folderConfig : folderConfigs) {
+            createFolder("HOT_FOLDER", folderConfig.hotFolder);
+            createFolder("LUKEWARM_FOLDER", folderConfig.lukewarmFolder);
+            createFolder("COLD_FOLDER", folderConfig.coldFolder);
+        }
+        createFolder("STOP_FOLDER", STOP_FOLDER);
 
         final SchemaFactory schemaFactory = SchemaFactory
                 .newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
         final Schema preIngestFileSchema = schemaFactory
                 .newSchema(PRE_INGEST_FILE_SCHEMA_FILE);
 
-        final RadioTVMetadataProcessor metadataProcessor = new RadioTVMetadataProcessor(
-                domsLoginInfo, LUKEWARM_FOLDER, COLD_FOLDER,
-                preIngestFileSchema, OVERWRITE);
-        hotFolderScanner.startScanning(HOT_FOLDER, STOP_FOLDER,
-                metadataProcessor);
+        // Shared by all lanes, so they are bounded together in what they ask of DOMS.
+        DomsWSClient rawDomsClient = new DomsWSClientImpl();
+        rawDomsClient.setCredentials(domsAPIWSLocation, username, password);
+        if (DOMS_CALLS > 0) {
+            // Innermost, so cached lookups and waits between retries do not hold a permit.
+            rawDomsClient = new ThrottlingDomsWSClient(rawDomsClient, DOMS_CALLS);
+        }
+        final DomsWSClient domsClient = rawDomsClient;
+        // One cache for all lanes, since a program created by one lane must not be found missing in another's cache.
+        final CachingDomsWSClient lookupCache = CACHE_SIZE > 0 ? new CachingDomsWSClient(
+                domsClient, CACHE_SIZE, CACHE_TTL * 1000, NEGATIVE_CACHE_TTL * 1000) : null;
+        final ExecutorService lookupExecutor
+                = LOOKUP_THREADS > 1 ? ProgramLookup.createExecutor(LOOKUP_THREADS) : null;
+        final CircuitBreaker circuitBreaker
+                = BREAKER_THRESHOLD > 0 ? new CircuitBreaker(BREAKER_THRESHOLD, BREAKER_COOLDOWN * 1000) : null;
+        final SharedWorkerPool sharedPool = LANES.isEmpty() ? null : new SharedWorkerPool(THREADS, workerThreadFactory);
+        final StripedLocks programLocks = new StripedLocks(RadioTVMetadataProcessor.DEFAULT_PROGRAM_LOCK_STRIPES);
+        final ShutdownController shutdownController = new ShutdownController(STOP_DEADLINE * 1000);
+        final IngestJournal journal = JOURNAL_FILE == null ? null : new IngestJournal(JOURNAL_FILE);
+        if (journal != null) {
+            System.out.println("Journal knows " + journal.size() + " files not yet published");
+        }
+        if (RECOVERY_THREADS > 0) {
+            // Before scanning, so requeued files are found by the first scan.
+            LukewarmFolderRecovery recovery = new LukewarmFolderRecovery(domsClient, RECOVERY_THREADS);
+            recovery.setJournal(journal);
+            Set<File> recovered = new HashSet<File>();
+            for (FolderConfig folderConfig : folderConfigs) {
+                // Lanes may share the folder of failed files, and its files go back to the first lane of it.
+                if (recovered.add(folderConfig.lukewarmFolder.getAbsoluteFile())) {
+                    recovery.recover(folderConfig.lukewarmFolder, folderConfig.hotFolder, folderConfig.coldFolder);
+                }
+            }
+        }
+
+        for (FolderConfig folderConfig : folderConfigs) {
+            final HotFolderScanner hotFolderScanner = new HotFolderScanner();
+            hotFolderScanner.setShutdownController(shutdownController);
+
+            final RadioTVMetadataProcessor metadataProcessor = new RadioTVMetadataProcessor(
+                    domsClient, folderConfig.lukewarmFolder, folderConfig.coldFolder,
+                    preIngestFileSchema, folderConfig.overwrite, THREADS);
+            metadataProcessor.setStreamingExtraction(STREAMING);
+            metadataProcessor.setLookupExecutor(lookupExecutor);
+            metadataProcessor.setProgramLocks(programLocks);
+            metadataProcessor.setJournal(journal);
+            metadataProcessor.setThreadFactory(workerThreadFactory);
+            if (PARSE_THREADS > 0) {
+                metadataProcessor.setFirstStage(PARSE_THREADS, PARSE_QUEUE_CAPACITY);
+            }
+            if (lookupCache != null) {
+                metadataProcessor.setLookupCache(lookupCache);
+            }
+            if (CHANGE_DETECTION_SIZE > 0) {
+                metadataProcessor.setChangeDetection(CHANGE_DETECTION_SIZE, CACHE_TTL * 1000);
+            }
+            if (PUBLISH_BATCH > 0) {
+                metadataProcessor.setPublishBatching(PUBLISH_BATCH, PUBLISH_DELAY);
+            }
+            if (RETRIES > 0) {
+                metadataProcessor.setRetries(RETRIES + 1, RETRY_DELAY, RETRY_MAX_DELAY);
+            }
+            if (circuitBreaker != null) {
+                metadataProcessor.setCircuitBreaker(circuitBreaker);
+            }
+            if (sharedPool != null) {
+                metadataProcessor.setLane(sharedPool.addLane(
+                        folderConfig.hotFolder.getPath(), folderConfig.weight, QUEUE_CAPACITY));
+            } else if (ADAPTIVE) {
+                metadataProcessor.setAdaptive(MAX_THREADS);
+            }
+            if (QUEUE_CAPACITY > 0) {
+                metadataProcessor.setContinuous(QUEUE_CAPACITY);
+            }
+            if (folderConfig.ledger != null) {
+                IngestLedger ledger = new IngestLedger(folderConfig.ledger);
+                System.out.println("Ledger of " + folderConfig.hotFolder + " knows " + ledger.size() + " files");
+                hotFolderScanner.setLedger(ledger);
+                metadataProcessor.setLedger(ledger);
+            }
+            IngestMetrics metrics = metadataProcessor.getMetrics();
+            metrics.register(folderConfig.hotFolder.getAbsolutePath());
+            if (METRICS_INTERVAL > 0) {
+                metrics.startReporting(METRICS_INTERVAL * 1000);
+            }
+            hotFolderScanner.setMetrics(metrics);
+            if (HIGH_WATER_MARK > 0) {
+                hotFolderScanner.setBackPressure(new IngestScheduler.BackPressure(metadataProcessor, HIGH_WATER_MARK));
+            }
+            hotFolderScanner.startScanning(folderConfig.hotFolder, STOP_FOLDER,
+                    metadataProcessor, INSPECTOR_TYPE);
+        }
+
+        shutdownController.watchStopFolder(STOP_FOLDER);
+        shutdownController.addShutdownHook();
+        // Hang until stopped....
+        shutdownController.awaitStopped();
+        if (DOMS_CALLS > 0) {
+            System.out.println(rawDomsClient);
+        }
+        if (lookupCache != null) {
+            System.out.println(lookupCache);
+        }
+        if (journal != null) {
+            // Not closed, since workers still busy after the stop deadline may record steps.
+            System.out.println(journal);
+        }
+    }
+
+    /**
+     * Create a folder if it does not exist.
+     *
+     * @param description What the folder is for, for the log.
+     * @param folder The folder.
+     */
+    private static void createFolder(String description, File folder) {
+        if (!folder.exists()) {
+            folder.mkdirs();
+            System.out.println(description + ": " + folder.getName()
+                    + " did not exist. Has been created.");
+        }
+    }
+
+    /**
+     * The folders of a hot folder to ingest from, and how to ingest the files in it.
+     */
+    static class FolderConfig {
+        final File hotFolder;
+        final File lukewarmFolder;
+        final File coldFolder;
+        final boolean overwrite;
+        /** The share of the workers the hot folder gets, relative to the other hot folders. */
+        final int weight;
+        /** The file of the ledger of the hot folder, or null for a ledger in memory. */
+        final File ledger;
+
+        FolderConfig(File hotFolder, File lukewarmFolder, File coldFolder, boolean overwrite, int weight,
+                     File ledger) {
+            this.hotFolder = hotFolder;
+            this.lukewarmFolder = lukewarmFolder;
+            this.coldFolder = coldFolder;
+            this.overwrite = overwrite;
+            this.weight = weight;
+            this.ledger = ledger;
+        }
+
+        /**
+         * Parse the value of a <code>-lane</code> argument, which is
+         * <code>hotfolder,lukefolder,coldfolder,overwrite[,weight[,ledger]]</code>. The weight is one by default.
+         *
+         * @param spec The value of the argument.
+         * @return The configuration.
+         */
+        static FolderConfig parse(String spec) {
+            String[] parts = spec.split(",");
+            if (parts.length < 4 || parts.length > 6) {
+                throw new IllegalArgumentException(
+                        "Expected hotfolder,lukefolder,coldfolder,overwrite[,weight[,ledger]] but got " + spec);
+            }
+            return new FolderConfig(new File(parts[0]), new File(parts[1]), new File(parts[2]),
+                    Boolean.parseBoolean(parts[3]), parts.length > 4 ? Integer.parseInt(parts[4]) : 1,
+                    parts.length > 5 ? new File(parts[5]) : null);
+        }
 
-        // Hang forever....
-        synchronized (this) {
-            wait();
+        @Override
+        public String toString() {
+            return "hotfolder=" + hotFolder.getAbsolutePath() + ", lukefolder=" + lukewarmFolder.getAbsolutePath()
+                    + ", coldfolder=" + coldFolder.getAbsolutePath() + ", overwrite=" + overwrite
+                    + ", weight=" + weight
+                    + ", ledger=" + (ledger == null ? "(in memory)" : ledger.getAbsolutePath());
         }
     }
 }
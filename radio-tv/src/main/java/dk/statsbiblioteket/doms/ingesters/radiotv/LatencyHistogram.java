@@ -0,0 +1,109 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, with buckets growing with the latency, so any latency from nanoseconds to hours is
+ * counted with a relative error of less than two percent, in a fixed amount of memory.
+ * <p/>
+ * Each power of two is split in 64 buckets of equal width, as in HdrHistogram. Recording is lock free, and the
+ * histogram may be read while recording goes on.
+ */
+public class LatencyHistogram {
+    /** Bits of precision in each power of two. */
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = bucketIndex(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos The latency, in nanoseconds. Negative latencies count as zero.
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long currentMax;
+        do {
+            currentMax = max.get();
+        } while (value > currentMax && !max.compareAndSet(currentMax, value));
+    }
+
+    /**
+     * @return The number of latencies recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The mean latency, in nanoseconds, or zero if none recorded.
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @return The largest latency recorded, in nanoseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get a percentile of the latencies recorded.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The latency below which the given percentage of the latencies fall, in nanoseconds, or zero if none
+     * recorded.
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(n * Math.min(percentile, 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, mean=%.2f ms, p50=%.2f ms, p90=%.2f ms, p99=%.2f ms, max=%.2f ms",
+                             getCount(), getMean() / 1e6, getPercentile(50) / 1e6, getPercentile(90) / 1e6,
+                             getPercentile(99) / 1e6, getMax() / 1e6);
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // Shift the value down to between SUB_BUCKET_COUNT and twice that.
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKET_COUNT * shift + (int) (value >>> shift);
+    }
+
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long lowest = (long) (index - SUB_BUCKET_COUNT * shift) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
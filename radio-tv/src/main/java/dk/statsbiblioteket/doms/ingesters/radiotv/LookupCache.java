@@ -0,0 +1,164 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of lookup results, evicting the least recently used entry when full, and expiring entries after a
+ * time to live.
+ * <p/>
+ * Negative results, lookups that found nothing, are cached as well, but with their own and usually shorter time to
+ * live, since the object may well be created soon.
+ * <p/>
+ * The cache is thread safe. Two threads missing the same key at the same time will both do the lookup.
+ *
+ * @param <K> Type of the keys looked up.
+ * @param <V> Type of the results.
+ */
+public class LookupCache<K, V> {
+    private final int maxEntries;
+    private final long timeToLiveMillis;
+    private final long negativeTimeToLiveMillis;
+    private final Map<K, Entry<V>> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Initialise the cache.
+     *
+     * @param maxEntries The largest number of entries to keep.
+     * @param timeToLiveMillis How long to keep results found, in milliseconds.
+     * @param negativeTimeToLiveMillis How long to keep results of lookups that found nothing, in milliseconds.
+     */
+    public LookupCache(final int maxEntries, long timeToLiveMillis, long negativeTimeToLiveMillis) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be positive, was " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.negativeTimeToLiveMillis = negativeTimeToLiveMillis;
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Look up a key in the cache.
+     *
+     * @param key The key to look up.
+     * @return The entry for the key, or null if not cached or expired.
+     */
+    public synchronized Entry<V> get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && entry.expires < System.currentTimeMillis()) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Cache the result of a lookup. A null value is a negative result.
+     *
+     * @param key The key looked up.
+     * @param value The result, or null if nothing was found.
+     */
+    public void put(K key, V value) {
+        put(key, value, value != null);
+    }
+
+    /**
+     * Cache the result of a lookup.
+     *
+     * @param key The key looked up.
+     * @param value The result.
+     * @param found Whether the lookup found anything. If not, the result is kept for the negative time to live.
+     */
+    public synchronized void put(K key, V value, boolean found) {
+        long timeToLive = found ? timeToLiveMillis : negativeTimeToLiveMillis;
+        if (timeToLive > 0) {
+            entries.put(key, new Entry<V>(value, System.currentTimeMillis() + timeToLive));
+        }
+    }
+
+    /**
+     * Remove a key from the cache.
+     *
+     * @param key The key to remove.
+     */
+    public synchronized void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Remove all entries from the cache.
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * @return The number of entries currently in the cache, including expired entries not yet removed.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The largest number of entries kept.
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return The number of lookups answered from the cache.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of lookups not answered from the cache.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHitCount() + ", misses=" + getMissCount() + ", size=" + size();
+    }
+
+    /**
+     * A cached result.
+     *
+     * @param <V> Type of the result.
+     */
+    public static class Entry<V> {
+        private final V value;
+        private final long expires;
+
+        Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+
+        /**
+         * @return The result, as given when cached.
+         */
+        public V getValue() {
+            return value;
+        }
+    }
+}
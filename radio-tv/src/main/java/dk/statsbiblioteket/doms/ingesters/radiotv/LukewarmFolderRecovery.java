@@ -0,0 +1,253 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.DomsWSClient;
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import dk.statsbiblioteket.doms.client.utils.Constants;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cleans up after a crash, or an exit on too many failures, on startup: resolves the PID files left in the folder of
+ * failed files, by asking DOMS for the state of the objects they list.
+ * <ul>
+ * <li>A <code>.InProcessPIDs</code> file is written once all objects of a file are written, and deleted once they
+ * are published. If all the objects listed are still there, they are published, and the file is moved from the hot
+ * folder to the folder of processed files, as if the ingest had finished. Otherwise the file is requeued.</li>
+ * <li>A <code>.failedPIDs</code> file lists the objects of a failed file, which should be deleted. Objects still
+ * unpublished are deleted, and the file is left in the folder of failed files, unless there is a journal to resume
+ * them from, see {@link IngestJournal}. Then the file is requeued instead.</li>
+ * </ul>
+ * Requeueing a file moves it back to the hot folder, where it is ingested again. Published objects are never deleted.
+ * The PID file is deleted once resolved. A PID file listing an object whose state cannot be found is left alone,
+ * for an operator to resolve.
+ * <p/>
+ * The PID files are resolved in parallel, by a bounded number of threads, so a recovery after a large outage is not
+ * held up by the round trips to DOMS.
+ */
+public class LukewarmFolderRecovery {
+    /** The suffix of the files listing the objects of a file being ingested. */
+    public static final String IN_PROCESS_SUFFIX = ".InProcessPIDs";
+    /** The suffix of the files listing the objects of a failed file. */
+    public static final String FAILED_SUFFIX = ".failedPIDs";
+
+    /**
+     * What was done about a PID file.
+     */
+    public enum Action {
+        /** The objects were published. */
+        PUBLISHED,
+        /** The file was moved back to the hot folder. */
+        REQUEUED,
+        /** The objects still unpublished were deleted. */
+        DELETED,
+        /** Nothing was left to do but deleting the PID file. */
+        CLEANED,
+        /** Left alone, since the state of an object could not be found, or DOMS could not be updated. */
+        UNRESOLVED
+    }
+
+    private final DomsWSClient domsClient;
+    private final int threads;
+    private IngestJournal journal;
+
+    /**
+     * Initialise the recovery.
+     *
+     * @param domsClient Client for communicating with DOMS.
+     * @param threads The largest number of PID files to resolve at once.
+     */
+    public LukewarmFolderRecovery(DomsWSClient domsClient, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be positive, was " + threads);
+        }
+        this.domsClient = domsClient;
+        this.threads = threads;
+    }
+
+    /**
+     * Requeue failed files with objects left, rather than deleting the objects, so the next ingest resumes them.
+     *
+     * @param journal The journal of the ingester.
+     */
+    public void setJournal(IngestJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Resolve the PID files in a folder of failed files. Must be done before the hot folder is scanned.
+     *
+     * @param lukewarmFolder The folder of failed files, with the PID files.
+     * @param hotFolder The hot folder of the files.
+     * @param coldFolder The folder of processed files.
+     * @return The number of PID files resolved by each action.
+     * @throws InterruptedException If interrupted while waiting for the PID files to be resolved.
+     */
+    public Map<Action, Integer> recover(final File lukewarmFolder, final File hotFolder, final File coldFolder)
+            throws InterruptedException {
+        Map<Action, Integer> actions = new EnumMap<Action, Integer>(Action.class);
+        for (Action action : Action.values()) {
+            actions.put(action, 0);
+        }
+        File[] pidFiles = lukewarmFolder.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(IN_PROCESS_SUFFIX) || name.endsWith(FAILED_SUFFIX);
+            }
+        });
+        if (pidFiles == null || pidFiles.length == 0) {
+            return actions;
+        }
+
+        long started = System.currentTimeMillis();
+        System.out.println("Recovering " + pidFiles.length + " PID files in " + lukewarmFolder.getAbsolutePath());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Recovery-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<Action>> futures = new ArrayList<Future<Action>>();
+            for (final File pidFile : pidFiles) {
+                futures.add(executor.submit(new Callable<Action>() {
+                    @Override
+                    public Action call() {
+                        return resolve(pidFile, lukewarmFolder, hotFolder, coldFolder);
+                    }
+                }));
+            }
+            for (Future<Action> future : futures) {
+                Action action;
+                try {
+                    action = future.get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    action = Action.UNRESOLVED;
+                }
+                actions.put(action, actions.get(action) + 1);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println("Recovered " + pidFiles.length + " PID files in " + lukewarmFolder.getAbsolutePath()
+                           + " in " + (System.currentTimeMillis() - started) + " ms: " + actions);
+        return actions;
+    }
+
+    /**
+     * Resolve a PID file.
+     */
+    private Action resolve(File pidFile, File lukewarmFolder, File hotFolder, File coldFolder) {
+        String pidFileName = pidFile.getName();
+        boolean inProcess = pidFileName.endsWith(IN_PROCESS_SUFFIX);
+        String name = pidFileName.substring(
+                0, pidFileName.length() - (inProcess ? IN_PROCESS_SUFFIX : FAILED_SUFFIX).length());
+        File hotFile = new File(hotFolder, name);
+        File failedFile = new File(lukewarmFolder, name);
+        try {
+            List<String> pids = readPids(pidFile);
+            List<String> present = new ArrayList<String>();
+            List<String> unpublished = new ArrayList<String>();
+            for (String pid : pids) {
+                Constants.FedoraState state = domsClient.getState(pid);
+                if (state != Constants.FedoraState.Deleted) {
+                    present.add(pid);
+                }
+                if (state == Constants.FedoraState.Inactive) {
+                    unpublished.add(pid);
+                }
+            }
+
+            Action action;
+            if (inProcess && !pids.isEmpty() && present.size() == pids.size()) {
+                if (!unpublished.isEmpty()) {
+                    domsClient.publishObjects(Common.COMMENT, unpublished.toArray(new String[unpublished.size()]));
+                }
+                if (hotFile.exists()) {
+                    markPublished(hotFile);
+                    hotFile.renameTo(new File(coldFolder, name));
+                }
+                action = Action.PUBLISHED;
+            } else if (inProcess) {
+                requeue(failedFile, hotFile);
+                action = Action.REQUEUED;
+            } else if (unpublished.isEmpty()) {
+                action = Action.CLEANED;
+            } else if (journal != null && failedFile.exists()) {
+                requeue(failedFile, hotFile);
+                action = Action.REQUEUED;
+            } else {
+                domsClient.deleteObjects(Common.FAILED_COMMENT, unpublished.toArray(new String[unpublished.size()]));
+                action = Action.DELETED;
+            }
+            pidFile.delete();
+            System.out.println("Recovery of " + pidFileName + " listing " + pids + ": " + action);
+            return action;
+        } catch (ServerOperationFailed e) {
+            System.err.println("Unable to recover " + pidFile.getAbsolutePath() + ", leaving it for an operator");
+            e.printStackTrace();
+            return Action.UNRESOLVED;
+        } catch (IOException e) {
+            System.err.println("Unable to read " + pidFile.getAbsolutePath() + ", leaving it for an operator");
+            e.printStackTrace();
+            return Action.UNRESOLVED;
+        }
+    }
+
+    private static List<String> readPids(File pidFile) throws IOException {
+        List<String> pids = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(pidFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    pids.add(line.trim());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return pids;
+    }
+
+    /**
+     * Move a failed file back to the hot folder, unless it is there already.
+     */
+    private static void requeue(File failedFile, File hotFile) {
+        if (hotFile.exists() || !failedFile.exists()) {
+            return;
+        }
+        if (failedFile.renameTo(hotFile)) {
+            // A ledger may still know the file as failed, and would not report it again unchanged.
+            hotFile.setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Forget the steps journaled for a file whose objects are published.
+     */
+    private void markPublished(File file) throws IOException {
+        if (journal != null) {
+            journal.checkpoints(file, FileDigests.md5(file)).published();
+        }
+    }
+}
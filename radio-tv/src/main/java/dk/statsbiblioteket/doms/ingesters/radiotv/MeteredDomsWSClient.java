@@ -0,0 +1,146 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.DomsWSClient;
+import dk.statsbiblioteket.doms.client.exceptions.NoObjectFound;
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import dk.statsbiblioteket.doms.client.exceptions.XMLParseException;
+import dk.statsbiblioteket.doms.client.relations.LiteralRelation;
+import dk.statsbiblioteket.doms.client.relations.Relation;
+import org.w3c.dom.Document;
+
+import java.net.URL;
+import java.util.List;
+
+/**
+ * DOMS client recording the latency and errors of the calls made while ingesting, see {@link IngestMetrics}.
+ * Lookups finding nothing are not errors.
+ */
+public class MeteredDomsWSClient extends DelegatingDomsWSClient {
+    private final IngestMetrics metrics;
+
+    /**
+     * Initialise the client.
+     *
+     * @param delegate The client to forward calls to.
+     * @param metrics The metrics to record in.
+     */
+    public MeteredDomsWSClient(DomsWSClient delegate, IngestMetrics metrics) {
+        super(delegate);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public String getFileObjectPID(URL fileURL) throws NoObjectFound, ServerOperationFailed {
+        long start = System.nanoTime();
+        try {
+            return delegate.getFileObjectPID(fileURL);
+        } catch (ServerOperationFailed e) {
+            metrics.error(IngestMetrics.FILE_LOOKUP);
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.error(IngestMetrics.FILE_LOOKUP);
+            throw e;
+        } finally {
+            metrics.record(IngestMetrics.FILE_LOOKUP, start);
+        }
+    }
+
+    @Override
+    public List<String> getPidFromOldIdentifier(String oldIdentifier) throws NoObjectFound, ServerOperationFailed {
+        long start = System.nanoTime();
+        try {
+            return delegate.getPidFromOldIdentifier(oldIdentifier);
+        } catch (ServerOperationFailed e) {
+            metrics.error(IngestMetrics.IDENTIFIER_LOOKUP);
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.error(IngestMetrics.IDENTIFIER_LOOKUP);
+            throw e;
+        } finally {
+            metrics.record(IngestMetrics.IDENTIFIER_LOOKUP, start);
+        }
+    }
+
+    @Override
+    public void updateDataStream(String objectPID, String dataStreamID, Document newDataStreamContents, String comment)
+            throws ServerOperationFailed {
+        String stage = IngestMetrics.UPDATE_DATASTREAM + dataStreamID;
+        long start = System.nanoTime();
+        try {
+            delegate.updateDataStream(objectPID, dataStreamID, newDataStreamContents, comment);
+        } catch (ServerOperationFailed e) {
+            metrics.error(stage);
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.error(stage);
+            throw e;
+        } finally {
+            metrics.record(stage, start);
+        }
+    }
+
+    @Override
+    public void addObjectRelation(String pid, String predicate, String objectPid, String comment)
+            throws ServerOperationFailed, XMLParseException {
+        long start = System.nanoTime();
+        try {
+            delegate.addObjectRelation(pid, predicate, objectPid, comment);
+        } catch (ServerOperationFailed e) {
+            metrics.error(IngestMetrics.RELATIONS);
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.error(IngestMetrics.RELATIONS);
+            throw e;
+        } finally {
+            metrics.record(IngestMetrics.RELATIONS, start);
+        }
+    }
+
+    @Override
+    public void removeObjectRelation(LiteralRelation relation, String comment) throws ServerOperationFailed {
+        long start = System.nanoTime();
+        try {
+            delegate.removeObjectRelation(relation, comment);
+        } catch (ServerOperationFailed e) {
+            metrics.error(IngestMetrics.RELATIONS);
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.error(IngestMetrics.RELATIONS);
+            throw e;
+        } finally {
+            metrics.record(IngestMetrics.RELATIONS, start);
+        }
+    }
+
+    @Override
+    public List<Relation> listObjectRelations(String objectPID, String relationType) throws ServerOperationFailed {
+        long start = System.nanoTime();
+        try {
+            return delegate.listObjectRelations(objectPID, relationType);
+        } catch (ServerOperationFailed e) {
+            metrics.error(IngestMetrics.RELATIONS);
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.error(IngestMetrics.RELATIONS);
+            throw e;
+        } finally {
+            metrics.record(IngestMetrics.RELATIONS, start);
+        }
+    }
+
+    @Override
+    public void publishObjects(String comment, String... pidsToPublish) throws ServerOperationFailed {
+        long start = System.nanoTime();
+        try {
+            delegate.publishObjects(comment, pidsToPublish);
+        } catch (ServerOperationFailed e) {
+            metrics.error(IngestMetrics.PUBLISH);
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.error(IngestMetrics.PUBLISH);
+            throw e;
+        } finally {
+            metrics.record(IngestMetrics.PUBLISH, start);
+        }
+    }
+}
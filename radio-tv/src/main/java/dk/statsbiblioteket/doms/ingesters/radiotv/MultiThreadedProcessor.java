@@ -1,8 +1,18 @@
 package dk.statsbiblioteket.doms.ingesters.radiotv;
 
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created with IntelliJ IDEA.
@@ -12,31 +22,433 @@ import java.util.concurrent.TimeUnit;
  * To change this template use File | Settings | File Templates.
  */
 public abstract class MultiThreadedProcessor  implements HotFolderScannerClient {
-    protected ExecutorService pool;
+    protected volatile ThreadPoolExecutor pool;
     private int poolSize;
 
+    /**
+     * Adjusts the pool size while running, if adaptive sizing is enabled.
+     */
+    private AdaptivePoolSizer poolSizer;
+
+    /**
+     * Capacity of the queue in front of the pool in continuous mode. Zero means the pool is started and drained
+     * for every scan.
+     */
+    private int queueCapacity = 0;
+
+    /**
+     * Lane of a pool shared with other processors to process files on, or null to use a pool of this processor's own.
+     */
+    private SharedWorkerPool.Lane lane;
+
+    /** Creates the workers of the pool of this processor, or null for the default threads. */
+    private ThreadFactory threadFactory;
+
+    /** The number of workers of the first stage, or zero if all work on a file is done in one stage. */
+    private int firstStageThreads = 0;
+    /** Capacity of the queue in front of the first stage. */
+    private int firstStageQueueCapacity;
+    /** Pool of the first stage, which hands files on to the pool, if staged. */
+    private volatile ThreadPoolExecutor firstStage;
+
+    /** Set once stopping starts, so the engine is only stopped once. */
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    /** Released once the engine has stopped. */
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    /** Whether all files were processed when the engine stopped. */
+    private volatile boolean stoppedCleanly;
+
     protected MultiThreadedProcessor(int poolSize) {
         this.poolSize = poolSize;
     }
 
+    /**
+     * Keep the pool running across scans instead of draining it at the end of every scan. Files are handed to the
+     * pool through a queue of the given capacity. When the queue is full, reporting a file blocks until a worker
+     * is free, so the scanner never gets far ahead of the pool. The pool is only drained on {@link #stopEngine()}.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param queueCapacity The maximum number of files waiting for a worker.
+     */
+    public void setContinuous(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive, was " + queueCapacity);
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Process files on a lane of a pool shared with other processors, instead of a pool of this processor's own, see
+     * {@link SharedWorkerPool}. The pool size and adaptive sizing of this processor are then not used, and the queue
+     * capacity is that of the lane. Continuous mode still decides whether each scan waits for its files to be
+     * processed.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param lane The lane to submit files to.
+     */
+    public void setLane(SharedWorkerPool.Lane lane) {
+        this.lane = lane;
+    }
+
+    /**
+     * Create the workers of the pool of this processor with the given factory, as virtual threads, see
+     * {@link VirtualThreads}. Not used on a lane, where the shared pool creates the workers.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param threadFactory The factory, or null for the default threads.
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Process files in two stages: a first stage on a pool of its own, which hands each file on to the pool, or lane,
+     * for the second stage, see {@link #submitFirstStage(Runnable)}. Each stage has a bounded queue, so the first
+     * stage can run ahead of the second by at most the capacity of the queue of the second, and reporting a file
+     * blocks while the queue of the first stage is full. The first stage is drained before the second when waiting
+     * for threads and when stopping.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param threads The number of files in the first stage at once.
+     * @param queueCapacity The maximum number of files waiting for the first stage.
+     */
+    public void setFirstStage(int threads, int queueCapacity) {
+        if (threads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Threads and queue capacity must be positive, were " + threads
+                                               + " and " + queueCapacity);
+        }
+        this.firstStageThreads = threads;
+        this.firstStageQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * Whether files are processed in two stages, see {@link #setFirstStage(int, int)}.
+     *
+     * @return True if staged.
+     */
+    public boolean isStaged() {
+        return firstStageThreads > 0;
+    }
+
+    /**
+     * Adjust the pool size while running, based on how long files take to process and how often processing fails.
+     * The pool starts at the size given on construction, and never grows beyond <code>maxPoolSize</code>.
+     * Subclasses must report the outcome of every file with {@link #fileDone(long, boolean)}.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param maxPoolSize The largest number of files to ever process concurrently.
+     */
+    public void setAdaptive(int maxPoolSize) {
+        poolSizer = new AdaptivePoolSizer(poolSize, maxPoolSize);
+    }
+
+    /**
+     * Report the outcome of processing a file, for adaptive pool sizing.
+     *
+     * @param latencyMillis The time spent processing the file, in milliseconds.
+     * @param success Whether the file was processed successfully.
+     */
+    protected void fileDone(long latencyMillis, boolean success) {
+        if (poolSizer == null || !poolSizer.record(latencyMillis, success)) {
+            return;
+        }
+        int newPoolSize = poolSizer.getPoolSize();
+        ThreadPoolExecutor executor = pool;
+        if (executor == null) {
+            return;
+        }
+        // Keep the core size no larger than the maximum size at any time.
+        if (newPoolSize > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(newPoolSize);
+            executor.setCorePoolSize(newPoolSize);
+        } else {
+            executor.setCorePoolSize(newPoolSize);
+            executor.setMaximumPoolSize(newPoolSize);
+        }
+        System.out.println("Adjusted pool size to " + newPoolSize);
+    }
+
+    /**
+     * @return The number of files currently allowed to be processed concurrently.
+     */
+    public int getPoolSize() {
+        return poolSizer == null ? poolSize : poolSizer.getPoolSize();
+    }
+
+    /**
+     * @return The number of files waiting for a worker.
+     */
+    public int getQueueDepth() {
+        ThreadPoolExecutor first = firstStage;
+        int firstStageDepth = first == null ? 0 : first.getQueue().size();
+        if (lane != null) {
+            return firstStageDepth + lane.getQueueDepth();
+        }
+        ThreadPoolExecutor executor = pool;
+        return firstStageDepth + (executor == null ? 0 : executor.getQueue().size());
+    }
+
+    /**
+     * @return The number of files being processed by a worker.
+     */
+    public int getInFlight() {
+        ThreadPoolExecutor first = firstStage;
+        int firstStageInFlight = first == null ? 0 : first.getActiveCount();
+        if (lane != null) {
+            return firstStageInFlight + lane.getInFlight();
+        }
+        ThreadPoolExecutor executor = pool;
+        return firstStageInFlight + (executor == null ? 0 : executor.getActiveCount());
+    }
+
+    /**
+     * Whether the pool is kept running across scans.
+     *
+     * @return True if in continuous mode.
+     */
+    public boolean isContinuous() {
+        return queueCapacity > 0;
+    }
+
+    /**
+     * Hand work on a file to the pool. In continuous mode, this blocks while the queue is full.
+     *
+     * @param task The work on the file.
+     */
+    protected void submit(Runnable task) {
+        if (lane != null) {
+            lane.submit(task);
+        } else {
+            pool.submit(task);
+        }
+    }
+
+    /**
+     * Hand work on a file to the first stage, if staged. This blocks while the queue of the first stage is full. The
+     * first stage hands the file on to the second with {@link #submit(Runnable)}.
+     *
+     * @param task The work on the file in the first stage.
+     */
+    protected void submitFirstStage(Runnable task) {
+        firstStage.submit(task);
+    }
+
+    @Override
+    public void waitForThreads() {
+        if (isContinuous()) {
+            // Work carries on across scans, and is only drained when stopping.
+            return;
+        }
+        drain();
+    }
+
+    /**
+     * Stop the engine, waiting for all files reported so far to be processed.
+     */
     @Override
-      public void waitForThreads() {
-          pool.shutdown();
+    public void stopEngine() {
+        stopEngine(Long.MAX_VALUE);
+    }
+
+    /**
+     * Stop the engine: accept no more files, and wait for the files reported so far to be processed. If they are not
+     * all processed before the timeout, the files still waiting for a worker are cancelled and left as they are, and
+     * files being processed are left to finish on their own.
+     * <p/>
+     * The engine is only stopped once. Later calls wait for the first one to finish, at most for their own timeout.
+     *
+     * @param timeoutMillis How long to wait for the files to be processed, in milliseconds.
+     * @return True if all files reported were processed.
+     */
+    public boolean stopEngine(long timeoutMillis) {
+        if (!stopping.compareAndSet(false, true)) {
+            try {
+                return stopped.await(timeoutMillis, TimeUnit.MILLISECONDS) && stoppedCleanly;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        try {
+            long deadline = deadline(timeoutMillis);
+            // The first stage hands files on to the lane, so it must be done before the lane is closed.
+            boolean firstStageDrained = drainFirstStage(timeoutMillis);
+            if (lane != null) {
+                lane.close();
+            }
+            stoppedCleanly = drain(firstStageDrained ? remaining(deadline) : 0) && firstStageDrained;
+            if (!stoppedCleanly) {
+                List<Runnable> cancelled = cancel();
+                System.out.println("Cancelled " + cancelled.size() + " files waiting for a worker, "
+                                   + getInFlight() + " files still being processed");
+            }
+            engineStopped(stoppedCleanly);
+            return stoppedCleanly;
+        } finally {
+            stopped.countDown();
+        }
+    }
 
-          try {
-              pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
-          } catch (InterruptedException e) {
+    /**
+     * Called once when the engine has stopped, see {@link #stopEngine(long)}.
+     *
+     * @param processedAll True if all files reported were processed, false if some were cancelled or left running.
+     */
+    protected void engineStopped(boolean processedAll) {
+    }
+
+    /**
+     * Whether the engine is stopping or has stopped, and files reported will not be processed.
+     *
+     * @return True once stopping has started.
+     */
+    public boolean isStopping() {
+        return stopping.get();
+    }
 
-          }
+    /**
+     * Wait for the files reported so far to be processed, and for the pool of this processor, if any, to terminate.
+     *
+     * @param timeoutMillis How long to wait at most, in milliseconds.
+     * @return False if the timeout passed first.
+     */
+    private boolean drain(long timeoutMillis) {
+        long deadline = deadline(timeoutMillis);
+        boolean firstStageDrained = drainFirstStage(timeoutMillis);
+        if (lane != null) {
+            return lane.awaitIdle(remaining(deadline)) && firstStageDrained;
+        }
+        if (pool == null) {
+            return firstStageDrained;
+        }
+        pool.shutdown();
 
-      }
+        try {
+            return pool.awaitTermination(remaining(deadline), TimeUnit.MILLISECONDS) && firstStageDrained;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 
+    /**
+     * Wait for the first stage, if any, to hand on the files reported so far, and terminate.
+     *
+     * @param timeoutMillis How long to wait at most, in milliseconds.
+     * @return False if the timeout passed first.
+     */
+    private boolean drainFirstStage(long timeoutMillis) {
+        ThreadPoolExecutor first = firstStage;
+        if (first == null) {
+            return true;
+        }
+        first.shutdown();
+        try {
+            return first.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static long deadline(long timeoutMillis) {
+        return System.currentTimeMillis() + Math.min(timeoutMillis, Long.MAX_VALUE / 2);
+    }
+
+    private static long remaining(long deadline) {
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    private void drain() {
+        drain(Long.MAX_VALUE);
+    }
+
+    /**
+     * Remove the files waiting for a worker, so they are never processed.
+     *
+     * @return The work on the files removed.
+     */
+    private List<Runnable> cancel() {
+        List<Runnable> cancelled = new ArrayList<Runnable>();
+        if (firstStage != null) {
+            firstStage.getQueue().drainTo(cancelled);
+        }
+        if (lane != null) {
+            cancelled.addAll(lane.cancel());
+            return cancelled;
+        }
+        if (pool != null) {
+            pool.getQueue().drainTo(cancelled);
+        }
+        return cancelled;
+    }
 
     @Override
     public void startEngine() {
-        if (pool != null){
-            waitForThreads();
+        if (isStopping()) {
+            // A scan may still be starting, but no new pool is started for it.
+            return;
+        }
+        if (lane != null) {
+            // The shared pool is always running.
+        } else if (isContinuous()) {
+            if (pool == null) {
+                pool = createPool(new ArrayBlockingQueue<Runnable>(queueCapacity));
+            }
+        } else {
+            if (pool != null){
+                waitForThreads();
+            }
+            pool = createPool(new LinkedBlockingQueue<Runnable>());
+        }
+        if (isStaged() && (firstStage == null || firstStage.isShutdown())) {
+            // Shut down when the previous scan was drained, or not started yet.
+            firstStage = new ThreadPoolExecutor(firstStageThreads, firstStageThreads, 0L, TimeUnit.MILLISECONDS,
+                                                new ArrayBlockingQueue<Runnable>(firstStageQueueCapacity),
+                                                new BlockWhenFull());
+        }
+    }
+
+    private ThreadPoolExecutor createPool(BlockingQueue<Runnable> queue) {
+        int size = getPoolSize();
+        return new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS, queue,
+                                      threadFactory == null ? Executors.defaultThreadFactory() : threadFactory,
+                                      new BlockWhenFull());
+    }
+
+    /**
+     * Makes the submitting thread wait for room in the queue, rather than rejecting the work. The work is still
+     * rejected if the pool is shut down while waiting, or just after it was queued, since the workers may have ended
+     * by then and never take it.
+     */
+    private static class BlockWhenFull implements RejectedExecutionHandler {
+        /** How often to check whether the pool has been shut down while waiting for room, in milliseconds. */
+        private static final long SHUTDOWN_CHECK_MILLIS = 100;
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            try {
+                while (true) {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("Pool has been shut down");
+                    }
+                    if (executor.getQueue().offer(runnable, SHUTDOWN_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in the queue", e);
+            }
+            // If taken by a worker already, it is run as usual.
+            if (executor.isShutdown() && executor.getQueue().remove(runnable)) {
+                throw new RejectedExecutionException("Pool has been shut down");
+            }
         }
-        pool = Executors.newFixedThreadPool(poolSize);
     }
 }
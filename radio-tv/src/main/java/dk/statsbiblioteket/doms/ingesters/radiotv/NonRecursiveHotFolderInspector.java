@@ -28,7 +28,7 @@ package dk.statsbiblioteket.doms.ingesters.radiotv;
 
 import java.io.File;
 import java.io.FilenameFilter;
-import java.text.DateFormat;
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -38,12 +38,19 @@ import java.util.*;
  *
  * @author &lt;tsh@statsbiblioteket.dk&gt;
  */
-public class NonRecursiveHotFolderInspector extends TimerTask {
+public class NonRecursiveHotFolderInspector implements HotFolderInspector, Runnable {
 
-    private long totalIngestTime = 0;
-    private long objectsIngested = 0;
-    private long lastTenObjects = 0;
-    private boolean killFlag = false; // killFlag will be set to true when kill occurs.
+    private volatile boolean killFlag = false; // killFlag will be set to true when kill occurs.
+
+    /**
+     * Set once the client has been stopped, after which runs do nothing.
+     */
+    private boolean stopped = false;
+
+    /**
+     * Set if the client is stopped by a shutdown controller, rather than by this inspector.
+     */
+    private volatile boolean clientStoppedByController = false;
 
     /**
      * Full path to the hot folder to scan.
@@ -51,10 +58,15 @@ public class NonRecursiveHotFolderInspector extends TimerTask {
     private final File folderToScan;
 
     /**
-     * Map containing paths and timestamps for all files found in the hot folder
-     * at the previous scanning.
+     * Ledger of the files found in the hot folder at previous scannings, with
+     * their timestamps.
+     */
+    private final IngestLedger ledger;
+
+    /**
+     * Metrics to record the time of each scan in, or null.
      */
-    private final HashMap<File, Long> previousFolderContents;
+    private final IngestMetrics metrics;
 
     /**
      * Reference to the client to call when any changes are detected.
@@ -74,9 +86,47 @@ public class NonRecursiveHotFolderInspector extends TimerTask {
      */
     public NonRecursiveHotFolderInspector(File hotFolderToScan,
                                           HotFolderScannerClient client) {
+        this(hotFolderToScan, client, new IngestLedger());
+    }
+
+    /**
+     * Create a <code>NonRecursiveHotFolderInspector</code> instance which scans
+     * the folder specified by <code>hotFolderToScan</code> and notifies the
+     * client specified by <code>client</code> about any changes, whenever the
+     * <code>{@link #run()}</code> method is executed. Files are compared to
+     * what the given ledger knows, so with a persistent ledger files already
+     * processed are not reported again after a restart.
+     *
+     * @param hotFolderToScan File path to a hot folder to scan.
+     * @param client          Reference to a client to notify about changes in the folder.
+     * @param ledger          Ledger of the files seen in the hot folder.
+     */
+    public NonRecursiveHotFolderInspector(File hotFolderToScan,
+                                          HotFolderScannerClient client,
+                                          IngestLedger ledger) {
+        this(hotFolderToScan, client, ledger, null);
+    }
+
+    /**
+     * Create a <code>NonRecursiveHotFolderInspector</code> instance which scans
+     * the folder specified by <code>hotFolderToScan</code> and notifies the
+     * client specified by <code>client</code> about any changes, whenever the
+     * <code>{@link #run()}</code> method is executed, recording the time of
+     * each scan in the given metrics.
+     *
+     * @param hotFolderToScan File path to a hot folder to scan.
+     * @param client          Reference to a client to notify about changes in the folder.
+     * @param ledger          Ledger of the files seen in the hot folder.
+     * @param metrics         Metrics to record the time of each scan in, or null.
+     */
+    public NonRecursiveHotFolderInspector(File hotFolderToScan,
+                                          HotFolderScannerClient client,
+                                          IngestLedger ledger,
+                                          IngestMetrics metrics) {
         folderToScan = hotFolderToScan;
         callBackClient = client;
-        previousFolderContents = new HashMap<File, Long>();
+        this.ledger = ledger;
+        this.metrics = metrics;
     }
 
     /**
@@ -85,92 +135,97 @@ public class NonRecursiveHotFolderInspector extends TimerTask {
      */
     @Override
     public void run() {
+        if (stopped) {
+            return;
+        }
         try {
-            // Scan the hot folder for file addition, deletion or modification.
-            File[] files = folderToScan.listFiles(new FilenameFilter() {
-                @Override
-                public boolean accept(File dir, String name) {
-                    if (name.trim().toLowerCase().endsWith(".xml")) {
-                        return true;
-                    }
-                    return false;  //To change body of implemented methods use File | Settings | File Templates.
+            if (!killFlag) {
+                long startTime = System.nanoTime();
+                scan();
+                if (metrics != null) {
+                    metrics.record(IngestMetrics.SCAN, startTime);
                 }
-            });
-            Arrays.sort(files);
-            final List<File> currentFolderContents = Arrays.asList(files);
-
-
-            //TODO make this multhreaded work
-            callBackClient.startEngine();
-            for (File currentFile : currentFolderContents) {
-                if (killFlag) {
-                    break;
+            }
+            if (killFlag) {
+                System.out.println("'stop file' detected. Terminating ingester.");
+            }
+        } finally {
+            if (killFlag) {
+                stopped = true;
+                if (!clientStoppedByController) {
+                    callBackClient.stopEngine();
                 }
+            } else {
+                callBackClient.waitForThreads();
+            }
+        }
+    }
 
-                if (objectsIngested % 10 == 0) {
-                    final Calendar rightNow = Calendar.getInstance();
-                    final DateFormat dateFormat = DateFormat.getDateTimeInstance(
-                            DateFormat.FULL, DateFormat.FULL);
-                    System.out.println(dateFormat.format(rightNow.getTime()));
-
-                    System.out.println("Total Objects ingested: " + objectsIngested
-                            + "; Total time spent ingesting: " + totalIngestTime
-                            + " ms; Time per object is " + (totalIngestTime + 0.0)
-                            / objectsIngested + " ms.");
-                    System.out.println("Time per object for the last 10 is: "
-                            + lastTenObjects / 10 + " ms");
-                    lastTenObjects = 0;
-                }
-                final Long previousTimeStamp = previousFolderContents
-                        .get(currentFile);
-
-                if (previousTimeStamp == null) {
-
-                    // A new file has been created.
-                    previousFolderContents.put(currentFile, currentFile
-                            .lastModified());
-                    long startTime = System.currentTimeMillis();
-                    callBackClient.fileAdded(currentFile);
-                    long endTime = System.currentTimeMillis();
-                    long ingesttime = endTime - startTime;
-                    totalIngestTime += ingesttime;
-                    lastTenObjects += ingesttime;
-                    objectsIngested++;
-                } else if (!previousTimeStamp.equals(currentFile.lastModified())) {
-                    // The file has been modified since the previous scan. Update
-                    // the time stamps and notify the client.
-                    previousFolderContents.put(currentFile, currentFile
-                            .lastModified());
-                    callBackClient.fileModified(currentFile);
+    /**
+     * Do a single scan of the hot folder, notifying the client about any changes.
+     */
+    private void scan() {
+        // Scan the hot folder for file addition, deletion or modification.
+        File[] files = folderToScan.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                if (name.trim().toLowerCase().endsWith(".xml")) {
+                    return true;
                 }
+                return false;  //To change body of implemented methods use File | Settings | File Templates.
             }
+        });
+        Arrays.sort(files);
+        final List<File> currentFolderContents = Arrays.asList(files);
 
-            // Remove information about any deleted files and notify the client.
-            Set<File> deletedFiles = new HashSet<File>(previousFolderContents
-                    .keySet());
-            deletedFiles.removeAll(currentFolderContents);
-            for (File deletedFile : deletedFiles) {
-                previousFolderContents.remove(deletedFile);
-                callBackClient.fileDeleted(deletedFile);
-            }
 
+        //TODO make this multhreaded work
+        callBackClient.startEngine();
+        for (File currentFile : currentFolderContents) {
             if (killFlag) {
-                System.out.println("'stop file' detected. Terminating ingester.");
-                System.out.println("Total Objects ingested: " + objectsIngested
-                        + "; Total time spent ingesting: " + totalIngestTime
-                        + " ms; Time per object is " + (totalIngestTime + 0.0)
-                        / objectsIngested + " ms.");
+                break;
+            }
+
+            final IngestLedger.Change change;
+            try {
+                change = ledger.update(currentFile);
+            } catch (IOException e) {
+                // Try again at the next scan.
+                e.printStackTrace();
+                continue;
+            }
 
-                this.cancel();
+            if (change == IngestLedger.Change.ADDED) {
 
+                // A new file has been created.
+                callBackClient.fileAdded(currentFile);
+            } else if (change == IngestLedger.Change.MODIFIED) {
+                // The file has been modified since the previous scan. The
+                // ledger has updated the time stamps, so notify the client.
+                callBackClient.fileModified(currentFile);
             }
-        } finally {
-            callBackClient.waitForThreads();
         }
+
+        // Remove information about any deleted files and notify the client.
+        try {
+            for (File deletedFile : ledger.removeMissing(folderToScan, currentFolderContents)) {
+                callBackClient.fileDeleted(deletedFile);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Leave stopping the client to a {@link ShutdownController}, which gives it until a deadline shared with other
+     * clients. Otherwise the inspector stops the client itself once the kill flag is set, waiting as long as it takes.
+     */
+    public void setClientStoppedByController() {
+        clientStoppedByController = true;
     }
 
+    @Override
     public void setKillFlag() {
         killFlag = true;
-
     }
 }
@@ -0,0 +1,24 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reads and validates a Radio/TV program metadata file, and extracts the parts to ingest in DOMS.
+ * Implementations must be thread safe.
+ */
+public interface ProgramExtractor {
+    /**
+     * Extract the program metadata from a file.
+     *
+     * @param programFile The file containing the program metadata.
+     * @return The program metadata.
+     * @throws IOException On trouble reading the file.
+     * @throws SAXException If the file is not valid program metadata.
+     * @throws ParserConfigurationException Should never happen. Means no XML parser is available.
+     */
+    ProgramMetadata extract(File programFile) throws IOException, SAXException, ParserConfigurationException;
+}
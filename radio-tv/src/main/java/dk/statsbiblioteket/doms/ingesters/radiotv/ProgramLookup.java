@@ -0,0 +1,292 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.DomsWSClient;
+import dk.statsbiblioteket.doms.client.exceptions.NoObjectFound;
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+
+/**
+ * Looks up the DOMS objects a program refers to, before anything is written: The file objects of the recording
+ * files, and any existing program object with one of the old identifiers.
+ * <p/>
+ * Given an executor, all lookups for a program are issued at once, so a program pays roughly one round trip
+ * instead of one per file URL and old identifier. The executor is meant to be shared by all workers, so its number
+ * of threads bounds the number of concurrent lookups against DOMS. Without an executor, lookups are done one after
+ * another in the calling thread.
+ */
+public class ProgramLookup {
+    /** Idle lookup threads are stopped after this many seconds. */
+    private static final long IDLE_SECONDS = 60;
+
+    private final DomsWSClient domsClient;
+    private final ExecutorService executor;
+
+    /**
+     * Initialise the lookup.
+     *
+     * @param domsClient Client for communicating with DOMS.
+     * @param executor Executor to issue lookups on, or null to look up in the calling thread.
+     */
+    public ProgramLookup(DomsWSClient domsClient, ExecutorService executor) {
+        this.domsClient = domsClient;
+        this.executor = executor;
+    }
+
+    /**
+     * Create an executor for lookups. Its threads are daemon threads which stop when idle, so it needs no shutdown.
+     *
+     * @param maxConcurrentLookups The largest number of lookups to run at once.
+     * @return The executor.
+     */
+    public static ExecutorService createExecutor(int maxConcurrentLookups) {
+        if (maxConcurrentLookups < 1) {
+            throw new IllegalArgumentException("Concurrent lookups must be positive, was " + maxConcurrentLookups);
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                maxConcurrentLookups, maxConcurrentLookups, IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "DomsLookup-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Look up the file objects and any existing program object.
+     * <p/>
+     * Fails if any file object is missing, so nothing is written for a program referring to unknown files. When
+     * a lookup fails, lookups not yet started are cancelled.
+     *
+     * @param fileUrls The URLs of the recording files.
+     * @param oldIdentifiers The old identifiers of the program.
+     * @return The PIDs found.
+     *
+     * @throws MalformedURLException if a file URL is invalid. Nothing is looked up in that case.
+     * @throws ServerOperationFailed if a lookup failed.
+     * @throws NoObjectFound         if a file URL is not found in DOMS.
+     */
+    public Result lookup(List<String> fileUrls, List<String> oldIdentifiers)
+            throws MalformedURLException, ServerOperationFailed, NoObjectFound {
+        List<Callable<String>> fileLookups = new ArrayList<Callable<String>>();
+        for (String fileUrl : fileUrls) {
+            fileLookups.add(new FileLookup(new URL(fileUrl)));
+        }
+        List<Callable<String>> programLookups = new ArrayList<Callable<String>>();
+        for (String oldIdentifier : oldIdentifiers) {
+            programLookups.add(new ProgramByOldIdentifierLookup(oldIdentifier));
+        }
+
+        if (executor == null) {
+            List<String> filePids = new ArrayList<String>();
+            for (Callable<String> fileLookup : fileLookups) {
+                filePids.add(call(fileLookup));
+            }
+            for (Callable<String> programLookup : programLookups) {
+                String existingPid = call(programLookup);
+                if (existingPid != null) {
+                    return new Result(filePids, existingPid);
+                }
+            }
+            return new Result(filePids, null);
+        }
+
+        List<Future<String>> fileFutures = new ArrayList<Future<String>>();
+        List<Future<String>> programFutures = new ArrayList<Future<String>>();
+        try {
+            for (Callable<String> fileLookup : fileLookups) {
+                fileFutures.add(executor.submit(fileLookup));
+            }
+            for (Callable<String> programLookup : programLookups) {
+                programFutures.add(executor.submit(programLookup));
+            }
+
+            List<String> filePids = new ArrayList<String>();
+            for (Future<String> fileFuture : fileFutures) {
+                filePids.add(get(fileFuture));
+            }
+            // The first old identifier found wins, as when looking up one after another.
+            String existingPid = null;
+            for (Future<String> programFuture : programFutures) {
+                existingPid = get(programFuture);
+                if (existingPid != null) {
+                    break;
+                }
+            }
+            return new Result(filePids, existingPid);
+        } finally {
+            // Only has an effect if we failed or found a program early.
+            cancel(fileFutures);
+            cancel(programFutures);
+        }
+    }
+
+    /**
+     * Start looking up the file objects of a program ahead of looking up the program, so the lookups are answered by
+     * a cache in front of the DOMS client by then. Failures are ignored, since the lookups are repeated anyway. Does
+     * nothing without an executor.
+     * <p/>
+     * Programs are not looked up ahead, since a program missing when looked up may be created before it is written.
+     * <p/>
+     * Lookups of programs being ingested share the queue of the executor with these, so files are only looked up ahead
+     * while fewer lookups are waiting than the executor has threads. This bounds how long a lookup needed now waits
+     * behind lookups that are only nice to have. Executors not created by {@link #createExecutor(int)} are not used
+     * for looking up ahead, since their queue cannot be told.
+     *
+     * @param fileUrls The URLs of the recording files.
+     */
+    public void prefetchFiles(List<String> fileUrls) {
+        if (!(executor instanceof ThreadPoolExecutor)) {
+            return;
+        }
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        for (String fileUrl : fileUrls) {
+            if (pool.getQueue().size() >= pool.getMaximumPoolSize()) {
+                // Busy with lookups, which should not wait for these.
+                return;
+            }
+            try {
+                pool.submit(new FileLookup(new URL(fileUrl)));
+            } catch (MalformedURLException e) {
+                // Reported when the program is looked up
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    private static String call(Callable<String> lookup) throws ServerOperationFailed, NoObjectFound {
+        try {
+            return lookup.call();
+        } catch (ServerOperationFailed e) {
+            throw e;
+        } catch (NoObjectFound e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ServerOperationFailed("Lookup failed", e);
+        }
+    }
+
+    private static String get(Future<String> future) throws ServerOperationFailed, NoObjectFound {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServerOperationFailed("Interrupted while waiting for lookup", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServerOperationFailed) {
+                throw (ServerOperationFailed) cause;
+            }
+            if (cause instanceof NoObjectFound) {
+                throw (NoObjectFound) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ServerOperationFailed("Lookup failed", cause);
+        }
+    }
+
+    private static void cancel(List<Future<String>> futures) {
+        for (Future<String> future : futures) {
+            // Do not interrupt calls in progress, the DOMS client may not handle that well.
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Finds the PID of the file object with a given URL.
+     */
+    private class FileLookup implements Callable<String> {
+        private final URL fileUrl;
+
+        FileLookup(URL fileUrl) {
+            this.fileUrl = fileUrl;
+        }
+
+        @Override
+        public String call() throws ServerOperationFailed, NoObjectFound {
+            return domsClient.getFileObjectPID(fileUrl);
+        }
+    }
+
+    /**
+     * Finds the PID of the program object with a given old identifier, or null if there is none.
+     */
+    private class ProgramByOldIdentifierLookup implements Callable<String> {
+        private final String oldIdentifier;
+
+        ProgramByOldIdentifierLookup(String oldIdentifier) {
+            this.oldIdentifier = oldIdentifier;
+        }
+
+        @Override
+        public String call() throws ServerOperationFailed {
+            try {
+                //TODO Remove this when fixed in doms central RI query
+                String oldId = oldIdentifier.replaceAll("'", Matcher.quoteReplacement("\\'"));
+                List<String> pids = domsClient.getPidFromOldIdentifier(oldId);
+                if (!pids.isEmpty() && !pids.get(0).isEmpty()) {
+                    return pids.get(0);
+                }
+            } catch (NoObjectFound e) {
+                // Ignore, then
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The PIDs found by a lookup.
+     */
+    public static class Result {
+        private final List<String> filePids;
+        private final String existingProgramPid;
+
+        Result(List<String> filePids, String existingProgramPid) {
+            this.filePids = filePids;
+            this.existingProgramPid = existingProgramPid;
+        }
+
+        /**
+         * @return The PIDs of the file objects, in the order of the file URLs.
+         */
+        public List<String> getFilePids() {
+            return filePids;
+        }
+
+        /**
+         * @return The PID of the existing program object, or null if the program is not in DOMS.
+         */
+        public String getExistingProgramPid() {
+            return existingProgramPid;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.w3c.dom.Document;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The parts of a Radio/TV program metadata file that are ingested in DOMS.
+ * <p/>
+ * The datastream documents are handed over to the program metadata, and must not be changed once it is created.
+ */
+public class ProgramMetadata {
+    private final String title;
+    private final List<String> oldIdentifiers;
+    private final List<String> fileUrls;
+    private final Document pbCore;
+    private final Document ritzauOriginal;
+    private final Document gallupOriginal;
+    private final Document programBroadcast;
+
+    /**
+     * Initialise the program metadata.
+     *
+     * @param title The program title, used as label of the program object.
+     * @param oldIdentifiers The Ritzau and Gallup identifiers of the program, used for looking up the program in DOMS.
+     * @param fileUrls The URLs of the recording files containing the program.
+     * @param pbCore The PBCore description, for the PBCORE datastream.
+     * @param ritzauOriginal The original Ritzau metadata, for the RITZAU_ORIGINAL datastream.
+     * @param gallupOriginal The original Gallup metadata, for the GALLUP_ORIGINAL datastream.
+     * @param programBroadcast The program broadcast metadata, for the PROGRAM_BROADCAST datastream.
+     */
+    public ProgramMetadata(String title, List<String> oldIdentifiers, List<String> fileUrls, Document pbCore,
+                           Document ritzauOriginal, Document gallupOriginal, Document programBroadcast) {
+        this.title = title;
+        this.oldIdentifiers = Collections.unmodifiableList(oldIdentifiers);
+        this.fileUrls = Collections.unmodifiableList(fileUrls);
+        this.pbCore = pbCore;
+        this.ritzauOriginal = ritzauOriginal;
+        this.gallupOriginal = gallupOriginal;
+        this.programBroadcast = programBroadcast;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public List<String> getOldIdentifiers() {
+        return oldIdentifiers;
+    }
+
+    public List<String> getFileUrls() {
+        return fileUrls;
+    }
+
+    public Document getPbCore() {
+        return pbCore;
+    }
+
+    public Document getRitzauOriginal() {
+        return ritzauOriginal;
+    }
+
+    public Document getGallupOriginal() {
+        return gallupOriginal;
+    }
+
+    public Document getProgramBroadcast() {
+        return programBroadcast;
+    }
+}
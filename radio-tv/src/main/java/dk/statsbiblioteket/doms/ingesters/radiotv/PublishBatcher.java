@@ -0,0 +1,197 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.DomsWSClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publishes the objects of many files in one call to DOMS, instead of one call per file.
+ * <p/>
+ * Files written to DOMS are added to a batch, which is published when it reaches its maximum size, or when its
+ * oldest file has waited the maximum delay, or when flushed explicitly. Only once the batch is published is each
+ * file told so, and can move on. If publishing the batch fails, each file in it is published on its own, so one bad
+ * object only fails its own file.
+ */
+public class PublishBatcher {
+    /**
+     * The objects of a file, waiting to be published.
+     */
+    public interface Publication {
+        /**
+         * @return The PIDs of the objects to publish.
+         */
+        List<String> getPids();
+
+        /**
+         * Called when the objects have been published.
+         */
+        void published();
+
+        /**
+         * Called when publishing the objects failed.
+         *
+         * @param e What went wrong.
+         */
+        void failed(Exception e);
+    }
+
+    private final DomsWSClient domsClient;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final ScheduledExecutorService flusher;
+
+    private List<Publication> batch = new ArrayList<Publication>();
+    /**
+     * Held while taking and publishing a batch, so batches are published one at a time and in order. A lock rather
+     * than a monitor, so workers on virtual threads waiting for a flush leave their carrier threads to others, see
+     * {@link VirtualThreads}.
+     */
+    private final ReentrantLock publishLock = new ReentrantLock();
+
+    /**
+     * Initialise the batcher.
+     *
+     * @param domsClient Client for communicating with DOMS.
+     * @param maxBatchSize The number of files to publish at most in one call.
+     * @param maxDelayMillis The longest time a file waits for its batch to fill, in milliseconds.
+     */
+    public PublishBatcher(DomsWSClient domsClient, int maxBatchSize, long maxDelayMillis) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive, was " + maxBatchSize);
+        }
+        this.domsClient = domsClient;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PublishBatcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Add the objects of a file to the current batch. Returns at once, the file is told when the batch is published.
+     *
+     * @param publication The objects of the file.
+     */
+    public void add(Publication publication) {
+        List<Publication> fullBatch;
+        synchronized (this) {
+            batch.add(publication);
+            if (batch.size() == 1) {
+                flusher.schedule(new Flush(batch), maxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+            if (batch.size() < maxBatchSize) {
+                return;
+            }
+            fullBatch = batch;
+        }
+        flusher.execute(new Flush(fullBatch));
+    }
+
+    /**
+     * Publish the current batch now, and wait until that is done.
+     */
+    public void flush() {
+        publishBatch(null);
+    }
+
+    /**
+     * Take the current batch and publish it. The lock is held from taking the batch, so when a flush returns, all
+     * batches taken before it are published.
+     *
+     * @param expected Only publish the current batch if it is this one. If null, publish it whatever it is.
+     */
+    private void publishBatch(List<Publication> expected) {
+        publishLock.lock();
+        try {
+            publish(takeBatch(expected));
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    /**
+     * Take the current batch, starting a new one.
+     *
+     * @param expected Only take the current batch if it is this one. If null, take it whatever it is.
+     * @return The batch taken, empty if none.
+     */
+    private synchronized List<Publication> takeBatch(List<Publication> expected) {
+        if (expected != null && expected != batch) {
+            // Already published because it got full, or was flushed.
+            return new ArrayList<Publication>();
+        }
+        List<Publication> taken = batch;
+        batch = new ArrayList<Publication>();
+        return taken;
+    }
+
+    private void publish(List<Publication> publications) {
+        if (publications.isEmpty()) {
+            return;
+        }
+        List<String> pids = new ArrayList<String>();
+        for (Publication publication : publications) {
+            pids.addAll(publication.getPids());
+        }
+        try {
+            domsClient.publishObjects(Common.COMMENT, pids.toArray(new String[pids.size()]));
+        } catch (Exception e) {
+            System.err.println("Publishing a batch of " + publications.size()
+                               + " files failed. Publishing the files one by one.");
+            e.printStackTrace();
+            for (Publication publication : publications) {
+                publishAlone(publication);
+            }
+            return;
+        }
+        for (Publication publication : publications) {
+            publication.published();
+        }
+    }
+
+    private void publishAlone(Publication publication) {
+        List<String> pids = publication.getPids();
+        try {
+            domsClient.publishObjects(Common.COMMENT, pids.toArray(new String[pids.size()]));
+        } catch (Exception e) {
+            publication.failed(e);
+            return;
+        }
+        publication.published();
+    }
+
+    /**
+     * Publishes a batch, on the flusher thread.
+     */
+    private class Flush implements Runnable {
+        private final List<Publication> expected;
+
+        /**
+         * @param expected The batch to publish. If it has been published already, nothing happens.
+         */
+        Flush(List<Publication> expected) {
+            this.expected = expected;
+        }
+
+        @Override
+        public void run() {
+            try {
+                publishBatch(expected);
+            } catch (RuntimeException e) {
+                // Keep the flusher thread alive.
+                e.printStackTrace();
+            }
+        }
+    }
+}
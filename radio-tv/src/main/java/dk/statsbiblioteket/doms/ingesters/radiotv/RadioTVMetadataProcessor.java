@@ -32,14 +32,11 @@ import dk.statsbiblioteket.doms.client.DomsWSClientImpl;
 import dk.statsbiblioteket.doms.client.exceptions.NoObjectFound;
 import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
 import dk.statsbiblioteket.doms.client.exceptions.XMLParseException;
-import org.apache.commons.io.FileUtils;
-import org.w3c.dom.Document;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
 import javax.xml.bind.JAXBException;
-import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.validation.Schema;
@@ -50,12 +47,29 @@ import java.io.PrintWriter;
 import java.net.URISyntaxException;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** On added xml files with radio/tv metadata, add objects to DOMS describing these files. */
 public class RadioTVMetadataProcessor extends MultiThreadedProcessor implements HotFolderScannerClient {
 
+    /** The number of files processed concurrently, unless otherwise specified. */
+    public static final int DEFAULT_POOL_SIZE = 5;
+
+    /** The number of concurrent lookups in DOMS, shared by all files, unless otherwise specified. */
+    public static final int DEFAULT_LOOKUP_THREADS = 4;
+
+    /** The number of locks the old identifiers of programs are spread over, unless otherwise specified. */
+    public static final int DEFAULT_PROGRAM_LOCK_STRIPES = 1024;
+
+    /** How long to wait for the locks of a program before flushing the batch to publish, in milliseconds. */
+    private static final long PROGRAM_LOCK_FLUSH_MILLIS = 100;
 
     /** How many times we failed during ingest. */
     private int exceptionCount = 0;
@@ -64,12 +78,56 @@ public class RadioTVMetadataProcessor extends MultiThreadedProcessor implements
     private final File failedFilesFolder;
     /** Folder to move processed files to. */
     private final File processedFilesFolder;
-    private Schema preIngestFileSchema;
+    /** Digests of the files in the folder of processed files, for detecting duplicates. */
+    private final ColdFolderIndex processedFilesIndex;
+    private final Schema preIngestFileSchema;
+    /** Reads and validates files, and extracts the parts to ingest. */
+    private ProgramExtractor programExtractor;
     private final boolean overwrite;
+    /** Ledger to record the outcome of processing files in, or null. */
+    private IngestLedger ledger;
+    /** Steps done in DOMS for files not yet published, or null to do all steps on every attempt. */
+    private IngestJournal journal;
+    /** Executor for looking up objects referred to by programs, or null to look them up one after another. */
+    private ExecutorService lookupExecutor;
+    /** The number of files to publish at most in one call to DOMS, or zero to publish each file on its own. */
+    private int publishBatchSize = 0;
+    /** The longest time a file waits for its batch to be published, in milliseconds. */
+    private long publishDelayMillis;
+    /** Publishes files in batches, if batching is enabled and the engine is started. */
+    private PublishBatcher publishBatcher;
+    /** The number of datastreams to remember the content of when overwriting, or zero to write all. */
+    private int changeDetectionSize = 0;
+    /** How long to trust the remembered content of a datastream, in milliseconds. */
+    private long changeDetectionTimeToLiveMillis;
+    /** Tells which datastreams are unchanged, if change detection is enabled and the engine is started. */
+    private ChangeDetector changeDetector;
+    /** The number of times to try each call to DOMS at most. One means calls are never retried. */
+    private int retryAttempts = 1;
+    /** The longest time to wait before the first retry of a call to DOMS, in milliseconds. */
+    private long retryBaseDelayMillis;
+    /** The longest time to wait before any retry of a call to DOMS, in milliseconds. */
+    private long retryMaxDelayMillis;
+    /** Holds back work while DOMS is unhealthy, or null for none. */
+    private CircuitBreaker circuitBreaker;
+    /** Retries calls to DOMS, if retries or the circuit breaker are enabled and the engine is started. */
+    private RetryingDomsWSClient retryingClient;
+    /** Locks by old identifier, so the files of one program are ingested one at a time. */
+    private StripedLocks programLocks = new StripedLocks(DEFAULT_PROGRAM_LOCK_STRIPES);
+    /** Files waiting for a worker. Reporting one of these again does not queue it twice. */
+    private final Set<File> queuedFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+    /** The number of reports of files already waiting for a worker. */
+    private final AtomicLong coalescedFiles = new AtomicLong();
+    /** Files being processed by a worker. */
+    private final Set<File> inFlightFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
 
 
     /** Client for communicating with DOMS. */
-    private final DomsWSClient domsClient;
+    private DomsWSClient domsClient;
+    /** The cache of lookups in DOMS, or null if lookups are not cached. */
+    private CachingDomsWSClient lookupCache;
+    /** Latencies of the stages of processing files, and counts of files and errors. */
+    private final IngestMetrics metrics = new IngestMetrics(this);
 
 
 
@@ -84,29 +142,63 @@ public class RadioTVMetadataProcessor extends MultiThreadedProcessor implements
      */
     public RadioTVMetadataProcessor(DOMSLoginInfo domsLoginInfo, File failedFilesFolder, File processedFilesFolder,
                                     Schema preIngestFileSchema, boolean overwrite) {
-        super(5);
+        this(domsLoginInfo, failedFilesFolder, processedFilesFolder, preIngestFileSchema, overwrite,
+             DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Initialise the processor.
+     *
+     * @param domsLoginInfo Information used for contacting DOMS.
+     * @param failedFilesFolder Folder to move failed files to.
+     * @param processedFilesFolder Folder to move processed files to.
+     * @param preIngestFileSchema Schema for Raio/TV metadata to process.
+     * @param overwrite Whether existing programs may be overwritten.
+     * @param poolSize The number of files to process concurrently.
+     */
+    public RadioTVMetadataProcessor(DOMSLoginInfo domsLoginInfo, File failedFilesFolder, File processedFilesFolder,
+                                    Schema preIngestFileSchema, boolean overwrite, int poolSize) {
+        this(new DomsWSClientImpl(), failedFilesFolder, processedFilesFolder, preIngestFileSchema, overwrite,
+             poolSize);
+        this.domsClient.setCredentials(domsLoginInfo.getDomsWSAPIUrl(), domsLoginInfo.getLogin(),
+                domsLoginInfo.getPassword());
+
+    }
+
+    /**
+     * Initialise the processor with a given DOMS client.
+     *
+     * @param domsClient Client for communicating with DOMS, ready for use.
+     * @param failedFilesFolder Folder to move failed files to.
+     * @param processedFilesFolder Folder to move processed files to.
+     * @param preIngestFileSchema Schema for Raio/TV metadata to process.
+     * @param overwrite Whether existing programs may be overwritten.
+     * @param poolSize The number of files to process concurrently.
+     */
+    RadioTVMetadataProcessor(DomsWSClient domsClient, File failedFilesFolder, File processedFilesFolder,
+                             Schema preIngestFileSchema, boolean overwrite, int poolSize) {
+        super(poolSize);
         this.failedFilesFolder = failedFilesFolder;
         this.processedFilesFolder = processedFilesFolder;
+        this.processedFilesIndex = new ColdFolderIndex(processedFilesFolder);
         this.preIngestFileSchema = preIngestFileSchema;
+        this.programExtractor = new DomProgramExtractor(createFileParsers(preIngestFileSchema));
         this.overwrite = overwrite;
-        this.domsClient = new DomsWSClientImpl();
-        this.domsClient.setCredentials(domsLoginInfo.getDomsWSAPIUrl(), domsLoginInfo.getLogin(),
-                domsLoginInfo.getPassword());
-
+        this.domsClient = domsClient;
+        this.lookupExecutor = ProgramLookup.createExecutor(DEFAULT_LOOKUP_THREADS);
     }
 
-    private DocumentBuilder getFileParser(Schema preIngestFileSchema) {
+    /**
+     * Create a cache of parsers for Radio/TV metadata, which are namespace aware and fail on any problem found when
+     * validating against the given schema.
+     *
+     * @param preIngestFileSchema Schema for Raio/TV metadata to process. If null, files will not be validated.
+     * @return A cache of parsers for Radio/TV metadata.
+     */
+    static DocumentBuilderCache createFileParsers(Schema preIngestFileSchema) {
         DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
         documentBuilderFactory.setSchema(preIngestFileSchema);
         documentBuilderFactory.setNamespaceAware(true);
-        DocumentBuilder preingestFilesBuilder;
-        try {
-            preingestFilesBuilder = documentBuilderFactory.newDocumentBuilder();
-        } catch (ParserConfigurationException pce) {
-            pce.printStackTrace();
-            fatalException();
-            throw new RuntimeException();// will never be reached, but no matter
-        }
 
         ErrorHandler documentErrorHandler = new ErrorHandler() {
 
@@ -125,16 +217,292 @@ public class RadioTVMetadataProcessor extends MultiThreadedProcessor implements
                 throw exception;
             }
         };
-        preingestFilesBuilder.setErrorHandler(documentErrorHandler);
-        return preingestFilesBuilder;
+        return new DocumentBuilderCache(documentBuilderFactory, documentErrorHandler);
+    }
+
+    /**
+     * Choose how to extract the parts to ingest from files. By default, each file is parsed into a DOM and the parts
+     * are selected with XPath. With streaming extraction, the parts are picked up in a single pass over the file.
+     * Files are validated against the schema either way.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param streaming Whether to use streaming extraction.
+     */
+    public void setStreamingExtraction(boolean streaming) {
+        if (streaming) {
+            programExtractor = new StreamingProgramExtractor(preIngestFileSchema);
+        } else {
+            programExtractor = new DomProgramExtractor(createFileParsers(preIngestFileSchema));
+        }
+    }
+
+    /**
+     * Set how many lookups in DOMS may run concurrently, across all files being processed. The file objects and any
+     * existing program object for a program are looked up at once, before anything is written. With one lookup
+     * thread, they are looked up one after another in the worker processing the file.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param lookupThreads The number of concurrent lookups.
+     */
+    public void setLookupThreads(int lookupThreads) {
+        if (lookupThreads < 1) {
+            throw new IllegalArgumentException("Lookup threads must be positive, was " + lookupThreads);
+        }
+        if (lookupExecutor != null) {
+            lookupExecutor.shutdown();
+        }
+        lookupExecutor = lookupThreads == 1 ? null : ProgramLookup.createExecutor(lookupThreads);
+    }
+
+    /**
+     * Look up objects on the given executor, which may be shared with other processors to bound the number of
+     * concurrent lookups in DOMS across all of them. See {@link ProgramLookup#createExecutor(int)}.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param lookupExecutor The executor to look up objects on, or null to look them up one after another.
+     */
+    public void setLookupExecutor(ExecutorService lookupExecutor) {
+        if (this.lookupExecutor != null) {
+            this.lookupExecutor.shutdown();
+        }
+        this.lookupExecutor = lookupExecutor;
+    }
+
+    /**
+     * Lock programs with the given locks, which may be shared with other processors, so files of the same program
+     * are not ingested concurrently by any of them. See {@link StripedLocks}.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param programLocks The locks to take by the old identifiers of each program.
+     */
+    public void setProgramLocks(StripedLocks programLocks) {
+        this.programLocks = programLocks;
+    }
+
+    /**
+     * Record the outcome of processing every file in the given ledger, together with the digest of its content.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param ledger The ledger of files seen in the hot folder.
+     */
+    public void setLedger(IngestLedger ledger) {
+        this.ledger = ledger;
+    }
+
+    /**
+     * Record the steps done in DOMS for every file in the given journal, so a file failing, or left when stopping,
+     * resumes from the last step done when ingested again. With a journal, the objects of a failed file are kept
+     * unpublished, rather than deleted, for the next attempt to resume.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param journal The journal, which may be shared with other processors.
+     */
+    public void setJournal(IngestJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Cache the lookups of file objects by URL and of programs by old identifier, see {@link CachingDomsWSClient}.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param maxEntries The largest number of lookups of each kind to cache.
+     * @param timeToLiveMillis How long to cache lookups that found an object, in milliseconds.
+     * @param negativeTimeToLiveMillis How long to cache lookups that found nothing, in milliseconds.
+     */
+    public void setLookupCache(int maxEntries, long timeToLiveMillis, long negativeTimeToLiveMillis) {
+        setLookupCache(new CachingDomsWSClient(domsClient, maxEntries, timeToLiveMillis, negativeTimeToLiveMillis));
+    }
+
+    /**
+     * Cache the lookups in a cache that may be shared with other processors, as above. Processors writing to the same
+     * DOMS must share one cache, since creating or deleting a program only removes the lookups cached in the cache it
+     * was done through, and another cache would keep answering that the program does not exist.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param lookupCache The cache, wrapping the client given to this processor.
+     */
+    public void setLookupCache(CachingDomsWSClient lookupCache) {
+        this.lookupCache = lookupCache;
+        domsClient = lookupCache;
+    }
+
+    /**
+     * @return The cache of lookups, for its statistics, or null if lookups are not cached.
+     */
+    public CachingDomsWSClient getLookupCache() {
+        return lookupCache;
+    }
+
+    /**
+     * @return The latencies of the stages of processing files, and counts of files and errors.
+     */
+    public IngestMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Publish the objects of many files in one call to DOMS, see {@link PublishBatcher}. A file is only moved to the
+     * folder of processed files once its batch is published. If a batch fails, each file in it is published on its
+     * own, and only the files that still fail are handled as failed.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param maxBatchSize The number of files to publish at most in one call.
+     * @param maxDelayMillis The longest time a file waits for its batch to fill, in milliseconds.
+     */
+    public void setPublishBatching(int maxBatchSize, long maxDelayMillis) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive, was " + maxBatchSize);
+        }
+        this.publishBatchSize = maxBatchSize;
+        this.publishDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * When overwriting existing programs, only write the datastreams and label that differ from those in DOMS, see
+     * {@link ChangeDetector}. Has no effect unless overwriting.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param maxEntries The largest number of datastreams and labels to remember the content of.
+     * @param timeToLiveMillis How long to trust remembered content before fetching it from DOMS again, in
+     * milliseconds.
+     */
+    public void setChangeDetection(int maxEntries, long timeToLiveMillis) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Change detection size must be positive, was " + maxEntries);
+        }
+        this.changeDetectionSize = maxEntries;
+        this.changeDetectionTimeToLiveMillis = timeToLiveMillis;
+    }
+
+    /**
+     * Retry calls to DOMS failing with transient errors, with exponential backoff and jitter, see
+     * {@link RetryingDomsWSClient}.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param maxAttempts The number of times to try each call at most.
+     * @param baseDelayMillis The longest time to wait before the first retry, in milliseconds.
+     * @param maxDelayMillis The longest time to wait before any retry, in milliseconds.
+     */
+    public void setRetries(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Attempts must be positive, was " + maxAttempts);
+        }
+        this.retryAttempts = maxAttempts;
+        this.retryBaseDelayMillis = baseDelayMillis;
+        this.retryMaxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Pause while DOMS is unhealthy, see {@link CircuitBreaker}. When too many calls to DOMS have failed in a row,
+     * files are not started and calls to DOMS wait until a probe shows that DOMS has recovered, after which the ingest
+     * resumes by itself. Calls failing whatever happens still give up, see {@link RetryingDomsWSClient}, and their
+     * files count towards {@link Common#MAX_FAIL_COUNT} as usual.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param failureThreshold The number of consecutive failed calls to DOMS that pause the ingest.
+     * @param cooldownMillis How long to pause before probing DOMS, in milliseconds.
+     */
+    public void setCircuitBreaker(int failureThreshold, long cooldownMillis) {
+        setCircuitBreaker(new CircuitBreaker(failureThreshold, cooldownMillis));
+    }
+
+    /**
+     * Pause while DOMS is unhealthy, as above, with a breaker that may be shared with other processors, so they all
+     * pause and resume together.
+     *
+     * Must be called before the engine is started.
+     *
+     * @param circuitBreaker The breaker.
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    @Override
+    public void startEngine() {
+        // Fetching content only to compare it is not worth retrying, nor waiting for the breaker.
+        DomsWSClient undecoratedClient = retryingClient != null ? retryingClient.delegate : domsClient;
+        if ((retryAttempts > 1 || circuitBreaker != null) && retryingClient == null) {
+            retryingClient = new RetryingDomsWSClient(domsClient, retryAttempts, retryBaseDelayMillis,
+                                                      retryMaxDelayMillis, circuitBreaker);
+            domsClient = retryingClient;
+        }
+        if (!(domsClient instanceof MeteredDomsWSClient)) {
+            // Outermost, so lookups answered by the cache are timed too.
+            domsClient = new MeteredDomsWSClient(domsClient, metrics);
+        }
+        if (publishBatchSize > 0 && publishBatcher == null) {
+            publishBatcher = new PublishBatcher(domsClient, publishBatchSize, publishDelayMillis);
+        }
+        if (overwrite && changeDetectionSize > 0 && changeDetector == null) {
+            changeDetector = new ChangeDetector(undecoratedClient, changeDetectionSize, changeDetectionTimeToLiveMillis);
+        }
+        super.startEngine();
+    }
+
+    @Override
+    public void waitForThreads() {
+        super.waitForThreads();
+        if (!isContinuous()) {
+            flushPublications();
+        }
+    }
+
+    /**
+     * Publish the files waiting in the current batch, if batching.
+     */
+    private void flushPublications() {
+        if (publishBatcher != null) {
+            publishBatcher.flush();
+        }
+    }
+
+    @Override
+    protected void engineStopped(boolean processedAll) {
+        flushPublications();
+        if (!processedAll) {
+            // Left in the hot folder, and pending in the ledger, so they are processed after a restart.
+            System.out.println("Stopped before processing " + queuedFiles.size() + " files: " + queuedFiles);
+            System.out.println("Stopped while still processing " + inFlightFiles.size() + " files: "
+                               + inFlightFiles);
+        }
+        System.out.println(metrics.getReport());
+        metrics.stop();
+        if (lookupCache != null) {
+            System.out.println(lookupCache);
+        }
+        if (changeDetector != null) {
+            System.out.println(changeDetector);
+        }
+        if (retryingClient != null) {
+            System.out.println(retryingClient);
+        }
+        System.out.println("Files reported again while waiting for a worker: " + coalescedFiles.get());
     }
 
     /**
      * Will parse the metadata and add relevant objects to DOMS.
+     * The file is only queued here, all work on it is done by the pool, or, when staged, it is parsed by the first
+     * stage and written by the pool, see {@link #setFirstStage(int, int)}. If the file is already waiting for a worker,
+     * it is not queued again, since the worker reads the file as it is by then.
+     * Files of the same program, found by their old identifiers, are ingested one at a time, and unrelated programs
+     * in parallel.
      * @param addedFile Full path to the new file.
      */
     @Override
-    public synchronized void fileAdded(final File addedFile) {
+    public void fileAdded(final File addedFile) {
         handleAddedOrModifiedFile(addedFile);
     }
 
@@ -148,37 +516,349 @@ public class RadioTVMetadataProcessor extends MultiThreadedProcessor implements
     }
 
     private void handleAddedOrModifiedFile(final File addedFile) {
+        if (!queuedFiles.add(addedFile)) {
+            coalescedFiles.incrementAndGet();
+            return;
+        }
+        final long submitted = System.nanoTime();
+        Runnable handler;
+        if (isStaged()) {
+            handler = new Runnable() {
+                @Override
+                public void run() {
+                    // Changes to the file from now on may be missed by this worker, so they are queued again.
+                    queuedFiles.remove(addedFile);
+                    inFlightFiles.add(addedFile);
+                    boolean handedOn = false;
+                    try {
+                        metrics.record(IngestMetrics.QUEUE_WAIT, submitted);
+                        ParsedFile parsedFile = parse(addedFile);
+                        if (parsedFile != null) {
+                            prefetchLookups(parsedFile.programMetadata);
+                            handedOn = handOn(parsedFile);
+                        }
+                    } finally {
+                        if (!handedOn) {
+                            inFlightFiles.remove(addedFile);
+                        }
+                    }
+                }
+            };
+        } else {
+            handler = new Runnable() {
+                @Override
+                public void run() {
+                    // Changes to the file from now on may be missed by this worker, so they are queued again.
+                    queuedFiles.remove(addedFile);
+                    inFlightFiles.add(addedFile);
+                    try {
+                        process(addedFile, submitted);
+                    } finally {
+                        inFlightFiles.remove(addedFile);
+                    }
+                }
+            };
+        }
         try {
-            File possibleCopy = new File(processedFilesFolder, addedFile.getName());
-            if (possibleCopy.exists()) {
-                byte[] content = FileUtils.readFileToByteArray(addedFile);
-                byte[] copyContent = FileUtils.readFileToByteArray(possibleCopy);
-                if (Arrays.equals(content, copyContent)) {
-                    addedFile.delete();
-                    return;
+            if (isStaged()) {
+                submitFirstStage(handler);
+            } else {
+                submit(handler);
+            }
+        } catch (RejectedExecutionException e) {
+            queuedFiles.remove(addedFile);
+            if (!isStopping()) {
+                throw e;
+            }
+            // Left in the hot folder for after a restart.
+            System.out.println("Stopping, so not processing " + addedFile);
+        } catch (RuntimeException e) {
+            queuedFiles.remove(addedFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Process a file on a worker: parse it, add its objects to DOMS, and move it to the folder of processed or failed
+     * files.
+     *
+     * @param addedFile The file.
+     * @param submitted When the file was queued, from {@link System#nanoTime()}.
+     */
+    private void process(File addedFile, long submitted) {
+        if (!awaitHealthyDoms()) {
+            return;
+        }
+        metrics.record(IngestMetrics.QUEUE_WAIT, submitted);
+        ParsedFile parsedFile = parse(addedFile);
+        if (parsedFile != null) {
+            write(parsedFile);
+        }
+    }
+
+    /**
+     * Hand a parsed file on to the second stage, which writes it, when staged.
+     *
+     * @param parsedFile The file.
+     * @return False if the file was not handed on, since stopping.
+     */
+    private boolean handOn(final ParsedFile parsedFile) {
+        final long parsed = System.nanoTime();
+        try {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        metrics.record(IngestMetrics.WRITE_QUEUE_WAIT, parsed);
+                        if (awaitHealthyDoms()) {
+                            write(parsedFile);
+                        }
+                    } finally {
+                        inFlightFiles.remove(parsedFile.file);
+                    }
                 }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (!isStopping()) {
+                throw e;
             }
+            // Left in the hot folder for after a restart.
+            System.out.println("Stopping, so not writing " + parsedFile.file);
+            return false;
+        }
+    }
+
+    /**
+     * Start looking up the file objects of a parsed program, so the second stage finds them in the lookup cache. Only
+     * done with both a cache and a lookup executor.
+     *
+     * @param programMetadata The program.
+     */
+    private void prefetchLookups(ProgramMetadata programMetadata) {
+        if (lookupCache != null && lookupExecutor != null) {
+            new ProgramLookup(domsClient, lookupExecutor).prefetchFiles(programMetadata.getFileUrls());
+        }
+    }
+
+    /**
+     * Check whether a file is a duplicate, and parse it. A duplicate is deleted, and a file failing to parse is moved
+     * to the folder of failed files.
+     *
+     * @param addedFile The file.
+     * @return The parsed file, or null if it is a duplicate or failed.
+     */
+    private ParsedFile parse(File addedFile) {
+        long started = System.nanoTime();
+        // Only digest the file if there is a ledger or a journal, or it may be a duplicate.
+        boolean possibleDuplicate = new File(processedFilesFolder, addedFile.getName()).exists();
+        byte[] digest = ledger != null || journal != null || possibleDuplicate ? digest(addedFile) : null;
+        boolean duplicate = possibleDuplicate && isAlreadyProcessed(addedFile, digest);
+        metrics.record(IngestMetrics.DUPLICATE_CHECK, started);
+        if (duplicate) {
+            addedFile.delete();
+            recordOutcome(addedFile, IngestLedger.Outcome.DUPLICATE, digest);
+            return null;
+        }
+        long startTime = System.currentTimeMillis();
+        //This method acts as fault barrier
+        try {
+            long parseStarted = System.nanoTime();
+            ProgramMetadata programMetadata = programExtractor.extract(addedFile);
+            metrics.record(IngestMetrics.PARSE, parseStarted);
+            return new ParsedFile(addedFile, digest, programMetadata, started, startTime);
+        } catch (Exception e) {
+            fileDone(System.currentTimeMillis() - startTime, false);
+            handleFailure(addedFile, new ArrayList<String>(), digest, e);
+        }
+        metrics.record(IngestMetrics.FILE, started);
+        return null;
+    }
+
+    /**
+     * Add the objects of a parsed file to DOMS, and move it to the folder of processed or failed files.
+     *
+     * @param parsedFile The file.
+     */
+    private void write(ParsedFile parsedFile) {
+        File addedFile = parsedFile.file;
+        ProgramMetadata programMetadata = parsedFile.programMetadata;
+        byte[] digest = parsedFile.digest;
+        long startTime = parsedFile.startTime;
+        List<String> pidsInProgress = new ArrayList<String>();
+        StripedLocks.Held programLock = null;
+        //This method acts as fault barrier
+        try {
+            long lockStarted = System.nanoTime();
+            programLock = lockProgram(programMetadata);
+            metrics.record(IngestMetrics.PROGRAM_LOCK, lockStarted);
+            IngestJournal.Checkpoints checkpoints = journal == null || digest == null ? null
+                                                    : journal.checkpoints(addedFile, digest);
+            File allWrittenPIDs = createRecord(programMetadata, addedFile, pidsInProgress, checkpoints);
+            if (publishBatcher != null) {
+                // The rest is done once the batch is published, and the program is locked until then.
+                publishBatcher.add(new FilePublication(addedFile, pidsInProgress, allWrittenPIDs, digest,
+                                                       programLock));
+                programLock = null;
+                fileDone(System.currentTimeMillis() - startTime, true);
+                metrics.record(IngestMetrics.FILE, parsedFile.started);
+                return;
+            }
+            // Publish the objects created in the process
+            domsClient.publishObjects(Common.COMMENT,
+                                      pidsInProgress.toArray(new String[pidsInProgress.size()]));
+            completed(addedFile, allWrittenPIDs, digest);
+            fileDone(System.currentTimeMillis() - startTime, true);
+        } catch (Exception e) {
+            fileDone(System.currentTimeMillis() - startTime, false);
+            handleFailure(addedFile, pidsInProgress, digest, e);
+        } finally {
+            if (programLock != null) {
+                programLock.release();
+            }
+        }
+        metrics.record(IngestMetrics.FILE, parsedFile.started);
+    }
+
+    /**
+     * Take the locks of the old identifiers of a program, waiting for other files of the program to be done. When
+     * batching, another file may hold the locks until its batch is published, so the batch is flushed while waiting.
+     *
+     * @param programMetadata The program.
+     * @return The locks held.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private StripedLocks.Held lockProgram(ProgramMetadata programMetadata) throws InterruptedException {
+        if (publishBatcher == null) {
+            return programLocks.lock(programMetadata.getOldIdentifiers());
+        }
+        while (true) {
+            StripedLocks.Held programLock = programLocks.tryLock(
+                    programMetadata.getOldIdentifiers(), PROGRAM_LOCK_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+            if (programLock != null) {
+                return programLock;
+            }
+            publishBatcher.flush();
+        }
+    }
+
+    /**
+     * Hold back a file while the circuit breaker, if any, is open.
+     *
+     * @return False if interrupted while waiting, and the file should be left for later.
+     */
+    private boolean awaitHealthyDoms() {
+        if (circuitBreaker == null) {
+            return true;
+        }
+        try {
+            circuitBreaker.awaitCooldown();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Finish a file whose objects have been published: move it to the folder of processed files and delete its
+     * "in progress" PID file.
+     *
+     * @param addedFile The file processed.
+     * @param allWrittenPIDs The file with the PIDs in progress.
+     * @param digest The digest of the content of the file, or null.
+     */
+    private void completed(File addedFile, File allWrittenPIDs, byte[] digest) {
+        if (journal != null && digest != null) {
+            journal.checkpoints(addedFile, digest).published();
+        }
+        // The ingest was successful, if we make it here...
+        // Move the processed file to the finished files folder.
+        long moveStarted = System.nanoTime();
+        moveFile(addedFile, processedFilesFolder);
+        metrics.record(IngestMetrics.MOVE, moveStarted);
+        if (digest != null) {
+            processedFilesIndex.added(addedFile.getName(), digest);
+        }
+
+        // And it is now safe to delete the "in progress" PID file.
+        allWrittenPIDs.delete();
+        recordOutcome(addedFile, IngestLedger.Outcome.INGESTED, digest);
+        metrics.fileDone(true);
+    }
+
+    /**
+     * Handle a file that could not be processed: move it to the folder of failed files, and delete the objects
+     * written for it.
+     *
+     * @param addedFile The file processed.
+     * @param pidsInProgress The PIDs of the objects written for the file.
+     * @param digest The digest of the content of the file, or null.
+     * @param e What went wrong.
+     */
+    private void handleFailure(File addedFile, List<String> pidsInProgress, byte[] digest, Exception e) {
+        recordOutcome(addedFile, IngestLedger.Outcome.FAILED, digest);
+        metrics.fileDone(false);
+        // Handle anything unanticipated. With a journal, the objects are kept for the next attempt to resume.
+        boolean resumable = journal != null && digest != null;
+        failed(addedFile, resumable ? Collections.<String>emptyList() : pidsInProgress);
+        e.printStackTrace();
+        incrementFailedTries();
+    }
+
+    /**
+     * Compute the digest of the content of a file.
+     *
+     * @param file The file.
+     * @return The MD5 digest of the file, or null if the file could not be read.
+     */
+    private byte[] digest(File file) {
+        try {
+            return FileDigests.md5(file);
         } catch (IOException e) {
             //If we fail here, just print the stack trace and carry on as if nothing happened.
             e.printStackTrace();
+            return null;
         }
-        Runnable handler = new Runnable() {
-            @Override
-            public void run() {
-                List<String> pidsInProgress = new ArrayList<String>();
-                //This method acts as fault barrier
-                try {
-                    Document radioTVMetadata = getFileParser(preIngestFileSchema).parse(addedFile);
-                    createRecord(radioTVMetadata, addedFile, pidsInProgress);
-                } catch (Exception e) {
-                    // Handle anything unanticipated.
-                    failed(addedFile, pidsInProgress);
-                    e.printStackTrace();
-                    incrementFailedTries();
-                }
-            }
-        };
-        pool.submit(handler);
+    }
+
+    /**
+     * Record the outcome of processing a file in the ledger, if any.
+     *
+     * @param file The file processed.
+     * @param outcome The outcome.
+     * @param digest The digest of the content of the file, or null.
+     */
+    private void recordOutcome(File file, IngestLedger.Outcome outcome, byte[] digest) {
+        if (ledger == null) {
+            return;
+        }
+        try {
+            ledger.recordOutcome(file, outcome, digest);
+        } catch (IOException e) {
+            //If we fail here, just print the stack trace and carry on as if nothing happened.
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Check whether an identical copy of the file is already in the folder of processed files.
+     *
+     * @param addedFile The file to check.
+     * @param digest The digest of the file, or null if it could not be read.
+     * @return True if the file has already been processed.
+     */
+    private boolean isAlreadyProcessed(File addedFile, byte[] digest) {
+        if (digest == null) {
+            return false;
+        }
+        try {
+            return processedFilesIndex.contains(addedFile.getName(), digest);
+        } catch (IOException e) {
+            //If we fail here, just print the stack trace and carry on as if nothing happened.
+            e.printStackTrace();
+        }
+        return false;
     }
 
     @Override
@@ -189,14 +869,15 @@ public class RadioTVMetadataProcessor extends MultiThreadedProcessor implements
 
 
     /**
-     * Create objects in DOMS for given program metadata. On success, the originating file will be moved to the folder
-     * for processed files. On failure, a file in the folder of failed files will contain the pids that were not
-     * published.
+     * Create objects in DOMS for given program metadata. The objects are not published. A file in the folder of
+     * failed files will contain the pids of the objects, until they are published.
      *
-     * @param radioTVMetadata The Metadata for the program.
+     * @param programMetadata The Metadata for the program.
      * @param addedFile The file containing the program metadata
      * @param pidsInProgress Initially empty list of pids to update with pids collected during process, to be published
      * or reported as failed in the end.
+     * @param checkpoints The steps done for the file by earlier attempts, or null to do all steps.
+     * @return The file with the pids in progress, to delete once they are published.
      *
      * @throws IOException On io trouble communicating.
      * @throws ServerOperationFailed On trouble updating DOMS.
@@ -204,23 +885,14 @@ public class RadioTVMetadataProcessor extends MultiThreadedProcessor implements
      * @throws XPathExpressionException Should never happen. Means program is broken with wrong XPath exception.
      * @throws XMLParseException On trouble parsing XML.
      */
-    private void createRecord(Document radioTVMetadata, File addedFile, List<String> pidsInProgress)
+    private File createRecord(ProgramMetadata programMetadata, File addedFile, List<String> pidsInProgress,
+                              IngestJournal.Checkpoints checkpoints)
             throws IOException, ServerOperationFailed, URISyntaxException, XPathExpressionException, XMLParseException, JAXBException, ParseException, ParserConfigurationException, NoObjectFound {
         // Create or update program object for this program
-        String programPID = new RecordCreator(domsClient, overwrite).ingestProgram(radioTVMetadata);
+        String programPID = new RecordCreator(domsClient, overwrite, lookupExecutor, changeDetector)
+                .ingestProgram(programMetadata, checkpoints);
         pidsInProgress.add(programPID);
-        File allWrittenPIDs = writePIDs(failedFilesFolder, addedFile, pidsInProgress);
-
-        // Publish the objects created in the process
-        domsClient.publishObjects(Common.COMMENT, pidsInProgress.toArray(new String[pidsInProgress.size()]));
-
-        // The ingest was successful, if we make it here...
-        // Move the processed file to the finished files folder.
-        moveFile(addedFile, processedFilesFolder);
-
-        // And it is now safe to delete the "in progress" PID file.
-        allWrittenPIDs.delete();
-
+        return writePIDs(failedFilesFolder, addedFile, pidsInProgress);
     }
 
     /**
@@ -323,4 +995,68 @@ public class RadioTVMetadataProcessor extends MultiThreadedProcessor implements
             fatalException();
         }
     }
+
+    /**
+     * A file parsed, ready to be written.
+     */
+    private static final class ParsedFile {
+        private final File file;
+        private final byte[] digest;
+        private final ProgramMetadata programMetadata;
+        /** When work on the file started, from {@link System#nanoTime()}. */
+        private final long started;
+        /** When work on the file started, from {@link System#currentTimeMillis()}. */
+        private final long startTime;
+
+        ParsedFile(File file, byte[] digest, ProgramMetadata programMetadata, long started, long startTime) {
+            this.file = file;
+            this.digest = digest;
+            this.programMetadata = programMetadata;
+            this.started = started;
+            this.startTime = startTime;
+        }
+    }
+
+    /**
+     * The objects of a file, waiting in a batch to be published.
+     */
+    private class FilePublication implements PublishBatcher.Publication {
+        private final File addedFile;
+        private final List<String> pids;
+        private final File allWrittenPIDs;
+        private final byte[] digest;
+        private final StripedLocks.Held programLock;
+
+        FilePublication(File addedFile, List<String> pids, File allWrittenPIDs, byte[] digest,
+                        StripedLocks.Held programLock) {
+            this.addedFile = addedFile;
+            this.pids = pids;
+            this.allWrittenPIDs = allWrittenPIDs;
+            this.digest = digest;
+            this.programLock = programLock;
+        }
+
+        @Override
+        public List<String> getPids() {
+            return pids;
+        }
+
+        @Override
+        public void published() {
+            try {
+                completed(addedFile, allWrittenPIDs, digest);
+            } finally {
+                programLock.release();
+            }
+        }
+
+        @Override
+        public void failed(Exception e) {
+            try {
+                handleFailure(addedFile, pids, digest, e);
+            } finally {
+                programLock.release();
+            }
+        }
+    }
 }
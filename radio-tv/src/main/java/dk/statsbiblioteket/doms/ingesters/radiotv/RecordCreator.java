@@ -6,23 +6,20 @@ import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
 import dk.statsbiblioteket.doms.client.exceptions.XMLParseException;
 import dk.statsbiblioteket.doms.client.relations.LiteralRelation;
 import dk.statsbiblioteket.doms.client.relations.Relation;
+import dk.statsbiblioteket.doms.client.utils.Constants;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPathExpressionException;
 import java.net.MalformedURLException;
-import java.net.URL;
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Matcher;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Code to create programs.
@@ -30,13 +27,47 @@ import java.util.regex.Matcher;
 public class RecordCreator {
     private DomsWSClient domsClient;
     private boolean overwrite;
-    private DocumentBuilder documentBuilder;
+    private ProgramLookup programLookup;
+    private ChangeDetector changeDetector;
 
-    public RecordCreator(DomsWSClient domsClient, boolean overwrite) throws ParserConfigurationException {
+    /**
+     * Initialise the record creator. Objects referred to by programs are looked up one after another.
+     *
+     * @param domsClient Client for communicating with DOMS.
+     * @param overwrite Whether existing programs may be overwritten.
+     */
+    public RecordCreator(DomsWSClient domsClient, boolean overwrite) {
+        this(domsClient, overwrite, null);
+    }
+
+    /**
+     * Initialise the record creator.
+     *
+     * @param domsClient Client for communicating with DOMS.
+     * @param overwrite Whether existing programs may be overwritten.
+     * @param lookupExecutor Executor to look up objects referred to by programs on, concurrently. If null, they are
+     * looked up one after another. See {@link ProgramLookup#createExecutor(int)}.
+     */
+    public RecordCreator(DomsWSClient domsClient, boolean overwrite, ExecutorService lookupExecutor) {
+        this(domsClient, overwrite, lookupExecutor, null);
+    }
+
+    /**
+     * Initialise the record creator.
+     *
+     * @param domsClient Client for communicating with DOMS.
+     * @param overwrite Whether existing programs may be overwritten.
+     * @param lookupExecutor Executor to look up objects referred to by programs on, concurrently. If null, they are
+     * looked up one after another. See {@link ProgramLookup#createExecutor(int)}.
+     * @param changeDetector Tells which datastreams of an existing program are unchanged, and need not be written.
+     * If null, all datastreams are written.
+     */
+    public RecordCreator(DomsWSClient domsClient, boolean overwrite, ExecutorService lookupExecutor,
+                         ChangeDetector changeDetector) {
         this.domsClient = domsClient;
         this.overwrite = overwrite;
-        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        documentBuilder = documentBuilderFactory.newDocumentBuilder();
+        this.programLookup = new ProgramLookup(domsClient, lookupExecutor);
+        this.changeDetector = changeDetector;
     }
 
     /**
@@ -53,53 +84,129 @@ public class RecordCreator {
      * @throws XPathExpressionException Should never happen. Means program is broken with faulty XPath.
      * @throws MalformedURLException if a file element contains an invalid URL.
      * @throws NoObjectFound         if a URL is referenced, which is not found in DOMS.
+     * @throws ParserConfigurationException Should never happen. Means no XML parser is available.
      */
     public String ingestProgram(Document radioTVMetadata)
+            throws ServerOperationFailed, XMLParseException, MalformedURLException, NoObjectFound,
+            XPathExpressionException, OverwriteException, ParserConfigurationException {
+        return ingestProgram(DomProgramExtractor.extract(radioTVMetadata));
+    }
+
+    /**
+     * Ingests or updates a program object
+     *
+     * @param programMetadata The parts of the program metadata to ingest.
+     * @return PID of the newly created program object, created by the DOMS.
+     *
+     * @throws ServerOperationFailed    if creation or manipulation of the program object fails.
+     * @throws XMLParseException        if any errors were encountered while processing the
+     *                                  <code>radioTVMetadata</code> XML document.
+     * @throws XPathExpressionException Should never happen. Means program is broken with faulty XPath.
+     * @throws MalformedURLException if a file element contains an invalid URL.
+     * @throws NoObjectFound         if a URL is referenced, which is not found in DOMS.
+     */
+    public String ingestProgram(ProgramMetadata programMetadata)
             throws ServerOperationFailed, XMLParseException, MalformedURLException, NoObjectFound,
             XPathExpressionException, OverwriteException {
-        // Get pids of referenced files - do this first, to ensure fail-early in case of missing files.
-        List<String> filePIDs = getFilePids(radioTVMetadata);
+        return ingestProgram(programMetadata, null);
+    }
+
+    /**
+     * Ingests or updates a program object, resuming an earlier attempt if the checkpoints tell of one. Every step
+     * done is recorded in the checkpoints, and steps done already are skipped, as long as the program object of the
+     * earlier attempt still is the program object of the program.
+     *
+     * @param programMetadata The parts of the program metadata to ingest.
+     * @param checkpoints The steps done for the file of the program, or null to do all steps.
+     * @return PID of the program object.
+     *
+     * @throws ServerOperationFailed    if creation or manipulation of the program object fails.
+     * @throws XMLParseException        if any errors were encountered while processing the
+     *                                  <code>radioTVMetadata</code> XML document.
+     * @throws XPathExpressionException Should never happen. Means program is broken with faulty XPath.
+     * @throws MalformedURLException if a file element contains an invalid URL.
+     * @throws NoObjectFound         if a URL is referenced, which is not found in DOMS.
+     */
+    public String ingestProgram(ProgramMetadata programMetadata, IngestJournal.Checkpoints checkpoints)
+            throws ServerOperationFailed, XMLParseException, MalformedURLException, NoObjectFound,
+            XPathExpressionException, OverwriteException {
+        // Get pids of referenced files and any existing program - do this first, to ensure fail-early in case of
+        // missing files.
+        List<String> oldIdentifiers = programMetadata.getOldIdentifiers();
+        ProgramLookup.Result lookupResult = programLookup.lookup(programMetadata.getFileUrls(), oldIdentifiers);
+        List<String> filePIDs = lookupResult.getFilePids();
 
         // Find or create program object.
-        List<String> oldIdentifiers = getOldIdentifiers(radioTVMetadata);
-        String existingPid = alreadyExistsInRepo(oldIdentifiers);
-        String programObjectPID;
-        if (existingPid == null) {//not Exist
+        String existingPid = lookupResult.getExistingProgramPid();
+        String journaledPid = checkpoints == null ? null : checkpoints.getPid();
+        Constants.FedoraState journaledState = journaledState(journaledPid, existingPid);
+        String programObjectPID = null;
+        if (journaledState == Constants.FedoraState.Inactive) {
+            programObjectPID = journaledPid;
+        } else if (journaledState == Constants.FedoraState.Active && existingPid == null) {
+            // Published by another file since, but not found by its old identifiers yet. Overwrite it like any other.
+            existingPid = journaledPid;
+        }
+        if (programObjectPID != null) {
+            // Created, or taken over, by an earlier attempt.
+        } else if (existingPid == null) {//not Exist
             // Create a program object in the DOMS and update the PBCore metadata
             // datastream with the PBCore metadata from the pre-ingest file.
             programObjectPID = domsClient.createObjectFromTemplate(Common.PROGRAM_TEMPLATE_PID, oldIdentifiers, Common.COMMENT);
+            done(checkpoints, IngestJournal.Step.OBJECT, programObjectPID);
         } else { //Exists
             if (overwrite){
                 domsClient.unpublishObjects(Common.COMMENT, existingPid);
                 addOldPids(existingPid, oldIdentifiers);
                 programObjectPID = existingPid;
+                done(checkpoints, IngestJournal.Step.OBJECT, programObjectPID);
             } else {
                 throw new OverwriteException("Attempted to overwrite pid='"+existingPid+"");
             }
         }
 
-        // Get the program title from the PBCore metadata and use that as the
-        // object label for this program object.
-        Node titleNode = Common.XPATH_SELECTOR.selectNode(radioTVMetadata, Common.PBCORE_TITLE_ELEMENT);
-        String programTitle = titleNode.getTextContent();
-        domsClient.setObjectLabel(programObjectPID, programTitle, Common.COMMENT);
+        // Only existing programs can have unchanged content.
+        boolean existing = existingPid != null;
+
+        // Use the program title as the object label for this program object.
+        if (!isDone(checkpoints, IngestJournal.Step.LABEL, null)) {
+            setObjectLabel(programObjectPID, programMetadata.getTitle(), existing);
+            done(checkpoints, IngestJournal.Step.LABEL, null);
+        }
 
         // Add PBCore datastream
-        Document pbCoreDataStreamDocument = createDocumentFromNode(radioTVMetadata, Common.PBCORE_DESCRIPTION_ELEMENT);
-        domsClient.updateDataStream(programObjectPID, Common.PROGRAM_PBCORE_DS_ID, pbCoreDataStreamDocument, Common.COMMENT);
+        updateDataStream(programObjectPID, Common.PROGRAM_PBCORE_DS_ID, programMetadata.getPbCore(), existing,
+                         checkpoints);
 
         // Add Ritzau datastream
-        Document ritzauOriginalDocument = createDocumentFromNode(radioTVMetadata, Common.RITZAU_ORIGINALS_ELEMENT);
-        domsClient.updateDataStream(programObjectPID, Common.RITZAU_ORIGINAL_DS_ID, ritzauOriginalDocument, Common.COMMENT);
+        updateDataStream(programObjectPID, Common.RITZAU_ORIGINAL_DS_ID, programMetadata.getRitzauOriginal(),
+                         existing, checkpoints);
 
         // Add the Gallup datastream
-        Document gallupOriginalDocument = createDocumentFromNode(radioTVMetadata, Common.GALLUP_ORIGINALS_ELEMENT);
-        domsClient.updateDataStream(programObjectPID, Common.GALLUP_ORIGINAL_DS_ID, gallupOriginalDocument, Common.COMMENT);
+        updateDataStream(programObjectPID, Common.GALLUP_ORIGINAL_DS_ID, programMetadata.getGallupOriginal(),
+                         existing, checkpoints);
 
         // Add the program broadcast datastream
-        Document programBroadcastDocument = createDocumentFromNode(radioTVMetadata, Common.PROGRAM_BROADCAST_ELEMENT);
-        domsClient.updateDataStream(programObjectPID, Common.PROGRAM_BROADCAST_DS_ID, programBroadcastDocument, Common.COMMENT);
+        updateDataStream(programObjectPID, Common.PROGRAM_BROADCAST_DS_ID, programMetadata.getProgramBroadcast(),
+                         existing, checkpoints);
 
+        if (!isDone(checkpoints, IngestJournal.Step.RELATIONS, null)) {
+            updateRelations(programObjectPID, filePIDs);
+            done(checkpoints, IngestJournal.Step.RELATIONS, null);
+        }
+        return programObjectPID;
+    }
+
+    /**
+     * Update the relations of a program object to its files.
+     *
+     * @param programObjectPID The PID of the program object.
+     * @param filePIDs The PIDs of the files of the program.
+     * @throws ServerOperationFailed if listing or updating the relations fails.
+     * @throws XMLParseException if a relation could not be added.
+     */
+    private void updateRelations(String programObjectPID, List<String> filePIDs)
+            throws ServerOperationFailed, XMLParseException {
         // Update file relations
         List<Relation> relations = domsClient.listObjectRelations(programObjectPID, Common.HAS_FILE_RELATION_TYPE);
         HashSet<String> existingRels = new HashSet<String>();
@@ -116,117 +223,108 @@ public class RecordCreator {
 
             }
         }
-        return programObjectPID;
     }
 
-    private void addOldPids(String existingPid, List<String> oldIdentifiers) throws ServerOperationFailed {
-        Document dcDataStream = domsClient.getDataStream(existingPid, Common.DC_DS_ID);
-        NodeList existingIDNodes = Common.XPATH_SELECTOR.selectNodeList(dcDataStream, Common.DC_IDENTIFIER_ELEMENT);
-        Set<String> idsToAdd = new HashSet<String>(oldIdentifiers);
-        for (int i = 0; i < existingIDNodes.getLength(); i++) {
-            idsToAdd.remove(existingIDNodes.item(i).getTextContent());
-        }
-        if (idsToAdd.isEmpty()) {
-            return;
+    /**
+     * Find the state of the program object of an earlier attempt. Only an object still unpublished is resumed. If it
+     * has been published since, another file of the program may have written it, so the steps journaled for it can no
+     * longer be trusted. It is not resumed either if another program object has the old identifiers of the program by
+     * now, or it has been deleted.
+     *
+     * @param journaledPid The PID of the program object of an earlier attempt, or null.
+     * @param existingPid The PID of the program object found by its old identifiers, or null.
+     * @return The state of the object of the earlier attempt, or null if there is none, it is not the program object
+     * any more, or its state is unknown.
+     */
+    private Constants.FedoraState journaledState(String journaledPid, String existingPid) {
+        if (journaledPid == null || existingPid != null && !journaledPid.equals(existingPid)) {
+            return null;
         }
-        Node identifier = Common.XPATH_SELECTOR.selectNode(dcDataStream, Common.DC_IDENTIFIER_ELEMENT);
-        for (String id : idsToAdd) {
-            Element newIdentifier = dcDataStream.createElementNS(Common.DC_NAMESPACE, "identifier");
-            dcDataStream.setTextContent(id);
-            identifier.getParentNode().insertBefore(newIdentifier, identifier);
+        // A new object may not be found by its old identifiers yet, so ask for it directly.
+        try {
+            Constants.FedoraState state = domsClient.getState(journaledPid);
+            if (state == Constants.FedoraState.Active) {
+                System.out.println("Not resuming " + journaledPid + ", since it has been published since");
+            }
+            return state;
+        } catch (ServerOperationFailed e) {
+            System.out.println("Not resuming " + journaledPid + ", since its state is unknown: " + e.getMessage());
+            return null;
         }
-        domsClient.updateDataStream(existingPid, Common.DC_DS_ID, dcDataStream, Common.COMMENT);
     }
 
-    /**
-     * Utility method to create a document to ingest from a node.
-     *
-     * @param radioTVMetadata Bibliographical metadata about the program.
-     * @param xpath           XPath expression to select and ingest in node.
-     * @return A document containing the metadata form the node selected by xpath.
-     */
-    private Document createDocumentFromNode(Document radioTVMetadata, String xpath) {
-        final Node nodeToIngest = Common.XPATH_SELECTOR.selectNode(radioTVMetadata, xpath);
+    private static boolean isDone(IngestJournal.Checkpoints checkpoints, IngestJournal.Step step, String detail) {
+        return checkpoints != null && checkpoints.isDone(step, detail);
+    }
 
-        // Build a data document for the data stream in the program object.
-        final Document document = documentBuilder.newDocument();
-        document.appendChild(document.importNode(nodeToIngest, true));
-        return document;
+    private static void done(IngestJournal.Checkpoints checkpoints, IngestJournal.Step step, String detail) {
+        if (checkpoints != null) {
+            checkpoints.done(step, detail);
+        }
     }
 
     /**
-     * Lookup a program in DOMS.
-     * If program exists, returns the PID of the program. Otherwise returns null.
-     *
-     * @return PID of program, if found. Null otherwise
+     * Set the label of an object, unless it is known to have it already.
      *
-     * @throws ServerOperationFailed Could not communicate with DOMS.
-     * @param oldIdentifiers List of old identifiers to look up.
+     * @param pid The PID of the object.
+     * @param label The label.
+     * @param existing Whether the object existed before this ingest. A new object is always written.
+     * @throws ServerOperationFailed if setting the label fails.
      */
-    private String alreadyExistsInRepo(List<String> oldIdentifiers)
-            throws XPathExpressionException, ServerOperationFailed {
-        for (String oldId : oldIdentifiers) {
-            try {
-                //TODO Remove this when fixed in doms central RI query
-                oldId = oldId.replaceAll("'", Matcher.quoteReplacement("\\'"));
-                List<String> pids = domsClient.getPidFromOldIdentifier(oldId);
-                if (!pids.isEmpty() && !pids.get(0).isEmpty()) {
-                    return pids.get(0);
-                }
-            } catch (NoObjectFound e) {
-                // Ignore, then
-            }
+    private void setObjectLabel(String pid, String label, boolean existing) throws ServerOperationFailed {
+        if (changeDetector != null && existing && !changeDetector.isLabelChanged(pid, label)) {
+            return;
+        }
+        domsClient.setObjectLabel(pid, label, Common.COMMENT);
+        if (changeDetector != null) {
+            changeDetector.labelWritten(pid, label);
         }
-        return null;
     }
 
     /**
-     * Find old identifiers in program metadata, and use them for looking up programs in DOMS.
+     * Update a datastream of an object, unless it is known to have the content already, or an earlier attempt wrote
+     * it.
      *
-     * @param radioTVMetadata The document containing the program metadata.
-     * @return Old indentifiers found.
-     * @throws XPathExpressionException Should never happen. Means program is broken with faulty XPath.
+     * @param pid The PID of the object.
+     * @param datastreamId The ID of the datastream.
+     * @param content The content.
+     * @param existing Whether the object existed before this ingest. A new object is always written.
+     * @param checkpoints The steps done for the file of the program, or null.
+     * @throws ServerOperationFailed if updating the datastream fails.
+     * @throws XMLParseException if the content could not be serialised.
      */
-    private List<String> getOldIdentifiers(Document radioTVMetadata) throws XPathExpressionException {
-        List<String> result = new ArrayList<String>();
-        Node radioTVPBCoreElement = Common.XPATH_SELECTOR
-                .selectNode(radioTVMetadata, Common.PBCORE_DESCRIPTION_ELEMENT);
-
-        Node oldRitzauPIDNode = Common.XPATH_SELECTOR
-                .selectNode(radioTVPBCoreElement, Common.PBCORE_RITZAU_IDENTIFIER_ELEMENT);
-        if (oldRitzauPIDNode != null && !oldRitzauPIDNode.getTextContent().isEmpty()) {
-            result.add(oldRitzauPIDNode.getTextContent());
+    private void updateDataStream(String pid, String datastreamId, Document content, boolean existing,
+                                  IngestJournal.Checkpoints checkpoints)
+            throws ServerOperationFailed, XMLParseException {
+        if (isDone(checkpoints, IngestJournal.Step.DATASTREAM, datastreamId)) {
+            return;
         }
-
-        Node oldGallupPIDNode = Common.XPATH_SELECTOR
-                .selectNode(radioTVPBCoreElement, Common.PBCORE_GALLUP_IDENTIFIER_ELEMENT);
-        if (oldGallupPIDNode != null && !oldGallupPIDNode.getTextContent().isEmpty()) {
-            result.add(oldGallupPIDNode.getTextContent());
+        if (changeDetector != null && existing && !changeDetector.isChanged(pid, datastreamId, content)) {
+            return;
+        }
+        domsClient.updateDataStream(pid, datastreamId, content, Common.COMMENT);
+        done(checkpoints, IngestJournal.Step.DATASTREAM, datastreamId);
+        if (changeDetector != null) {
+            changeDetector.written(pid, datastreamId, content);
         }
-        return result;
     }
 
-    /**
-     * Git the PIDs for all the file URLs.
-     *
-     * @param radioTVMetadata Metadata XML document containing the file information.
-     * @return A <code>List</code> of PIDs of the radio-tv file objects found in DOMS.
-     *
-     * @throws MalformedURLException if a file element contains an invalid URL.
-     * @throws ServerOperationFailed if looking up file URL failed.
-     * @throws NoObjectFound         if a URL is referenced, which is not found in DOMS.
-     */
-    private List<String> getFilePids(Document radioTVMetadata)
-            throws MalformedURLException, ServerOperationFailed, NoObjectFound {
-        // Get the recording files XML element and process the file information.
-        NodeList recordingFileURLs = Common.XPATH_SELECTOR.selectNodeList(radioTVMetadata, Common.RECORDING_FILES_URLS);
-
-        // Find the pids for all referenced file urls.
-        List<String> fileObjectPIDs = new ArrayList<String>();
-        for (int nodeIndex = 0; nodeIndex < recordingFileURLs.getLength(); nodeIndex++) {
-            // Lookup file object.
-            fileObjectPIDs.add(domsClient.getFileObjectPID(new URL(recordingFileURLs.item(nodeIndex).getTextContent())));
-        }
-        return fileObjectPIDs;
+    private void addOldPids(String existingPid, List<String> oldIdentifiers) throws ServerOperationFailed {
+        Document dcDataStream = domsClient.getDataStream(existingPid, Common.DC_DS_ID);
+        NodeList existingIDNodes = Common.DC_IDENTIFIER_XPATH.selectNodeList(dcDataStream);
+        Set<String> idsToAdd = new HashSet<String>(oldIdentifiers);
+        for (int i = 0; i < existingIDNodes.getLength(); i++) {
+            idsToAdd.remove(existingIDNodes.item(i).getTextContent());
+        }
+        if (idsToAdd.isEmpty()) {
+            return;
+        }
+        Node identifier = Common.DC_IDENTIFIER_XPATH.selectNode(dcDataStream);
+        for (String id : idsToAdd) {
+            Element newIdentifier = dcDataStream.createElementNS(Common.DC_NAMESPACE, "identifier");
+            dcDataStream.setTextContent(id);
+            identifier.getParentNode().insertBefore(newIdentifier, identifier);
+        }
+        domsClient.updateDataStream(existingPid, Common.DC_DS_ID, dcDataStream, Common.COMMENT);
     }
 }
@@ -0,0 +1,383 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.central.InvalidCredentialsException;
+import dk.statsbiblioteket.doms.central.InvalidResourceException;
+import dk.statsbiblioteket.doms.central.MethodFailedException;
+import dk.statsbiblioteket.doms.client.DomsWSClient;
+import dk.statsbiblioteket.doms.client.exceptions.NoObjectFound;
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import dk.statsbiblioteket.doms.client.exceptions.XMLParseException;
+import dk.statsbiblioteket.doms.client.relations.LiteralRelation;
+import dk.statsbiblioteket.doms.client.relations.Relation;
+import dk.statsbiblioteket.doms.client.utils.Constants;
+import dk.statsbiblioteket.doms.client.utils.FileInfo;
+import org.w3c.dom.Document;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DOMS client retrying the calls made while ingesting when they fail with transient errors, so a brief hiccup in DOMS
+ * does not fail the files being processed.
+ * <p/>
+ * A failure is transient if DOMS could not be reached, or if it reported that the operation failed, except when the
+ * object was not found, the credentials were rejected, or DOMS rejected the request itself. Failed calls are retried
+ * with exponential backoff and full jitter: before attempt n, the client sleeps a random time up to the base delay
+ * times 2^(n-2), capped at the maximum delay. Calls creating objects are never retried, since a call that timed out
+ * may still have created the object.
+ * <p/>
+ * All calls go through the circuit breaker, if any, and report their outcome to it. While the breaker is open, calls
+ * wait instead of failing, and the attempts of a call waiting for the breaker start over. So during an outage, calls
+ * that may be retried wait for DOMS to recover, however long it takes. Waiting is not an attempt, but every failed
+ * attempt counts, and a call gives up once it has failed {@link #MAX_PROBES} times more than its attempts, as a probe
+ * or otherwise. So a call failing whatever happens fails its file, rather than pausing the ingest forever.
+ */
+public class RetryingDomsWSClient extends DelegatingDomsWSClient {
+    /** How many failures a call may have on top of its attempts, from probing the breaker after waiting for it. */
+    static final int MAX_PROBES = 3;
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final CircuitBreaker circuitBreaker;
+    private final AtomicLong retries = new AtomicLong();
+
+    /**
+     * Initialise the client.
+     *
+     * @param delegate The client to pass calls on to.
+     * @param maxAttempts The number of times to try each call at most. One means calls are never retried.
+     * @param baseDelayMillis The longest time to wait before the first retry, in milliseconds.
+     * @param maxDelayMillis The longest time to wait before any retry, in milliseconds.
+     * @param circuitBreaker The breaker to hold back calls while DOMS is unhealthy, or null for none.
+     */
+    public RetryingDomsWSClient(DomsWSClient delegate, int maxAttempts, long baseDelayMillis, long maxDelayMillis,
+                                CircuitBreaker circuitBreaker) {
+        super(delegate);
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Attempts must be positive, was " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Tell whether an exception from a DOMS call is worth retrying.
+     *
+     * @param e The exception.
+     * @return True if DOMS could not be reached or the operation failed in DOMS, false if the request itself was bad
+     * or was rejected by DOMS.
+     */
+    static boolean isTransient(Exception e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InvalidResourceException || cause instanceof InvalidCredentialsException
+                || cause instanceof MethodFailedException) {
+                return false;
+            }
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return e instanceof ServerOperationFailed;
+    }
+
+    /**
+     * @return The number of calls retried.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Make a call, retrying it while it fails with transient errors.
+     *
+     * @param retry Whether the call may be retried.
+     * @param call The call.
+     * @return The result of the call.
+     * @throws ServerOperationFailed If the last attempt failed in DOMS.
+     * @throws E If the call failed otherwise.
+     */
+    private <T, E extends Exception> T execute(boolean retry, Call<T, E> call) throws ServerOperationFailed, E {
+        int attempt = 0;
+        int failures = 0;
+        while (true) {
+            if (circuitBreaker != null && awaitCircuitBreaker()) {
+                attempt = 0;
+            }
+            attempt++;
+            Exception failure = null;
+            try {
+                return call.call();
+            } catch (ServerOperationFailed e) {
+                if (!isTransient(e)) {
+                    throw e;
+                }
+                failure = e;
+            } catch (RuntimeException e) {
+                if (!isTransient(e)) {
+                    throw e;
+                }
+                failure = e;
+            } finally {
+                if (circuitBreaker != null) {
+                    if (failure == null) {
+                        circuitBreaker.succeeded();
+                    } else {
+                        circuitBreaker.failed();
+                    }
+                }
+            }
+            failures++;
+            boolean givingUp = !retry || failures >= maxAttempts + MAX_PROBES;
+            if (!givingUp && circuitBreaker != null && circuitBreaker.getState() != CircuitBreaker.State.CLOSED) {
+                // Wait for DOMS to recover rather than give up.
+                retries.incrementAndGet();
+                continue;
+            }
+            if (givingUp || attempt >= maxAttempts || !backOff(attempt)) {
+                if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                }
+                throw (ServerOperationFailed) failure;
+            }
+            retries.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wait for the circuit breaker to let a call through.
+     *
+     * @return True if the call had to wait.
+     * @throws ServerOperationFailed If interrupted while waiting.
+     */
+    private boolean awaitCircuitBreaker() throws ServerOperationFailed {
+        try {
+            return circuitBreaker.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServerOperationFailed("Interrupted while waiting for DOMS to recover", e);
+        }
+    }
+
+    /**
+     * Sleep before retrying a call.
+     *
+     * @param attempt The number of the attempt that failed.
+     * @return False if interrupted, and the call should not be retried.
+     */
+    private boolean backOff(int attempt) {
+        long delay = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(delay + 1));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public String createObjectFromTemplate(final String templatePID, final String comment)
+            throws ServerOperationFailed {
+        return execute(false, new Call<String, RuntimeException>() {
+            @Override
+            String call() throws ServerOperationFailed {
+                return delegate.createObjectFromTemplate(templatePID, comment);
+            }
+        });
+    }
+
+    @Override
+    public String createObjectFromTemplate(final String templatePID, final List<String> oldIdentifiers,
+                                           final String comment) throws ServerOperationFailed {
+        return execute(false, new Call<String, RuntimeException>() {
+            @Override
+            String call() throws ServerOperationFailed {
+                return delegate.createObjectFromTemplate(templatePID, oldIdentifiers, comment);
+            }
+        });
+    }
+
+    @Override
+    public String createFileObject(final String templatePID, final FileInfo fileInfo, final String comment)
+            throws ServerOperationFailed {
+        return execute(false, new Call<String, RuntimeException>() {
+            @Override
+            String call() throws ServerOperationFailed {
+                return delegate.createFileObject(templatePID, fileInfo, comment);
+            }
+        });
+    }
+
+    @Override
+    public String getFileObjectPID(final URL fileURL) throws NoObjectFound, ServerOperationFailed {
+        return execute(true, new Call<String, NoObjectFound>() {
+            @Override
+            String call() throws ServerOperationFailed, NoObjectFound {
+                return delegate.getFileObjectPID(fileURL);
+            }
+        });
+    }
+
+    @Override
+    public List<String> getPidFromOldIdentifier(final String oldIdentifier)
+            throws NoObjectFound, ServerOperationFailed {
+        return execute(true, new Call<List<String>, NoObjectFound>() {
+            @Override
+            List<String> call() throws ServerOperationFailed, NoObjectFound {
+                return delegate.getPidFromOldIdentifier(oldIdentifier);
+            }
+        });
+    }
+
+    @Override
+    public String getLabel(final String uuid) {
+        try {
+            return execute(true, new Call<String, RuntimeException>() {
+                @Override
+                String call() {
+                    return delegate.getLabel(uuid);
+                }
+            });
+        } catch (ServerOperationFailed e) {
+            // Only thrown if interrupted while waiting for the circuit breaker.
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Document getDataStream(final String objectPID, final String datastreamID) throws ServerOperationFailed {
+        return execute(true, new Call<Document, RuntimeException>() {
+            @Override
+            Document call() throws ServerOperationFailed {
+                return delegate.getDataStream(objectPID, datastreamID);
+            }
+        });
+    }
+
+    @Override
+    public void updateDataStream(final String objectPID, final String dataStreamID,
+                                 final Document newDataStreamContents, final String comment)
+            throws ServerOperationFailed {
+        execute(true, new Call<Void, RuntimeException>() {
+            @Override
+            Void call() throws ServerOperationFailed {
+                delegate.updateDataStream(objectPID, dataStreamID, newDataStreamContents, comment);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void addObjectRelation(final String pid, final String predicate, final String objectPid,
+                                  final String comment) throws ServerOperationFailed, XMLParseException {
+        execute(true, new Call<Void, XMLParseException>() {
+            @Override
+            Void call() throws ServerOperationFailed, XMLParseException {
+                delegate.addObjectRelation(pid, predicate, objectPid, comment);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void removeObjectRelation(final LiteralRelation relation, final String comment)
+            throws ServerOperationFailed {
+        execute(true, new Call<Void, RuntimeException>() {
+            @Override
+            Void call() throws ServerOperationFailed {
+                delegate.removeObjectRelation(relation, comment);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public List<Relation> listObjectRelations(final String objectPID, final String relationType)
+            throws ServerOperationFailed {
+        return execute(true, new Call<List<Relation>, RuntimeException>() {
+            @Override
+            List<Relation> call() throws ServerOperationFailed {
+                return delegate.listObjectRelations(objectPID, relationType);
+            }
+        });
+    }
+
+    @Override
+    public void publishObjects(final String comment, final String... pidsToPublish) throws ServerOperationFailed {
+        execute(true, new Call<Void, RuntimeException>() {
+            @Override
+            Void call() throws ServerOperationFailed {
+                delegate.publishObjects(comment, pidsToPublish);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void unpublishObjects(final String comment, final String... pidsToUnpublish)
+            throws ServerOperationFailed {
+        execute(true, new Call<Void, RuntimeException>() {
+            @Override
+            Void call() throws ServerOperationFailed {
+                delegate.unpublishObjects(comment, pidsToUnpublish);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void deleteObjects(final String comment, final String... pidsToDelete) throws ServerOperationFailed {
+        execute(true, new Call<Void, RuntimeException>() {
+            @Override
+            Void call() throws ServerOperationFailed {
+                delegate.deleteObjects(comment, pidsToDelete);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void setObjectLabel(final String objectPID, final String objectLabel, final String comment)
+            throws ServerOperationFailed {
+        execute(true, new Call<Void, RuntimeException>() {
+            @Override
+            Void call() throws ServerOperationFailed {
+                delegate.setObjectLabel(objectPID, objectLabel, comment);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Constants.FedoraState getState(final String pid) throws ServerOperationFailed {
+        return execute(true, new Call<Constants.FedoraState, RuntimeException>() {
+            @Override
+            Constants.FedoraState call() throws ServerOperationFailed {
+                return delegate.getState(pid);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "DOMS calls retried " + retries.get() + " times"
+                + (circuitBreaker == null ? "" : ". " + circuitBreaker);
+    }
+
+    /**
+     * A call to DOMS.
+     *
+     * @param <T> The result of the call.
+     * @param <E> The exception the call may throw besides {@link ServerOperationFailed}, or
+     * {@link RuntimeException} if none.
+     */
+    private abstract static class Call<T, E extends Exception> {
+        abstract T call() throws ServerOperationFailed, E;
+    }
+}
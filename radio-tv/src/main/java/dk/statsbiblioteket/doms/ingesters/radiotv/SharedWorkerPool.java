@@ -0,0 +1,381 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded number of workers shared by several processors, so the total number of files processed at once, and with
+ * it the load on DOMS, is bounded for the whole ingester.
+ * <p/>
+ * Each processor submits its files to a lane of its own. Whenever a worker is free, it takes the next file from one
+ * of the lanes with files waiting, by smooth weighted round robin: while several lanes have files waiting, each lane
+ * gets a share of the workers in proportion to its weight, and the files of a heavier lane are spread evenly between
+ * those of lighter ones. A lane with nothing waiting leaves its share to the others, so no worker is idle while there
+ * is work in any lane.
+ * <p/>
+ * Workers are started as files are submitted, only when no started worker is free to take them, up to the given
+ * number. A worker ended by an error is replaced. The workers stop once every lane is closed and has no files left.
+ * <p/>
+ * Workers and submitters wait on a lock rather than a monitor, so those on virtual threads leave their carrier
+ * threads to others while waiting, see {@link VirtualThreads}.
+ */
+public class SharedWorkerPool {
+    private final int threads;
+    /** Creates the workers, or null for daemon threads of their own. */
+    private final ThreadFactory threadFactory;
+    private final List<Lane> lanes = new ArrayList<Lane>();
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled whenever a file is submitted or a lane is closed. */
+    private final Condition workAvailable = lock.newCondition();
+    /** Signalled whenever a file is taken, processed or cancelled, or a lane is closed. */
+    private final Condition laneChanged = lock.newCondition();
+    private int workersStarted = 0;
+    /** The workers started and not processing a file. */
+    private int idleWorkers = 0;
+
+    /**
+     * Initialise the pool. The workers are started as files are submitted.
+     *
+     * @param threads The number of files to process at once, across all lanes.
+     */
+    public SharedWorkerPool(int threads) {
+        this(threads, null);
+    }
+
+    /**
+     * Initialise the pool, creating the workers with the given factory, as virtual threads, see
+     * {@link VirtualThreads}. The workers are started as files are submitted.
+     *
+     * @param threads The number of files to process at once, across all lanes.
+     * @param threadFactory The factory, or null for daemon threads.
+     */
+    public SharedWorkerPool(int threads, ThreadFactory threadFactory) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be positive, was " + threads);
+        }
+        this.threads = threads;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Add a lane to the pool.
+     *
+     * @param name The name of the lane, for the log.
+     * @param weight The share of the workers the lane gets, relative to the other lanes.
+     * @param queueCapacity The number of files that may wait in the lane before submitting blocks, or zero for no
+     * limit.
+     * @return The lane.
+     */
+    public Lane addLane(String name, int weight, int queueCapacity) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight must be positive, was " + weight);
+        }
+        Lane lane = new Lane(name, weight, queueCapacity);
+        lock.lock();
+        try {
+            lanes.add(lane);
+        } finally {
+            lock.unlock();
+        }
+        return lane;
+    }
+
+    /**
+     * @return The number of files to process at once, across all lanes.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Start workers for the files waiting that no idle worker can take. Called with the lock held.
+     */
+    private void startWorkers() {
+        int waiting = 0;
+        for (Lane lane : lanes) {
+            waiting += lane.queue.size();
+        }
+        while (workersStarted < threads && idleWorkers < waiting) {
+            workersStarted++;
+            idleWorkers++;
+            Thread worker;
+            if (threadFactory != null) {
+                worker = threadFactory.newThread(new Worker());
+            } else {
+                worker = new Thread(new Worker(), "IngestWorker-" + workersStarted);
+                // Like the lookup threads, so an idle pool does not keep the JVM alive.
+                worker.setDaemon(true);
+            }
+            worker.start();
+        }
+    }
+
+    /**
+     * Choose the lane to take the next file from, by smooth weighted round robin among the lanes with files waiting.
+     *
+     * @return The lane, or null if no files are waiting.
+     */
+    private Lane nextLane() {
+        Lane chosen = null;
+        int totalWeight = 0;
+        for (Lane lane : lanes) {
+            if (lane.queue.isEmpty()) {
+                continue;
+            }
+            lane.currentWeight += lane.weight;
+            totalWeight += lane.weight;
+            if (chosen == null || lane.currentWeight > chosen.currentWeight) {
+                chosen = lane;
+            }
+        }
+        if (chosen != null) {
+            chosen.currentWeight -= totalWeight;
+        }
+        return chosen;
+    }
+
+    private boolean allLanesClosed() {
+        for (Lane lane : lanes) {
+            if (!lane.closed || !lane.queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            StringBuilder result = new StringBuilder("Shared pool of " + threads + " workers, " + workersStarted
+                                                     + " started:");
+            for (Lane lane : lanes) {
+                result.append("\n  ").append(lane.name).append(": weight=").append(lane.weight)
+                      .append(", waiting=").append(lane.queue.size()).append(", running=").append(lane.running)
+                      .append(", completed=").append(lane.completed);
+            }
+            return result.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes files from the lanes and processes them, until all lanes are closed.
+     */
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                Lane lane;
+                Runnable task;
+                lock.lock();
+                try {
+                    while ((lane = nextLane()) == null) {
+                        if (allLanesClosed()) {
+                            stop();
+                            return;
+                        }
+                        try {
+                            workAvailable.await();
+                        } catch (InterruptedException e) {
+                            stop();
+                            return;
+                        }
+                    }
+                    task = lane.queue.remove();
+                    lane.running++;
+                    idleWorkers--;
+                    // There is room in the lane now.
+                    laneChanged.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                boolean completed = false;
+                try {
+                    task.run();
+                    completed = true;
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    completed = true;
+                } finally {
+                    lock.lock();
+                    try {
+                        lane.running--;
+                        lane.completed++;
+                        if (completed) {
+                            idleWorkers++;
+                        } else {
+                            // An error ends this worker, like in a thread pool, so start another in its place.
+                            workersStarted--;
+                            startWorkers();
+                        }
+                        laneChanged.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Called with the lock held by an idle worker ending.
+         */
+        private void stop() {
+            workersStarted--;
+            idleWorkers--;
+        }
+    }
+
+    /**
+     * The queue of files of one processor. All methods hold the lock of the pool.
+     */
+    public class Lane {
+        private final String name;
+        private final int weight;
+        private final int queueCapacity;
+        private final Queue<Runnable> queue = new ArrayDeque<Runnable>();
+        /** The weight accumulated by the lane in the weighted round robin. */
+        private int currentWeight = 0;
+        private int running = 0;
+        private long completed = 0;
+        private boolean closed = false;
+
+        private Lane(String name, int weight, int queueCapacity) {
+            this.name = name;
+            this.weight = weight;
+            this.queueCapacity = queueCapacity;
+        }
+
+        /**
+         * Queue a file for processing. If the lane is full, this blocks until there is room.
+         *
+         * @param task The work on the file.
+         * @throws RejectedExecutionException If the lane is closed, or if interrupted while waiting for room.
+         */
+        public void submit(Runnable task) {
+            lock.lock();
+            try {
+                while (queueCapacity > 0 && queue.size() >= queueCapacity && !closed) {
+                    try {
+                        laneChanged.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for room in " + name, e);
+                    }
+                }
+                if (closed) {
+                    throw new RejectedExecutionException("Lane " + name + " has been closed");
+                }
+                queue.add(task);
+                startWorkers();
+                workAvailable.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Wait until all files submitted to the lane have been processed.
+         */
+        public void awaitIdle() {
+            awaitIdle(Long.MAX_VALUE);
+        }
+
+        /**
+         * Wait until all files submitted to the lane have been processed, or the timeout passes.
+         *
+         * @param timeoutMillis How long to wait at most, in milliseconds.
+         * @return True if the lane is idle, false if the timeout passed or the thread was interrupted first.
+         */
+        public boolean awaitIdle(long timeoutMillis) {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            lock.lock();
+            try {
+                while (!queue.isEmpty() || running > 0) {
+                    if (remainingNanos <= 0) {
+                        return false;
+                    }
+                    try {
+                        remainingNanos = laneChanged.awaitNanos(remainingNanos);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Remove the files waiting in the lane, so they are never processed. Files being processed are not affected.
+         *
+         * @return The work on the files removed.
+         */
+        public List<Runnable> cancel() {
+            lock.lock();
+            try {
+                List<Runnable> cancelled = new ArrayList<Runnable>(queue);
+                queue.clear();
+                laneChanged.signalAll();
+                return cancelled;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Accept no more files. Files already submitted are still processed.
+         */
+        public void close() {
+            lock.lock();
+            try {
+                closed = true;
+                workAvailable.signalAll();
+                laneChanged.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return The number of files waiting for a worker.
+         */
+        public int getQueueDepth() {
+            lock.lock();
+            try {
+                return queue.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return The number of files being processed by a worker.
+         */
+        public int getInFlight() {
+            lock.lock();
+            try {
+                return running;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return The name of the lane.
+         */
+        public String getName() {
+            return name;
+        }
+    }
+}
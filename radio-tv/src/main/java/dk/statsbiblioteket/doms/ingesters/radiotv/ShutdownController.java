@@ -0,0 +1,157 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stops the ingester when asked to, by a stop file in the stop folder, see {@link StopFolderWatcher}, or by the JVM
+ * shutting down, as on SIGTERM or Ctrl-C.
+ * <p/>
+ * Stopping first stops all registered inspectors from reporting more files, then stops the clients they report to,
+ * giving them until a common deadline to process the files already reported. Files not processed by then are
+ * reported in the log. They are left in their hot folder, and pending in the ledger, so they are processed after a
+ * restart.
+ */
+public class ShutdownController {
+    private final long deadlineMillis;
+    private final List<HotFolderInspector> inspectors = new CopyOnWriteArrayList<HotFolderInspector>();
+    private final List<HotFolderScannerClient> clients = new CopyOnWriteArrayList<HotFolderScannerClient>();
+    private final AtomicBoolean stopRequested = new AtomicBoolean();
+    /** When the clients must be done by, once stopping. Set when intake is stopped, guarded by the controller. */
+    private long deadline = Long.MAX_VALUE;
+    private boolean intakeStopped = false;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean processedAll = true;
+
+    /**
+     * Initialise the controller.
+     *
+     * @param deadlineMillis How long to give the clients to process the files reported, once stopping, in
+     * milliseconds.
+     */
+    public ShutdownController(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Stop when a stop file appears in the given folder. The folder is watched by a daemon thread.
+     *
+     * @param stopFolder The folder to watch.
+     */
+    public void watchStopFolder(File stopFolder) {
+        Thread watcher = new Thread(new StopFolderWatcher(stopFolder, this), "StopFolderWatcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Stop when the JVM shuts down. The JVM waits for the clients until the deadline before it exits.
+     */
+    public void addShutdownHook() {
+        Runtime.getRuntime().addShutdownHook(new Thread("IngestShutdown") {
+            @Override
+            public void run() {
+                ShutdownController.this.stop("the JVM is shutting down");
+            }
+        });
+    }
+
+    /**
+     * Register an inspector to stop, and the client it reports to. The client is stopped by the controller, so the
+     * inspector must not stop it itself. If stopping has already started, the inspector is stopped at once, and the
+     * client is given until the deadline of the others.
+     *
+     * @param inspector The inspector.
+     * @param client The client of the inspector.
+     */
+    public void register(HotFolderInspector inspector, HotFolderScannerClient client) {
+        synchronized (this) {
+            inspectors.add(inspector);
+            if (!intakeStopped) {
+                clients.add(client);
+                return;
+            }
+        }
+        inspector.setKillFlag();
+        if (!stopClient(client)) {
+            processedAll = false;
+        }
+    }
+
+    /**
+     * Stop the ingester. Only the first call stops it, later calls wait for that to finish.
+     *
+     * @param reason Why the ingester is stopped, for the log.
+     * @return True if the clients processed all files reported to them.
+     */
+    public boolean stop(String reason) {
+        if (!stopRequested.compareAndSet(false, true)) {
+            try {
+                return awaitStopped();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        try {
+            System.out.println("Stopping ingester, since " + reason + ". Waiting at most " + deadlineMillis
+                               + " ms for files being processed");
+            // Stop all intake before waiting for any client, so no client gets more work while another is drained.
+            synchronized (this) {
+                deadline = System.currentTimeMillis() + Math.min(deadlineMillis, Long.MAX_VALUE / 2);
+                intakeStopped = true;
+                for (HotFolderInspector inspector : inspectors) {
+                    inspector.setKillFlag();
+                }
+            }
+            for (HotFolderScannerClient client : clients) {
+                if (!stopClient(client)) {
+                    processedAll = false;
+                }
+            }
+            System.out.println(processedAll ? "Ingester stopped after processing all files reported"
+                                            : "Ingester stopped with files left unprocessed, see above");
+            return processedAll;
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Stop a client, giving it until the deadline to process the files reported to it.
+     *
+     * @return True if the client processed all files reported to it.
+     */
+    private boolean stopClient(HotFolderScannerClient client) {
+        if (client instanceof MultiThreadedProcessor) {
+            long remaining;
+            synchronized (this) {
+                remaining = Math.max(0, deadline - System.currentTimeMillis());
+            }
+            return ((MultiThreadedProcessor) client).stopEngine(remaining);
+        }
+        client.stopEngine();
+        return true;
+    }
+
+    /**
+     * @return True once the ingester has been asked to stop.
+     */
+    public boolean isStopRequested() {
+        return stopRequested.get();
+    }
+
+    /**
+     * Wait until the ingester has stopped.
+     *
+     * @return True if the clients processed all files reported to them.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean awaitStopped() throws InterruptedException {
+        stopped.await();
+        return processedAll;
+    }
+}
@@ -0,0 +1,62 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The latencies of a stage of the ingest at one point in time, in milliseconds.
+ */
+public class StageStatistics {
+    private final long count;
+    private final double meanMillis;
+    private final double p50Millis;
+    private final double p90Millis;
+    private final double p99Millis;
+    private final double maxMillis;
+
+    @ConstructorProperties({"count", "meanMillis", "p50Millis", "p90Millis", "p99Millis", "maxMillis"})
+    public StageStatistics(long count, double meanMillis, double p50Millis, double p90Millis, double p99Millis,
+                           double maxMillis) {
+        this.count = count;
+        this.meanMillis = meanMillis;
+        this.p50Millis = p50Millis;
+        this.p90Millis = p90Millis;
+        this.p99Millis = p99Millis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Take the statistics of a histogram.
+     *
+     * @param histogram The latencies of the stage.
+     * @return The statistics.
+     */
+    static StageStatistics of(LatencyHistogram histogram) {
+        return new StageStatistics(histogram.getCount(), histogram.getMean() / 1e6,
+                                   histogram.getPercentile(50) / 1e6, histogram.getPercentile(90) / 1e6,
+                                   histogram.getPercentile(99) / 1e6, histogram.getMax() / 1e6);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanMillis() {
+        return meanMillis;
+    }
+
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    public double getP90Millis() {
+        return p90Millis;
+    }
+
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+}
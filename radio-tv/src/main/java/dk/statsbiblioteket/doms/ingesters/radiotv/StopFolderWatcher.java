@@ -1,46 +1,145 @@
 package dk.statsbiblioteket.doms.ingesters.radiotv;
 
 import java.io.File;
-import java.util.Arrays;
-import java.util.List;
-import java.util.TimerTask;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
 /**
- * Created with IntelliJ IDEA.
- * User: abr
- * Date: 8/19/13
- * Time: 3:57 PM
- * To change this template use File | Settings | File Templates.
+ * Watches the stop folder for a file named "stoprunning", in any case, and asks the {@link ShutdownController} to stop
+ * the ingester as soon as it appears.
+ * <p/>
+ * The folder is watched for file system events, so the stop file is noticed at once, independently of how busy the
+ * scanner is, and the folder is only listed at startup and if events were lost. If the folder cannot be watched, it
+ * is listed every second instead.
  */
-public class StopFolderWatcher extends TimerTask {
+public class StopFolderWatcher implements Runnable {
+
+    /**
+     * The name of the file that stops the ingester, compared ignoring case.
+     */
+    public static final String STOP_FILE_NAME = "stoprunning";
 
-    private NonRecursiveHotFolderInspector scanner;
-    private File stopFolder;
+    /**
+     * How often to check for the stop file when the folder cannot be watched, and how often to check whether the
+     * ingester was stopped otherwise while no events arrive, in milliseconds.
+     */
+    private static final long POLL_INTERVAL = 1000;
 
-    public StopFolderWatcher(NonRecursiveHotFolderInspector scanner, File stopFolder) {
-        this.scanner = scanner;
+    private final File stopFolder;
+    private final ShutdownController shutdownController;
+
+    /**
+     * Initialise the watcher.
+     *
+     * @param stopFolder The folder to watch for the stop file.
+     * @param shutdownController The controller to ask to stop.
+     */
+    public StopFolderWatcher(File stopFolder, ShutdownController shutdownController) {
         this.stopFolder = stopFolder;
+        this.shutdownController = shutdownController;
     }
 
+    /**
+     * Watch the stop folder until the stop file appears, or the ingester is stopped otherwise.
+     */
     @Override
     public void run() {
+        WatchService watchService = null;
+        try {
+            watchService = watch();
+            // Check after registering, so a stop file cannot appear unnoticed in between.
+            if (stopSignalGiven()) {
+                stop();
+                return;
+            }
+            while (!shutdownController.isStopRequested()) {
+                if (watchService == null) {
+                    Thread.sleep(POLL_INTERVAL);
+                    if (stopSignalGiven()) {
+                        stop();
+                    }
+                    continue;
+                }
+                WatchKey key = watchService.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    continue;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW ? stopSignalGiven() : isStopFile((Path) event.context())) {
+                        stop();
+                        break;
+                    }
+                }
+                if (!key.reset()) {
+                    System.err.println("Stop folder " + stopFolder.getAbsolutePath()
+                                       + " can no longer be watched, checking it every second instead");
+                    close(watchService);
+                    watchService = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted while watching stop folder");
+        } finally {
+            close(watchService);
+        }
+    }
 
-        if (stopSignalGiven()){
-            scanner.cancel();
-            scanner.setKillFlag();
+    private void stop() {
+        shutdownController.stop("stop file found in " + stopFolder.getAbsolutePath());
+    }
+
+    /**
+     * Start watching the stop folder for new files.
+     *
+     * @return The watch service, or null if the folder cannot be watched.
+     */
+    private WatchService watch() {
+        WatchService watchService = null;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            stopFolder.toPath().register(watchService, ENTRY_CREATE);
+            return watchService;
+        } catch (IOException e) {
+            System.err.println("Unable to watch stop folder " + stopFolder.getAbsolutePath()
+                               + ", checking it every second instead");
+            close(watchService);
+            return null;
+        }
+    }
+
+    private static void close(WatchService watchService) {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
     private boolean stopSignalGiven() {
-        if (!stopFolder.isDirectory()){
+        String[] names = stopFolder.list();
+        if (names == null) {
             return false;
         }
-        File[] stopFiles = stopFolder.listFiles();
-        for (File stopFile : stopFiles) {
-            if (stopFile.getName().toLowerCase().equals("stoprunning")) {
+        for (String name : names) {
+            if (name.equalsIgnoreCase(STOP_FILE_NAME)) {
                 return true;
             }
         }
         return false;
     }
+
+    private static boolean isStopFile(Path path) {
+        return path != null && path.getFileName().toString().equalsIgnoreCase(STOP_FILE_NAME);
+    }
 }
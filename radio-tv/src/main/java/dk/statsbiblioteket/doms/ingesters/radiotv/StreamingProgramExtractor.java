@@ -0,0 +1,390 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.ext.DefaultHandler2;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.validation.Schema;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts program metadata in a single streaming pass over the file, validating it on the way.
+ * <p/>
+ * Only the four subtrees that become datastreams are built as documents, directly from the parser events. The
+ * identifiers, title and file URLs are picked up as they pass by. So there is no full document of the file, no XPath
+ * evaluation over it, and no copying of subtrees out of it. The result is the same as from {@link DomProgramExtractor}.
+ * <p/>
+ * This uses a validating SAX parser rather than StAX, since the JDK StAX parser cannot validate against a schema
+ * while reading.
+ */
+public class StreamingProgramExtractor implements ProgramExtractor {
+    private static final String LEXICAL_HANDLER_PROPERTY = "http://xml.org/sax/properties/lexical-handler";
+
+    /** Builders for the documents of datastreams. */
+    private static final DocumentBuilderCache DOCUMENT_BUILDERS
+            = new DocumentBuilderCache(DocumentBuilderFactory.newInstance(), null);
+
+    private final SAXParserFactory saxParserFactory;
+    private final ThreadLocal<SAXParser> saxParsers = new ThreadLocal<SAXParser>();
+
+    /**
+     * Initialise the extractor.
+     *
+     * @param preIngestFileSchema Schema for Raio/TV metadata to process. If null, files will not be validated.
+     */
+    public StreamingProgramExtractor(Schema preIngestFileSchema) {
+        saxParserFactory = SAXParserFactory.newInstance();
+        saxParserFactory.setNamespaceAware(true);
+        saxParserFactory.setSchema(preIngestFileSchema);
+    }
+
+    @Override
+    public ProgramMetadata extract(File programFile) throws IOException, SAXException, ParserConfigurationException {
+        return extract(new InputSource(programFile.toURI().toString()));
+    }
+
+    /**
+     * Extract the program metadata from an input source.
+     *
+     * @param programSource The source of the program metadata.
+     * @return The program metadata.
+     * @throws IOException On trouble reading the source.
+     * @throws SAXException If the source is not valid program metadata.
+     * @throws ParserConfigurationException Should never happen. Means no XML parser is available.
+     */
+    public ProgramMetadata extract(InputSource programSource)
+            throws IOException, SAXException, ParserConfigurationException {
+        SAXParser saxParser = getSaxParser();
+        ProgramHandler handler = new ProgramHandler();
+        saxParser.setProperty(LEXICAL_HANDLER_PROPERTY, handler);
+        saxParser.parse(programSource, handler);
+        return handler.getProgramMetadata();
+    }
+
+    private SAXParser getSaxParser() throws ParserConfigurationException, SAXException {
+        SAXParser saxParser = saxParsers.get();
+        if (saxParser == null) {
+            // Factories are not thread safe.
+            synchronized (saxParserFactory) {
+                saxParser = saxParserFactory.newSAXParser();
+            }
+            saxParsers.set(saxParser);
+        } else {
+            saxParser.reset();
+        }
+        return saxParser;
+    }
+
+    /**
+     * Collects the program metadata from the parser events. Element names and positions match the XPath expressions
+     * in {@link Common}, taking the first match for each.
+     */
+    private static class ProgramHandler extends DefaultHandler2 {
+        /** Depth of the current element, the root element being at depth one. */
+        private int depth = 0;
+        /** Name of the element at depth two, when inside one. */
+        private String section;
+
+        /** The datastream being built, if inside one. */
+        private Document capture;
+        /** The current element in the datastream being built. */
+        private Node captureParent;
+        /** Depth of the root element of the datastream being built. */
+        private int captureDepth;
+        /** Text of the datastream being built, not yet added as a node. */
+        private StringBuilder captureText;
+        /** Prefixes and namespaces declared on the element about to start. */
+        private final List<String> declaredNamespaces = new ArrayList<String>();
+
+        /** Text of the current element, if it is collected. */
+        private StringBuilder text;
+
+        private Document pbCore;
+        private Document ritzauOriginal;
+        private Document gallupOriginal;
+        private Document programBroadcast;
+        private final List<String> fileUrls = new ArrayList<String>();
+
+        /** Identifier of the PBCore identifier currently read, and which kind of identifier it is. */
+        private String identifier;
+        private boolean isRitzauIdentifier;
+        private boolean isGallupIdentifier;
+        private String ritzauIdentifier;
+        private String gallupIdentifier;
+
+        /** Title and whether it is the main title, of the PBCore title currently read. */
+        private int titleDepth = -1;
+        private String titleText;
+        private boolean titleIsMain;
+        private String title;
+
+        @Override
+        public void startPrefixMapping(String prefix, String uri) {
+            declaredNamespaces.add(prefix);
+            declaredNamespaces.add(uri);
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+                throws SAXException {
+            depth++;
+            flushText();
+            if (depth == 1) {
+                if (!uri.isEmpty() || !localName.equals("program")) {
+                    throw new SAXException("Expected program element, got " + qName);
+                }
+            } else if (depth == 2 && uri.isEmpty()) {
+                section = localName;
+            }
+
+            if (capture == null && startsDatastream(uri, localName)) {
+                try {
+                    capture = DOCUMENT_BUILDERS.getDocumentBuilder().newDocument();
+                } catch (ParserConfigurationException e) {
+                    throw new SAXException(e);
+                }
+                captureParent = capture;
+                captureDepth = depth;
+            }
+            if (capture != null) {
+                Element element = capture.createElementNS(uri.isEmpty() ? null : uri, qName);
+                // Namespace declarations are not reported as attributes, but copying a subtree out of a DOM keeps
+                // those on its elements, so add them back.
+                for (int i = 0; i < declaredNamespaces.size(); i += 2) {
+                    String prefix = declaredNamespaces.get(i);
+                    element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                                           prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE
+                                                            : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix,
+                                           declaredNamespaces.get(i + 1));
+                }
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    String attributeUri = attributes.getURI(i);
+                    element.setAttributeNS(attributeUri.isEmpty() ? null : attributeUri, attributes.getQName(i),
+                                           attributes.getValue(i));
+                }
+                captureParent.appendChild(element);
+                captureParent = element;
+            }
+            declaredNamespaces.clear();
+
+            if (Common.PBCORE_NAMESPACE.equals(uri)) {
+                startPBCoreElement(localName);
+            } else if (depth == 3 && "fileUrls".equals(section) && uri.isEmpty() && localName.equals("fileUrl")) {
+                text = new StringBuilder();
+            }
+        }
+
+        /**
+         * Whether the element at the current depth is the root of one of the datastreams not yet found.
+         */
+        private boolean startsDatastream(String uri, String localName) {
+            if (depth == 3 && "pbcore".equals(section)) {
+                return pbCore == null && Common.PBCORE_NAMESPACE.equals(uri)
+                       && localName.equals("PBCoreDescriptionDocument");
+            }
+            if (depth == 3 && "originals".equals(section)) {
+                if (Common.RITZAU_NAMESPACE.equals(uri)) {
+                    return ritzauOriginal == null && localName.equals("ritzau_original");
+                }
+                if (Common.GALLUP_NAMESPACE.equals(uri)) {
+                    return gallupOriginal == null
+                           && (localName.equals("gallup_original") || localName.equals("tvmeterProgram"));
+                }
+            }
+            return depth == 2 && programBroadcast == null && Common.PROGRAM_BROADCAST_NAMESPACE.equals(uri)
+                   && localName.equals("programBroadcast");
+        }
+
+        private void startPBCoreElement(String localName) {
+            boolean inPBCoreDocument = depth > 3 && capture != null && capture.getDocumentElement()
+                    .getLocalName().equals("PBCoreDescriptionDocument");
+            if (localName.equals("pbcoreIdentifier") && depth == 4 && inPBCoreDocument) {
+                identifier = null;
+                isRitzauIdentifier = false;
+                isGallupIdentifier = false;
+            } else if ((localName.equals("identifier") || localName.equals("identifierSource"))
+                       && depth == 5 && inPBCoreDocument) {
+                text = new StringBuilder();
+            } else if (localName.equals("pbcoreTitle")) {
+                titleDepth = depth;
+                titleText = null;
+                titleIsMain = false;
+            } else if ((localName.equals("title") || localName.equals("titleType")) && depth == titleDepth + 1) {
+                text = new StringBuilder();
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (text != null) {
+                endTextElement(uri, localName);
+                text = null;
+            }
+            flushText();
+
+            if (Common.PBCORE_NAMESPACE.equals(uri)) {
+                endPBCoreElement(localName);
+            }
+
+            if (capture != null) {
+                if (depth == captureDepth) {
+                    endDatastream();
+                } else {
+                    captureParent = captureParent.getParentNode();
+                }
+            }
+            if (depth == 2) {
+                section = null;
+            }
+            depth--;
+        }
+
+        private void endTextElement(String uri, String localName) {
+            String content = text.toString();
+            if (uri.isEmpty()) {
+                fileUrls.add(content);
+            } else if (localName.equals("identifier")) {
+                if (identifier == null) {
+                    identifier = content;
+                }
+            } else if (localName.equals("identifierSource")) {
+                isRitzauIdentifier |= content.equals("id");
+                isGallupIdentifier |= content.equals("tvmeter");
+            } else if (localName.equals("title")) {
+                if (titleText == null) {
+                    titleText = content;
+                }
+            } else if (localName.equals("titleType")) {
+                titleIsMain |= content.equals("titel");
+            }
+        }
+
+        private void endPBCoreElement(String localName) {
+            if (localName.equals("pbcoreIdentifier") && depth == 4 && identifier != null) {
+                if (isRitzauIdentifier && ritzauIdentifier == null) {
+                    ritzauIdentifier = identifier;
+                }
+                if (isGallupIdentifier && gallupIdentifier == null) {
+                    gallupIdentifier = identifier;
+                }
+                identifier = null;
+            } else if (localName.equals("pbcoreTitle") && depth == titleDepth) {
+                if (titleIsMain && titleText != null && title == null) {
+                    title = titleText;
+                }
+                titleDepth = -1;
+            }
+        }
+
+        private void endDatastream() {
+            String rootName = capture.getDocumentElement().getLocalName();
+            if (rootName.equals("PBCoreDescriptionDocument")) {
+                pbCore = capture;
+            } else if (rootName.equals("ritzau_original")) {
+                ritzauOriginal = capture;
+            } else if (rootName.equals("programBroadcast")) {
+                programBroadcast = capture;
+            } else {
+                gallupOriginal = capture;
+            }
+            capture = null;
+            captureParent = null;
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (text != null) {
+                text.append(ch, start, length);
+            }
+            if (capture != null) {
+                pendingText().append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) {
+            // The DOM parser keeps element content whitespace, so do the same.
+            characters(ch, start, length);
+        }
+
+        @Override
+        public void comment(char[] ch, int start, int length) {
+            if (capture != null && captureParent != capture) {
+                flushText();
+                captureParent.appendChild(capture.createComment(new String(ch, start, length)));
+            }
+        }
+
+        @Override
+        public void processingInstruction(String target, String data) {
+            if (capture != null && captureParent != capture) {
+                flushText();
+                captureParent.appendChild(capture.createProcessingInstruction(target, data));
+            }
+        }
+
+        private StringBuilder pendingText() {
+            if (captureText == null) {
+                captureText = new StringBuilder();
+            }
+            return captureText;
+        }
+
+        /**
+         * Add any pending text as a single text node, as the DOM parser would.
+         */
+        private void flushText() {
+            if (captureText != null && captureText.length() > 0 && capture != null && captureParent != capture) {
+                captureParent.appendChild(capture.createTextNode(captureText.toString()));
+            }
+            captureText = null;
+        }
+
+        @Override
+        public void warning(SAXParseException exception) throws SAXException {
+            throw exception;
+        }
+
+        @Override
+        public void error(SAXParseException exception) throws SAXException {
+            throw exception;
+        }
+
+        @Override
+        public void fatalError(SAXParseException exception) throws SAXException {
+            throw exception;
+        }
+
+        /**
+         * @return The program metadata collected.
+         * @throws SAXException If any of the required parts was not found.
+         */
+        ProgramMetadata getProgramMetadata() throws SAXException {
+            if (title == null) {
+                throw new SAXException("No program title found");
+            }
+            List<String> oldIdentifiers = new ArrayList<String>();
+            if (ritzauIdentifier != null && !ritzauIdentifier.isEmpty()) {
+                oldIdentifiers.add(ritzauIdentifier);
+            }
+            if (gallupIdentifier != null && !gallupIdentifier.isEmpty()) {
+                oldIdentifiers.add(gallupIdentifier);
+            }
+            return new ProgramMetadata(title, oldIdentifiers, fileUrls, pbCore, ritzauOriginal, gallupOriginal,
+                                       programBroadcast);
+        }
+    }
+}
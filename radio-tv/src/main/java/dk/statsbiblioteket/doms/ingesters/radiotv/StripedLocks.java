@@ -0,0 +1,142 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Locks by key, striped over a fixed number of locks, so work on the same key runs one at a time while work on
+ * different keys mostly runs in parallel. Keys sharing a stripe wait for each other, which is harmless but for the
+ * lost parallelism.
+ * <p/>
+ * Used to keep the files of one program, found by its old identifiers, from being ingested concurrently, which could
+ * create the program twice or interleave the updates. Waiters get the lock in the order they asked for it. Unlike a
+ * {@link java.util.concurrent.locks.ReentrantLock}, a lock may be released by another thread than the one taking it,
+ * so it can be held until the objects are published in a batch. Locks are not reentrant.
+ */
+public class StripedLocks {
+    private final Semaphore[] stripes;
+
+    /**
+     * Initialise the locks.
+     *
+     * @param stripes The number of locks to spread the keys over.
+     */
+    public StripedLocks(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Stripes must be positive, was " + stripes);
+        }
+        this.stripes = new Semaphore[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Semaphore(1, true);
+        }
+    }
+
+    /**
+     * Take the locks of all the given keys, waiting for them as needed. The stripes are always taken in the same
+     * order, so callers locking several keys cannot deadlock each other.
+     *
+     * @param keys The keys.
+     * @return The locks held, to release when done.
+     * @throws InterruptedException If interrupted while waiting. No locks are held then.
+     */
+    public Held lock(Collection<String> keys) throws InterruptedException {
+        int[] indexes = stripes(keys);
+        for (int i = 0; i < indexes.length; i++) {
+            try {
+                stripes[indexes[i]].acquire();
+            } catch (InterruptedException e) {
+                release(indexes, i);
+                throw e;
+            }
+        }
+        return new Held(indexes);
+    }
+
+    /**
+     * Take the locks of all the given keys, waiting at most the given time for each of them.
+     *
+     * @param keys The keys.
+     * @param timeout How long to wait for each lock.
+     * @param unit The unit of the timeout.
+     * @return The locks held, to release when done, or null if they could not all be taken in time. No locks are held
+     * then.
+     * @throws InterruptedException If interrupted while waiting. No locks are held then.
+     */
+    public Held tryLock(Collection<String> keys, long timeout, TimeUnit unit) throws InterruptedException {
+        int[] indexes = stripes(keys);
+        for (int i = 0; i < indexes.length; i++) {
+            boolean acquired;
+            try {
+                acquired = stripes[indexes[i]].tryAcquire(timeout, unit);
+            } catch (InterruptedException e) {
+                release(indexes, i);
+                throw e;
+            }
+            if (!acquired) {
+                release(indexes, i);
+                return null;
+            }
+        }
+        return new Held(indexes);
+    }
+
+    /**
+     * Find the distinct stripes of some keys, in ascending order.
+     */
+    private int[] stripes(Collection<String> keys) {
+        int[] indexes = new int[keys.size()];
+        int count = 0;
+        for (String key : keys) {
+            indexes[count++] = stripe(key);
+        }
+        Arrays.sort(indexes);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || indexes[distinct - 1] != indexes[i]) {
+                indexes[distinct++] = indexes[i];
+            }
+        }
+        return Arrays.copyOf(indexes, distinct);
+    }
+
+    /**
+     * Release the first stripes of some.
+     */
+    private void release(int[] indexes, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            stripes[indexes[i]].release();
+        }
+    }
+
+    private int stripe(String key) {
+        int hash = key.hashCode();
+        // Spread the bits, as HashMap does, so keys differing in the high bits do not share a stripe.
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return (hash & Integer.MAX_VALUE) % stripes.length;
+    }
+
+    /**
+     * The locks of some keys, held until released.
+     */
+    public class Held {
+        private final int[] indexes;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Held(int[] indexes) {
+            this.indexes = indexes;
+        }
+
+        /**
+         * Release the locks. Does nothing if they are already released.
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                StripedLocks.this.release(indexes, indexes.length);
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.DomsWSClient;
+import dk.statsbiblioteket.doms.client.exceptions.NoObjectFound;
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import dk.statsbiblioteket.doms.client.exceptions.XMLParseException;
+import dk.statsbiblioteket.doms.client.relations.LiteralRelation;
+import dk.statsbiblioteket.doms.client.relations.Relation;
+import dk.statsbiblioteket.doms.client.utils.Constants;
+import dk.statsbiblioteket.doms.client.utils.FileInfo;
+import org.w3c.dom.Document;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DOMS client capping the number of calls made at once while ingesting, independently of how many files are
+ * processed at once. With workers on virtual threads, thousands of files can be in flight, waiting on DOMS for most
+ * of the time, while DOMS only sees as many calls as it can take.
+ * <p/>
+ * Calls wait for a permit in the order they arrive. Put this client innermost, so lookups answered by a cache and the
+ * waits between retries do not hold a permit.
+ */
+public class ThrottlingDomsWSClient extends DelegatingDomsWSClient {
+    private final int maxConcurrentCalls;
+    private final Semaphore permits;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong waitingCalls = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * Initialise the client.
+     *
+     * @param delegate The client to pass calls on to.
+     * @param maxConcurrentCalls The number of calls to make at once at most.
+     */
+    public ThrottlingDomsWSClient(DomsWSClient delegate, int maxConcurrentCalls) {
+        super(delegate);
+        if (maxConcurrentCalls < 1) {
+            throw new IllegalArgumentException("Concurrent calls must be positive, was " + maxConcurrentCalls);
+        }
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.permits = new Semaphore(maxConcurrentCalls, true);
+    }
+
+    /**
+     * Wait for a permit to call DOMS. Not interruptible, since the calls throw no exception fit for it, and a permit
+     * is only waited for as long as it takes calls ahead to finish.
+     */
+    private void acquire() {
+        calls.incrementAndGet();
+        if (permits.tryAcquire()) {
+            return;
+        }
+        waitingCalls.incrementAndGet();
+        long start = System.nanoTime();
+        permits.acquireUninterruptibly();
+        waitNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * @return The number of calls waiting for a permit or being made right now.
+     */
+    public int getCallsInFlight() {
+        return maxConcurrentCalls - permits.availablePermits() + permits.getQueueLength();
+    }
+
+    @Override
+    public String createObjectFromTemplate(String templatePID, String comment) throws ServerOperationFailed {
+        acquire();
+        try {
+            return delegate.createObjectFromTemplate(templatePID, comment);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public String createObjectFromTemplate(String templatePID, List<String> oldIdentifiers, String comment)
+            throws ServerOperationFailed {
+        acquire();
+        try {
+            return delegate.createObjectFromTemplate(templatePID, oldIdentifiers, comment);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public String createFileObject(String templatePID, FileInfo fileInfo, String comment) throws ServerOperationFailed {
+        acquire();
+        try {
+            return delegate.createFileObject(templatePID, fileInfo, comment);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public String getFileObjectPID(URL fileURL) throws NoObjectFound, ServerOperationFailed {
+        acquire();
+        try {
+            return delegate.getFileObjectPID(fileURL);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public List<String> getPidFromOldIdentifier(String oldIdentifier) throws NoObjectFound, ServerOperationFailed {
+        acquire();
+        try {
+            return delegate.getPidFromOldIdentifier(oldIdentifier);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public String getLabel(String uuid) {
+        acquire();
+        try {
+            return delegate.getLabel(uuid);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public Document getDataStream(String objectPID, String datastreamID) throws ServerOperationFailed {
+        acquire();
+        try {
+            return delegate.getDataStream(objectPID, datastreamID);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public void updateDataStream(String objectPID, String dataStreamID, Document newDataStreamContents, String comment)
+            throws ServerOperationFailed {
+        acquire();
+        try {
+            delegate.updateDataStream(objectPID, dataStreamID, newDataStreamContents, comment);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public void addObjectRelation(String pid, String predicate, String objectPid, String comment)
+            throws ServerOperationFailed, XMLParseException {
+        acquire();
+        try {
+            delegate.addObjectRelation(pid, predicate, objectPid, comment);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public void removeObjectRelation(LiteralRelation relation, String comment) throws ServerOperationFailed {
+        acquire();
+        try {
+            delegate.removeObjectRelation(relation, comment);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public List<Relation> listObjectRelations(String objectPID, String relationType) throws ServerOperationFailed {
+        acquire();
+        try {
+            return delegate.listObjectRelations(objectPID, relationType);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public void publishObjects(String comment, String... pidsToPublish) throws ServerOperationFailed {
+        acquire();
+        try {
+            delegate.publishObjects(comment, pidsToPublish);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public void unpublishObjects(String comment, String... pidsToUnpublish) throws ServerOperationFailed {
+        acquire();
+        try {
+            delegate.unpublishObjects(comment, pidsToUnpublish);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public void deleteObjects(String comment, String... pidsToDelete) throws ServerOperationFailed {
+        acquire();
+        try {
+            delegate.deleteObjects(comment, pidsToDelete);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public void setObjectLabel(String objectPID, String objectLabel, String comment) throws ServerOperationFailed {
+        acquire();
+        try {
+            delegate.setObjectLabel(objectPID, objectLabel, comment);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public Constants.FedoraState getState(String pid) throws ServerOperationFailed {
+        acquire();
+        try {
+            return delegate.getState(pid);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        long waiting = waitingCalls.get();
+        return "DOMS calls capped at " + maxConcurrentCalls + " at once: " + waiting + " of " + calls.get()
+                + " calls waited for a permit"
+                + (waiting == 0 ? "" : ", " + waitNanos.get() / waiting / 1000000 + " ms on average");
+    }
+}
@@ -0,0 +1,44 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads where the JVM has them, from Java 21, while the ingester is still built for older JVMs.
+ * <p/>
+ * A worker on a virtual thread blocked on a call to DOMS leaves its carrier thread to other workers, so a pool of
+ * virtual workers can keep many files in flight on a few carrier threads. Cap the calls reaching DOMS separately, see
+ * {@link ThrottlingDomsWSClient}. A virtual thread blocked inside a synchronized block keeps its carrier, so this pays
+ * off as long as the blocking calls are made outside of those.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Get a factory of virtual threads, named by a prefix and a counter.
+     *
+     * @param namePrefix The prefix of the names of the threads.
+     * @return The factory, or null if the JVM has no virtual threads.
+     */
+    public static ThreadFactory factory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, namePrefix, 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            // Before Java 21, or on Java 19 and 20 without preview features enabled.
+            return null;
+        }
+    }
+
+    /**
+     * @return True if the JVM has virtual threads.
+     */
+    public static boolean isAvailable() {
+        return factory("probe-") != null;
+    }
+}
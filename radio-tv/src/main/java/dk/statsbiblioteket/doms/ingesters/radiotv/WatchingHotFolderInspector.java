@@ -0,0 +1,312 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * This class reports creation, modification and deletion of files in a hot folder as they happen, using file system
+ * events rather than periodic listing of the folder.
+ * <p/>
+ * The full folder is only listed once at startup, and again if the file system reports that events were lost. Between
+ * those, the cost of watching the folder is independent of the number of files in it. Like
+ * {@link NonRecursiveHotFolderInspector} it only reports XML files, and only files directly in the hot folder.
+ * <p/>
+ * A file is created before it is written, so it is only reported once its size and timestamp have stayed the same for
+ * a settle interval, so files still being written are not ingested half done.
+ */
+public class WatchingHotFolderInspector implements HotFolderInspector, Runnable {
+
+    /**
+     * How often to check the kill flag while no events arrive, in milliseconds.
+     */
+    private static final long KILL_FLAG_CHECK_INTERVAL = 1000;
+
+    /**
+     * How long a file must stay unchanged before it is reported, by default, in milliseconds.
+     */
+    public static final long DEFAULT_SETTLE_INTERVAL = 2000;
+
+    private volatile boolean killFlag = false;
+
+    /**
+     * Set if the client is stopped by a shutdown controller, rather than by this inspector.
+     */
+    private volatile boolean clientStoppedByController = false;
+
+    /**
+     * Full path to the hot folder to watch.
+     */
+    private final File folderToScan;
+
+    /**
+     * Map containing paths and timestamps for all files reported to the client and not since reported deleted.
+     */
+    private final Map<File, Long> knownFolderContents;
+
+    /**
+     * Files changed, but not yet unchanged for the settle interval, with how they were when last seen changed.
+     */
+    private final Map<File, Observation> unsettledFiles = new HashMap<File, Observation>();
+
+    /**
+     * How long a file must stay unchanged before it is reported, in milliseconds.
+     */
+    private final long settleIntervalMillis;
+
+    /**
+     * Reference to the client to call when any changes are detected.
+     */
+    private final HotFolderScannerClient callBackClient;
+
+    /**
+     * Create a <code>WatchingHotFolderInspector</code> instance which watches the folder specified by
+     * <code>hotFolderToScan</code> and notifies the client specified by <code>client</code> about any changes, until
+     * the kill flag is set.
+     *
+     * @param hotFolderToScan File path to a hot folder to watch.
+     * @param client          Reference to a client to notify about changes in the folder.
+     */
+    public WatchingHotFolderInspector(File hotFolderToScan, HotFolderScannerClient client) {
+        this(hotFolderToScan, client, DEFAULT_SETTLE_INTERVAL);
+    }
+
+    /**
+     * Create a <code>WatchingHotFolderInspector</code> instance which watches the folder specified by
+     * <code>hotFolderToScan</code> and notifies the client specified by <code>client</code> about any changes, once
+     * the changed files have stayed unchanged for the given interval, until the kill flag is set.
+     *
+     * @param hotFolderToScan      File path to a hot folder to watch.
+     * @param client               Reference to a client to notify about changes in the folder.
+     * @param settleIntervalMillis How long a file must stay unchanged before it is reported, in milliseconds.
+     */
+    public WatchingHotFolderInspector(File hotFolderToScan, HotFolderScannerClient client,
+                                      long settleIntervalMillis) {
+        folderToScan = hotFolderToScan;
+        callBackClient = client;
+        knownFolderContents = new HashMap<File, Long>();
+        this.settleIntervalMillis = settleIntervalMillis;
+    }
+
+    /**
+     * Watch the hot folder for created, modified or deleted files and notify the client about this. Returns when the
+     * kill flag is set, or the hot folder can no longer be watched.
+     */
+    @Override
+    public void run() {
+        WatchService watchService;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            // Register before the initial scan, so no file can appear unnoticed between the scan and the first event.
+            folderToScan.toPath().register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        } catch (IOException e) {
+            System.err.println("Unable to watch hot folder " + folderToScan.getAbsolutePath());
+            e.printStackTrace();
+            return;
+        }
+
+        callBackClient.startEngine();
+        try {
+            reconcile();
+            while (!killFlag) {
+                long timeout = unsettledFiles.isEmpty()
+                               ? KILL_FLAG_CHECK_INTERVAL
+                               : Math.max(1, Math.min(KILL_FLAG_CHECK_INTERVAL, settleIntervalMillis / 2));
+                WatchKey key = watchService.poll(timeout, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    reportSettled();
+                    continue;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (killFlag) {
+                        break;
+                    }
+                    if (event.kind() == OVERFLOW) {
+                        // Events were lost, so we no longer know the state of the folder.
+                        reconcile();
+                        continue;
+                    }
+                    File file = new File(folderToScan, ((Path) event.context()).toString());
+                    if (!isXmlFile(file.getName())) {
+                        continue;
+                    }
+                    if (event.kind() == ENTRY_DELETE) {
+                        inspectDeleted(file);
+                    } else {
+                        inspect(file);
+                    }
+                }
+                if (!key.reset()) {
+                    System.err.println("Hot folder " + folderToScan.getAbsolutePath()
+                                       + " can no longer be watched. Terminating ingester.");
+                    break;
+                }
+                reportSettled();
+            }
+            if (killFlag) {
+                System.out.println("'stop file' detected. Terminating ingester.");
+            }
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted while watching hot folder. Terminating ingester.");
+        } finally {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            // Unless stopped by the controller, which stops the client with its own deadline.
+            if (!killFlag || !clientStoppedByController) {
+                callBackClient.stopEngine();
+            }
+        }
+    }
+
+    /**
+     * Leave stopping the client to a {@link ShutdownController}, which gives it until a deadline shared with other
+     * clients. Otherwise the inspector stops the client itself once the kill flag is set, waiting as long as it takes.
+     */
+    public void setClientStoppedByController() {
+        clientStoppedByController = true;
+    }
+
+    @Override
+    public void setKillFlag() {
+        killFlag = true;
+    }
+
+    /**
+     * List the full hot folder and report any differences from what has been reported so far.
+     */
+    private void reconcile() {
+        File[] files = folderToScan.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return isXmlFile(name);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File currentFile : files) {
+            if (killFlag) {
+                return;
+            }
+            inspect(currentFile);
+        }
+
+        unsettledFiles.keySet().retainAll(Arrays.asList(files));
+        Set<File> deletedFiles = new HashSet<File>(knownFolderContents.keySet());
+        deletedFiles.removeAll(Arrays.asList(files));
+        for (File deletedFile : deletedFiles) {
+            inspectDeleted(deletedFile);
+        }
+    }
+
+    /**
+     * Note the file as changed, if it has not been reported before, or its timestamp changed since it was last
+     * reported. It is reported once it has stayed unchanged for the settle interval.
+     *
+     * @param file The file to inspect.
+     */
+    private void inspect(File file) {
+        if (!file.isFile()) {
+            // Already gone again, the delete event will follow.
+            unsettledFiles.remove(file);
+            return;
+        }
+        Observation observation = new Observation(file);
+        Observation previous = unsettledFiles.get(file);
+        if (previous != null) {
+            if (!previous.isSameAs(observation)) {
+                unsettledFiles.put(file, observation);
+            }
+        } else if (!Long.valueOf(observation.lastModified).equals(knownFolderContents.get(file))) {
+            unsettledFiles.put(file, observation);
+        }
+    }
+
+    /**
+     * Report the files that have stayed unchanged for the settle interval as added if they have not been reported
+     * before, or as modified otherwise.
+     */
+    private void reportSettled() {
+        Iterator<Map.Entry<File, Observation>> unsettled = unsettledFiles.entrySet().iterator();
+        while (unsettled.hasNext() && !killFlag) {
+            Map.Entry<File, Observation> entry = unsettled.next();
+            File file = entry.getKey();
+            if (!file.isFile()) {
+                unsettled.remove();
+                continue;
+            }
+            Observation observation = new Observation(file);
+            if (!entry.getValue().isSameAs(observation)) {
+                // Still being written, without events from some file systems.
+                entry.setValue(observation);
+                continue;
+            }
+            if (observation.seen - entry.getValue().seen < settleIntervalMillis) {
+                continue;
+            }
+            unsettled.remove();
+            final Long previousTimeStamp = knownFolderContents.put(file, observation.lastModified);
+            if (previousTimeStamp == null) {
+                callBackClient.fileAdded(file);
+            } else if (previousTimeStamp != observation.lastModified) {
+                callBackClient.fileModified(file);
+            }
+        }
+    }
+
+    /**
+     * Report the file as deleted, if it has been reported as added.
+     *
+     * @param file The deleted file.
+     */
+    private void inspectDeleted(File file) {
+        unsettledFiles.remove(file);
+        if (knownFolderContents.remove(file) != null) {
+            callBackClient.fileDeleted(file);
+        }
+    }
+
+    private static boolean isXmlFile(String name) {
+        return name.trim().toLowerCase().endsWith(".xml");
+    }
+
+    /**
+     * The size and timestamp of a file, and when they were seen.
+     */
+    private static class Observation {
+        private final long size;
+        private final long lastModified;
+        private final long seen;
+
+        private Observation(File file) {
+            size = file.length();
+            lastModified = file.lastModified();
+            seen = System.currentTimeMillis();
+        }
+
+        private boolean isSameAs(Observation other) {
+            return size == other.size && lastModified == other.lastModified;
+        }
+    }
+}
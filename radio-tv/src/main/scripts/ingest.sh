@@ -45,18 +45,9 @@ shift `expr $OPTIND - 1`
 mkdir -p "$STOPFOLDER"
 rm -f "$STOPFOLDER/*"
 
+# Normal and forced ingest share one JVM, with one pool of workers split between them by weight
 java -cp .:$BASEDIR/lib/* dk.statsbiblioteket.doms.ingesters.radiotv.Ingester \
-   -hotfolder=$HOTFOLDER -lukefolder=$LUKEFOLDER -coldfolder=$COLDFOLDER \
+   -lane=$HOTFOLDER,$LUKEFOLDER,$COLDFOLDER,false,$WEIGHT \
+   -lane=$FORCED_HOTFOLDER,$FORCED_LUKEFOLDER,$FORCED_COLDFOLDER,true,$FORCED_WEIGHT \
    -stopfolder=$STOPFOLDER -wsdl=$WSDL -username=$USERNAME -password=$PASSWORD \
-   -preingestschema=$SCHEMA -overwrite=false &
-pid_normal=$!
-
-java -cp .:$BASEDIR/lib/* dk.statsbiblioteket.doms.ingesters.radiotv.Ingester \
-   -hotfolder=$FORCED_HOTFOLDER -lukefolder=$FORCED_LUKEFOLDER -coldfolder=$FORCED_COLDFOLDER \
-   -stopfolder=$STOPFOLDER -wsdl=$WSDL -username=$USERNAME -password=$PASSWORD \
-   -preingestschema=$SCHEMA -overwrite=true  &
-pid_forced=$!
-
-wait $pid_normal
-wait $pid_forced
-
+   -preingestschema=$SCHEMA
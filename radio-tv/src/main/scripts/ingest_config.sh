@@ -8,9 +8,13 @@ LUKEFOLDER=$BASEDIR/lukewarm
 HOTFOLDER=$BASEDIR/hotfolder
 
 # Overwrite queue
-COLDFOLDER=$BASEDIR/forced/coldfolder
-LUKEFOLDER=$BASEDIR/forced/lukewarm
-HOTFOLDER=$BASEDIR/forced/hotfolder
+FORCED_COLDFOLDER=$BASEDIR/forced/coldfolder
+FORCED_LUKEFOLDER=$BASEDIR/forced/lukewarm
+FORCED_HOTFOLDER=$BASEDIR/forced/hotfolder
+
+# Share of the workers for each queue, when both have files waiting
+WEIGHT=3
+FORCED_WEIGHT=1
 
 
 STOPFOLDER=$BASEDIR/stopfolder
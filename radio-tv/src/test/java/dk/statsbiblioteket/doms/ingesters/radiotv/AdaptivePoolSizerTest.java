@@ -0,0 +1,69 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the additive increase, multiplicative decrease pool sizing.
+ */
+public class AdaptivePoolSizerTest {
+
+    @Test
+    public void testGrowsWhileHealthyUpToCeiling() {
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(2, 4);
+        runRound(sizer, 100, true);
+        assertEquals(3, sizer.getPoolSize());
+        runRound(sizer, 100, true);
+        assertEquals(4, sizer.getPoolSize());
+        runRound(sizer, 100, true);
+        assertEquals("Must never exceed the ceiling", 4, sizer.getPoolSize());
+    }
+
+    @Test
+    public void testHalvesOnErrors() {
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(8, 8);
+        runRound(sizer, 100, false);
+        assertEquals(4, sizer.getPoolSize());
+        runRound(sizer, 100, false);
+        runRound(sizer, 100, false);
+        runRound(sizer, 100, false);
+        assertEquals("Must never go below one", 1, sizer.getPoolSize());
+    }
+
+    @Test
+    public void testHalvesOnLatencyIncrease() {
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(4, 10);
+        runRound(sizer, 100, true);
+        assertEquals(5, sizer.getPoolSize());
+        runRound(sizer, 1000, true);
+        assertEquals(2, sizer.getPoolSize());
+    }
+
+    @Test
+    public void testBaselineFollowsPermanentSlowdown() {
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(1, 10);
+        runRound(sizer, 100, true);
+        for (int i = 0; i < 50; i++) {
+            runRound(sizer, 300, true);
+        }
+        assertTrue("Should grow again once the slowdown is the new normal", sizer.getPoolSize() > 1);
+    }
+
+    @Test
+    public void testOnlyDecidesOncePerRound() {
+        AdaptivePoolSizer sizer = new AdaptivePoolSizer(3, 10);
+        assertFalse(sizer.record(100, true));
+        assertFalse(sizer.record(100, true));
+        assertTrue(sizer.record(100, true));
+    }
+
+    private void runRound(AdaptivePoolSizer sizer, long latency, boolean success) {
+        int size = sizer.getPoolSize();
+        for (int i = 0; i < size; i++) {
+            sizer.record(latency, success);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.exceptions.NoObjectFound;
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Test caching of DOMS lookups.
+ */
+public class CachingDomsWSClientTest {
+
+    @Test
+    public void testFileLookupsAreCached() throws Exception {
+        CountingDomsWSClient domsClient = new CountingDomsWSClient();
+        CachingDomsWSClient cachingClient = new CachingDomsWSClient(domsClient, 10, 60000, 60000);
+
+        URL url = new URL("http://files/a");
+        assertEquals("uuid:http://files/a", cachingClient.getFileObjectPID(url));
+        assertEquals("uuid:http://files/a", cachingClient.getFileObjectPID(new URL("http://files/a")));
+        assertEquals(1, domsClient.fileLookups);
+        assertEquals(1, cachingClient.getFilePidCache().getHitCount());
+        assertEquals(1, cachingClient.getFilePidCache().getMissCount());
+    }
+
+    @Test
+    public void testNegativeResultsExpire() throws Exception {
+        CountingDomsWSClient domsClient = new CountingDomsWSClient();
+        CachingDomsWSClient cachingClient = new CachingDomsWSClient(domsClient, 10, 60000, 100);
+
+        URL url = new URL("http://files/missing");
+        for (int i = 0; i < 2; i++) {
+            try {
+                cachingClient.getFileObjectPID(url);
+                fail("Missing file should not be found");
+            } catch (NoObjectFound e) {
+                // Expected
+            }
+        }
+        assertEquals("Negative result should be cached", 1, domsClient.fileLookups);
+
+        Thread.sleep(150);
+        try {
+            cachingClient.getFileObjectPID(url);
+            fail("Missing file should not be found");
+        } catch (NoObjectFound e) {
+            // Expected
+        }
+        assertEquals("Negative result should have expired", 2, domsClient.fileLookups);
+    }
+
+    @Test
+    public void testCreateInvalidatesIdentifiers() throws Exception {
+        CountingDomsWSClient domsClient = new CountingDomsWSClient();
+        CachingDomsWSClient cachingClient = new CachingDomsWSClient(domsClient, 10, 60000, 60000);
+
+        assertEquals(Collections.<String>emptyList(), cachingClient.getPidFromOldIdentifier("ritzau"));
+        assertEquals(Collections.<String>emptyList(), cachingClient.getPidFromOldIdentifier("ritzau"));
+        assertEquals(1, domsClient.programLookups);
+
+        domsClient.program = "uuid:program";
+        cachingClient.createObjectFromTemplate(Common.PROGRAM_TEMPLATE_PID, Arrays.asList("ritzau"), "test");
+        assertEquals(Arrays.asList("uuid:program"), cachingClient.getPidFromOldIdentifier("ritzau"));
+        assertEquals(2, domsClient.programLookups);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        CountingDomsWSClient domsClient = new CountingDomsWSClient();
+        CachingDomsWSClient cachingClient = new CachingDomsWSClient(domsClient, 2, 60000, 60000);
+
+        cachingClient.getFileObjectPID(new URL("http://files/a"));
+        cachingClient.getFileObjectPID(new URL("http://files/b"));
+        cachingClient.getFileObjectPID(new URL("http://files/a"));
+        cachingClient.getFileObjectPID(new URL("http://files/c"));
+        assertEquals(3, domsClient.fileLookups);
+
+        cachingClient.getFileObjectPID(new URL("http://files/a"));
+        assertEquals("Recently used entry should be kept", 3, domsClient.fileLookups);
+        cachingClient.getFileObjectPID(new URL("http://files/b"));
+        assertEquals("Least recently used entry should be evicted", 4, domsClient.fileLookups);
+    }
+
+    /**
+     * DOMS stub counting lookups. It knows all files except missing ones, and at most one program.
+     */
+    private static class CountingDomsWSClient extends TestDomsWSClient {
+        private int fileLookups = 0;
+        private int programLookups = 0;
+        private String program;
+
+        @Override
+        public String getFileObjectPID(URL fileURL) throws NoObjectFound, ServerOperationFailed {
+            fileLookups++;
+            if (fileURL.getPath().equals("/missing")) {
+                throw new NoObjectFound();
+            }
+            return "uuid:" + fileURL;
+        }
+
+        @Override
+        public List<String> getPidFromOldIdentifier(String oldIdentifier) {
+            programLookups++;
+            return program == null ? Collections.<String>emptyList() : Collections.singletonList(program);
+        }
+    }
+}
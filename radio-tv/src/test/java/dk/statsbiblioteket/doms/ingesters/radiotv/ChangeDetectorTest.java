@@ -0,0 +1,162 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.exceptions.NoObjectFound;
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test detection of unchanged datastreams.
+ */
+public class ChangeDetectorTest {
+
+    @Test
+    public void testCanonicalDigest() throws Exception {
+        byte[] digest = ChangeDetector.digest(
+                parse("<p:a xmlns:p='urn:x' b='1' c='2'>\n  <p:d>text</p:d>\n</p:a>"));
+        assertTrue("Prefixes, attribute order and whitespace should not matter", Arrays.equals(digest,
+                ChangeDetector.digest(parse("<a xmlns='urn:x' c='2' b='1'><!-- note --><d> text </d></a>"))));
+        assertFalse("Text should matter", Arrays.equals(digest,
+                ChangeDetector.digest(parse("<a xmlns='urn:x' b='1' c='2'><d>other</d></a>"))));
+        assertFalse("Namespaces should matter", Arrays.equals(digest,
+                ChangeDetector.digest(parse("<a xmlns='urn:y' b='1' c='2'><d>text</d></a>"))));
+        assertFalse("Markup in text should not pass for elements", Arrays.equals(
+                ChangeDetector.digest(parse("<a><b/></a>")),
+                ChangeDetector.digest(parse("<a>&lt;{}b&gt;&lt;/&gt;</a>"))));
+        String xsi = "xmlns:xsi='" + XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI + "'";
+        assertFalse("Prefixes in attribute values are kept as they are", Arrays.equals(
+                ChangeDetector.digest(parse("<a xmlns:p='urn:x' " + xsi + " xsi:type='p:t'/>")),
+                ChangeDetector.digest(parse("<a xmlns:q='urn:x' " + xsi + " xsi:type='q:t'/>"))));
+    }
+
+    @Test
+    public void testContentInDomsIsFetchedOnce() throws Exception {
+        RecordingDomsWSClient domsClient = new RecordingDomsWSClient();
+        domsClient.datastreams.put("uuid:p/PBCORE", parse("<a xmlns='urn:x'><b>1</b></a>"));
+        ChangeDetector detector = new ChangeDetector(domsClient, 10, 60000);
+
+        assertFalse(detector.isChanged("uuid:p", "PBCORE", parse("<x:a xmlns:x='urn:x'><x:b>1</x:b></x:a>")));
+        assertTrue(detector.isChanged("uuid:p", "PBCORE", parse("<a xmlns='urn:x'><b>2</b></a>")));
+        assertEquals(1, domsClient.fetches);
+
+        detector.written("uuid:p", "PBCORE", parse("<a xmlns='urn:x'><b>2</b></a>"));
+        assertFalse(detector.isChanged("uuid:p", "PBCORE", parse("<a xmlns='urn:x'><b>2</b></a>")));
+        assertEquals(1, domsClient.fetches);
+        assertEquals(2, detector.getUnchangedCount());
+        assertEquals(1, detector.getChangedCount());
+    }
+
+    /**
+     * Content that cannot be fetched is reported changed at once, so it is written.
+     */
+    @Test
+    public void testFailedFetchCountsAsChanged() throws Exception {
+        RecordingDomsWSClient domsClient = new RecordingDomsWSClient();
+        domsClient.failing = true;
+        ChangeDetector detector = new ChangeDetector(domsClient, 10, 60000);
+
+        assertTrue(detector.isChanged("uuid:p", "PBCORE", parse("<a xmlns='urn:x'><b>1</b></a>")));
+        assertTrue(detector.isLabelChanged("uuid:p", "label"));
+        assertEquals(1, domsClient.fetches);
+        assertEquals(2, detector.getChangedCount());
+    }
+
+    /**
+     * Ingesting the same program again must not write any datastream or label again.
+     */
+    @Test
+    public void testResubmittedProgramIsNotWritten() throws Exception {
+        RecordingDomsWSClient domsClient = new RecordingDomsWSClient();
+        ChangeDetector detector = new ChangeDetector(domsClient, 100, 60000);
+        ProgramMetadata programMetadata = new DomProgramExtractor(RadioTVMetadataProcessor.createFileParsers(null))
+                .extract(new File(getClass().getResource("/2012-11-14_23-20-00_dr1.xml").toURI()));
+
+        new RecordCreator(domsClient, true, null, detector).ingestProgram(programMetadata);
+        assertEquals(Arrays.asList("PBCORE", "RITZAU_ORIGINAL", "GALLUP_ORIGINAL", "PROGRAM_BROADCAST"),
+                     domsClient.updates);
+        assertEquals(1, domsClient.labels);
+
+        domsClient.updates.clear();
+        new RecordCreator(domsClient, true, null, detector).ingestProgram(programMetadata);
+        assertEquals(Collections.<String>emptyList(), domsClient.updates);
+        assertEquals(1, domsClient.labels);
+    }
+
+    private static Document parse(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+    }
+
+    /**
+     * DOMS stub with one existing program, which records the datastreams written, except DC.
+     */
+    private static class RecordingDomsWSClient extends TestDomsWSClient {
+        private final Map<String, Document> datastreams = new HashMap<String, Document>();
+        private final List<String> updates = new ArrayList<String>();
+        private int fetches = 0;
+        private int labels = 0;
+        /** Whether fetching content fails, like when DOMS is unavailable. */
+        private boolean failing = false;
+
+        @Override
+        public List<String> getPidFromOldIdentifier(String oldIdentifier)
+                throws NoObjectFound, ServerOperationFailed {
+            return Collections.singletonList("uuid:program");
+        }
+
+        @Override
+        public Document getDataStream(String objectPID, String datastreamID) throws ServerOperationFailed {
+            if (datastreamID.equals(Common.DC_DS_ID)) {
+                try {
+                    return parse("<dc xmlns='" + Common.DC_NAMESPACE + "'><identifier>id</identifier></dc>");
+                } catch (Exception e) {
+                    throw new ServerOperationFailed("Bad DC", e);
+                }
+            }
+            fetches++;
+            if (failing) {
+                throw new RuntimeException("DOMS is unavailable");
+            }
+            return datastreams.get(objectPID + "/" + datastreamID);
+        }
+
+        @Override
+        public void updateDataStream(String objectPID, String dataStreamID, Document newDataStreamContents,
+                                     String comment) throws ServerOperationFailed {
+            if (!dataStreamID.equals(Common.DC_DS_ID)) {
+                updates.add(dataStreamID);
+                datastreams.put(objectPID + "/" + dataStreamID, newDataStreamContents);
+            }
+        }
+
+        @Override
+        public String getLabel(String uuid) {
+            if (failing) {
+                throw new RuntimeException("DOMS is unavailable");
+            }
+            return super.getLabel(uuid);
+        }
+
+        @Override
+        public void setObjectLabel(String objectPID, String objectLabel, String comment) {
+            labels++;
+        }
+    }
+}
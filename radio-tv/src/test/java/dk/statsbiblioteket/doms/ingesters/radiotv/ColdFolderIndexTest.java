@@ -0,0 +1,81 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the digest index of processed files.
+ */
+public class ColdFolderIndexTest {
+    private File tempDir;
+    private File coldFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = new File(System.getProperty("java.io.tmpdir"), UUID.randomUUID().toString());
+        coldFolder = new File(tempDir, "cold");
+        assertTrue(coldFolder.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testDigestMatchesMessageDigest() throws Exception {
+        byte[] content = new byte[200 * 1024 + 17];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        File file = new File(tempDir, "large.xml");
+        FileUtils.writeByteArrayToFile(file, content);
+        assertTrue(Arrays.equals(MessageDigest.getInstance("MD5").digest(content), FileDigests.md5(file)));
+    }
+
+    @Test
+    public void testContains() throws Exception {
+        File existing = writeFile(coldFolder, "existing.xml", "content");
+        ColdFolderIndex index = new ColdFolderIndex(coldFolder);
+
+        assertTrue(index.contains("existing.xml", FileDigests.md5(existing)));
+        assertEquals(1, index.size());
+        File other = writeFile(tempDir, "other.xml", "other content");
+        assertFalse(index.contains("existing.xml", FileDigests.md5(other)));
+        assertFalse(index.contains("missing.xml", FileDigests.md5(existing)));
+    }
+
+    @Test
+    public void testAddedAndChangedFiles() throws Exception {
+        ColdFolderIndex index = new ColdFolderIndex(coldFolder);
+        File incoming = writeFile(tempDir, "moved.xml", "moved");
+        byte[] digest = FileDigests.md5(incoming);
+        assertFalse(index.contains("moved.xml", digest));
+
+        assertTrue(incoming.renameTo(new File(coldFolder, "moved.xml")));
+        index.added("moved.xml", digest);
+        assertTrue(index.contains("moved.xml", digest));
+
+        // Changed behind the back of the index.
+        File changed = writeFile(coldFolder, "moved.xml", "changed content");
+        assertFalse(index.contains("moved.xml", digest));
+        assertTrue(index.contains("moved.xml", FileDigests.md5(changed)));
+    }
+
+    private File writeFile(File folder, String name, String content) throws Exception {
+        File file = new File(folder, name);
+        FileUtils.writeStringToFile(file, content);
+        return file;
+    }
+}
@@ -0,0 +1,63 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test the per thread compiled XPath expressions.
+ */
+public class CompiledXPathTest {
+
+    @Test
+    public void testSelect() throws Exception {
+        Document document = parseSample();
+        assertEquals("Damages", Common.PBCORE_TITLE_XPATH.selectText(document));
+        assertEquals(2, Common.RECORDING_FILES_URLS_XPATH.selectNodeList(document).getLength());
+        assertNull(new CompiledXPath("//program/noSuchElement").selectNode(document));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidExpressionFailsAtOnce() {
+        new CompiledXPath("//program[");
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception {
+        Document document = parseSample();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 200; i++) {
+                // DOM trees are not thread safe for reading either, so each task gets its own.
+                final Document ownDocument = (Document) document.cloneNode(true);
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return Common.PBCORE_TITLE_XPATH.selectText(ownDocument);
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                assertEquals("Damages", result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private Document parseSample() throws Exception {
+        File sampleFile = new File(getClass().getResource("/2012-11-14_23-20-00_dr1.xml").toURI());
+        return RadioTVMetadataProcessor.createFileParsers(null).getDocumentBuilder().parse(sampleFile);
+    }
+}
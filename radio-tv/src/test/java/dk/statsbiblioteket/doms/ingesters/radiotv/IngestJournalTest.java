@@ -0,0 +1,147 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the journal of steps done for files being ingested.
+ */
+public class IngestJournalTest {
+    private static final byte[] DIGEST = new byte[FileDigests.DIGEST_LENGTH];
+    private static final byte[] OTHER_DIGEST = new byte[FileDigests.DIGEST_LENGTH];
+
+    static {
+        OTHER_DIGEST[0] = 1;
+    }
+
+    private File tempDir;
+    private File journalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = new File(System.getProperty("java.io.tmpdir"), UUID.randomUUID().toString());
+        assertTrue(tempDir.mkdirs());
+        journalFile = new File(tempDir, "journal");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    /**
+     * Steps done must be known after a restart, for the same content of the file only, until published.
+     */
+    @Test
+    public void testSurvivesRestart() throws Exception {
+        File file = new File("a.xml");
+        IngestJournal journal = new IngestJournal(journalFile);
+        IngestJournal.Checkpoints checkpoints = journal.checkpoints(file, DIGEST);
+        assertNull(checkpoints.getPid());
+        checkpoints.done(IngestJournal.Step.OBJECT, "uuid:a");
+        checkpoints.done(IngestJournal.Step.DATASTREAM, "PBCORE");
+        journal.checkpoints(new File("b.xml"), DIGEST).done(IngestJournal.Step.OBJECT, "uuid:b");
+        journal.checkpoints(new File("b.xml"), DIGEST).published();
+        journal.close();
+
+        journal = new IngestJournal(journalFile);
+        assertEquals(1, journal.size());
+        checkpoints = journal.checkpoints(file, DIGEST);
+        assertEquals("uuid:a", checkpoints.getPid());
+        assertTrue(checkpoints.isDone(IngestJournal.Step.DATASTREAM, "PBCORE"));
+        assertFalse(checkpoints.isDone(IngestJournal.Step.DATASTREAM, "RITZAU_ORIGINAL"));
+        assertFalse(checkpoints.isDone(IngestJournal.Step.LABEL, null));
+        assertNull("Other content must start over", journal.checkpoints(file, OTHER_DIGEST).getPid());
+
+        checkpoints.done(IngestJournal.Step.OBJECT, "uuid:c");
+        assertFalse("A new object must forget the steps done",
+                    checkpoints.isDone(IngestJournal.Step.DATASTREAM, "PBCORE"));
+        checkpoints.published();
+        assertNull(checkpoints.getPid());
+        journal.close();
+    }
+
+    /**
+     * A record cut short by a crash is discarded, but the records before it are kept.
+     */
+    @Test
+    public void testTruncatedRecordIsDiscarded() throws Exception {
+        IngestJournal journal = new IngestJournal(journalFile);
+        IngestJournal.Checkpoints checkpoints = journal.checkpoints(new File("a.xml"), DIGEST);
+        checkpoints.done(IngestJournal.Step.OBJECT, "uuid:a");
+        checkpoints.done(IngestJournal.Step.LABEL, null);
+        journal.close();
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        file.setLength(file.length() - 1);
+        file.close();
+
+        journal = new IngestJournal(journalFile);
+        checkpoints = journal.checkpoints(new File("a.xml"), DIGEST);
+        assertEquals("uuid:a", checkpoints.getPid());
+        assertFalse(checkpoints.isDone(IngestJournal.Step.LABEL, null));
+        checkpoints.done(IngestJournal.Step.LABEL, null);
+        journal.close();
+
+        journal = new IngestJournal(journalFile);
+        assertTrue(journal.checkpoints(new File("a.xml"), DIGEST).isDone(IngestJournal.Step.LABEL, null));
+        journal.close();
+    }
+
+    /**
+     * Steps recorded by many workers at once must all be on disk.
+     */
+    @Test
+    public void testConcurrentSteps() throws Exception {
+        final IngestJournal journal = new IngestJournal(journalFile);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final File file = new File(i + ".xml");
+            Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    IngestJournal.Checkpoints checkpoints = journal.checkpoints(file, DIGEST);
+                    checkpoints.done(IngestJournal.Step.OBJECT, "uuid:" + file.getName());
+                    for (int step = 0; step < 50; step++) {
+                        checkpoints.done(IngestJournal.Step.DATASTREAM, "DS" + step);
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        journal.close();
+
+        IngestJournal reopened = new IngestJournal(journalFile);
+        assertEquals(8, reopened.size());
+        for (int i = 0; i < 8; i++) {
+            IngestJournal.Checkpoints checkpoints = reopened.checkpoints(new File(i + ".xml"), DIGEST);
+            assertEquals("uuid:" + i + ".xml", checkpoints.getPid());
+            assertTrue(checkpoints.isDone(IngestJournal.Step.DATASTREAM, "DS49"));
+        }
+        reopened.close();
+    }
+}
@@ -0,0 +1,168 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the ledger of files seen in the hot folder.
+ */
+public class IngestLedgerTest {
+    private File tempDir;
+    private File hotFolder;
+    private File ledgerFile;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = new File(System.getProperty("java.io.tmpdir"), UUID.randomUUID().toString());
+        hotFolder = new File(tempDir, "hot");
+        assertTrue(hotFolder.mkdirs());
+        ledgerFile = new File(tempDir, "ledger");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testChanges() throws Exception {
+        IngestLedger ledger = new IngestLedger();
+        File file = createFile("a.xml", "a");
+        assertEquals(IngestLedger.Change.ADDED, ledger.update(file));
+        assertEquals(IngestLedger.Change.UNCHANGED, ledger.update(file));
+        assertEquals(IngestLedger.Outcome.PENDING, ledger.getOutcome(file));
+
+        FileUtils.writeStringToFile(file, "changed");
+        assertEquals(IngestLedger.Change.MODIFIED, ledger.update(file));
+
+        assertEquals(Arrays.asList(file), ledger.removeMissing(hotFolder, Collections.<File>emptyList()));
+        assertEquals(0, ledger.size());
+    }
+
+    /**
+     * Processed files must not be reported again after a restart, but files not yet processed must.
+     */
+    @Test
+    public void testSurvivesRestart() throws Exception {
+        File processed = createFile("processed.xml", "processed");
+        File failed = createFile("failed.xml", "failed");
+        File pending = createFile("pending.xml", "pending");
+        File gone = createFile("gone.xml", "gone");
+
+        IngestLedger ledger = new IngestLedger(ledgerFile);
+        for (File file : new File[]{processed, failed, pending, gone}) {
+            ledger.update(file);
+        }
+        ledger.recordOutcome(processed, IngestLedger.Outcome.INGESTED, new byte[16]);
+        ledger.recordOutcome(failed, IngestLedger.Outcome.FAILED, null);
+        ledger.recordOutcome(gone, IngestLedger.Outcome.INGESTED, null);
+        assertTrue(gone.delete());
+        assertEquals(Arrays.asList(gone), ledger.removeMissing(hotFolder, Arrays.asList(processed, failed, pending)));
+        ledger.close();
+
+        ledger = new IngestLedger(ledgerFile);
+        assertEquals(2, ledger.size());
+        assertEquals(IngestLedger.Outcome.INGESTED, ledger.getOutcome(processed));
+        assertEquals(IngestLedger.Change.UNCHANGED, ledger.update(processed));
+        assertEquals(IngestLedger.Change.UNCHANGED, ledger.update(failed));
+        assertEquals(IngestLedger.Change.ADDED, ledger.update(pending));
+        ledger.close();
+    }
+
+    /**
+     * Duplicates must be told apart from files ingested after a restart.
+     */
+    @Test
+    public void testDuplicateOutcomeIsReloaded() throws Exception {
+        File ingested = createFile("ingested.xml", "ingested");
+        File duplicate = createFile("duplicate.xml", "duplicate");
+        IngestLedger ledger = new IngestLedger(ledgerFile);
+        ledger.update(ingested);
+        ledger.recordOutcome(ingested, IngestLedger.Outcome.INGESTED, null);
+        ledger.update(duplicate);
+        ledger.recordOutcome(duplicate, IngestLedger.Outcome.DUPLICATE, new byte[16]);
+        ledger.close();
+
+        ledger = new IngestLedger(ledgerFile);
+        assertEquals(2, ledger.size());
+        assertEquals(IngestLedger.Outcome.INGESTED, ledger.getOutcome(ingested));
+        assertEquals(IngestLedger.Outcome.DUPLICATE, ledger.getOutcome(duplicate));
+        assertEquals(IngestLedger.Change.UNCHANGED, ledger.update(duplicate));
+        ledger.close();
+    }
+
+    @Test
+    public void testTruncatedRecordIsDropped() throws Exception {
+        File first = createFile("first.xml", "first");
+        File second = createFile("second.xml", "second");
+        IngestLedger ledger = new IngestLedger(ledgerFile);
+        ledger.update(first);
+        ledger.recordOutcome(first, IngestLedger.Outcome.INGESTED, null);
+        ledger.update(second);
+        ledger.recordOutcome(second, IngestLedger.Outcome.INGESTED, null);
+        ledger.close();
+
+        RandomAccessFile raf = new RandomAccessFile(ledgerFile, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        ledger = new IngestLedger(ledgerFile);
+        assertEquals(IngestLedger.Outcome.INGESTED, ledger.getOutcome(first));
+        assertEquals(IngestLedger.Change.ADDED, ledger.update(second));
+        ledger.close();
+    }
+
+    /**
+     * Many files coming and going must keep lookups correct, and the ledger file compact.
+     */
+    @Test
+    public void testManyFiles() throws Exception {
+        IngestLedger ledger = new IngestLedger(ledgerFile);
+        List<File> current = new ArrayList<File>();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 1000; i++) {
+                File file = new File(hotFolder, round + "_" + i + ".xml");
+                assertEquals(IngestLedger.Change.ADDED, ledger.update(file));
+                ledger.recordOutcome(file, IngestLedger.Outcome.INGESTED, null);
+                current.add(file);
+            }
+            // Keep every other file.
+            List<File> kept = new ArrayList<File>();
+            for (int i = 0; i < current.size(); i += 2) {
+                kept.add(current.get(i));
+            }
+            assertEquals(current.size() - kept.size(), ledger.removeMissing(hotFolder, kept).size());
+            current = kept;
+            for (File file : current) {
+                assertEquals(IngestLedger.Change.UNCHANGED, ledger.update(file));
+            }
+        }
+        assertEquals(current.size(), ledger.size());
+        ledger.close();
+
+        assertTrue("Ledger file should have been compacted, was " + ledgerFile.length(),
+                   ledgerFile.length() < 70L * 20000);
+        ledger = new IngestLedger(ledgerFile);
+        assertEquals(current.size(), ledger.size());
+        ledger.close();
+    }
+
+    private File createFile(String name, String content) throws Exception {
+        File file = new File(hotFolder, name);
+        FileUtils.writeStringToFile(file, content);
+        return file;
+    }
+}
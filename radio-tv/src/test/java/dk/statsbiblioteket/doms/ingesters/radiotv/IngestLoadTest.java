@@ -0,0 +1,158 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.utils.Constants;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Load test of the ingester end to end, from the hot folder to a simulated DOMS with latency and failures.
+ * <p/>
+ * Generated exports are dropped in a hot folder and ingested at each concurrency setting, reporting programs per
+ * second, tail latency and the files that failed. The defaults keep the test short. For a real load test, set the
+ * system properties <code>loadtest.files</code>, <code>loadtest.threads</code> (comma separated),
+ * <code>loadtest.latency</code> (median latency of each DOMS call, in milliseconds) and
+ * <code>loadtest.failurerate</code> (fraction of publish calls that fail). Since the ingester exits after
+ * {@link Common#MAX_FAIL_COUNT} failures, the number of failures must be kept below that.
+ */
+public class IngestLoadTest {
+    private static final String SAMPLE = "/2012-11-14_23-20-00_dr1.xml";
+    private static final String RITZAU_ID = "5444487RitzauProgram";
+    private static final String TVMETER_ID = "000001TvmeterProgram";
+
+    private File tempDir;
+    private String sample;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = new File(System.getProperty("java.io.tmpdir"), UUID.randomUUID().toString());
+        assertTrue(tempDir.mkdirs());
+        InputStream in = getClass().getResourceAsStream(SAMPLE);
+        try {
+            sample = IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testThroughputByConcurrency() throws Exception {
+        int files = Integer.getInteger("loadtest.files", 100);
+        String[] threadSettings = System.getProperty("loadtest.threads", "1,4,16").split(",");
+        double latencyMillis = Double.parseDouble(System.getProperty("loadtest.latency", "1"));
+        double failureRate = Double.parseDouble(System.getProperty("loadtest.failurerate", "0.02"));
+
+        for (String threadSetting : threadSettings) {
+            int threads = Integer.parseInt(threadSetting.trim());
+            SimulatedDomsWSClient domsClient = new SimulatedDomsWSClient();
+            domsClient.setLatency(SimulatedDomsWSClient.Latency.logNormal(latencyMillis, 0.5));
+            domsClient.setFailureRate(SimulatedDomsWSClient.Operation.PUBLISH, failureRate);
+            LoadResult result = run(domsClient, files, threads);
+            System.out.println(result);
+
+            long failedPublishes = domsClient.getFailures(SimulatedDomsWSClient.Operation.PUBLISH);
+            assertEquals("Every file should be ingested or failed", files, result.ingested + result.failed);
+            assertEquals("Exactly the files failing to publish should fail", failedPublishes, result.failed);
+            assertEquals(result.ingested, domsClient.countObjects(Constants.FedoraState.Active));
+            assertEquals(result.failed, domsClient.countObjects(Constants.FedoraState.Deleted));
+        }
+    }
+
+    /**
+     * Ingest generated exports from a fresh hot folder.
+     *
+     * @param domsClient The DOMS to ingest into.
+     * @param files The number of exports to generate.
+     * @param threads The number of files to process concurrently.
+     * @return What happened.
+     */
+    private LoadResult run(SimulatedDomsWSClient domsClient, int files, int threads) throws Exception {
+        File runDir = new File(tempDir, "threads" + threads);
+        File hotFolder = new File(runDir, "hot");
+        File failedFolder = new File(runDir, "failed");
+        File processedFolder = new File(runDir, "processed");
+        assertTrue(hotFolder.mkdirs() && failedFolder.mkdirs() && processedFolder.mkdirs());
+        for (String fileUrl : DomProgramExtractor.getFileUrls(
+                RadioTVMetadataProcessor.createFileParsers(null).getDocumentBuilder()
+                        .parse(getClass().getResourceAsStream(SAMPLE)))) {
+            domsClient.addFile(fileUrl);
+        }
+        for (int i = 0; i < files; i++) {
+            FileUtils.writeStringToFile(new File(hotFolder, String.format("program_%06d.xml", i)),
+                                        generateExport(i), "UTF-8");
+        }
+
+        RadioTVMetadataProcessor processor = new RadioTVMetadataProcessor(
+                domsClient, failedFolder, processedFolder, null, false, threads);
+        NonRecursiveHotFolderInspector inspector = new NonRecursiveHotFolderInspector(
+                hotFolder, processor, new IngestLedger(), processor.getMetrics());
+        long start = System.nanoTime();
+        // One scan, which waits for all files to be processed.
+        inspector.run();
+        long elapsedNanos = System.nanoTime() - start;
+        processor.stopEngine();
+
+        LatencyHistogram fileLatency = processor.getMetrics().getHistogram(IngestMetrics.FILE);
+        return new LoadResult(threads, processedFolder.list().length, count(failedFolder, ".xml"), elapsedNanos,
+                              fileLatency);
+    }
+
+    /**
+     * Generate an export of a program of its own, with the recordings of the sample.
+     */
+    private String generateExport(int index) {
+        return sample.replace(RITZAU_ID, (5444487 + index) + "RitzauProgram")
+                     .replace(TVMETER_ID, String.format("%06dTvmeterProgram", index));
+    }
+
+    private static int count(File folder, final String suffix) {
+        int count = 0;
+        for (String name : folder.list()) {
+            if (name.endsWith(suffix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The outcome of a load test at one concurrency setting.
+     */
+    private static class LoadResult {
+        private final int threads;
+        private final int ingested;
+        private final int failed;
+        private final long elapsedNanos;
+        private final LatencyHistogram fileLatency;
+
+        LoadResult(int threads, int ingested, int failed, long elapsedNanos, LatencyHistogram fileLatency) {
+            this.threads = threads;
+            this.ingested = ingested;
+            this.failed = failed;
+            this.elapsedNanos = elapsedNanos;
+            this.fileLatency = fileLatency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("threads=%d: %.1f programs/s, ingested=%d, failed=%d, p50=%.2f ms, p99=%.2f ms, "
+                                 + "max=%.2f ms", threads, ingested * 1e9 / elapsedNanos, ingested, failed,
+                                 fileLatency.getPercentile(50) / 1e6, fileLatency.getPercentile(99) / 1e6,
+                                 fileLatency.getMax() / 1e6);
+        }
+    }
+}
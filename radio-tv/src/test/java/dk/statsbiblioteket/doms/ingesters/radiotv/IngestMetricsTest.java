@@ -0,0 +1,87 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the latency histograms and metrics of the ingest.
+ */
+public class IngestMetricsTest {
+
+    @Test
+    public void testPercentilesAreWithinTwoPercent() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(42);
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            // From microseconds to seconds.
+            values[i] = (long) Math.pow(10, 3 + random.nextDouble() * 6);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        assertEquals(values.length, histogram.getCount());
+        assertEquals(values[values.length - 1], histogram.getMax());
+        for (double percentile : new double[]{50, 90, 99, 99.9}) {
+            long expected = values[(int) Math.ceil(values.length * percentile / 100) - 1];
+            long actual = histogram.getPercentile(percentile);
+            assertTrue("p" + percentile + " was " + actual + ", expected " + expected,
+                       Math.abs(actual - expected) <= expected / 50);
+        }
+    }
+
+    @Test
+    public void testSmallAndLargeValues() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+        histogram.record(-5);
+        histogram.record(3);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getPercentile(10));
+        assertEquals(3, histogram.getPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testMetricsAreAvailableThroughJmx() throws Exception {
+        IngestMetrics metrics = new IngestMetrics(null);
+        metrics.record(IngestMetrics.PARSE, System.nanoTime() - 2000000);
+        metrics.record(IngestMetrics.UPDATE_DATASTREAM + "PBCORE", System.nanoTime());
+        metrics.error(IngestMetrics.PUBLISH);
+        metrics.fileDone(true);
+        metrics.fileDone(false);
+
+        metrics.register("test");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(
+                    "dk.statsbiblioteket.doms.ingesters.radiotv:type=IngestMetrics,name=\"test\"");
+            assertEquals(1L, server.getAttribute(name, "FilesIngested"));
+            assertEquals(1L, server.getAttribute(name, "FilesFailed"));
+            TabularData stages = (TabularData) server.getAttribute(name, "Stages");
+            CompositeData parse = (CompositeData) stages.get(new Object[]{IngestMetrics.PARSE}).get("value");
+            assertEquals(1L, parse.get("count"));
+            assertTrue((Double) parse.get("p50Millis") >= 1.9);
+            TabularData errors = (TabularData) server.getAttribute(name, "Errors");
+            assertEquals(1L, errors.get(new Object[]{IngestMetrics.PUBLISH}).get("value"));
+        } finally {
+            metrics.stop();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(
+                "dk.statsbiblioteket.doms.ingesters.radiotv:type=IngestMetrics,name=\"test\"")));
+
+        String report = metrics.getReport();
+        assertTrue(report, report.indexOf(IngestMetrics.PARSE) < report.indexOf("update PBCORE"));
+    }
+}
@@ -0,0 +1,122 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test scheduling scans and control tasks.
+ */
+public class IngestSchedulerTest {
+    private final IngestScheduler scheduler = new IngestScheduler("TestScanner", "TestControl");
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testTaskSurvivesExceptions() throws Exception {
+        final CountDownLatch runs = new CountDownLatch(3);
+        scheduler.scheduleScan(new Runnable() {
+            @Override
+            public void run() {
+                runs.countDown();
+                throw new IllegalStateException("Scan failed");
+            }
+        }, 0, 1, null);
+        assertTrue("Scan should run again after failing", runs.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSlowScansNeitherOverlapNorCatchUp() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger scans = new AtomicInteger();
+        scheduler.scheduleScan(new Runnable() {
+            @Override
+            public void run() {
+                maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+                scans.incrementAndGet();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+            }
+        }, 0, 10, null);
+        Thread.sleep(500);
+
+        assertEquals(1, maxRunning.get());
+        // Each scan takes at least 110 ms from start to start.
+        assertTrue("Too many scans: " + scans.get(), scans.get() <= 5);
+    }
+
+    @Test
+    public void testControlTasksRunWhileScanIsBlocked() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch controlRuns = new CountDownLatch(2);
+        scheduler.scheduleScan(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 0, 1, null);
+        scheduler.scheduleControl(new Runnable() {
+            @Override
+            public void run() {
+                controlRuns.countDown();
+            }
+        }, 0, 1);
+        assertTrue(controlRuns.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void testScansAreSkippedAboveHighWaterMark() throws Exception {
+        final AtomicInteger queueDepth = new AtomicInteger(10);
+        MultiThreadedProcessor pipeline = new MultiThreadedProcessor(1) {
+            @Override
+            public int getQueueDepth() {
+                return queueDepth.get();
+            }
+
+            @Override
+            public void fileAdded(File addedFile) {
+            }
+
+            @Override
+            public void fileModified(File modifiedFile) {
+            }
+
+            @Override
+            public void fileDeleted(File deletedFile) {
+            }
+        };
+        IngestScheduler.BackPressure backPressure = new IngestScheduler.BackPressure(pipeline, 5);
+        final CountDownLatch scanned = new CountDownLatch(1);
+        scheduler.scheduleScan(new Runnable() {
+            @Override
+            public void run() {
+                scanned.countDown();
+            }
+        }, 0, 10, backPressure);
+
+        assertTrue("Should not scan above the high-water mark", !scanned.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(backPressure.getSkippedScans() > 0);
+        queueDepth.set(5);
+        assertTrue("Should scan once the pipeline caught up", scanned.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,163 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import dk.statsbiblioteket.doms.client.utils.Constants;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the recovery of the PID files left in the folder of failed files.
+ */
+public class LukewarmFolderRecoveryTest {
+    private File tempDir;
+    private File hotFolder;
+    private File failedFolder;
+    private File processedFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = new File(System.getProperty("java.io.tmpdir"), UUID.randomUUID().toString());
+        hotFolder = new File(tempDir, "hot");
+        failedFolder = new File(tempDir, "failed");
+        processedFolder = new File(tempDir, "processed");
+        assertTrue(hotFolder.mkdirs());
+        assertTrue(failedFolder.mkdirs());
+        assertTrue(processedFolder.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testPidFilesAreResolved() throws Exception {
+        SimulatedDomsWSClient domsClient = new SimulatedDomsWSClient();
+        // Written, but not published before the crash.
+        String unpublished = createObject(domsClient);
+        createFile(hotFolder, "unpublished.xml", unpublished + "\n");
+        createFile(failedFolder, "unpublished.xml" + LukewarmFolderRecovery.IN_PROCESS_SUFFIX, unpublished + "\n");
+        // Written, but deleted since.
+        String gone = createObject(domsClient);
+        domsClient.deleteObjects("test", gone);
+        createFile(failedFolder, "gone.xml", "gone");
+        createFile(failedFolder, "gone.xml" + LukewarmFolderRecovery.IN_PROCESS_SUFFIX, gone + "\n");
+        // Failed, and its objects deleted.
+        String deleted = createObject(domsClient);
+        domsClient.deleteObjects("test", deleted);
+        createFile(failedFolder, "deleted.xml", "deleted");
+        createFile(failedFolder, "deleted.xml" + LukewarmFolderRecovery.FAILED_SUFFIX, deleted + "\n");
+        // Failed, but its objects were not deleted before the exit.
+        String left = createObject(domsClient);
+        createFile(failedFolder, "left.xml", "left");
+        createFile(failedFolder, "left.xml" + LukewarmFolderRecovery.FAILED_SUFFIX, left + "\n");
+        // Listing an object unknown to DOMS.
+        createFile(failedFolder, "unknown.xml" + LukewarmFolderRecovery.FAILED_SUFFIX, "uuid:unknown\n");
+
+        Map<LukewarmFolderRecovery.Action, Integer> actions = new LukewarmFolderRecovery(domsClient, 2)
+                .recover(failedFolder, hotFolder, processedFolder);
+
+        assertEquals(1, (int) actions.get(LukewarmFolderRecovery.Action.PUBLISHED));
+        assertEquals(Constants.FedoraState.Active, domsClient.getState(unpublished));
+        assertTrue(new File(processedFolder, "unpublished.xml").exists());
+        assertFalse(new File(hotFolder, "unpublished.xml").exists());
+
+        assertEquals(1, (int) actions.get(LukewarmFolderRecovery.Action.REQUEUED));
+        assertTrue(new File(hotFolder, "gone.xml").exists());
+
+        assertEquals(1, (int) actions.get(LukewarmFolderRecovery.Action.CLEANED));
+        assertTrue("Failed files stay failed", new File(failedFolder, "deleted.xml").exists());
+
+        assertEquals(1, (int) actions.get(LukewarmFolderRecovery.Action.DELETED));
+        assertEquals(Constants.FedoraState.Deleted, domsClient.getState(left));
+        assertTrue(new File(failedFolder, "left.xml").exists());
+
+        assertEquals(1, (int) actions.get(LukewarmFolderRecovery.Action.UNRESOLVED));
+        assertTrue(new File(failedFolder, "unknown.xml" + LukewarmFolderRecovery.FAILED_SUFFIX).exists());
+        assertEquals("Only the unresolved PID file should be left", 1,
+                     FileUtils.listFiles(failedFolder, new String[]{"InProcessPIDs", "failedPIDs"}, false).size());
+    }
+
+    /**
+     * With a journal, a failed file with objects left is requeued to resume them, rather than deleting them.
+     */
+    @Test
+    public void testFailedFileIsRequeuedWithJournal() throws Exception {
+        SimulatedDomsWSClient domsClient = new SimulatedDomsWSClient();
+        String left = createObject(domsClient);
+        createFile(failedFolder, "left.xml", "left");
+        createFile(failedFolder, "left.xml" + LukewarmFolderRecovery.FAILED_SUFFIX, left + "\n");
+        IngestJournal journal = new IngestJournal(new File(tempDir, "journal"));
+        LukewarmFolderRecovery recovery = new LukewarmFolderRecovery(domsClient, 2);
+        recovery.setJournal(journal);
+
+        Map<LukewarmFolderRecovery.Action, Integer> actions = recovery.recover(failedFolder, hotFolder,
+                                                                               processedFolder);
+        journal.close();
+
+        assertEquals(1, (int) actions.get(LukewarmFolderRecovery.Action.REQUEUED));
+        assertEquals(Constants.FedoraState.Inactive, domsClient.getState(left));
+        assertTrue(new File(hotFolder, "left.xml").exists());
+        assertFalse(new File(failedFolder, "left.xml" + LukewarmFolderRecovery.FAILED_SUFFIX).exists());
+    }
+
+    /**
+     * PID files are resolved in parallel, but by no more threads than given.
+     */
+    @Test
+    public void testRecoveryIsBoundedInParallel() throws Exception {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        TestDomsWSClient domsClient = new TestDomsWSClient() {
+            @Override
+            public Constants.FedoraState getState(String pid) throws ServerOperationFailed {
+                int current = inFlight.incrementAndGet();
+                while (true) {
+                    int max = maxInFlight.get();
+                    if (current <= max || maxInFlight.compareAndSet(max, current)) {
+                        break;
+                    }
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    throw new ServerOperationFailed("Interrupted", e);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+                return Constants.FedoraState.Deleted;
+            }
+        };
+        for (int i = 0; i < 20; i++) {
+            createFile(failedFolder, i + ".xml" + LukewarmFolderRecovery.FAILED_SUFFIX, "uuid:" + i + "\n");
+        }
+
+        Map<LukewarmFolderRecovery.Action, Integer> actions = new LukewarmFolderRecovery(domsClient, 4)
+                .recover(failedFolder, hotFolder, processedFolder);
+
+        assertEquals(20, (int) actions.get(LukewarmFolderRecovery.Action.CLEANED));
+        assertTrue("Should resolve in parallel, was " + maxInFlight.get(), maxInFlight.get() > 1);
+        assertTrue("Should be bounded, was " + maxInFlight.get(), maxInFlight.get() <= 4);
+    }
+
+    private static String createObject(SimulatedDomsWSClient domsClient) throws Exception {
+        return domsClient.createObjectFromTemplate(Common.PROGRAM_TEMPLATE_PID, Collections.<String>emptyList(),
+                                                   "test");
+    }
+
+    private static void createFile(File folder, String name, String content) throws Exception {
+        FileUtils.writeStringToFile(new File(folder, name), content, "UTF-8");
+    }
+}
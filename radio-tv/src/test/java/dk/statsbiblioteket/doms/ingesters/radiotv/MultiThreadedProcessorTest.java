@@ -0,0 +1,263 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the pool handling of the multi threaded processor.
+ */
+public class MultiThreadedProcessorTest {
+
+    @Test
+    public void testContinuousPoolSurvivesScans() throws Exception {
+        CountingProcessor processor = new CountingProcessor(2);
+        processor.setContinuous(10);
+
+        processor.startEngine();
+        ExecutorService firstPool = processor.pool;
+        processor.fileAdded(new File("a.xml"));
+        processor.fileAdded(new File("b.xml"));
+        processor.fileAdded(new File("c.xml"));
+        // Must return at once, even though the work is still blocked.
+        processor.waitForThreads();
+        assertEquals(0, processor.handled.get());
+
+        processor.startEngine();
+        assertSame("Pool should be kept across scans", firstPool, processor.pool);
+        processor.fileAdded(new File("d.xml"));
+        processor.waitForThreads();
+
+        processor.release.countDown();
+        processor.stopEngine();
+        assertTrue(processor.pool.isTerminated());
+        assertEquals(4, processor.handled.get());
+    }
+
+    @Test
+    public void testContinuousQueueBlocksWhenFull() throws Exception {
+        final CountingProcessor processor = new CountingProcessor(1);
+        processor.setContinuous(1);
+        processor.startEngine();
+
+        // One file on the worker, one in the queue.
+        processor.fileAdded(new File("a.xml"));
+        processor.fileAdded(new File("b.xml"));
+
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread scanner = new Thread() {
+            @Override
+            public void run() {
+                processor.fileAdded(new File("c.xml"));
+                submitted.countDown();
+            }
+        };
+        scanner.start();
+        assertTrue("Should block while the queue is full", !submitted.await(200, TimeUnit.MILLISECONDS));
+
+        processor.release.countDown();
+        assertTrue("Should proceed once there is room", submitted.await(5, TimeUnit.SECONDS));
+        processor.stopEngine();
+        assertEquals(3, processor.handled.get());
+    }
+
+    /**
+     * A file waiting for room when the pool is shut down must be rejected, not left in a queue nobody takes from.
+     */
+    @Test
+    public void testFileWaitingForRoomIsRejectedAtShutdown() throws Exception {
+        final CountingProcessor processor = new CountingProcessor(1);
+        processor.setContinuous(1);
+        processor.startEngine();
+        processor.fileAdded(new File("a.xml"));
+        processor.fileAdded(new File("b.xml"));
+
+        final AtomicReference<RuntimeException> rejected = new AtomicReference<RuntimeException>();
+        Thread scanner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    processor.fileAdded(new File("c.xml"));
+                } catch (RejectedExecutionException e) {
+                    rejected.set(e);
+                }
+            }
+        };
+        scanner.start();
+        Thread.sleep(200);
+        // Empties the queue, so there is room for the waiting file, and ends the worker.
+        processor.pool.shutdownNow();
+        scanner.join(5000);
+
+        assertFalse(scanner.isAlive());
+        assertTrue("The waiting file should be rejected", rejected.get() != null);
+        assertTrue(processor.pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, processor.pool.getQueue().size());
+    }
+
+    @Test
+    public void testPerScanPoolIsDrained() throws Exception {
+        CountingProcessor processor = new CountingProcessor(2);
+        processor.release.countDown();
+
+        processor.startEngine();
+        processor.fileAdded(new File("a.xml"));
+        processor.fileAdded(new File("b.xml"));
+        processor.waitForThreads();
+        assertTrue(processor.pool.isTerminated());
+        assertEquals(2, processor.handled.get());
+    }
+
+    @Test
+    public void testProcessorsShareLanesOfOnePool() throws Exception {
+        SharedWorkerPool sharedPool = new SharedWorkerPool(1);
+        CountingProcessor normal = new CountingProcessor(5);
+        normal.setLane(sharedPool.addLane("normal", 1, 0));
+        CountingProcessor forced = new CountingProcessor(5);
+        forced.setLane(sharedPool.addLane("forced", 1, 0));
+
+        normal.startEngine();
+        forced.startEngine();
+        normal.fileAdded(new File("a.xml"));
+        normal.fileAdded(new File("b.xml"));
+        forced.fileAdded(new File("c.xml"));
+        // The only worker is blocked on the first file.
+        for (int i = 0; i < 500 && normal.getInFlight() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, normal.getInFlight());
+        assertEquals(1, normal.getQueueDepth());
+        assertEquals(1, forced.getQueueDepth());
+
+        normal.release.countDown();
+        forced.release.countDown();
+        normal.stopEngine();
+        forced.stopEngine();
+        assertEquals(2, normal.handled.get());
+        assertEquals(1, forced.handled.get());
+        assertNull("Processors on lanes have no pool of their own", normal.pool);
+    }
+
+    @Test
+    public void testStopCancelsWaitingFilesAtDeadline() throws Exception {
+        CountingProcessor processor = new CountingProcessor(1);
+        processor.setContinuous(10);
+        processor.startEngine();
+        processor.fileAdded(new File("a.xml"));
+        processor.fileAdded(new File("b.xml"));
+        processor.fileAdded(new File("c.xml"));
+
+        assertFalse("The blocked file cannot finish in time", processor.stopEngine(100));
+        assertEquals(0, processor.getQueueDepth());
+        assertTrue(processor.isStopping());
+        // Stopping again waits for the first stop, which did not process all files.
+        assertFalse(processor.stopEngine(100));
+
+        processor.release.countDown();
+        assertTrue(processor.pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals("Only the file being processed should be finished", 1, processor.handled.get());
+    }
+
+    @Test
+    public void testWorkersAreCreatedByThreadFactory() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        CountingProcessor processor = new CountingProcessor(2);
+        processor.setThreadFactory(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                created.incrementAndGet();
+                return new Thread(runnable, "TestWorker");
+            }
+        });
+        processor.release.countDown();
+        processor.startEngine();
+        processor.fileAdded(new File("a.xml"));
+        processor.fileAdded(new File("b.xml"));
+        processor.stopEngine();
+
+        assertEquals(2, processor.handled.get());
+        assertEquals(2, created.get());
+    }
+
+    @Test
+    public void testFirstStageIsDrainedIntoSecond() throws Exception {
+        CountingProcessor processor = new CountingProcessor(2);
+        processor.setFirstStage(1, 1);
+        processor.release.countDown();
+
+        processor.startEngine();
+        for (int i = 0; i < 5; i++) {
+            processor.fileAdded(new File(i + ".xml"));
+        }
+        processor.waitForThreads();
+        assertEquals("Files handed on by the first stage should be done after a scan", 5, processor.handled.get());
+
+        processor.startEngine();
+        processor.fileAdded(new File("next.xml"));
+        assertTrue(processor.stopEngine(5000));
+        assertEquals(6, processor.handled.get());
+        assertEquals(0, processor.getQueueDepth());
+    }
+
+    /**
+     * Processor that counts handled files, blocking the workers until released.
+     */
+    private static class CountingProcessor extends MultiThreadedProcessor {
+        private final AtomicInteger handled = new AtomicInteger();
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        CountingProcessor(int poolSize) {
+            super(poolSize);
+        }
+
+        @Override
+        public void fileAdded(File addedFile) {
+            if (isStaged()) {
+                submitFirstStage(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle();
+                    }
+                });
+            } else {
+                handle();
+            }
+        }
+
+        private void handle() {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    handled.incrementAndGet();
+                }
+            });
+        }
+
+        @Override
+        public void fileModified(File modifiedFile) {
+            fileAdded(modifiedFile);
+        }
+
+        @Override
+        public void fileDeleted(File deletedFile) {
+        }
+    }
+}
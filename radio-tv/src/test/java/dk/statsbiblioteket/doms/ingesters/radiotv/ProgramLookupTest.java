@@ -0,0 +1,177 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.exceptions.NoObjectFound;
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the concurrent lookups of objects referred to by programs.
+ */
+public class ProgramLookupTest {
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = ProgramLookup.createExecutor(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    /**
+     * All lookups must be in progress at once. Each lookup waits until all four have started, so done one after
+     * another they would never complete.
+     */
+    @Test
+    public void testLookupsAreConcurrent() throws Exception {
+        final CountDownLatch allStarted = new CountDownLatch(4);
+        TestDomsWSClient domsClient = new TestDomsWSClient() {
+            @Override
+            public String getFileObjectPID(URL fileURL) throws NoObjectFound, ServerOperationFailed {
+                awaitAll();
+                return "uuid:" + fileURL.getPath().substring(1);
+            }
+
+            @Override
+            public List<String> getPidFromOldIdentifier(String oldIdentifier) throws NoObjectFound {
+                awaitAll();
+                if (oldIdentifier.equals("unknown")) {
+                    throw new NoObjectFound();
+                }
+                return Collections.singletonList("uuid:program-" + oldIdentifier);
+            }
+
+            private void awaitAll() {
+                allStarted.countDown();
+                try {
+                    assertTrue("Lookups were not concurrent", allStarted.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        ProgramLookup.Result result = new ProgramLookup(domsClient, executor).lookup(
+                Arrays.asList("http://files/a", "http://files/b"), Arrays.asList("unknown", "ritzau"));
+        assertEquals(Arrays.asList("uuid:a", "uuid:b"), result.getFilePids());
+        assertEquals("uuid:program-ritzau", result.getExistingProgramPid());
+    }
+
+    /**
+     * A missing file must still fail the lookup, so nothing gets written for the program.
+     */
+    @Test
+    public void testMissingFileFails() throws Exception {
+        TestDomsWSClient domsClient = new TestDomsWSClient() {
+            @Override
+            public String getFileObjectPID(URL fileURL) throws NoObjectFound, ServerOperationFailed {
+                if (fileURL.getPath().equals("/missing")) {
+                    throw new NoObjectFound();
+                }
+                return "uuid:file";
+            }
+        };
+        for (ExecutorService lookupExecutor : new ExecutorService[]{executor, null}) {
+            try {
+                new ProgramLookup(domsClient, lookupExecutor).lookup(
+                        Arrays.asList("http://files/a", "http://files/missing"), Collections.<String>emptyList());
+                fail("Missing file should fail the lookup");
+            } catch (NoObjectFound e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testNoExistingProgram() throws Exception {
+        for (ExecutorService lookupExecutor : new ExecutorService[]{executor, null}) {
+            ProgramLookup.Result result = new ProgramLookup(new TestDomsWSClient(), lookupExecutor).lookup(
+                    Arrays.asList("http://files/a"), Arrays.asList("ritzau", "gallup"));
+            assertEquals(1, result.getFilePids().size());
+            assertNull(result.getExistingProgramPid());
+        }
+    }
+
+    /**
+     * Looking up ahead must stop once as many lookups are waiting as there are lookup threads, so lookups needed
+     * now never wait behind more of them.
+     */
+    @Test
+    public void testPrefetchesAreDroppedWhileLookupsWait() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch busy = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    busy.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        assertTrue(busy.await(5, TimeUnit.SECONDS));
+        final AtomicInteger lookups = new AtomicInteger();
+        TestDomsWSClient domsClient = new TestDomsWSClient() {
+            @Override
+            public String getFileObjectPID(URL fileURL) {
+                lookups.incrementAndGet();
+                return "uuid:file";
+            }
+        };
+        List<String> fileUrls = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            fileUrls.add("http://files/" + i);
+        }
+
+        new ProgramLookup(domsClient, executor).prefetchFiles(fileUrls);
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(4, lookups.get());
+    }
+
+    @Test
+    public void testMalformedUrlLooksUpNothing() throws Exception {
+        final boolean[] lookedUp = {false};
+        TestDomsWSClient domsClient = new TestDomsWSClient() {
+            @Override
+            public String getFileObjectPID(URL fileURL) {
+                lookedUp[0] = true;
+                return "uuid:file";
+            }
+        };
+        try {
+            new ProgramLookup(domsClient, executor).lookup(Arrays.asList("http://files/a", "no url"),
+                                                           Collections.<String>emptyList());
+            fail("Malformed URL should fail the lookup");
+        } catch (MalformedURLException e) {
+            // Expected
+        }
+        assertFalse(lookedUp[0]);
+    }
+}
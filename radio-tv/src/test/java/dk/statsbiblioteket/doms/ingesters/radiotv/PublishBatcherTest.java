@@ -0,0 +1,135 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test publishing files in batches.
+ */
+public class PublishBatcherTest {
+
+    @Test
+    public void testFullBatchIsPublished() throws Exception {
+        RecordingDomsWSClient domsClient = new RecordingDomsWSClient();
+        PublishBatcher batcher = new PublishBatcher(domsClient, 3, 60000);
+        CountDownLatch published = new CountDownLatch(3);
+        List<TestPublication> publications = new ArrayList<TestPublication>();
+        for (int i = 0; i < 3; i++) {
+            TestPublication publication = new TestPublication(published, "uuid:" + i);
+            publications.add(publication);
+            batcher.add(publication);
+        }
+
+        assertTrue("Full batch should be published", published.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(Arrays.asList("uuid:0", "uuid:1", "uuid:2")), domsClient.calls());
+        for (TestPublication publication : publications) {
+            assertTrue(publication.published);
+        }
+    }
+
+    @Test
+    public void testBatchIsPublishedAfterDelay() throws Exception {
+        RecordingDomsWSClient domsClient = new RecordingDomsWSClient();
+        PublishBatcher batcher = new PublishBatcher(domsClient, 100, 50);
+        CountDownLatch published = new CountDownLatch(2);
+        batcher.add(new TestPublication(published, "uuid:a", "uuid:b"));
+        batcher.add(new TestPublication(published, "uuid:c"));
+
+        assertTrue("Batch should be published after the delay", published.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(Arrays.asList("uuid:a", "uuid:b", "uuid:c")), domsClient.calls());
+    }
+
+    @Test
+    public void testFlushPublishesAtOnce() throws Exception {
+        RecordingDomsWSClient domsClient = new RecordingDomsWSClient();
+        PublishBatcher batcher = new PublishBatcher(domsClient, 100, 60000);
+        TestPublication publication = new TestPublication(new CountDownLatch(1), "uuid:a");
+        batcher.add(publication);
+
+        batcher.flush();
+        assertTrue(publication.published);
+        assertEquals(1, domsClient.calls().size());
+        batcher.flush();
+        assertEquals("Nothing left to publish", 1, domsClient.calls().size());
+    }
+
+    /**
+     * One bad object in a batch must only fail its own file.
+     */
+    @Test
+    public void testFailedBatchFallsBackToSingleFiles() throws Exception {
+        RecordingDomsWSClient domsClient = new RecordingDomsWSClient();
+        domsClient.badPid = "uuid:bad";
+        PublishBatcher batcher = new PublishBatcher(domsClient, 100, 60000);
+        TestPublication good = new TestPublication(new CountDownLatch(1), "uuid:good");
+        TestPublication bad = new TestPublication(new CountDownLatch(1), "uuid:bad");
+        batcher.add(good);
+        batcher.add(bad);
+
+        batcher.flush();
+        assertTrue(good.published);
+        assertTrue(bad.failure instanceof ServerOperationFailed);
+        assertEquals(Arrays.asList(Arrays.asList("uuid:good", "uuid:bad"), Arrays.asList("uuid:good"),
+                                   Arrays.asList("uuid:bad")), domsClient.calls());
+    }
+
+    private static class TestPublication implements PublishBatcher.Publication {
+        private final CountDownLatch done;
+        private final List<String> pids;
+        private volatile boolean published = false;
+        private volatile Exception failure;
+
+        TestPublication(CountDownLatch done, String... pids) {
+            this.done = done;
+            this.pids = Arrays.asList(pids);
+        }
+
+        @Override
+        public List<String> getPids() {
+            return pids;
+        }
+
+        @Override
+        public void published() {
+            published = true;
+            done.countDown();
+        }
+
+        @Override
+        public void failed(Exception e) {
+            failure = e;
+            done.countDown();
+        }
+    }
+
+    /**
+     * Records the calls to publish, and fails any call including a given PID.
+     */
+    private static class RecordingDomsWSClient extends TestDomsWSClient {
+        private final List<List<String>> calls = new ArrayList<List<String>>();
+        private String badPid;
+
+        @Override
+        public synchronized void publishObjects(String comment, String... pidsToPublish)
+                throws ServerOperationFailed {
+            calls.add(Arrays.asList(pidsToPublish));
+            if (Arrays.asList(pidsToPublish).contains(badPid)) {
+                throw new ServerOperationFailed("Cannot publish " + badPid, null);
+            }
+        }
+
+        synchronized List<List<String>> calls() {
+            return new ArrayList<List<String>>(calls);
+        }
+    }
+}
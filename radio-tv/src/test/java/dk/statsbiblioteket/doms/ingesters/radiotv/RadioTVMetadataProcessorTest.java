@@ -0,0 +1,388 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.exceptions.NoObjectFound;
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import dk.statsbiblioteket.doms.client.utils.Constants;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the handling of files in the metadata processor, against a DOMS stub.
+ */
+public class RadioTVMetadataProcessorTest {
+    private File tempDir;
+    private File hotFolder;
+    private File failedFolder;
+    private File processedFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = new File(System.getProperty("java.io.tmpdir"), UUID.randomUUID().toString());
+        hotFolder = new File(tempDir, "hot");
+        failedFolder = new File(tempDir, "failed");
+        processedFolder = new File(tempDir, "processed");
+        assertTrue(hotFolder.mkdirs());
+        assertTrue(failedFolder.mkdirs());
+        assertTrue(processedFolder.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    /**
+     * Admission must not wait for any work on the files, and the number of files in progress should be bounded by
+     * the pool size only.
+     */
+    @Test
+    public void testAdmissionsScaleWithPoolSize() throws Exception {
+        for (int poolSize : new int[]{1, 4}) {
+            BlockingDomsWSClient domsClient = new BlockingDomsWSClient();
+            File poolProcessedFolder = new File(tempDir, "processed" + poolSize);
+            assertTrue(poolProcessedFolder.mkdirs());
+            RadioTVMetadataProcessor processor = new RadioTVMetadataProcessor(
+                    domsClient, failedFolder, poolProcessedFolder, null, true, poolSize);
+            // One lookup at a time per file, so lookups in progress count files in progress.
+            processor.setLookupThreads(1);
+            processor.startEngine();
+
+            int fileCount = poolSize * 2;
+            for (int i = 0; i < fileCount; i++) {
+                // Returns at once, even though no file can complete until released.
+                processor.fileAdded(createProgramFile(poolSize + "_" + i + ".xml", poolSize * 100 + i));
+            }
+            for (int i = 0; i < 100 && domsClient.inFlight.get() < poolSize; i++) {
+                Thread.sleep(50);
+            }
+            Thread.sleep(100);
+            assertEquals("Files in progress for pool size " + poolSize, poolSize, domsClient.maxInFlight.get());
+
+            domsClient.release.countDown();
+            processor.stopEngine();
+            assertEquals("Files processed for pool size " + poolSize, fileCount,
+                         poolProcessedFolder.list().length);
+        }
+    }
+
+    /**
+     * Duplicate detection is done by the pool, and removes files identical to ones already processed.
+     */
+    @Test
+    public void testDuplicateIsRemoved() throws Exception {
+        File duplicate = createProgramFile("duplicate.xml");
+        FileUtils.copyFileToDirectory(duplicate, processedFolder);
+
+        RadioTVMetadataProcessor processor = new RadioTVMetadataProcessor(
+                new TestDomsWSClient(), failedFolder, processedFolder, null, true, 2);
+        processor.startEngine();
+        processor.fileAdded(duplicate);
+        processor.stopEngine();
+
+        assertFalse("Duplicate should be removed", duplicate.exists());
+        assertEquals("Nothing should fail", 0, failedFolder.list().length);
+    }
+
+    /**
+     * Two exports of the same program must not both find that the program does not exist and create it.
+     */
+    @Test
+    public void testFilesOfOneProgramAreIngestedOneAtATime() throws Exception {
+        SimulatedDomsWSClient domsClient = new SimulatedDomsWSClient();
+        domsClient.setLatency(SimulatedDomsWSClient.Latency.fixed(5));
+        for (String fileUrl : DomProgramExtractor.getFileUrls(RadioTVMetadataProcessor.createFileParsers(null)
+                .getDocumentBuilder().parse(getClass().getResourceAsStream("/2012-11-14_23-20-00_dr1.xml")))) {
+            domsClient.addFile(fileUrl);
+        }
+        RadioTVMetadataProcessor processor = new RadioTVMetadataProcessor(
+                domsClient, failedFolder, processedFolder, null, true, 4);
+        processor.startEngine();
+        for (int i = 0; i < 4; i++) {
+            processor.fileAdded(createProgramFile("update" + i + ".xml"));
+        }
+        processor.stopEngine();
+
+        assertEquals("All files should be ingested", 4, processedFolder.list().length);
+        assertEquals("The program should be created once", 1,
+                     domsClient.countObjects(Constants.FedoraState.Active));
+    }
+
+    /**
+     * With a first stage of its own for parsing, all files are parsed, handed on and written.
+     */
+    @Test
+    public void testStagedProcessorIngestsAllFiles() throws Exception {
+        SimulatedDomsWSClient domsClient = new SimulatedDomsWSClient();
+        domsClient.setLatency(SimulatedDomsWSClient.Latency.fixed(5));
+        for (String fileUrl : DomProgramExtractor.getFileUrls(RadioTVMetadataProcessor.createFileParsers(null)
+                .getDocumentBuilder().parse(getClass().getResourceAsStream("/2012-11-14_23-20-00_dr1.xml")))) {
+            domsClient.addFile(fileUrl);
+        }
+        RadioTVMetadataProcessor processor = new RadioTVMetadataProcessor(
+                domsClient, failedFolder, processedFolder, null, true, 3);
+        processor.setFirstStage(2, 2);
+        processor.setLookupCache(100, 60000, 1000);
+        processor.startEngine();
+        for (int i = 0; i < 6; i++) {
+            processor.fileAdded(createProgramFile("program" + i + ".xml", i));
+        }
+        File broken = new File(hotFolder, "broken.xml");
+        FileUtils.writeStringToFile(broken, "<notAProgram", "UTF-8");
+        processor.fileAdded(broken);
+        processor.stopEngine();
+
+        assertEquals("All programs should be ingested", 6, processedFolder.list().length);
+        assertEquals(6, domsClient.countObjects(Constants.FedoraState.Active));
+        assertTrue("The broken file should fail in the first stage",
+                   new File(failedFolder, "broken.xml").exists());
+    }
+
+    /**
+     * A program created by one processor must not be found missing by another processor sharing the lookup cache,
+     * even if the other looked it up before it was created.
+     */
+    @Test
+    public void testSharedLookupCacheSeesProgramsCreatedByOtherProcessors() throws Exception {
+        SimulatedDomsWSClient domsClient = new SimulatedDomsWSClient();
+        for (String fileUrl : DomProgramExtractor.getFileUrls(RadioTVMetadataProcessor.createFileParsers(null)
+                .getDocumentBuilder().parse(getClass().getResourceAsStream("/2012-11-14_23-20-00_dr1.xml")))) {
+            domsClient.addFile(fileUrl);
+        }
+        CachingDomsWSClient lookupCache = new CachingDomsWSClient(domsClient, 100, 60000, 60000);
+        File otherProcessedFolder = new File(tempDir, "otherProcessed");
+        assertTrue(otherProcessedFolder.mkdirs());
+        // A processor of another lane finds no program, and fails to create it.
+        domsClient.setFailureRate(SimulatedDomsWSClient.Operation.CREATE_OBJECT, 1.0);
+        ingest(domsClient, lookupCache, otherProcessedFolder, createProgramFile("first.xml"));
+        assertTrue(new File(failedFolder, "first.xml").exists());
+        domsClient.setFailureRate(SimulatedDomsWSClient.Operation.CREATE_OBJECT, 0.0);
+        ingest(domsClient, lookupCache, processedFolder, createProgramFile("second.xml"));
+        ingest(domsClient, lookupCache, otherProcessedFolder, createProgramFile("third.xml"));
+
+        assertTrue(new File(otherProcessedFolder, "third.xml").exists());
+        assertEquals("The program should be created once", 1,
+                     domsClient.countObjects(Constants.FedoraState.Active));
+    }
+
+    private void ingest(SimulatedDomsWSClient domsClient, CachingDomsWSClient lookupCache, File processedFolder,
+                        File file) {
+        RadioTVMetadataProcessor processor = new RadioTVMetadataProcessor(
+                domsClient, failedFolder, processedFolder, null, true, 1);
+        processor.setLookupCache(lookupCache);
+        processor.startEngine();
+        processor.fileAdded(file);
+        processor.stopEngine();
+    }
+
+    /**
+     * With a journal, a file failing to publish keeps its objects, and ingesting it again after a restart resumes
+     * them rather than writing the program again.
+     */
+    @Test
+    public void testJournalResumesFailedFile() throws Exception {
+        SimulatedDomsWSClient domsClient = new SimulatedDomsWSClient();
+        for (String fileUrl : DomProgramExtractor.getFileUrls(RadioTVMetadataProcessor.createFileParsers(null)
+                .getDocumentBuilder().parse(getClass().getResourceAsStream("/2012-11-14_23-20-00_dr1.xml")))) {
+            domsClient.addFile(fileUrl);
+        }
+        domsClient.setFailureRate(SimulatedDomsWSClient.Operation.PUBLISH, 1.0);
+        File journalFile = new File(tempDir, "journal");
+        IngestJournal journal = new IngestJournal(journalFile);
+        RadioTVMetadataProcessor processor = new RadioTVMetadataProcessor(
+                domsClient, failedFolder, processedFolder, null, true, 1);
+        processor.setJournal(journal);
+        processor.startEngine();
+        processor.fileAdded(createProgramFile("program.xml"));
+        processor.stopEngine();
+        journal.close();
+
+        assertTrue(new File(failedFolder, "program.xml").exists());
+        assertEquals("The objects should be kept", 1, domsClient.countObjects(Constants.FedoraState.Inactive));
+        long updates = domsClient.getCalls(SimulatedDomsWSClient.Operation.UPDATE_DATASTREAM);
+
+        // Retry the file after a restart.
+        domsClient.setFailureRate(SimulatedDomsWSClient.Operation.PUBLISH, 0.0);
+        FileUtils.moveFileToDirectory(new File(failedFolder, "program.xml"), hotFolder, false);
+        journal = new IngestJournal(journalFile);
+        processor = new RadioTVMetadataProcessor(domsClient, failedFolder, processedFolder, null, true, 1);
+        processor.setJournal(journal);
+        processor.startEngine();
+        processor.fileAdded(new File(hotFolder, "program.xml"));
+        processor.stopEngine();
+
+        assertTrue(new File(processedFolder, "program.xml").exists());
+        assertEquals(1, domsClient.getCalls(SimulatedDomsWSClient.Operation.CREATE_OBJECT));
+        assertEquals("No datastream should be written again", updates,
+                     domsClient.getCalls(SimulatedDomsWSClient.Operation.UPDATE_DATASTREAM));
+        assertEquals(1, domsClient.countObjects(Constants.FedoraState.Active));
+        assertEquals("Published files should be forgotten", 0, journal.size());
+        journal.close();
+    }
+
+    /**
+     * A file failing to publish must not be resumed once another file of the program has written and published the
+     * program since, or the content of the other file would be left in the datastreams journaled as done.
+     */
+    @Test
+    public void testJournalIsNotTrustedOnceProgramIsPublishedByAnotherFile() throws Exception {
+        SimulatedDomsWSClient domsClient = new SimulatedDomsWSClient();
+        for (String fileUrl : DomProgramExtractor.getFileUrls(RadioTVMetadataProcessor.createFileParsers(null)
+                .getDocumentBuilder().parse(getClass().getResourceAsStream("/2012-11-14_23-20-00_dr1.xml")))) {
+            domsClient.addFile(fileUrl);
+        }
+        IngestJournal journal = new IngestJournal(new File(tempDir, "journal"));
+        domsClient.setFailureRate(SimulatedDomsWSClient.Operation.PUBLISH, 1.0);
+        ingest(domsClient, journal, createProgramFile("program.xml"));
+        assertTrue(new File(failedFolder, "program.xml").exists());
+
+        // Another file of the program, with another description, is ingested meanwhile.
+        domsClient.setFailureRate(SimulatedDomsWSClient.Operation.PUBLISH, 0.0);
+        File other = createProgramFile("other.xml");
+        FileUtils.writeStringToFile(other, FileUtils.readFileToString(other, "UTF-8")
+                .replace("Amerikansk dramaserie fra 2010.", "Amerikansk dramaserie fra 2011."), "UTF-8");
+        ingest(domsClient, journal, other);
+        assertTrue(new File(processedFolder, "other.xml").exists());
+
+        // The first file is retried.
+        FileUtils.moveFileToDirectory(new File(failedFolder, "program.xml"), hotFolder, false);
+        ingest(domsClient, journal, new File(hotFolder, "program.xml"));
+        journal.close();
+
+        assertTrue(new File(processedFolder, "program.xml").exists());
+        assertEquals("The program should be created once", 1, domsClient.countObjects(Constants.FedoraState.Active));
+        String pid = domsClient.getPidFromOldIdentifier("5444487RitzauProgram").get(0);
+        String description = domsClient.getDataStream(pid, Common.PROGRAM_PBCORE_DS_ID).getDocumentElement()
+                .getTextContent();
+        assertTrue("The retried file should write its own description",
+                   description.contains("Amerikansk dramaserie fra 2010."));
+    }
+
+    private void ingest(SimulatedDomsWSClient domsClient, IngestJournal journal, File file) {
+        RadioTVMetadataProcessor processor = new RadioTVMetadataProcessor(
+                domsClient, failedFolder, processedFolder, null, true, 1);
+        processor.setJournal(journal);
+        processor.startEngine();
+        processor.fileAdded(file);
+        processor.stopEngine();
+    }
+
+    /**
+     * A file reported again while it waits for a worker is only processed once.
+     */
+    @Test
+    public void testQueuedFileIsCoalesced() throws Exception {
+        final AtomicInteger creations = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        RadioTVMetadataProcessor processor = new RadioTVMetadataProcessor(new TestDomsWSClient() {
+            @Override
+            public String createObjectFromTemplate(String templatePID, List<String> oldIdentifiers, String comment)
+                    throws ServerOperationFailed {
+                creations.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new ServerOperationFailed("Interrupted", e);
+                }
+                return "uuid:program";
+            }
+        }, failedFolder, processedFolder, null, true, 1);
+        processor.startEngine();
+        // The only worker is held by the first file, so the second waits in the queue while reported again.
+        processor.fileAdded(createProgramFile("first.xml", 1));
+        File second = createProgramFile("second.xml", 2);
+        processor.fileAdded(second);
+        processor.fileModified(second);
+        processor.fileModified(second);
+        release.countDown();
+        processor.stopEngine();
+
+        assertEquals(2, creations.get());
+        assertEquals(2, processedFolder.list().length);
+    }
+
+    /**
+     * With batched publishing, files are only moved once their batch is published, and all in one call.
+     */
+    @Test
+    public void testBatchedFilesAreMovedWhenPublished() throws Exception {
+        final AtomicInteger publishCalls = new AtomicInteger();
+        RadioTVMetadataProcessor processor = new RadioTVMetadataProcessor(new TestDomsWSClient() {
+            @Override
+            public void publishObjects(String comment, String... pidsToPublish) throws ServerOperationFailed {
+                publishCalls.incrementAndGet();
+            }
+        }, failedFolder, processedFolder, null, true, 2);
+        processor.setPublishBatching(10, 60000);
+        processor.setContinuous(10);
+        processor.startEngine();
+        for (int i = 0; i < 3; i++) {
+            processor.fileAdded(createProgramFile(i + ".xml", i));
+        }
+        for (int i = 0; i < 100 && failedFolder.list().length < 3; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals("Files should wait for their batch", 3, failedFolder.list().length);
+        assertEquals(0, processedFolder.list().length);
+
+        processor.stopEngine();
+        assertEquals(1, publishCalls.get());
+        assertEquals(3, processedFolder.list().length);
+        assertEquals("In progress PID files should be deleted", 0, failedFolder.list().length);
+    }
+
+    private File createProgramFile(String name) throws Exception {
+        File file = new File(hotFolder, name);
+        FileUtils.copyURLToFile(getClass().getResource("/2012-11-14_23-20-00_dr1.xml"), file);
+        return file;
+    }
+
+    /**
+     * Create a file of a program of its own, with the recordings of the sample.
+     */
+    private File createProgramFile(String name, int program) throws Exception {
+        File file = createProgramFile(name);
+        String content = FileUtils.readFileToString(file, "UTF-8");
+        FileUtils.writeStringToFile(file, content.replace("5444487RitzauProgram", program + "RitzauProgram")
+                .replace("000001TvmeterProgram", program + "TvmeterProgram"), "UTF-8");
+        return file;
+    }
+
+    /**
+     * DOMS stub, which holds all file lookups until released, keeping track of how many are waiting.
+     */
+    private static class BlockingDomsWSClient extends TestDomsWSClient {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public String getFileObjectPID(URL fileURL) throws NoObjectFound, ServerOperationFailed {
+            int current = inFlight.incrementAndGet();
+            int max;
+            do {
+                max = maxInFlight.get();
+            } while (current > max && !maxInFlight.compareAndSet(max, current));
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new ServerOperationFailed("Interrupted", e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            return "uuid:file";
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.central.InvalidResourceException;
+import dk.statsbiblioteket.doms.central.MethodFailedException;
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test retrying calls to DOMS and holding them back with the circuit breaker.
+ */
+public class RetryingDomsWSClientTest {
+
+    @Test
+    public void testTransientFailuresAreRetried() throws Exception {
+        FlakyDomsWSClient flaky = new FlakyDomsWSClient(2);
+        RetryingDomsWSClient client = new RetryingDomsWSClient(flaky, 3, 1, 10, null);
+
+        client.publishObjects("comment", "uuid:a");
+        assertEquals(3, flaky.calls.get());
+        assertEquals(2, client.getRetries());
+    }
+
+    @Test
+    public void testLastFailureIsThrownWhenAttemptsAreUsedUp() throws Exception {
+        FlakyDomsWSClient flaky = new FlakyDomsWSClient(5);
+        RetryingDomsWSClient client = new RetryingDomsWSClient(flaky, 3, 1, 10, null);
+
+        try {
+            client.publishObjects("comment", "uuid:a");
+            fail("Should fail after three attempts");
+        } catch (ServerOperationFailed e) {
+            assertEquals("Failure 3", e.getMessage());
+        }
+        assertEquals(3, flaky.calls.get());
+    }
+
+    @Test
+    public void testCreationIsNotRetried() throws Exception {
+        FlakyDomsWSClient flaky = new FlakyDomsWSClient(1);
+        RetryingDomsWSClient client = new RetryingDomsWSClient(flaky, 3, 1, 10, null);
+
+        try {
+            client.createObjectFromTemplate("doms:Template_Program", "comment");
+            fail("Creation should not be retried");
+        } catch (ServerOperationFailed e) {
+            assertEquals(1, flaky.calls.get());
+        }
+    }
+
+    @Test
+    public void testTransientFailuresAreClassified() throws Exception {
+        assertTrue(RetryingDomsWSClient.isTransient(new ServerOperationFailed("Fedora is down")));
+        assertTrue(RetryingDomsWSClient.isTransient(
+                new RuntimeException("Could not send", new ConnectException("Connection refused"))));
+        assertFalse(RetryingDomsWSClient.isTransient(
+                new ServerOperationFailed("Not found", new InvalidResourceException())));
+        assertFalse(RetryingDomsWSClient.isTransient(
+                new ServerOperationFailed("Datastream rejected", new MethodFailedException())));
+        assertFalse(RetryingDomsWSClient.isTransient(new IllegalArgumentException()));
+    }
+
+    @Test
+    public void testCircuitBreakerPausesCallsUntilDomsRecovers() throws Exception {
+        // Fails until the breaker has opened twice, then recovers.
+        FlakyDomsWSClient flaky = new FlakyDomsWSClient(3);
+        CircuitBreaker breaker = new CircuitBreaker(2, 20);
+        final RetryingDomsWSClient client = new RetryingDomsWSClient(flaky, 5, 1, 10, breaker);
+
+        final CountDownLatch published = new CountDownLatch(1);
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    client.publishObjects("comment", "uuid:a");
+                    published.countDown();
+                } catch (ServerOperationFailed e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        caller.start();
+
+        assertTrue("Call should wait for DOMS rather than fail", published.await(5, TimeUnit.SECONDS));
+        // Two failures open the breaker, and the first probe fails and opens it again.
+        assertEquals(4, flaky.calls.get());
+        assertEquals(2, breaker.getOpenCount());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testCallAlwaysFailingGivesUpWithCircuitBreaker() throws Exception {
+        FlakyDomsWSClient flaky = new FlakyDomsWSClient(Integer.MAX_VALUE);
+        CircuitBreaker breaker = new CircuitBreaker(2, 5);
+        RetryingDomsWSClient client = new RetryingDomsWSClient(flaky, 3, 1, 10, breaker);
+
+        try {
+            client.publishObjects("comment", "uuid:a");
+            fail("A call failing whatever happens should give up");
+        } catch (ServerOperationFailed e) {
+            assertEquals(3 + RetryingDomsWSClient.MAX_PROBES, flaky.calls.get());
+        }
+        assertTrue("The failed probes should have opened the breaker again", breaker.getOpenCount() > 1);
+    }
+
+    @Test
+    public void testCircuitBreakerLetsOneProbeThrough() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 10);
+        breaker.failed();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        assertTrue("Probe should wait for the cooldown", breaker.acquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final CircuitBreaker sharedBreaker = breaker;
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sharedBreaker.acquire();
+                    acquired.countDown();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        other.start();
+        assertFalse("Others should wait for the probe", acquired.await(100, TimeUnit.MILLISECONDS));
+
+        breaker.succeeded();
+        assertTrue("Others should go through once the probe succeeded", acquired.await(5, TimeUnit.SECONDS));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    /**
+     * Client failing the first calls to publish and create objects.
+     */
+    private static class FlakyDomsWSClient extends TestDomsWSClient {
+        private final int failures;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        FlakyDomsWSClient(int failures) {
+            this.failures = failures;
+        }
+
+        private void maybeFail() throws ServerOperationFailed {
+            int call = calls.incrementAndGet();
+            if (call <= failures) {
+                throw new ServerOperationFailed("Failure " + call);
+            }
+        }
+
+        @Override
+        public void publishObjects(String comment, String... pidsToPublish) throws ServerOperationFailed {
+            maybeFail();
+        }
+
+        @Override
+        public String createObjectFromTemplate(String templatePID, String comment) throws ServerOperationFailed {
+            maybeFail();
+            return "uuid:program";
+        }
+
+        @Override
+        public String createObjectFromTemplate(String templatePID, List<String> oldIdentifiers, String comment)
+                throws ServerOperationFailed {
+            maybeFail();
+            return "uuid:program";
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test sharing workers between lanes.
+ */
+public class SharedWorkerPoolTest {
+
+    @Test
+    public void testLanesShareWorkersByWeight() throws Exception {
+        SharedWorkerPool pool = new SharedWorkerPool(1);
+        SharedWorkerPool.Lane heavy = pool.addLane("heavy", 3, 0);
+        SharedWorkerPool.Lane light = pool.addLane("light", 1, 0);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        // Keep the only worker busy while both lanes fill up.
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        heavy.submit(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        started.await();
+        for (int i = 0; i < 4; i++) {
+            heavy.submit(new Recorder(order, "H"));
+            light.submit(new Recorder(order, "L"));
+        }
+        release.countDown();
+        heavy.awaitIdle();
+        light.awaitIdle();
+
+        assertEquals(Arrays.asList("H", "H", "L", "H", "H", "L", "L", "L"), order);
+    }
+
+    @Test
+    public void testIdleLaneLeavesWorkersToOthers() throws Exception {
+        SharedWorkerPool pool = new SharedWorkerPool(2);
+        SharedWorkerPool.Lane busy = pool.addLane("busy", 1, 0);
+        pool.addLane("idle", 100, 0);
+        final CountDownLatch bothRunning = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            busy.submit(new Runnable() {
+                @Override
+                public void run() {
+                    bothRunning.countDown();
+                    try {
+                        bothRunning.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        // Only returns if both workers took files from the busy lane.
+        busy.awaitIdle();
+        assertEquals(0, bothRunning.getCount());
+    }
+
+    @Test
+    public void testWorkerEndedByErrorIsReplaced() throws Exception {
+        SharedWorkerPool pool = new SharedWorkerPool(1);
+        SharedWorkerPool.Lane lane = pool.addLane("lane", 1, 0);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        lane.submit(new Runnable() {
+            @Override
+            public void run() {
+                throw new Error("Unrecoverable error during ingesting");
+            }
+        });
+        lane.submit(new Recorder(order, "A"));
+        lane.awaitIdle();
+
+        assertEquals(Arrays.asList("A"), order);
+    }
+
+    @Test
+    public void testWorkersAreStartedOnDemand() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        SharedWorkerPool pool = new SharedWorkerPool(4, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                created.incrementAndGet();
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        SharedWorkerPool.Lane lane = pool.addLane("lane", 1, 0);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        for (int i = 0; i < 3; i++) {
+            lane.submit(new Recorder(order, "A"));
+            lane.awaitIdle();
+        }
+
+        assertEquals(Arrays.asList("A", "A", "A"), order);
+        assertEquals("Files processed one at a time should need one worker", 1, created.get());
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testClosedLaneRejectsFiles() throws Exception {
+        SharedWorkerPool pool = new SharedWorkerPool(1);
+        SharedWorkerPool.Lane lane = pool.addLane("lane", 1, 0);
+        lane.close();
+        lane.submit(new Recorder(new ArrayList<String>(), "A"));
+    }
+
+    /**
+     * Records the name of its lane when run.
+     */
+    private static class Recorder implements Runnable {
+        private final List<String> order;
+        private final String name;
+
+        Recorder(List<String> order, String name) {
+            this.order = order;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            order.add(name);
+        }
+    }
+}
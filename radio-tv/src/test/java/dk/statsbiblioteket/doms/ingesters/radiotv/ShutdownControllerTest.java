@@ -0,0 +1,124 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test stopping the ingester.
+ */
+public class ShutdownControllerTest {
+    private File stopFolder;
+    private final AtomicInteger killed = new AtomicInteger();
+    private final AtomicInteger stopped = new AtomicInteger();
+    private final CountDownLatch clientStopped = new CountDownLatch(1);
+
+    private final HotFolderInspector inspector = new HotFolderInspector() {
+        @Override
+        public void setKillFlag() {
+            killed.incrementAndGet();
+        }
+    };
+
+    private final HotFolderScannerClient client = new HotFolderScannerClient() {
+        @Override
+        public void fileAdded(File addedFile) {
+        }
+
+        @Override
+        public void fileModified(File modifiedFile) {
+        }
+
+        @Override
+        public void fileDeleted(File deletedFile) {
+        }
+
+        @Override
+        public void waitForThreads() {
+        }
+
+        @Override
+        public void startEngine() {
+        }
+
+        @Override
+        public void stopEngine() {
+            stopped.incrementAndGet();
+            clientStopped.countDown();
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        stopFolder = new File(System.getProperty("java.io.tmpdir"), UUID.randomUUID().toString());
+        assertTrue(stopFolder.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(stopFolder);
+    }
+
+    @Test
+    public void testStopFileStopsInspectorsAndClients() throws Exception {
+        ShutdownController controller = new ShutdownController(1000);
+        controller.register(inspector, client);
+        controller.watchStopFolder(stopFolder);
+        // Give the watcher time to start watching, it must notice the file either way.
+        Thread.sleep(100);
+
+        assertTrue(new File(stopFolder, "StopRunning").createNewFile());
+        assertTrue("Stop file should be noticed at once", clientStopped.await(5, TimeUnit.SECONDS));
+        assertTrue(controller.awaitStopped());
+        assertEquals(1, killed.get());
+    }
+
+    @Test
+    public void testStopFilePresentAtStartup() throws Exception {
+        assertTrue(new File(stopFolder, "stoprunning").createNewFile());
+        ShutdownController controller = new ShutdownController(1000);
+        controller.register(inspector, client);
+        controller.watchStopFolder(stopFolder);
+
+        assertTrue(clientStopped.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testStoppingOnlyOnce() throws Exception {
+        ShutdownController controller = new ShutdownController(1000);
+        controller.register(inspector, client);
+        assertTrue(controller.stop("testing"));
+        assertTrue(controller.stop("testing again"));
+        assertEquals(1, stopped.get());
+
+        // Inspectors registered late are stopped at once, and their clients by the controller.
+        controller.register(inspector, client);
+        assertEquals(2, killed.get());
+        assertEquals(2, stopped.get());
+    }
+
+    @Test
+    public void testInspectorLeavesStoppingTheClientToController() throws Exception {
+        File hotFolder = new File(stopFolder, "hot");
+        assertTrue(hotFolder.mkdirs());
+        NonRecursiveHotFolderInspector scanner = new NonRecursiveHotFolderInspector(hotFolder, client);
+        scanner.setClientStoppedByController();
+        ShutdownController controller = new ShutdownController(1000);
+        controller.register(scanner, client);
+        assertTrue(controller.stop("testing"));
+
+        // A scan after the kill flag is set must not stop the client a second time, without the deadline.
+        scanner.run();
+        assertEquals(1, stopped.get());
+    }
+}
@@ -0,0 +1,495 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.exceptions.NoObjectFound;
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import dk.statsbiblioteket.doms.client.exceptions.XMLParseException;
+import dk.statsbiblioteket.doms.client.relations.LiteralRelation;
+import dk.statsbiblioteket.doms.client.relations.Relation;
+import dk.statsbiblioteket.doms.client.utils.Constants;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory DOMS, which keeps objects with their state, label, datastreams, relations and old identifiers, for
+ * testing the ingester end to end without a DOMS server.
+ * <p/>
+ * Every operation can be given a latency distribution and a failure rate, see {@link #setLatency(Operation, Latency)}
+ * and {@link #setFailureRate(Operation, double)}. Failures are drawn from a random generator per operation with a
+ * fixed seed, so the number of failures of an operation only depends on the number of calls to it. Calls and
+ * failures are counted per operation. The simulator is thread safe.
+ */
+class SimulatedDomsWSClient extends TestDomsWSClient {
+    /**
+     * The operations of DOMS that can be slowed down or made to fail.
+     */
+    enum Operation {
+        CREATE_OBJECT, GET_FILE_OBJECT_PID, GET_PID_FROM_OLD_IDENTIFIER, GET_DATASTREAM, UPDATE_DATASTREAM, SET_LABEL,
+        ADD_RELATION, REMOVE_RELATION, LIST_RELATIONS, PUBLISH, UNPUBLISH, DELETE
+    }
+
+    /**
+     * A distribution of latencies.
+     */
+    abstract static class Latency {
+        /**
+         * @param random Source of randomness.
+         * @return A latency, in nanoseconds.
+         */
+        abstract long nextNanos(Random random);
+
+        static Latency fixed(final double millis) {
+            return new Latency() {
+                @Override
+                long nextNanos(Random random) {
+                    return (long) (millis * 1e6);
+                }
+            };
+        }
+
+        static Latency uniform(final double minMillis, final double maxMillis) {
+            return new Latency() {
+                @Override
+                long nextNanos(Random random) {
+                    return (long) ((minMillis + random.nextDouble() * (maxMillis - minMillis)) * 1e6);
+                }
+            };
+        }
+
+        static Latency exponential(final double meanMillis) {
+            return new Latency() {
+                @Override
+                long nextNanos(Random random) {
+                    return (long) (-Math.log(1 - random.nextDouble()) * meanMillis * 1e6);
+                }
+            };
+        }
+
+        /**
+         * A long tailed distribution, like that of most services.
+         *
+         * @param medianMillis The median latency.
+         * @param sigma The spread. At 1, one call in a hundred takes ten times the median.
+         * @return The distribution.
+         */
+        static Latency logNormal(final double medianMillis, final double sigma) {
+            return new Latency() {
+                @Override
+                long nextNanos(Random random) {
+                    return (long) (medianMillis * Math.exp(sigma * random.nextGaussian()) * 1e6);
+                }
+            };
+        }
+    }
+
+    private final Map<Operation, Latency> latencies = new EnumMap<Operation, Latency>(Operation.class);
+    private final Map<Operation, Double> failureRates = new EnumMap<Operation, Double>(Operation.class);
+    private final Map<Operation, Random> latencyRandoms = new EnumMap<Operation, Random>(Operation.class);
+    private final Map<Operation, Random> failureRandoms = new EnumMap<Operation, Random>(Operation.class);
+    private final Map<Operation, AtomicLong> calls = new EnumMap<Operation, AtomicLong>(Operation.class);
+    private final Map<Operation, AtomicLong> failures = new EnumMap<Operation, AtomicLong>(Operation.class);
+
+    private final ConcurrentMap<String, SimulatedObject> objects = new ConcurrentHashMap<String, SimulatedObject>();
+    private final ConcurrentMap<String, String> filePids = new ConcurrentHashMap<String, String>();
+    private final AtomicLong nextPid = new AtomicLong();
+
+    SimulatedDomsWSClient() {
+        for (Operation operation : Operation.values()) {
+            latencyRandoms.put(operation, new Random(operation.ordinal()));
+            failureRandoms.put(operation, new Random(operation.ordinal()));
+            calls.put(operation, new AtomicLong());
+            failures.put(operation, new AtomicLong());
+        }
+    }
+
+    /**
+     * Slow an operation down. Must be set before use.
+     *
+     * @param operation The operation.
+     * @param latency The distribution of its latency.
+     */
+    void setLatency(Operation operation, Latency latency) {
+        latencies.put(operation, latency);
+    }
+
+    /**
+     * Slow all operations down. Must be set before use.
+     *
+     * @param latency The distribution of their latency.
+     */
+    void setLatency(Latency latency) {
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, latency);
+        }
+    }
+
+    /**
+     * Make an operation fail now and then. Must be set before use.
+     *
+     * @param operation The operation.
+     * @param failureRate The fraction of calls to fail, between 0 and 1.
+     */
+    void setFailureRate(Operation operation, double failureRate) {
+        failureRates.put(operation, failureRate);
+    }
+
+    /**
+     * Add a file object, as the ingest of the recordings would.
+     *
+     * @param url The URL of the file.
+     * @return The PID of the file object.
+     */
+    String addFile(String url) {
+        String pid = newPid();
+        SimulatedObject file = new SimulatedObject();
+        file.state = Constants.FedoraState.Active;
+        objects.put(pid, file);
+        filePids.put(url, pid);
+        return pid;
+    }
+
+    /**
+     * @param operation The operation.
+     * @return The number of calls to the operation.
+     */
+    long getCalls(Operation operation) {
+        return calls.get(operation).get();
+    }
+
+    /**
+     * @param operation The operation.
+     * @return The number of calls to the operation made to fail.
+     */
+    long getFailures(Operation operation) {
+        return failures.get(operation).get();
+    }
+
+    /**
+     * @param state A state.
+     * @return The number of objects, other than files, in that state.
+     */
+    int countObjects(Constants.FedoraState state) {
+        int count = 0;
+        for (Map.Entry<String, SimulatedObject> entry : objects.entrySet()) {
+            if (!filePids.containsValue(entry.getKey()) && entry.getValue().state == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Wait out the latency of an operation, and fail it if it is its turn.
+     */
+    private void simulate(Operation operation) throws ServerOperationFailed {
+        calls.get(operation).incrementAndGet();
+        Latency latency = latencies.get(operation);
+        if (latency != null) {
+            long nanos = latency.nextNanos(latencyRandoms.get(operation));
+            try {
+                Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ServerOperationFailed("Interrupted", e);
+            }
+        }
+        Double failureRate = failureRates.get(operation);
+        if (failureRate != null && failureRandoms.get(operation).nextDouble() < failureRate) {
+            failures.get(operation).incrementAndGet();
+            throw new ServerOperationFailed("Simulated failure of " + operation, null);
+        }
+    }
+
+    private String newPid() {
+        return "uuid:simulated-" + nextPid.incrementAndGet();
+    }
+
+    private SimulatedObject getObject(String pid) throws ServerOperationFailed {
+        SimulatedObject object = objects.get(pid);
+        if (object == null || object.state == Constants.FedoraState.Deleted) {
+            throw new ServerOperationFailed("No object " + pid, null);
+        }
+        return object;
+    }
+
+    @Override
+    public String createObjectFromTemplate(String templatePID, String comment) throws ServerOperationFailed {
+        return createObjectFromTemplate(templatePID, Collections.<String>emptyList(), comment);
+    }
+
+    @Override
+    public String createObjectFromTemplate(String templatePID, List<String> oldIdentifiers, String comment)
+            throws ServerOperationFailed {
+        simulate(Operation.CREATE_OBJECT);
+        String pid = newPid();
+        SimulatedObject object = new SimulatedObject();
+        object.datastreams.put(Common.DC_DS_ID, createDublinCore(pid, oldIdentifiers));
+        object.oldIdentifiers.addAll(oldIdentifiers);
+        objects.put(pid, object);
+        return pid;
+    }
+
+    private static Document createDublinCore(String pid, List<String> oldIdentifiers) throws ServerOperationFailed {
+        Document dc;
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            dc = factory.newDocumentBuilder().newDocument();
+        } catch (ParserConfigurationException e) {
+            throw new ServerOperationFailed("No XML parser", e);
+        }
+        Element root = dc.createElementNS("http://www.openarchives.org/OAI/2.0/oai_dc/", "oai_dc:dc");
+        dc.appendChild(root);
+        List<String> identifiers = new ArrayList<String>();
+        identifiers.add(pid);
+        identifiers.addAll(oldIdentifiers);
+        for (String identifier : identifiers) {
+            Element element = dc.createElementNS(Common.DC_NAMESPACE, "dc:identifier");
+            element.setTextContent(identifier);
+            root.appendChild(element);
+        }
+        return dc;
+    }
+
+    @Override
+    public String getFileObjectPID(URL fileURL) throws NoObjectFound, ServerOperationFailed {
+        simulate(Operation.GET_FILE_OBJECT_PID);
+        String pid = filePids.get(fileURL.toString());
+        if (pid == null) {
+            throw new NoObjectFound("No file object for " + fileURL);
+        }
+        return pid;
+    }
+
+    @Override
+    public List<String> getPidFromOldIdentifier(String oldIdentifier) throws NoObjectFound, ServerOperationFailed {
+        simulate(Operation.GET_PID_FROM_OLD_IDENTIFIER);
+        // The identifier is escaped for the query DOMS would make.
+        String identifier = oldIdentifier.replace("\\'", "'");
+        List<String> pids = new ArrayList<String>();
+        for (Map.Entry<String, SimulatedObject> entry : objects.entrySet()) {
+            SimulatedObject object = entry.getValue();
+            synchronized (object) {
+                if (object.state != Constants.FedoraState.Deleted && object.oldIdentifiers.contains(identifier)) {
+                    pids.add(entry.getKey());
+                }
+            }
+        }
+        if (pids.isEmpty()) {
+            throw new NoObjectFound("No object with old identifier " + identifier);
+        }
+        return pids;
+    }
+
+    @Override
+    public Document getDataStream(String objectPID, String datastreamID) throws ServerOperationFailed {
+        simulate(Operation.GET_DATASTREAM);
+        SimulatedObject object = getObject(objectPID);
+        synchronized (object) {
+            Document datastream = object.datastreams.get(datastreamID);
+            if (datastream == null) {
+                throw new ServerOperationFailed("No datastream " + datastreamID + " in " + objectPID, null);
+            }
+            // Callers may change the document they get.
+            return (Document) datastream.cloneNode(true);
+        }
+    }
+
+    @Override
+    public void updateDataStream(String objectPID, String dataStreamID, Document newDataStreamContents,
+                                 String comment) throws ServerOperationFailed {
+        simulate(Operation.UPDATE_DATASTREAM);
+        SimulatedObject object = getObject(objectPID);
+        synchronized (object) {
+            object.checkWritable(objectPID);
+            object.datastreams.put(dataStreamID, (Document) newDataStreamContents.cloneNode(true));
+        }
+    }
+
+    @Override
+    public String getLabel(String uuid) {
+        SimulatedObject object = objects.get(uuid);
+        if (object == null) {
+            return null;
+        }
+        synchronized (object) {
+            return object.label;
+        }
+    }
+
+    @Override
+    public void setObjectLabel(String objectPID, String objectLabel, String comment) throws ServerOperationFailed {
+        simulate(Operation.SET_LABEL);
+        SimulatedObject object = getObject(objectPID);
+        synchronized (object) {
+            object.checkWritable(objectPID);
+            object.label = objectLabel;
+        }
+    }
+
+    @Override
+    public void addObjectRelation(String pid, String predicate, String objectPid, String comment)
+            throws ServerOperationFailed, XMLParseException {
+        simulate(Operation.ADD_RELATION);
+        SimulatedObject object = getObject(pid);
+        synchronized (object) {
+            object.checkWritable(pid);
+            object.relations.add(new SimulatedRelation(pid, predicate, objectPid));
+        }
+    }
+
+    @Override
+    public void removeObjectRelation(LiteralRelation relation, String comment) throws ServerOperationFailed {
+        simulate(Operation.REMOVE_RELATION);
+        SimulatedObject object = getObject(relation.getSubjectPid());
+        synchronized (object) {
+            object.checkWritable(relation.getSubjectPid());
+            object.relations.remove(
+                    new SimulatedRelation(relation.getSubjectPid(), relation.getPredicate(), relation.getObject()));
+        }
+    }
+
+    @Override
+    public List<Relation> listObjectRelations(String objectPID, String relationType) throws ServerOperationFailed {
+        simulate(Operation.LIST_RELATIONS);
+        SimulatedObject object = getObject(objectPID);
+        List<Relation> result = new ArrayList<Relation>();
+        synchronized (object) {
+            for (SimulatedRelation relation : object.relations) {
+                if (relation.predicate.equals(relationType)) {
+                    result.add(relation);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void publishObjects(String comment, String... pidsToPublish) throws ServerOperationFailed {
+        simulate(Operation.PUBLISH);
+        setState(Constants.FedoraState.Active, pidsToPublish);
+    }
+
+    @Override
+    public void unpublishObjects(String comment, String... pidsToUnpublish) throws ServerOperationFailed {
+        simulate(Operation.UNPUBLISH);
+        setState(Constants.FedoraState.Inactive, pidsToUnpublish);
+    }
+
+    @Override
+    public void deleteObjects(String comment, String... pidsToDelete) throws ServerOperationFailed {
+        simulate(Operation.DELETE);
+        for (String pid : pidsToDelete) {
+            SimulatedObject object = pid == null ? null : objects.get(pid);
+            if (object != null) {
+                synchronized (object) {
+                    object.state = Constants.FedoraState.Deleted;
+                }
+            }
+        }
+    }
+
+    private void setState(Constants.FedoraState state, String... pids) throws ServerOperationFailed {
+        // Check them all first, so either all or none change.
+        Map<String, SimulatedObject> found = new HashMap<String, SimulatedObject>();
+        for (String pid : pids) {
+            found.put(pid, getObject(pid));
+        }
+        for (SimulatedObject object : found.values()) {
+            synchronized (object) {
+                object.state = state;
+            }
+        }
+    }
+
+    @Override
+    public Constants.FedoraState getState(String pid) throws ServerOperationFailed {
+        SimulatedObject object = objects.get(pid);
+        if (object == null) {
+            throw new ServerOperationFailed("No object " + pid, null);
+        }
+        synchronized (object) {
+            return object.state;
+        }
+    }
+
+    /**
+     * An object in the simulated DOMS. Guarded by its own lock.
+     */
+    private static class SimulatedObject {
+        private Constants.FedoraState state = Constants.FedoraState.Inactive;
+        private String label;
+        private final Map<String, Document> datastreams = new HashMap<String, Document>();
+        private final Set<SimulatedRelation> relations = new LinkedHashSet<SimulatedRelation>();
+        private final Set<String> oldIdentifiers = new LinkedHashSet<String>();
+
+        /**
+         * Published objects must be unpublished before they are changed, as in DOMS.
+         */
+        private void checkWritable(String pid) throws ServerOperationFailed {
+            if (state == Constants.FedoraState.Active) {
+                throw new ServerOperationFailed("Object " + pid + " is published", null);
+            }
+        }
+    }
+
+    /**
+     * A relation from an object to another.
+     */
+    private static class SimulatedRelation implements LiteralRelation {
+        private final String subjectPid;
+        private final String predicate;
+        private final String object;
+
+        SimulatedRelation(String subjectPid, String predicate, String object) {
+            this.subjectPid = subjectPid;
+            this.predicate = predicate;
+            this.object = object;
+        }
+
+        @Override
+        public String getSubjectPid() {
+            return subjectPid;
+        }
+
+        @Override
+        public String getPredicate() {
+            return predicate;
+        }
+
+        @Override
+        public String getObject() {
+            return object;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof SimulatedRelation)) {
+                return false;
+            }
+            SimulatedRelation relation = (SimulatedRelation) other;
+            return subjectPid.equals(relation.subjectPid) && predicate.equals(relation.predicate)
+                   && String.valueOf(object).equals(String.valueOf(relation.object));
+        }
+
+        @Override
+        public int hashCode() {
+            return (subjectPid + " " + predicate + " " + object).hashCode();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that streaming extraction gives the same result as extraction from a DOM.
+ */
+public class StreamingProgramExtractorTest {
+
+    @Test
+    public void testSameAsDomExtraction() throws Exception {
+        // The last sample declares the namespaces on the roots of the extracted subtrees rather than on the root of the
+        // file, in the default namespace and with a prefix bound to another namespace on the root of the file.
+        for (String sample : new String[]{"/2012-11-14_23-20-00_dr1.xml", "/2012-11-15_09-40-00_dr1.xml",
+                                          "/2012-11-14_23-20-00_dr1_local_namespaces.xml"}) {
+            File sampleFile = new File(getClass().getResource(sample).toURI());
+            ProgramMetadata expected = new DomProgramExtractor(RadioTVMetadataProcessor.createFileParsers(null))
+                    .extract(sampleFile);
+            ProgramMetadata actual = new StreamingProgramExtractor(null).extract(sampleFile);
+
+            assertEquals(sample, expected.getTitle(), actual.getTitle());
+            assertEquals(sample, expected.getOldIdentifiers(), actual.getOldIdentifiers());
+            assertEquals(sample, expected.getFileUrls(), actual.getFileUrls());
+            assertSameDocument(sample, expected.getPbCore(), actual.getPbCore());
+            assertSameDocument(sample, expected.getRitzauOriginal(), actual.getRitzauOriginal());
+            assertSameDocument(sample, expected.getGallupOriginal(), actual.getGallupOriginal());
+            assertSameDocument(sample, expected.getProgramBroadcast(), actual.getProgramBroadcast());
+        }
+    }
+
+    @Test
+    public void testSubtreesKeepNamespacesDeclaredOnThem() throws Exception {
+        File sampleFile = new File(getClass().getResource("/2012-11-14_23-20-00_dr1_local_namespaces.xml").toURI());
+        ProgramMetadata programMetadata = new StreamingProgramExtractor(null).extract(sampleFile);
+
+        assertEquals("Damages", programMetadata.getTitle());
+        assertEquals("http://www.pbcore.org/PBCore/PBCoreNamespace.html",
+                     programMetadata.getPbCore().getDocumentElement().getNamespaceURI());
+        assertEquals("http://doms.statsbiblioteket.dk/types/gallup_original/0/1/#",
+                     programMetadata.getGallupOriginal().getDocumentElement().getNamespaceURI());
+        assertEquals("http://doms.statsbiblioteket.dk/types/program_broadcast/0/1/#",
+                     programMetadata.getProgramBroadcast().getDocumentElement().getNamespaceURI());
+    }
+
+    @Test
+    public void testExtractsExpectedValues() throws Exception {
+        File sampleFile = new File(getClass().getResource("/2012-11-14_23-20-00_dr1.xml").toURI());
+        ProgramMetadata programMetadata = new StreamingProgramExtractor(null).extract(sampleFile);
+
+        assertEquals("Damages", programMetadata.getTitle());
+        assertEquals(2, programMetadata.getOldIdentifiers().size());
+        assertEquals("5444487RitzauProgram", programMetadata.getOldIdentifiers().get(0));
+        assertEquals(2, programMetadata.getFileUrls().size());
+        assertEquals("tvmeterProgram", programMetadata.getGallupOriginal().getDocumentElement().getLocalName());
+    }
+
+    private void assertSameDocument(String message, Document expected, Document actual) {
+        assertTrue(message + ": expected " + expected.getDocumentElement().getLocalName(),
+                   expected.getDocumentElement().isEqualNode(actual.getDocumentElement()));
+    }
+}
@@ -0,0 +1,71 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test locking by key.
+ */
+public class StripedLocksTest {
+
+    @Test
+    public void testSameKeyWaitsUntilReleased() throws Exception {
+        final StripedLocks locks = new StripedLocks(16);
+        StripedLocks.Held held = locks.lock(Arrays.asList("ritzau:1", "tvmeter:1"));
+
+        final CountDownLatch locked = new CountDownLatch(1);
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    locks.lock(Collections.singletonList("tvmeter:1"));
+                    locked.countDown();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        other.start();
+        assertFalse("Should wait for the lock", locked.await(100, TimeUnit.MILLISECONDS));
+
+        held.release();
+        assertTrue("Should get the lock once released", locked.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTryLockGivesUpAndHoldsNothing() throws Exception {
+        StripedLocks locks = new StripedLocks(1);
+        StripedLocks.Held held = locks.lock(Collections.singletonList("a"));
+        assertNull(locks.tryLock(Arrays.asList("a", "b"), 10, TimeUnit.MILLISECONDS));
+
+        // Releasing twice must not free the lock for two.
+        held.release();
+        held.release();
+        assertNotNull(locks.tryLock(Collections.singletonList("b"), 10, TimeUnit.MILLISECONDS));
+        assertNull(locks.tryLock(Collections.singletonList("a"), 10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testLockIsReleasedByAnotherThread() throws Exception {
+        StripedLocks locks = new StripedLocks(4);
+        final StripedLocks.Held held = locks.lock(Collections.singletonList("a"));
+        Thread publisher = new Thread() {
+            @Override
+            public void run() {
+                held.release();
+            }
+        };
+        publisher.start();
+        publisher.join();
+        assertNotNull(locks.tryLock(Collections.singletonList("a"), 1, TimeUnit.SECONDS));
+    }
+}
@@ -43,7 +43,7 @@ import static org.junit.Assert.assertTrue;
 public class TestHotFolderScanner {
 
     private HotFolderScanner hotFolderScanner;
-    private File clientFeedbackAddedFile;
+    private volatile File clientFeedbackAddedFile;
 
     private File tempTestDir;
     private File tempTestFile;
@@ -78,6 +78,10 @@ public class TestHotFolderScanner {
             //To change body of implemented methods use File | Settings | File Templates.
         }
 
+        @Override
+        public void stopEngine() {
+        }
+
         @Override
         public void fileModified(File modifiedFile) {
             clientFeedbackModifiedFile = modifiedFile;
@@ -153,4 +157,46 @@ public class TestHotFolderScanner {
 
         // TODO: It wouldn't hurt testing the scanner with more than one file...
     }
+
+    /**
+     * Test method for
+     * {@link dk.statsbiblioteket.doms.ingesters.radiotv.HotFolderScanner#startScanning(java.io.File, java.io.File, HotFolderScannerClient, HotFolderScanner.InspectorType)}
+     * using file system events.
+     */
+    @Test
+    public void testStartScanningWatchService() throws IOException {
+        tempTestDir = new File(System.getProperty("java.io.tmpdir")
+                               + File.separator + UUID.randomUUID());
+        stopFolder = new File(System.getProperty("java.io.tmpdir")
+                              + File.separator + UUID.randomUUID());
+
+        assertTrue("Failed creating temp. test hotfolder dir: "
+                   + tempTestDir.toString(), tempTestDir.mkdirs());
+
+        assertTrue("Failed creating temp. test stopfolder dir: "
+                   + stopFolder.toString(), stopFolder.mkdirs());
+
+        hotFolderScanner.startScanning(tempTestDir, stopFolder,
+                                       hotFolderScannerClient,
+                                       HotFolderScanner.InspectorType.WATCH_SERVICE);
+
+        tempTestFile = new File(tempTestDir, UUID.randomUUID().toString()
+                                             + ".xml");
+        assertTrue("Failed creating test file: " + tempTestFile.toString(),
+                   tempTestFile.createNewFile());
+
+        // No scanning period to wait for, but some watch service
+        // implementations poll the file system behind the scenes.
+        for (int i = 0; i < 100 && clientFeedbackAddedFile == null; i++) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ir) {
+                // Never mind that....
+            }
+        }
+
+        assertEquals(
+                "The created test file was not detected by the hot folder watcher.",
+                tempTestFile, clientFeedbackAddedFile);
+    }
 }
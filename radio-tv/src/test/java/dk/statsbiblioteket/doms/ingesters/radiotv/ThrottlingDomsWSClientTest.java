@@ -0,0 +1,80 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import dk.statsbiblioteket.doms.client.exceptions.ServerOperationFailed;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test capping the calls made to DOMS at once.
+ */
+public class ThrottlingDomsWSClientTest {
+
+    @Test
+    public void testConcurrentCallsAreCapped() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final ThrottlingDomsWSClient client = new ThrottlingDomsWSClient(new TestDomsWSClient() {
+            @Override
+            public void publishObjects(String comment, String... pidsToPublish) throws ServerOperationFailed {
+                int now = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), now));
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+            }
+        }, 3);
+
+        // Virtual threads where the JVM has them, as in the ingester.
+        ThreadFactory threadFactory = VirtualThreads.factory("Caller-");
+        List<Thread> callers = new ArrayList<Thread>();
+        for (int i = 0; i < 20; i++) {
+            Runnable call = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        client.publishObjects("comment", "uuid:a");
+                    } catch (ServerOperationFailed e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            Thread caller = threadFactory == null ? new Thread(call) : threadFactory.newThread(call);
+            caller.start();
+            callers.add(caller);
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+
+        assertEquals(3, maxRunning.get());
+        assertEquals(0, client.getCallsInFlight());
+        assertTrue(client.toString(), client.toString().contains("of 20 calls waited"));
+    }
+
+    @Test
+    public void testVirtualThreadsAreDaemonsIfAvailable() throws Exception {
+        ThreadFactory threadFactory = VirtualThreads.factory("Worker-");
+        assertEquals(threadFactory != null, VirtualThreads.isAvailable());
+        if (threadFactory != null) {
+            Thread thread = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            assertTrue(thread.isDaemon());
+            assertEquals("Worker-1", thread.getName());
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package dk.statsbiblioteket.doms.ingesters.radiotv;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test watching a hot folder for files.
+ */
+public class WatchingHotFolderInspectorTest {
+    private static final long SETTLE_INTERVAL = 500;
+
+    private File hotFolder;
+    private final List<File> added = new CopyOnWriteArrayList<File>();
+    private final List<File> modified = new CopyOnWriteArrayList<File>();
+
+    private final HotFolderScannerClient client = new HotFolderScannerClient() {
+        @Override
+        public void fileAdded(File addedFile) {
+            added.add(addedFile);
+        }
+
+        @Override
+        public void fileModified(File modifiedFile) {
+            modified.add(modifiedFile);
+        }
+
+        @Override
+        public void fileDeleted(File deletedFile) {
+        }
+
+        @Override
+        public void waitForThreads() {
+        }
+
+        @Override
+        public void startEngine() {
+        }
+
+        @Override
+        public void stopEngine() {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        hotFolder = new File(System.getProperty("java.io.tmpdir"), UUID.randomUUID().toString());
+        assertTrue(hotFolder.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(hotFolder);
+    }
+
+    /**
+     * A file still being written must not be reported until it has stayed unchanged for the settle interval.
+     */
+    @Test
+    public void testFileBeingWrittenIsReportedOnceSettled() throws Exception {
+        WatchingHotFolderInspector inspector = new WatchingHotFolderInspector(hotFolder, client, SETTLE_INTERVAL);
+        Thread watcher = new Thread(inspector, "HotFolderWatcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        try {
+            File file = new File(hotFolder, "program.xml");
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                for (int i = 0; i < 10; i++) {
+                    out.write("<program>".getBytes("UTF-8"));
+                    out.flush();
+                    Thread.sleep(SETTLE_INTERVAL / 5);
+                    assertEquals("A file being written should not be reported", 0, added.size());
+                }
+            } finally {
+                out.close();
+            }
+
+            for (int i = 0; i < 100 && added.isEmpty(); i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, added.size());
+            assertEquals(file, added.get(0));
+            assertEquals("A file reported once settled is not also reported modified", 0, modified.size());
+        } finally {
+            inspector.setKillFlag();
+            watcher.join(5000);
+        }
+    }
+}